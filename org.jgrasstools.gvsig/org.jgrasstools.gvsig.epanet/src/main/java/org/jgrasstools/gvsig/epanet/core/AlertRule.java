@@ -0,0 +1,191 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org 
+ * (C) HydroloGIS - www.hydrologis.com 
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import static org.jgrasstools.gvsig.epanet.core.TimestepResults.*;
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A threshold rule on a variable of a class of elements, evaluated while a run proceeds.
+ *
+ * <p>The text form is <code>&lt;elements&gt; &lt;variable&gt; &lt;|&gt; &lt;threshold&gt; [for &lt;minutes&gt;]</code>,
+ * ex. "junctions pressure &lt; 15", "pipes velocity &gt; 2.5" or "tanks head &lt; 102.5 for 120".
+ * A violation is reported only if it lasts at least the given minutes.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class AlertRule {
+
+    private final String text;
+    private final String resultTable;
+    private final int variable;
+    private final boolean below;
+    private final float threshold;
+    private final long minDurationMillis;
+
+    /**
+     * Constructor.
+     *
+     * @param text the text of the rule.
+     * @param resultTable the results table of the elements (ex. JUNCTIONSRESULT).
+     * @param variable the variable index (ex. {@link TimestepResults#VAR_PRESSURE}).
+     * @param below if <code>true</code>, values below the threshold violate the rule, else values above it.
+     * @param threshold the threshold.
+     * @param minDurationMinutes the minimum duration of a violation to be reported.
+     */
+    public AlertRule( String text, String resultTable, int variable, boolean below, float threshold,
+            double minDurationMinutes ) {
+        this.text = text;
+        this.resultTable = resultTable;
+        this.variable = variable;
+        this.below = below;
+        this.threshold = threshold;
+        this.minDurationMillis = (long) (minDurationMinutes * 60000);
+    }
+
+    /**
+     * Parse a rule from its text form.
+     *
+     * @param text the text.
+     * @return the rule.
+     * @throws IllegalArgumentException if the text is not a valid rule.
+     */
+    public static AlertRule parse( String text ) {
+        String[] parts = text.trim().toLowerCase(Locale.ENGLISH).split("\\s+");
+        if (parts.length != 4 && !(parts.length == 6 && parts[4].equals("for"))) {
+            throw new IllegalArgumentException("Invalid alert rule: " + text);
+        }
+        String resultTable = getResultTable(parts[0]);
+        int variable = getVariable(parts[1], TimestepResults.isLinkTable(resultTable));
+        boolean below;
+        if (parts[2].equals("<")) {
+            below = true;
+        } else if (parts[2].equals(">")) {
+            below = false;
+        } else {
+            throw new IllegalArgumentException("Invalid alert rule operator, use < or >: " + text);
+        }
+        try {
+            float threshold = Float.parseFloat(parts[3]);
+            double minutes = parts.length == 6 ? Double.parseDouble(parts[5]) : 0;
+            return new AlertRule(text.trim(), resultTable, variable, below, threshold, minutes);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid alert rule number: " + text);
+        }
+    }
+
+    /**
+     * Parse a set of rules separated by new lines or semicolons.
+     *
+     * @param text the text of the rules.
+     * @return the rules.
+     */
+    public static List<AlertRule> parseRules( String text ) {
+        List<AlertRule> rules = new ArrayList<AlertRule>();
+        for( String ruleText : text.split("[;\\n]") ) {
+            if (ruleText.trim().length() > 0) {
+                rules.add(parse(ruleText));
+            }
+        }
+        return rules;
+    }
+
+    private static String getResultTable( String elements ) {
+        if (elements.startsWith("junction")) {
+            return JUNCTIONSRESULT;
+        } else if (elements.startsWith("reservoir")) {
+            return RESERVOIRSRESULT;
+        } else if (elements.startsWith("tank")) {
+            return TANKSRESULT;
+        } else if (elements.startsWith("pipe")) {
+            return PIPESRESULT;
+        } else if (elements.startsWith("pump")) {
+            return PUMPSRESULT;
+        } else if (elements.startsWith("valve")) {
+            return VALVESRESULT;
+        }
+        throw new IllegalArgumentException("Unknown elements in alert rule: " + elements);
+    }
+
+    private static int getVariable( String name, boolean isLink ) {
+        if (isLink) {
+            if (name.equals("flow")) {
+                return VAR_FLOW1;
+            } else if (name.equals("velocity")) {
+                return VAR_VELOCITY1;
+            } else if (name.equals("headloss")) {
+                return VAR_HEADLOSS;
+            } else if (name.equals("status")) {
+                return VAR_STATUS;
+            } else if (name.equals("energy")) {
+                return VAR_ENERGY;
+            }
+        } else {
+            if (name.equals("demand")) {
+                return VAR_DEMAND;
+            } else if (name.equals("head")) {
+                return VAR_HEAD;
+            } else if (name.equals("pressure")) {
+                return VAR_PRESSURE;
+            } else if (name.equals("quality")) {
+                return VAR_QUALITY;
+            }
+        }
+        throw new IllegalArgumentException("Unknown variable in alert rule: " + name);
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public String getResultTable() {
+        return resultTable;
+    }
+
+    public int getVariable() {
+        return variable;
+    }
+
+    public long getMinDurationMillis() {
+        return minDurationMillis;
+    }
+
+    /**
+     * @param value the value of an element.
+     * @return <code>true</code> if the value violates the rule.
+     */
+    public boolean isViolated( float value ) {
+        return below ? value < threshold : value > threshold;
+    }
+
+    /**
+     * @return <code>true</code> if the first value is worse than the second for this rule.
+     */
+    public boolean isWorse( float value, float other ) {
+        return below ? value < other : value > other;
+    }
+
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.jgrasstools.gvsig.epanet.core.TimestepResults.ElementResults;
+import org.jgrasstools.gvsig.epanet.database.AlertEventsTable;
+import org.jgrasstools.gvsig.epanet.database.AlertRulesTable;
+import org.jgrasstools.gvsig.epanet.database.EpanetRun;
+import org.joda.time.DateTime;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.misc.TransactionManager;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.table.TableUtils;
+
+/**
+ * {@link IResultsSink} evaluating {@link AlertRule alert rules} on every timestep and storing
+ * their violations as events in the {@link AlertEventsTable}.
+ *
+ * <p>Every rule keeps the start time and the worst value of the open violation of each element
+ * in primitive arrays, so a timestep costs one comparison per element and rule. Only the
+ * events are kept in memory, and inserted in a single transaction when the sink is closed.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class AlertsWriter implements IResultsSink {
+
+    private static final long NO_EVENT = Long.MIN_VALUE;
+
+    private final ConnectionSource connectionSource;
+    private final EpanetRun run;
+    private final RuleState[] states;
+    private final List<AlertEventsTable> events = new ArrayList<AlertEventsTable>();
+    private long lastTime = NO_EVENT;
+
+    /**
+     * Constructor. The rules are stored attached to the run.
+     *
+     * @param connectionSource the connection to the results database.
+     * @param run the run.
+     * @param rules the rules to evaluate.
+     * @throws SQLException
+     */
+    public AlertsWriter( ConnectionSource connectionSource, EpanetRun run, List<AlertRule> rules ) throws SQLException {
+        this.connectionSource = connectionSource;
+        this.run = run;
+        createTables(connectionSource);
+        Dao<AlertRulesTable, Long> rulesDao = DaoManager.createDao(connectionSource, AlertRulesTable.class);
+        states = new RuleState[rules.size()];
+        for( int i = 0; i < states.length; i++ ) {
+            AlertRulesTable ruleTable = new AlertRulesTable();
+            ruleTable.setRun(run);
+            ruleTable.setRule(rules.get(i).getText());
+            rulesDao.create(ruleTable);
+            states[i] = new RuleState(rules.get(i), ruleTable);
+        }
+    }
+
+    /**
+     * Create the alert tables if they don't exist.
+     *
+     * @param connectionSource the connection to the results database.
+     * @throws SQLException
+     */
+    public static void createTables( ConnectionSource connectionSource ) throws SQLException {
+        TableUtils.createTableIfNotExists(connectionSource, AlertRulesTable.class);
+        TableUtils.createTableIfNotExists(connectionSource, AlertEventsTable.class);
+    }
+
+    /**
+     * Get the events of a run.
+     *
+     * @param connectionSource the connection to the results database.
+     * @param run the run.
+     * @return the events, ordered by start time.
+     * @throws SQLException
+     */
+    public static List<AlertEventsTable> getEvents( ConnectionSource connectionSource, EpanetRun run )
+            throws SQLException {
+        Dao<AlertEventsTable, Long> eventsDao = DaoManager.createDao(connectionSource, AlertEventsTable.class);
+        return eventsDao.queryBuilder().orderBy(STARTTIME, true).where().eq(RUN_ID, run).query();
+    }
+
+    public void write( TimestepResults results ) {
+        long time = results.time.getMillis();
+        for( RuleState state : states ) {
+            state.evaluate(results.getResults(state.rule.getResultTable()), time);
+        }
+        lastTime = time;
+    }
+
+    public void close() throws Exception {
+        if (lastTime != NO_EVENT) {
+            // violations lasting until the end of the run
+            for( RuleState state : states ) {
+                state.closeAll(lastTime);
+            }
+            lastTime = NO_EVENT;
+        }
+        if (events.isEmpty()) {
+            return;
+        }
+        final Dao<AlertEventsTable, Long> eventsDao = DaoManager.createDao(connectionSource, AlertEventsTable.class);
+        TransactionManager.callInTransaction(connectionSource, new Callable<Void>(){
+            public Void call() throws Exception {
+                for( AlertEventsTable event : events ) {
+                    eventsDao.create(event);
+                }
+                return null;
+            }
+        });
+        events.clear();
+    }
+
+    /**
+     * The open violations of a rule, per element.
+     */
+    private class RuleState {
+        final AlertRule rule;
+        final AlertRulesTable ruleTable;
+        long[] startTimes;
+        float[] extremes;
+        ElementResults lastResults;
+
+        RuleState( AlertRule rule, AlertRulesTable ruleTable ) {
+            this.rule = rule;
+            this.ruleTable = ruleTable;
+        }
+
+        void evaluate( ElementResults elementResults, long time ) {
+            int size = elementResults.size();
+            if (startTimes == null) {
+                startTimes = new long[size];
+                extremes = new float[size];
+                Arrays.fill(startTimes, NO_EVENT);
+            }
+            float[] values = elementResults.values[rule.getVariable()];
+            for( int i = 0; i < size; i++ ) {
+                float value = values[i];
+                if (rule.isViolated(value)) {
+                    if (startTimes[i] == NO_EVENT) {
+                        startTimes[i] = time;
+                        extremes[i] = value;
+                    } else if (rule.isWorse(value, extremes[i])) {
+                        extremes[i] = value;
+                    }
+                } else if (startTimes[i] != NO_EVENT) {
+                    close(elementResults, i, time);
+                }
+            }
+            lastResults = elementResults;
+        }
+
+        void closeAll( long time ) {
+            if (startTimes == null) {
+                return;
+            }
+            for( int i = 0; i < startTimes.length; i++ ) {
+                if (startTimes[i] != NO_EVENT) {
+                    close(lastResults, i, time);
+                }
+            }
+        }
+
+        private void close( ElementResults elementResults, int i, long endTime ) {
+            long startTime = startTimes[i];
+            startTimes[i] = NO_EVENT;
+            if (endTime - startTime < rule.getMinDurationMillis()) {
+                return;
+            }
+            AlertEventsTable event = new AlertEventsTable();
+            event.setRun(run);
+            event.setRule(ruleTable);
+            event.setResultTable(rule.getResultTable());
+            event.setWorkOid(elementResults.workOids[i]);
+            event.setId(elementResults.ids[i]);
+            event.setStartTime(new DateTime(startTime));
+            event.setEndTime(new DateTime(endTime));
+            event.setExtremeValue(extremes[i]);
+            events.add(event);
+        }
+    }
+}
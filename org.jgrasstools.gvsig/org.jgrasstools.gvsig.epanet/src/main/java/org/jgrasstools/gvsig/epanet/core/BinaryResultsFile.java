@@ -0,0 +1,98 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import java.io.File;
+
+import org.jgrasstools.gears.utils.files.FileUtilities;
+import org.jgrasstools.gvsig.epanet.database.EpanetRun;
+
+/**
+ * Layout of the binary results file of a run.
+ *
+ * <p>The file is made of a header followed by one fixed size record per reporting timestep,
+ * similar in spirit to the epanet .out file:</p>
+ * <pre>
+ * header:
+ *   int    magic
+ *   int    version
+ *   long   run id
+ *   int    timesteps count (updated after every written timestep)
+ *   int    record size in bytes
+ *   long   offset of the first record
+ *   int    tables count
+ *   for each table (in the {@link #TABLES} order):
+ *     int  elements count
+ *     int  variables count
+ *     for each element: long work oid, UTF id
+ * record:
+ *   long   time in millis
+ *   for each table, for each variable, for each element: float value
+ * </pre>
+ * <p>A time slice of a variable is therefore a contiguous run of floats, while the
+ * series of an element is read with a constant stride of one record.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class BinaryResultsFile {
+
+    public static final int MAGIC = 0x45504E52;
+    public static final int VERSION = 1;
+    public static final String EXTENSION = ".epbin";
+
+    /**
+     * Position of the timesteps count in the header.
+     */
+    public static final int TIMESTEPS_COUNT_POSITION = 16;
+
+    /**
+     * The results tables, in file order.
+     */
+    public static final String[] TABLES = {JUNCTIONSRESULT, RESERVOIRSRESULT, TANKSRESULT, PIPESRESULT, PUMPSRESULT,
+            VALVESRESULT};
+
+    /**
+     * Get the binary results file of a run, placed beside the results database.
+     *
+     * @param databaseFile the results database.
+     * @param run the run.
+     * @return the binary results file.
+     */
+    public static File getFile( File databaseFile, EpanetRun run ) {
+        String name = FileUtilities.getNameWithoutExtention(databaseFile);
+        return new File(databaseFile.getParentFile(), name + "_run" + run.getId() + EXTENSION);
+    }
+
+    /**
+     * Get the index of a results table in the file.
+     *
+     * @param resultTable the results table name.
+     * @return the index in {@link #TABLES}.
+     */
+    public static int getTableIndex( String resultTable ) {
+        for( int i = 0; i < TABLES.length; i++ ) {
+            if (TABLES[i].equals(resultTable)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown results table: " + resultTable);
+    }
+}
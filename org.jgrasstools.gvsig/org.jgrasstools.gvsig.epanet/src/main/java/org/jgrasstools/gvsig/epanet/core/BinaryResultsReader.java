@@ -0,0 +1,411 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import static org.jgrasstools.gvsig.epanet.core.BinaryResultsFile.*;
+import static org.jgrasstools.gvsig.epanet.core.TimestepResults.*;
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.jgrasstools.gvsig.epanet.database.EpanetRun;
+import org.jgrasstools.gvsig.epanet.database.ILinkResults;
+import org.jgrasstools.gvsig.epanet.database.INodeResults;
+import org.jgrasstools.hortonmachine.modules.networktools.epanet.OmsEpanet;
+import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.ResultsLinkParameters;
+import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.ResultsNodeParameters;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+
+/**
+ * Reader of the {@link BinaryResultsFile binary results file} of a run, based on memory mapping.
+ *
+ * <p>Time slices and element series are read with absolute gets from the mapped
+ * buffers into caller supplied arrays, without allocating objects per element.
+ * The {@link IResultsReader} methods are supported too, for the code that works
+ * on results objects.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class BinaryResultsReader implements IResultsReader {
+
+    private final File file;
+    private final long runId;
+    private final int recordSize;
+    private final long dataOffset;
+    private final int timestepsCount;
+    private final long[] times;
+
+    private final int[] elementsCounts = new int[TABLES.length];
+    private final int[] variablesCounts = new int[TABLES.length];
+    private final String[][] ids = new String[TABLES.length][];
+    private final long[][] workOids = new long[TABLES.length][];
+    /**
+     * Offset of each table inside a record.
+     */
+    private final int[] tableOffsets = new int[TABLES.length];
+
+    private final int recordsPerBuffer;
+    private final MappedByteBuffer[] buffers;
+
+    /**
+     * Open a binary results file.
+     *
+     * @param file the file to read.
+     * @throws IOException
+     */
+    public BinaryResultsReader( File file ) throws IOException {
+        this.file = file;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an epanet binary results file: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported binary results file version: " + version);
+            }
+            runId = in.readLong();
+            timestepsCount = in.readInt();
+            recordSize = in.readInt();
+            dataOffset = in.readLong();
+            int tablesCount = in.readInt();
+            if (tablesCount != TABLES.length) {
+                throw new IOException("Unexpected tables count in binary results file: " + tablesCount);
+            }
+            int offset = 8;
+            for( int t = 0; t < TABLES.length; t++ ) {
+                elementsCounts[t] = in.readInt();
+                variablesCounts[t] = in.readInt();
+                ids[t] = new String[elementsCounts[t]];
+                workOids[t] = new long[elementsCounts[t]];
+                for( int i = 0; i < elementsCounts[t]; i++ ) {
+                    workOids[t][i] = in.readLong();
+                    ids[t][i] = in.readUTF();
+                }
+                tableOffsets[t] = offset;
+                offset += 4 * elementsCounts[t] * variablesCounts[t];
+            }
+        } finally {
+            in.close();
+        }
+
+        recordsPerBuffer = Math.max(1, Integer.MAX_VALUE / recordSize);
+        int buffersCount = (timestepsCount + recordsPerBuffer - 1) / recordsPerBuffer;
+        buffers = new MappedByteBuffer[buffersCount];
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            for( int b = 0; b < buffersCount; b++ ) {
+                int records = Math.min(recordsPerBuffer, timestepsCount - b * recordsPerBuffer);
+                long position = dataOffset + (long) b * recordsPerBuffer * recordSize;
+                buffers[b] = channel.map(MapMode.READ_ONLY, position, (long) records * recordSize);
+            }
+        } finally {
+            // the mappings stay valid after the channel is closed
+            randomAccessFile.close();
+        }
+
+        times = new long[timestepsCount];
+        for( int i = 0; i < timestepsCount; i++ ) {
+            times[i] = buffers[i / recordsPerBuffer].getLong((i % recordsPerBuffer) * recordSize);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getRunId() {
+        return runId;
+    }
+
+    public int getTimestepsCount() {
+        return timestepsCount;
+    }
+
+    /**
+     * @param timeIndex the timestep index.
+     * @return the time of the timestep in millis.
+     */
+    public long getTime( int timeIndex ) {
+        return times[timeIndex];
+    }
+
+    /**
+     * Get the index of a timestep.
+     *
+     * @param time the time.
+     * @return the index of the timestep or a negative value if it is not in the file.
+     */
+    public int getTimeIndex( DateTime time ) {
+        return Arrays.binarySearch(times, time.getMillis());
+    }
+
+    public int getElementsCount( String resultTable ) {
+        return elementsCounts[getTableIndex(resultTable)];
+    }
+
+    /**
+     * @param resultTable the results table.
+     * @return the ids of the elements, in file order. The array must not be modified.
+     */
+    public String[] getIds( String resultTable ) {
+        return ids[getTableIndex(resultTable)];
+    }
+
+    /**
+     * @param resultTable the results table.
+     * @return the oids of the work tables records of the elements, in file order. The array must not be modified.
+     */
+    public long[] getWorkOids( String resultTable ) {
+        return workOids[getTableIndex(resultTable)];
+    }
+
+    /**
+     * Get a single value.
+     *
+     * @param resultTable the results table.
+     * @param variable the variable index (ex. {@link TimestepResults#VAR_PRESSURE}).
+     * @param timeIndex the timestep index.
+     * @param element the element index.
+     * @return the value.
+     */
+    public float getValue( String resultTable, int variable, int timeIndex, int element ) {
+        int t = getTableIndex(resultTable);
+        int offset = tableOffsets[t] + 4 * (variable * elementsCounts[t] + element);
+        return buffers[timeIndex / recordsPerBuffer].getFloat((timeIndex % recordsPerBuffer) * recordSize + offset);
+    }
+
+    /**
+     * Read the values of a variable for all the elements of a table at a given timestep.
+     *
+     * @param resultTable the results table.
+     * @param variable the variable index.
+     * @param timeIndex the timestep index.
+     * @param slice the array to fill, at least as long as the elements count.
+     */
+    public void readSlice( String resultTable, int variable, int timeIndex, float[] slice ) {
+        int t = getTableIndex(resultTable);
+        int count = elementsCounts[t];
+        MappedByteBuffer buffer = buffers[timeIndex / recordsPerBuffer];
+        int position = (timeIndex % recordsPerBuffer) * recordSize + tableOffsets[t] + 4 * variable * count;
+        for( int i = 0; i < count; i++ ) {
+            slice[i] = buffer.getFloat(position);
+            position += 4;
+        }
+    }
+
+    /**
+     * Read the values of a variable of an element over all the timesteps.
+     *
+     * @param resultTable the results table.
+     * @param variable the variable index.
+     * @param element the element index.
+     * @param series the array to fill, at least as long as the timesteps count.
+     */
+    public void readSeries( String resultTable, int variable, int element, float[] series ) {
+        int t = getTableIndex(resultTable);
+        int offset = tableOffsets[t] + 4 * (variable * elementsCounts[t] + element);
+        for( int i = 0; i < timestepsCount; i++ ) {
+            series[i] = buffers[i / recordsPerBuffer].getFloat((i % recordsPerBuffer) * recordSize + offset);
+        }
+    }
+
+    /**
+     * Update a min/max pair with the values of a time slice.
+     *
+     * @param minMax the array of min and max to update.
+     */
+    public void updateMinMax( String resultTable, int variable, int timeIndex, float[] minMax ) {
+        int t = getTableIndex(resultTable);
+        int count = elementsCounts[t];
+        MappedByteBuffer buffer = buffers[timeIndex / recordsPerBuffer];
+        int position = (timeIndex % recordsPerBuffer) * recordSize + tableOffsets[t] + 4 * variable * count;
+        for( int i = 0; i < count; i++ ) {
+            float value = buffer.getFloat(position);
+            if (value < minMax[0]) {
+                minMax[0] = value;
+            }
+            if (value > minMax[1]) {
+                minMax[1] = value;
+            }
+            position += 4;
+        }
+    }
+
+    private int findElement( String[] tables, String id, int[] tableAndElement ) {
+        for( String table : tables ) {
+            String[] tableIds = getIds(table);
+            for( int i = 0; i < tableIds.length; i++ ) {
+                if (tableIds[i].equals(id)) {
+                    tableAndElement[0] = getTableIndex(table);
+                    tableAndElement[1] = i;
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    public String[] getTimesList( EpanetRun run ) {
+        if (run == null) {
+            return new String[0];
+        }
+        DateTimeFormatter formatter = OmsEpanet.formatter;
+        String[] timesStrings = new String[timestepsCount + 1];
+        timesStrings[0] = null;
+        for( int i = 0; i < timestepsCount; i++ ) {
+            timesStrings[i + 1] = new DateTime(times[i]).toString(formatter);
+        }
+        return timesStrings;
+    }
+
+    public List<ILinkResults> getResults4Links( String resultTable, EpanetRun run, DateTime time ) {
+        List<ILinkResults> resultsList = new ArrayList<ILinkResults>();
+        int timeIndex = getTimeIndex(time);
+        if (timeIndex < 0) {
+            return resultsList;
+        }
+        String[] tableIds = getIds(resultTable);
+        long[] tableOids = getWorkOids(resultTable);
+        boolean hasEnergy = resultTable.equals(PUMPSRESULT);
+        for( int i = 0; i < tableIds.length; i++ ) {
+            float[] values = new float[LINK_VARIABLES];
+            for( int var = 0; var < LINK_VARIABLES; var++ ) {
+                values[var] = getValue(resultTable, var, timeIndex, i);
+            }
+            if (!hasEnergy) {
+                values[VAR_ENERGY] = -9999f;
+            }
+            resultsList.add(new ValuesLinkResult(tableIds[i], tableOids[i], run, time, values));
+        }
+        return resultsList;
+    }
+
+    public List<INodeResults> getResults4Nodes( String resultTable, EpanetRun run, DateTime time ) {
+        List<INodeResults> resultsList = new ArrayList<INodeResults>();
+        int timeIndex = getTimeIndex(time);
+        if (timeIndex < 0) {
+            return resultsList;
+        }
+        String[] tableIds = getIds(resultTable);
+        long[] tableOids = getWorkOids(resultTable);
+        for( int i = 0; i < tableIds.length; i++ ) {
+            float[] values = new float[NODE_VARIABLES];
+            for( int var = 0; var < NODE_VARIABLES; var++ ) {
+                values[var] = getValue(resultTable, var, timeIndex, i);
+            }
+            resultsList.add(new ValuesNodeResult(tableIds[i], tableOids[i], run, time, values));
+        }
+        return resultsList;
+    }
+
+    public float[] getLinksMinMax( EpanetRun run, DateTime time, ResultsLinkParameters linkVar ) {
+        float[] minMax = {Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        int timeIndex = getTimeIndex(time);
+        if (timeIndex < 0) {
+            return minMax;
+        }
+        int variable = getVariableIndex(linkVar);
+        for( String table : LINK_TABLES ) {
+            if (linkVar == ResultsLinkParameters.ENERGY && !table.equals(PUMPSRESULT)) {
+                continue;
+            }
+            updateMinMax(table, variable, timeIndex, minMax);
+        }
+        return minMax;
+    }
+
+    public float[] getNodesMinMax( EpanetRun run, DateTime time, ResultsNodeParameters nodeVar ) {
+        float[] minMax = {Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        int timeIndex = getTimeIndex(time);
+        if (timeIndex < 0) {
+            return minMax;
+        }
+        int variable = getVariableIndex(nodeVar);
+        for( String table : NODE_TABLES ) {
+            if (nodeVar == ResultsNodeParameters.PRESSURE && table.equals(RESERVOIRSRESULT)) {
+                continue;
+            }
+            updateMinMax(table, variable, timeIndex, minMax);
+        }
+        return minMax;
+    }
+
+    public LinkedHashMap<DateTime, float[]> getValuesById( EpanetRun run, String id, ResultsNodeParameters nodeVar,
+            ResultsLinkParameters linkVar ) {
+        int[] tableAndElement = new int[2];
+        int element = findElement(nodeVar != null ? NODE_TABLES : LINK_TABLES, id, tableAndElement);
+        if (element < 0) {
+            throw new IllegalArgumentException("No element found with id: " + id);
+        }
+        String table = TABLES[tableAndElement[0]];
+
+        int variable1;
+        int variable2 = -1;
+        if (nodeVar != null) {
+            variable1 = getVariableIndex(nodeVar);
+        } else {
+            variable1 = getVariableIndex(linkVar);
+            if (linkVar == ResultsLinkParameters.FLOW) {
+                variable2 = VAR_FLOW2;
+            } else if (linkVar == ResultsLinkParameters.VELOCITY) {
+                variable2 = VAR_VELOCITY2;
+            }
+        }
+
+        float[] series1 = new float[timestepsCount];
+        readSeries(table, variable1, element, series1);
+        float[] series2 = null;
+        if (variable2 != -1) {
+            series2 = new float[timestepsCount];
+            readSeries(table, variable2, element, series2);
+        }
+
+        LinkedHashMap<DateTime, float[]> resultMap = new LinkedHashMap<DateTime, float[]>();
+        for( int i = 0; i < timestepsCount; i++ ) {
+            float[] value = new float[nodeVar != null ? 1 : 2];
+            value[0] = series1[i];
+            if (series2 != null) {
+                value[1] = series2[i];
+            }
+            resultMap.put(new DateTime(times[i]).withZone(DateTimeZone.UTC), value);
+        }
+        return resultMap;
+    }
+
+    public ResultsCube loadCube( EpanetRun run, ResultsNodeParameters nodeVar, ResultsLinkParameters linkVar )
+            throws Exception {
+        return ResultsCube.load(this, run, nodeVar, linkVar);
+    }
+}
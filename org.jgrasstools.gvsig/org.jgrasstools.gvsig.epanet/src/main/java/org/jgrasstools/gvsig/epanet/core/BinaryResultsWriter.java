@@ -0,0 +1,145 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import static org.jgrasstools.gvsig.epanet.core.BinaryResultsFile.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.jgrasstools.gvsig.epanet.core.TimestepResults.ElementResults;
+import org.jgrasstools.gvsig.epanet.database.EpanetRun;
+
+/**
+ * {@link IResultsSink} writing the {@link BinaryResultsFile binary results file} of a run.
+ *
+ * <p>The header is written with the first timestep, since only then the elements are known.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class BinaryResultsWriter implements IResultsSink {
+
+    private final File file;
+    private final long runId;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private ByteBuffer recordBuffer;
+    private final ByteBuffer countBuffer = ByteBuffer.allocate(4);
+    private int timestepsCount = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param file the file to write. An existing file is overwritten.
+     * @param run the run the results belong to.
+     */
+    public BinaryResultsWriter( File file, EpanetRun run ) {
+        this.file = file;
+        this.runId = run.getId();
+    }
+
+    public void write( TimestepResults results ) throws IOException {
+        if (channel == null) {
+            writeHeader(results);
+        }
+        recordBuffer.clear();
+        recordBuffer.putLong(results.time.getMillis());
+        for( String table : TABLES ) {
+            ElementResults elementResults = results.getResults(table);
+            float[][] values = elementResults.values;
+            for( int var = 0; var < values.length; var++ ) {
+                float[] varValues = values[var];
+                for( int i = 0; i < varValues.length; i++ ) {
+                    recordBuffer.putFloat(varValues[i]);
+                }
+            }
+        }
+        recordBuffer.flip();
+        while( recordBuffer.hasRemaining() ) {
+            channel.write(recordBuffer);
+        }
+
+        // readers only see complete records
+        timestepsCount++;
+        countBuffer.clear();
+        countBuffer.putInt(timestepsCount);
+        countBuffer.flip();
+        channel.write(countBuffer, TIMESTEPS_COUNT_POSITION);
+    }
+
+    private void writeHeader( TimestepResults results ) throws IOException {
+        int recordSize = 8;
+        for( String table : TABLES ) {
+            ElementResults elementResults = results.getResults(table);
+            recordSize += 4 * elementResults.size() * elementResults.values.length;
+        }
+
+        ByteArrayOutputStream tablesBytes = new ByteArrayOutputStream();
+        DataOutputStream tablesOut = new DataOutputStream(tablesBytes);
+        tablesOut.writeInt(TABLES.length);
+        for( String table : TABLES ) {
+            ElementResults elementResults = results.getResults(table);
+            tablesOut.writeInt(elementResults.size());
+            tablesOut.writeInt(elementResults.values.length);
+            for( int i = 0; i < elementResults.size(); i++ ) {
+                tablesOut.writeLong(elementResults.workOids[i]);
+                tablesOut.writeUTF(elementResults.ids[i]);
+            }
+        }
+        tablesOut.flush();
+
+        // magic, version, run, count, record size, data offset
+        int fixedHeaderSize = 4 + 4 + 8 + 4 + 4 + 8;
+        long dataOffset = fixedHeaderSize + tablesBytes.size();
+
+        ByteBuffer header = ByteBuffer.allocate((int) dataOffset);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(runId);
+        header.putInt(0);
+        header.putInt(recordSize);
+        header.putLong(dataOffset);
+        header.put(tablesBytes.toByteArray());
+        header.flip();
+
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to overwrite the binary results file: " + file);
+        }
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        while( header.hasRemaining() ) {
+            channel.write(header);
+        }
+        recordBuffer = ByteBuffer.allocate(recordSize);
+    }
+
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+            randomAccessFile.close();
+            channel = null;
+        }
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import static org.jgrasstools.gvsig.epanet.core.TimestepResults.*;
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+import org.jgrasstools.gvsig.epanet.core.TimestepResults.ElementResults;
+import org.jgrasstools.gvsig.epanet.database.EpanetRun;
+import org.jgrasstools.gvsig.epanet.database.IWork;
+import org.jgrasstools.gvsig.epanet.database.JunctionsTable;
+import org.jgrasstools.gvsig.epanet.database.PipesTable;
+import org.jgrasstools.gvsig.epanet.database.PumpsTable;
+import org.jgrasstools.gvsig.epanet.database.ReservoirsTable;
+import org.jgrasstools.gvsig.epanet.database.ResultsBlockTable;
+import org.jgrasstools.gvsig.epanet.database.ResultsElementTable;
+import org.jgrasstools.gvsig.epanet.database.TanksTable;
+import org.jgrasstools.gvsig.epanet.database.ValvesTable;
+import org.joda.time.DateTime;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.dao.GenericRawResults;
+import com.j256.ormlite.stmt.QueryBuilder;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.table.TableUtils;
+
+/**
+ * Converter of existing databases from the row based results tables to the columnar layout.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings({"nls", "unchecked", "rawtypes"})
+public class ColumnarResultsConverter {
+
+    private static final String[] NO_ENERGY_LINK_COLUMNS = {FLOW1, FLOW2, VELOCITY1, VELOCITY2, HEADLOSS, STATUS};
+
+    /**
+     * Convert all the runs of a database that are not yet in the columnar layout.
+     *
+     * @param connectionSource the connection source to the results database.
+     * @param deleteRows if <code>true</code>, the converted rows are removed from the row based tables.
+     * @param pm the progress monitor.
+     * @throws Exception
+     */
+    public static void convertAll( ConnectionSource connectionSource, boolean deleteRows, IJGTProgressMonitor pm )
+            throws Exception {
+        for( EpanetRun run : RunInps.listRuns(connectionSource) ) {
+            convert(connectionSource, run, deleteRows, pm);
+        }
+    }
+
+    /**
+     * Convert the results of a run to the columnar layout.
+     *
+     * @param connectionSource the connection source to the results database.
+     * @param run the run to convert. If it is already stored in the columnar layout, nothing is done.
+     * @param deleteRows if <code>true</code>, the converted rows are removed from the row based tables.
+     * @param pm the progress monitor.
+     * @throws Exception
+     */
+    public static void convert( ConnectionSource connectionSource, EpanetRun run, boolean deleteRows, IJGTProgressMonitor pm )
+            throws Exception {
+        TableUtils.createTableIfNotExists(connectionSource, ResultsBlockTable.class);
+        TableUtils.createTableIfNotExists(connectionSource, ResultsElementTable.class);
+
+        ColumnarResultsReader reader = new ColumnarResultsReader(connectionSource);
+        if (reader.contains(run)) {
+            pm.message("Run " + run.getId() + " is already in the columnar layout.");
+            return;
+        }
+
+        HashMap<String, HashMap<Long, String>> table2WorkIds = new HashMap<String, HashMap<Long, String>>();
+        table2WorkIds.put(JUNCTIONSRESULT, getWorkIds(connectionSource, JunctionsTable.class, run));
+        table2WorkIds.put(RESERVOIRSRESULT, getWorkIds(connectionSource, ReservoirsTable.class, run));
+        table2WorkIds.put(TANKSRESULT, getWorkIds(connectionSource, TanksTable.class, run));
+        table2WorkIds.put(PIPESRESULT, getWorkIds(connectionSource, PipesTable.class, run));
+        table2WorkIds.put(PUMPSRESULT, getWorkIds(connectionSource, PumpsTable.class, run));
+        table2WorkIds.put(VALVESRESULT, getWorkIds(connectionSource, ValvesTable.class, run));
+
+        Dao<ResultsBlockTable, Long> blocksDao = DaoManager.createDao(connectionSource, ResultsBlockTable.class);
+        String runId = String.valueOf(run.getId());
+        List<Long> times = new ArrayList<Long>();
+        GenericRawResults<String[]> rawTimes = blocksDao.queryRaw(
+                "SELECT DISTINCT " + UTCTIME + " FROM " + JUNCTIONSRESULT + " WHERE " + RUN_ID + " = ? ORDER BY " + UTCTIME,
+                runId);
+        try {
+            for( String[] row : rawTimes ) {
+                times.add(Long.parseLong(row[0]));
+            }
+        } finally {
+            rawTimes.close();
+        }
+
+        pm.beginTask("Converting run " + run.getId() + " to the columnar layout...", times.size());
+        ColumnarResultsWriter writer = new ColumnarResultsWriter(connectionSource, run, pm);
+        try {
+            for( Long time : times ) {
+                String timeString = String.valueOf(time);
+                ElementResults junctions = readRows(blocksDao, JUNCTIONSRESULT, NODE_COLUMNS, runId, timeString,
+                        table2WorkIds);
+                ElementResults reservoirs = readRows(blocksDao, RESERVOIRSRESULT, NODE_COLUMNS, runId, timeString,
+                        table2WorkIds);
+                ElementResults tanks = readRows(blocksDao, TANKSRESULT, NODE_COLUMNS, runId, timeString, table2WorkIds);
+                ElementResults pipes = readRows(blocksDao, PIPESRESULT, NO_ENERGY_LINK_COLUMNS, runId, timeString,
+                        table2WorkIds);
+                ElementResults pumps = readRows(blocksDao, PUMPSRESULT, LINK_COLUMNS, runId, timeString, table2WorkIds);
+                ElementResults valves = readRows(blocksDao, VALVESRESULT, NO_ENERGY_LINK_COLUMNS, runId, timeString,
+                        table2WorkIds);
+                writer.write(new TimestepResults(new DateTime(time.longValue()), junctions, reservoirs, tanks, pipes, pumps,
+                        valves));
+                pm.worked(1);
+            }
+        } finally {
+            writer.close();
+            pm.done();
+        }
+
+        if (deleteRows) {
+            for( String table : EpanetResultsSchema.RESULT_TABLES ) {
+                String dataTable = EpanetResultsSchema.getDataTable(connectionSource, table);
+                blocksDao.executeRaw("DELETE FROM " + dataTable + " WHERE " + RUN_ID + " = ?", runId);
+            }
+        }
+    }
+
+    /**
+     * Read the rows of a results table at a given timestep.
+     */
+    private static ElementResults readRows( Dao<ResultsBlockTable, Long> dao, String table, String[] columns, String runId,
+            String time, HashMap<String, HashMap<Long, String>> table2WorkIds ) throws SQLException {
+        StringBuilder sql = new StringBuilder();
+        sql.append("SELECT ").append(WORK_ID);
+        for( String column : columns ) {
+            sql.append(", ").append(column);
+        }
+        sql.append(" FROM ").append(table);
+        sql.append(" WHERE ").append(RUN_ID).append(" = ? AND ").append(UTCTIME).append(" = ?");
+        sql.append(" ORDER BY ").append(WORK_ID);
+
+        GenericRawResults<String[]> rawResults = dao.queryRaw(sql.toString(), runId, time);
+        List<String[]> rows;
+        try {
+            rows = rawResults.getResults();
+        } finally {
+            rawResults.close();
+        }
+
+        boolean isLink = isLinkTable(table);
+        HashMap<Long, String> workIds = table2WorkIds.get(table);
+        ElementResults elementResults = new ElementResults(rows.size(), isLink ? LINK_VARIABLES : NODE_VARIABLES);
+        for( int i = 0; i < rows.size(); i++ ) {
+            String[] row = rows.get(i);
+            long workOid = Long.parseLong(row[0]);
+            elementResults.workOids[i] = workOid;
+            elementResults.ids[i] = workIds.get(workOid);
+            for( int var = 0; var < columns.length; var++ ) {
+                elementResults.values[var][i] = Float.parseFloat(row[var + 1]);
+            }
+        }
+        return elementResults;
+    }
+
+    private static HashMap<Long, String> getWorkIds( ConnectionSource connectionSource, Class clazz, EpanetRun run )
+            throws SQLException {
+        Dao dao = DaoManager.createDao(connectionSource, clazz);
+        QueryBuilder<IWork, Long> qb = dao.queryBuilder();
+        NetworkVersions.whereWorksOf(qb.where(), run);
+        List<IWork> works = dao.query(qb.prepare());
+
+        HashMap<Long, String> workIds = new HashMap<Long, String>();
+        for( IWork work : works ) {
+            workIds.put(work.getOid(), work.getId());
+        }
+        return workIds;
+    }
+
+}
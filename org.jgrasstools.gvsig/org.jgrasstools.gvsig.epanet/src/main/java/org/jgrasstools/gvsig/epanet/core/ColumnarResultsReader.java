@@ -0,0 +1,309 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import static org.jgrasstools.gvsig.epanet.core.TimestepResults.*;
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.jgrasstools.gvsig.epanet.database.EpanetRun;
+import org.jgrasstools.gvsig.epanet.database.ILinkResults;
+import org.jgrasstools.gvsig.epanet.database.INodeResults;
+import org.jgrasstools.gvsig.epanet.database.ResultsBlockTable;
+import org.jgrasstools.gvsig.epanet.database.ResultsElementTable;
+import org.jgrasstools.hortonmachine.modules.networktools.epanet.OmsEpanet;
+import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.ResultsLinkParameters;
+import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.ResultsNodeParameters;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.stmt.QueryBuilder;
+import com.j256.ormlite.support.ConnectionSource;
+
+/**
+ * {@link IResultsReader} on the columnar results layout written by the {@link ColumnarResultsWriter}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class ColumnarResultsReader implements IResultsReader {
+
+    private final Dao<ResultsBlockTable, Long> blocksDao;
+    private final Dao<ResultsElementTable, Long> elementsDao;
+
+    private long dictionaryRunId = -1;
+    private HashMap<String, ResultsElementTable[]> dictionary = new HashMap<String, ResultsElementTable[]>();
+
+    public ColumnarResultsReader( ConnectionSource connectionSource ) throws SQLException {
+        blocksDao = DaoManager.createDao(connectionSource, ResultsBlockTable.class);
+        elementsDao = DaoManager.createDao(connectionSource, ResultsElementTable.class);
+    }
+
+    /**
+     * Checks if the results of a run are stored in the columnar layout.
+     *
+     * @param run the run to check.
+     * @return <code>true</code> if columnar results blocks exist for the run.
+     * @throws SQLException
+     */
+    public boolean contains( EpanetRun run ) throws SQLException {
+        if (run == null || !blocksDao.isTableExists()) {
+            return false;
+        }
+        QueryBuilder<ResultsBlockTable, Long> qb = blocksDao.queryBuilder();
+        qb.selectColumns(OID);
+        qb.where().eq(RUN_ID, run);
+        qb.limit(1l);
+        return blocksDao.queryForFirst(qb.prepare()) != null;
+    }
+
+    /**
+     * Get the elements of a results table, ordered by element index.
+     *
+     * @param resultTable the results table.
+     * @param run the run to consider.
+     * @return the elements of the blocks.
+     * @throws SQLException
+     */
+    public synchronized ResultsElementTable[] getElements( String resultTable, EpanetRun run ) throws SQLException {
+        if (dictionaryRunId != run.getId()) {
+            dictionary.clear();
+            HashMap<String, List<ResultsElementTable>> tmp = new HashMap<String, List<ResultsElementTable>>();
+            QueryBuilder<ResultsElementTable, Long> qb = elementsDao.queryBuilder();
+            qb.where().eq(RUN_ID, run);
+            qb.orderBy(ELEMENTINDEX, true);
+            for( ResultsElementTable element : elementsDao.query(qb.prepare()) ) {
+                List<ResultsElementTable> list = tmp.get(element.getResultTable());
+                if (list == null) {
+                    list = new ArrayList<ResultsElementTable>();
+                    tmp.put(element.getResultTable(), list);
+                }
+                list.add(element);
+            }
+            for( String table : tmp.keySet() ) {
+                List<ResultsElementTable> list = tmp.get(table);
+                dictionary.put(table, list.toArray(new ResultsElementTable[list.size()]));
+            }
+            dictionaryRunId = run.getId();
+        }
+        ResultsElementTable[] elements = dictionary.get(resultTable);
+        if (elements == null) {
+            return new ResultsElementTable[0];
+        }
+        return elements;
+    }
+
+    /**
+     * Read the blocks of all variables of a results table at a given timestep.
+     *
+     * @return the values as [variable][element], with <code>null</code> for missing variables.
+     */
+    private float[][] readBlocks( String resultTable, EpanetRun run, DateTime time, String[] columns ) throws SQLException {
+        QueryBuilder<ResultsBlockTable, Long> qb = blocksDao.queryBuilder();
+        qb.where().eq(RUN_ID, run).and().eq(RESULTTABLE, resultTable).and().eq(UTCTIME, time);
+        List<ResultsBlockTable> blocks = blocksDao.query(qb.prepare());
+        float[][] values = new float[columns.length][];
+        for( ResultsBlockTable block : blocks ) {
+            for( int i = 0; i < columns.length; i++ ) {
+                if (columns[i].equals(block.getVariable())) {
+                    values[i] = block.getValues();
+                    break;
+                }
+            }
+        }
+        return values;
+    }
+
+    private float[] readBlock( String resultTable, EpanetRun run, DateTime time, String variable ) throws SQLException {
+        QueryBuilder<ResultsBlockTable, Long> qb = blocksDao.queryBuilder();
+        qb.where().eq(RUN_ID, run).and().eq(RESULTTABLE, resultTable).and().eq(VARIABLE, variable).and().eq(UTCTIME, time);
+        ResultsBlockTable block = blocksDao.queryForFirst(qb.prepare());
+        if (block == null) {
+            return null;
+        }
+        return block.getValues();
+    }
+
+    public String[] getTimesList( EpanetRun run ) throws SQLException {
+        if (run == null) {
+            return new String[0];
+        }
+        QueryBuilder<ResultsBlockTable, Long> qb = blocksDao.queryBuilder();
+        qb.selectColumns(UTCTIME);
+        qb.where().eq(RUN_ID, run).and().eq(RESULTTABLE, JUNCTIONSRESULT).and().eq(VARIABLE, DEMAND);
+        qb.orderBy(UTCTIME, true);
+        List<ResultsBlockTable> blocks = blocksDao.query(qb.prepare());
+
+        DateTimeFormatter formatter = OmsEpanet.formatter;
+        String[] times = new String[blocks.size() + 1];
+        times[0] = null;
+        int i = 1;
+        for( ResultsBlockTable block : blocks ) {
+            times[i++] = block.getUtcTime().toString(formatter);
+        }
+        return times;
+    }
+
+    public List<ILinkResults> getResults4Links( String resultTable, EpanetRun run, DateTime time ) throws SQLException {
+        ResultsElementTable[] elements = getElements(resultTable, run);
+        float[][] values = readBlocks(resultTable, run, time, LINK_COLUMNS);
+        List<ILinkResults> resultsList = new ArrayList<ILinkResults>(elements.length);
+        if (values[VAR_FLOW1] == null) {
+            return resultsList;
+        }
+        for( int i = 0; i < elements.length; i++ ) {
+            float[] linkValues = new float[LINK_VARIABLES];
+            for( int var = 0; var < LINK_VARIABLES; var++ ) {
+                linkValues[var] = values[var] != null ? values[var][i] : -9999f;
+            }
+            resultsList.add(new ValuesLinkResult(elements[i].getId(), elements[i].getWorkOid(), run, time,
+                    linkValues));
+        }
+        return resultsList;
+    }
+
+    public List<INodeResults> getResults4Nodes( String resultTable, EpanetRun run, DateTime time ) throws SQLException {
+        ResultsElementTable[] elements = getElements(resultTable, run);
+        float[][] values = readBlocks(resultTable, run, time, NODE_COLUMNS);
+        List<INodeResults> resultsList = new ArrayList<INodeResults>(elements.length);
+        if (values[VAR_DEMAND] == null) {
+            return resultsList;
+        }
+        for( int i = 0; i < elements.length; i++ ) {
+            float[] nodeValues = new float[NODE_VARIABLES];
+            for( int var = 0; var < NODE_VARIABLES; var++ ) {
+                nodeValues[var] = values[var] != null ? values[var][i] : -9999f;
+            }
+            resultsList.add(new ValuesNodeResult(elements[i].getId(), elements[i].getWorkOid(), run, time,
+                    nodeValues));
+        }
+        return resultsList;
+    }
+
+    public float[] getLinksMinMax( EpanetRun run, DateTime time, ResultsLinkParameters linkVar ) throws SQLException {
+        String variable = LINK_COLUMNS[getVariableIndex(linkVar)];
+        float[] minMax = {Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        for( String table : LINK_TABLES ) {
+            if (linkVar == ResultsLinkParameters.ENERGY && !table.equals(PUMPSRESULT)) {
+                continue;
+            }
+            updateMinMax(minMax, readBlock(table, run, time, variable));
+        }
+        return minMax;
+    }
+
+    public float[] getNodesMinMax( EpanetRun run, DateTime time, ResultsNodeParameters nodeVar ) throws SQLException {
+        String variable = NODE_COLUMNS[getVariableIndex(nodeVar)];
+        float[] minMax = {Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        for( String table : NODE_TABLES ) {
+            if (nodeVar == ResultsNodeParameters.PRESSURE && table.equals(RESERVOIRSRESULT)) {
+                continue;
+            }
+            updateMinMax(minMax, readBlock(table, run, time, variable));
+        }
+        return minMax;
+    }
+
+    private static void updateMinMax( float[] minMax, float[] values ) {
+        if (values == null) {
+            return;
+        }
+        for( float value : values ) {
+            if (value < minMax[0]) {
+                minMax[0] = value;
+            }
+            if (value > minMax[1]) {
+                minMax[1] = value;
+            }
+        }
+    }
+
+    public LinkedHashMap<DateTime, float[]> getValuesById( EpanetRun run, String id, ResultsNodeParameters nodeVar,
+            ResultsLinkParameters linkVar ) throws SQLException {
+        String[] tables = nodeVar != null ? NODE_TABLES : LINK_TABLES;
+        String resultTable = null;
+        int index = -1;
+        for( String table : tables ) {
+            ResultsElementTable[] elements = getElements(table, run);
+            for( int i = 0; i < elements.length; i++ ) {
+                if (elements[i].getId().equals(id)) {
+                    resultTable = table;
+                    index = i;
+                    break;
+                }
+            }
+            if (resultTable != null) {
+                break;
+            }
+        }
+        if (resultTable == null) {
+            throw new IllegalArgumentException("No element found with id: " + id);
+        }
+
+        String variable1;
+        String variable2 = null;
+        if (nodeVar != null) {
+            variable1 = NODE_COLUMNS[getVariableIndex(nodeVar)];
+        } else {
+            variable1 = LINK_COLUMNS[getVariableIndex(linkVar)];
+            if (linkVar == ResultsLinkParameters.FLOW) {
+                variable2 = FLOW2;
+            } else if (linkVar == ResultsLinkParameters.VELOCITY) {
+                variable2 = VELOCITY2;
+            }
+        }
+
+        QueryBuilder<ResultsBlockTable, Long> qb = blocksDao.queryBuilder();
+        if (variable2 != null) {
+            qb.where().eq(RUN_ID, run).and().eq(RESULTTABLE, resultTable).and().in(VARIABLE, variable1, variable2);
+        } else {
+            qb.where().eq(RUN_ID, run).and().eq(RESULTTABLE, resultTable).and().eq(VARIABLE, variable1);
+        }
+        qb.orderBy(UTCTIME, true);
+
+        LinkedHashMap<DateTime, float[]> resultMap = new LinkedHashMap<DateTime, float[]>();
+        for( ResultsBlockTable block : blocksDao.query(qb.prepare()) ) {
+            DateTime utcTime = block.getUtcTime().withZone(DateTimeZone.UTC);
+            float[] value = resultMap.get(utcTime);
+            if (value == null) {
+                value = new float[nodeVar != null ? 1 : 2];
+                resultMap.put(utcTime, value);
+            }
+            float v = block.getValues()[index];
+            if (block.getVariable().equals(variable1)) {
+                value[0] = v;
+            } else {
+                value[1] = v;
+            }
+        }
+        return resultMap;
+    }
+
+    public ResultsCube loadCube( EpanetRun run, ResultsNodeParameters nodeVar, ResultsLinkParameters linkVar )
+            throws Exception {
+        return ResultsCube.load(this, run, nodeVar, linkVar);
+    }
+}
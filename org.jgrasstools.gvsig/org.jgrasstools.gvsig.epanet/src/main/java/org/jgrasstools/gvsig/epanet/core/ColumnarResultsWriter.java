@@ -0,0 +1,152 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import static org.jgrasstools.gvsig.epanet.core.TimestepResults.*;
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+import org.jgrasstools.gvsig.epanet.core.TimestepResults.ElementResults;
+import org.jgrasstools.gvsig.epanet.database.EpanetRun;
+import org.jgrasstools.gvsig.epanet.database.ResultsBlockTable;
+import org.jgrasstools.gvsig.epanet.database.ResultsElementTable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.misc.TransactionManager;
+import com.j256.ormlite.support.ConnectionSource;
+
+/**
+ * Writer for the columnar results layout.
+ *
+ * <p>Instead of one row per element and timestep, every variable of every results
+ * table is stored per timestep as a single {@link ResultsBlockTable block} of packed
+ * floats. The element order of the blocks is written once per run in the
+ * {@link ResultsElementTable} dictionary.</p>
+ *
+ * <p>Every timestep is written in one transaction.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class ColumnarResultsWriter implements IResultsSink {
+    private static final Logger logger = LoggerFactory.getLogger(ColumnarResultsWriter.class);
+
+    private final ConnectionSource connectionSource;
+    private final EpanetRun run;
+    private final IJGTProgressMonitor pm;
+    private final Dao<ResultsBlockTable, Long> blocksDao;
+    private final Dao<ResultsElementTable, Long> elementsDao;
+
+    private boolean dictionaryWritten = false;
+    private long blocksCount = 0;
+    private long timestepsCount = 0;
+    private long startNanos;
+
+    /**
+     * Constructor.
+     *
+     * @param connectionSource the connection source to the results database.
+     * @param run the {@link EpanetRun run} the results belong to.
+     * @param pm the progress monitor, used to report the write throughput.
+     * @throws SQLException
+     */
+    public ColumnarResultsWriter( ConnectionSource connectionSource, EpanetRun run, IJGTProgressMonitor pm )
+            throws SQLException {
+        this.connectionSource = connectionSource;
+        this.run = run;
+        this.pm = pm;
+        blocksDao = DaoManager.createDao(connectionSource, ResultsBlockTable.class);
+        elementsDao = DaoManager.createDao(connectionSource, ResultsElementTable.class);
+        startNanos = System.nanoTime();
+    }
+
+    public void write( final TimestepResults results ) throws SQLException {
+        TransactionManager.callInTransaction(connectionSource, new Callable<Void>(){
+            public Void call() throws Exception {
+                if (!dictionaryWritten) {
+                    writeDictionary(results);
+                    dictionaryWritten = true;
+                }
+                for( String table : NODE_TABLES ) {
+                    writeBlocks(results, table, NODE_COLUMNS);
+                }
+                for( String table : LINK_TABLES ) {
+                    writeBlocks(results, table, LINK_COLUMNS);
+                }
+                return null;
+            }
+        });
+        timestepsCount++;
+    }
+
+    private void writeDictionary( TimestepResults results ) throws SQLException {
+        String[] tables = {JUNCTIONSRESULT, RESERVOIRSRESULT, TANKSRESULT, PIPESRESULT, PUMPSRESULT, VALVESRESULT};
+        for( String table : tables ) {
+            ElementResults elementResults = results.getResults(table);
+            for( int i = 0; i < elementResults.size(); i++ ) {
+                ResultsElementTable element = new ResultsElementTable();
+                element.setRun(run);
+                element.setResultTable(table);
+                element.setElementIndex(i);
+                element.setWorkOid(elementResults.workOids[i]);
+                element.setId(elementResults.ids[i]);
+                elementsDao.create(element);
+            }
+        }
+    }
+
+    private void writeBlocks( TimestepResults results, String table, String[] columns ) throws SQLException {
+        ElementResults elementResults = results.getResults(table);
+        if (elementResults.size() == 0) {
+            return;
+        }
+        for( int var = 0; var < columns.length; var++ ) {
+            if (var == VAR_ENERGY && !table.equals(PUMPSRESULT)) {
+                // only pumps have energy
+                continue;
+            }
+            ResultsBlockTable block = new ResultsBlockTable();
+            block.setRun(run);
+            block.setResultTable(table);
+            block.setVariable(columns[var]);
+            block.setUtcTime(results.time);
+            block.setValues(elementResults.values[var]);
+            blocksDao.create(block);
+            blocksCount++;
+        }
+    }
+
+    public void close() {
+        double seconds = (System.nanoTime() - startNanos) / 1E9;
+        String msg = "Results written: " + timestepsCount + " timesteps in " + blocksCount + " blocks";
+        if (seconds > 0) {
+            msg = msg + " at " + (long) (timestepsCount / seconds) + " timesteps/s";
+        }
+        logger.info(msg);
+        if (pm != null) {
+            pm.message(msg);
+        }
+    }
+
+}
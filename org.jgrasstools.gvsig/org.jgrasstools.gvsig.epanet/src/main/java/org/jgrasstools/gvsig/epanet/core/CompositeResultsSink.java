@@ -0,0 +1,65 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link IResultsSink} that feeds every timestep to a list of sinks, in order.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class CompositeResultsSink implements IResultsSink {
+    private static final Logger logger = LoggerFactory.getLogger(CompositeResultsSink.class);
+
+    private final List<IResultsSink> sinks = new ArrayList<IResultsSink>();
+
+    public void add( IResultsSink sink ) {
+        sinks.add(sink);
+    }
+
+    public void write( TimestepResults results ) throws Exception {
+        for( IResultsSink sink : sinks ) {
+            sink.write(results);
+        }
+    }
+
+    /**
+     * Closes all the sinks, also if some of them fail. The first error is rethrown.
+     */
+    public void close() throws Exception {
+        Exception firstException = null;
+        for( IResultsSink sink : sinks ) {
+            try {
+                sink.close();
+            } catch (Exception e) {
+                logger.error("ERROR", e);
+                if (firstException == null) {
+                    firstException = e;
+                }
+            }
+        }
+        if (firstException != null) {
+            throw firstException;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.jgrasstools.gvsig.epanet.database.EpanetRun;
+import org.jgrasstools.gvsig.epanet.database.ILinkResults;
+import org.jgrasstools.gvsig.epanet.database.INodeResults;
+import org.jgrasstools.gvsig.epanet.database.IResult;
+import org.jgrasstools.gvsig.epanet.database.IWork;
+import org.jgrasstools.gvsig.epanet.database.JunctionsResultsTable;
+import org.jgrasstools.gvsig.epanet.database.PipesResultsTable;
+import org.jgrasstools.gvsig.epanet.database.PumpsResultsTable;
+import org.jgrasstools.gvsig.epanet.database.ReservoirsResultsTable;
+import org.jgrasstools.gvsig.epanet.database.TanksResultsTable;
+import org.jgrasstools.gvsig.epanet.database.TimestepsTable;
+import org.jgrasstools.gvsig.epanet.database.ValvesResultsTable;
+import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.ResultsLinkParameters;
+import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.ResultsNodeParameters;
+import org.joda.time.DateTime;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.support.ConnectionSource;
+
+/**
+ * {@link IResultsReader} on the row based results tables (one row per element and timestep).
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings({"nls", "unchecked"})
+public class DaoResultsReader implements IResultsReader {
+
+    private final ConnectionSource connectionSource;
+
+    private Dao<INodeResults, Long> junctionsResultDao;
+    private Dao<INodeResults, Long> tanksResultDao;
+    private Dao<INodeResults, Long> reservoirsResultDao;
+    private Dao<ILinkResults, Long> pipesResultDao;
+    private Dao<ILinkResults, Long> pumpsResultDao;
+    private Dao<ILinkResults, Long> valvesResultDao;
+    private Dao<TimestepsTable, Long> timestepsDao;
+
+    private HashMap<String, Dao<INodeResults, Long>> nodeDaos = new HashMap<String, Dao<INodeResults, Long>>();
+    private HashMap<String, Dao<ILinkResults, Long>> linkDaos = new HashMap<String, Dao<ILinkResults, Long>>();
+
+    public DaoResultsReader( ConnectionSource connectionSource ) throws Exception {
+        this.connectionSource = connectionSource;
+
+        Class<INodeResults> clazzNode = (Class<INodeResults>) Class.forName(JunctionsResultsTable.class.getCanonicalName());
+        junctionsResultDao = DaoManager.createDao(connectionSource, clazzNode);
+        clazzNode = (Class<INodeResults>) Class.forName(TanksResultsTable.class.getCanonicalName());
+        tanksResultDao = DaoManager.createDao(connectionSource, clazzNode);
+        clazzNode = (Class<INodeResults>) Class.forName(ReservoirsResultsTable.class.getCanonicalName());
+        reservoirsResultDao = DaoManager.createDao(connectionSource, clazzNode);
+
+        Class<ILinkResults> clazzLink = (Class<ILinkResults>) Class.forName(PipesResultsTable.class.getCanonicalName());
+        pipesResultDao = DaoManager.createDao(connectionSource, clazzLink);
+        clazzLink = (Class<ILinkResults>) Class.forName(PumpsResultsTable.class.getCanonicalName());
+        pumpsResultDao = DaoManager.createDao(connectionSource, clazzLink);
+        clazzLink = (Class<ILinkResults>) Class.forName(ValvesResultsTable.class.getCanonicalName());
+        valvesResultDao = DaoManager.createDao(connectionSource, clazzLink);
+
+        timestepsDao = DaoManager.createDao(connectionSource, TimestepsTable.class);
+
+        nodeDaos.put(JUNCTIONSRESULT, junctionsResultDao);
+        nodeDaos.put(TANKSRESULT, tanksResultDao);
+        nodeDaos.put(RESERVOIRSRESULT, reservoirsResultDao);
+        linkDaos.put(PIPESRESULT, pipesResultDao);
+        linkDaos.put(PUMPSRESULT, pumpsResultDao);
+        linkDaos.put(VALVESRESULT, valvesResultDao);
+    }
+
+    public String[] getTimesList( EpanetRun run ) throws SQLException {
+        return EpanetUtilities.getTimesList(timestepsDao, junctionsResultDao, run);
+    }
+
+    public List<ILinkResults> getResults4Links( String resultTable, EpanetRun run, DateTime time ) throws SQLException {
+        return EpanetUtilities.getResults4Links(linkDaos.get(resultTable), run, time);
+    }
+
+    public List<INodeResults> getResults4Nodes( String resultTable, EpanetRun run, DateTime time ) throws SQLException {
+        return EpanetUtilities.getResults4Nodes(nodeDaos.get(resultTable), run, time);
+    }
+
+    public float[] getLinksMinMax( EpanetRun run, DateTime time, ResultsLinkParameters linkVar ) throws Exception {
+        return EpanetUtilities.getLinksMinMax(pipesResultDao, pumpsResultDao, valvesResultDao, run, time, linkVar);
+    }
+
+    public float[] getNodesMinMax( EpanetRun run, DateTime time, ResultsNodeParameters nodeVar ) throws Exception {
+        return EpanetUtilities.getNodesMinMax(junctionsResultDao, tanksResultDao, reservoirsResultDao, run, time, nodeVar);
+    }
+
+    public LinkedHashMap<DateTime, float[]> getValuesById( EpanetRun run, String id, ResultsNodeParameters nodeVar,
+            ResultsLinkParameters linkVar ) throws Exception {
+        IWork work = EpanetUtilities.getWorkById(connectionSource, run, id);
+        String workName = work.getClass().getCanonicalName();
+        workName = workName.replace("Table", "ResultsTable");
+        Class<IResult> clazz = (Class<IResult>) Class.forName(workName);
+
+        return EpanetUtilities.getValuesById(connectionSource, run, work, nodeVar, linkVar, clazz);
+    }
+
+    public ResultsCube loadCube( EpanetRun run, ResultsNodeParameters nodeVar, ResultsLinkParameters linkVar )
+            throws Exception {
+        // raw column queries, the daos would hydrate and refresh the work of every row
+        return ResultsCube.loadColumns(connectionSource, getTimesList(run), run, nodeVar, linkVar);
+    }
+
+}
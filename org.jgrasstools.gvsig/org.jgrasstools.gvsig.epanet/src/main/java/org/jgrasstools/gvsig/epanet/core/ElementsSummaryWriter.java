@@ -0,0 +1,239 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import static org.jgrasstools.gvsig.epanet.core.TimestepResults.*;
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jgrasstools.gvsig.epanet.core.TimestepResults.ElementResults;
+import org.jgrasstools.gvsig.epanet.database.ElementsSummaryTable;
+import org.jgrasstools.gvsig.epanet.database.EpanetRun;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.jdbc.JdbcDatabaseConnection;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.support.DatabaseConnection;
+import com.j256.ormlite.table.TableUtils;
+
+/**
+ * {@link IResultsSink} computing the min, max, mean and the times of min and max of every
+ * variable of every element over the whole run, stored in the {@link ElementsSummaryTable}.
+ *
+ * <p>The statistics are kept in primitive arrays indexed by element, allocated with the first
+ * timestep, so that the following timesteps are added without allocations. They are inserted
+ * in a single transaction when the sink is closed.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class ElementsSummaryWriter implements IResultsSink {
+
+    private static final int ROWS_PER_BATCH = 1000;
+    private static final String MIN_INDEX = ELEMENTSSUMMARY + "_MIN_IDX";
+    private static final String MAX_INDEX = ELEMENTSSUMMARY + "_MAX_IDX";
+
+    private final ConnectionSource connectionSource;
+    private final EpanetRun run;
+    private final String[] tables = {JUNCTIONSRESULT, RESERVOIRSRESULT, TANKSRESULT, PIPESRESULT, PUMPSRESULT,
+            VALVESRESULT};
+    private final TableSummary[] summaries = new TableSummary[tables.length];
+    private int timestepsCount = 0;
+
+    public ElementsSummaryWriter( ConnectionSource connectionSource, EpanetRun run ) {
+        this.connectionSource = connectionSource;
+        this.run = run;
+    }
+
+    /**
+     * Create the summary table and its indexes if they don't exist.
+     *
+     * @param connectionSource the connection to the results database.
+     * @throws SQLException
+     */
+    public static void createTable( ConnectionSource connectionSource ) throws SQLException {
+        TableUtils.createTableIfNotExists(connectionSource, ElementsSummaryTable.class);
+        DatabaseConnection connection = connectionSource.getReadWriteConnection();
+        try {
+            connection.executeStatement("CREATE INDEX IF NOT EXISTS " + MIN_INDEX + " ON " + ELEMENTSSUMMARY + " ("
+                    + RUN_ID + ", " + RESULTTABLE + ", " + VARIABLE + ", " + MINVALUE + ")",
+                    DatabaseConnection.DEFAULT_RESULT_FLAGS);
+            connection.executeStatement("CREATE INDEX IF NOT EXISTS " + MAX_INDEX + " ON " + ELEMENTSSUMMARY + " ("
+                    + RUN_ID + ", " + RESULTTABLE + ", " + VARIABLE + ", " + MAXVALUE + ")",
+                    DatabaseConnection.DEFAULT_RESULT_FLAGS);
+        } finally {
+            connectionSource.releaseConnection(connection);
+        }
+    }
+
+    /**
+     * Get the elements whose variable dropped below a threshold during a run.
+     *
+     * @param connectionSource the connection to the results database.
+     * @param run the run.
+     * @param resultTable the results table of the elements (ex. JUNCTIONSRESULT).
+     * @param variable the variable column (ex. PRESSURE).
+     * @param threshold the threshold.
+     * @return the summaries of the elements with a min below the threshold.
+     * @throws SQLException
+     */
+    public static List<ElementsSummaryTable> getElementsBelow( ConnectionSource connectionSource, EpanetRun run,
+            String resultTable, String variable, float threshold ) throws SQLException {
+        Dao<ElementsSummaryTable, Long> summaryDao = DaoManager.createDao(connectionSource, ElementsSummaryTable.class);
+        return summaryDao.queryBuilder().where().eq(RUN_ID, run).and().eq(RESULTTABLE, resultTable).and()
+                .eq(VARIABLE, variable).and().lt(MINVALUE, threshold).query();
+    }
+
+    /**
+     * Get the elements whose variable rose above a threshold during a run.
+     *
+     * @param connectionSource the connection to the results database.
+     * @param run the run.
+     * @param resultTable the results table of the elements (ex. PIPESRESULT).
+     * @param variable the variable column (ex. VELOCITY1).
+     * @param threshold the threshold.
+     * @return the summaries of the elements with a max above the threshold.
+     * @throws SQLException
+     */
+    public static List<ElementsSummaryTable> getElementsAbove( ConnectionSource connectionSource, EpanetRun run,
+            String resultTable, String variable, float threshold ) throws SQLException {
+        Dao<ElementsSummaryTable, Long> summaryDao = DaoManager.createDao(connectionSource, ElementsSummaryTable.class);
+        return summaryDao.queryBuilder().where().eq(RUN_ID, run).and().eq(RESULTTABLE, resultTable).and()
+                .eq(VARIABLE, variable).and().gt(MAXVALUE, threshold).query();
+    }
+
+    public void write( TimestepResults results ) {
+        long time = results.time.getMillis();
+        for( int t = 0; t < tables.length; t++ ) {
+            ElementResults elementResults = results.getResults(tables[t]);
+            TableSummary summary = summaries[t];
+            if (summary == null) {
+                summary = new TableSummary(tables[t], elementResults);
+                summaries[t] = summary;
+            }
+            summary.add(elementResults, time);
+        }
+        timestepsCount++;
+    }
+
+    public void close() throws SQLException {
+        if (timestepsCount == 0) {
+            return;
+        }
+        createTable(connectionSource);
+        DatabaseConnection databaseConnection = connectionSource.getReadWriteConnection();
+        Connection connection = ((JdbcDatabaseConnection) databaseConnection).getInternalConnection();
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        PreparedStatement statement = connection.prepareStatement("INSERT INTO " + ELEMENTSSUMMARY + " (" + RUN_ID + ","
+                + RESULTTABLE + "," + WORK_ID + "," + VARIABLE + "," + MINVALUE + "," + MINTIME + "," + MAXVALUE + ","
+                + MAXTIME + "," + MEANVALUE + ") VALUES (?,?,?,?,?,?,?,?,?)");
+        try {
+            int rows = 0;
+            for( TableSummary summary : summaries ) {
+                String[] columns = isLinkTable(summary.table) ? LINK_COLUMNS : NODE_COLUMNS;
+                for( int var = 0; var < summary.variablesCount; var++ ) {
+                    for( int i = 0; i < summary.workOids.length; i++ ) {
+                        int p = 1;
+                        statement.setLong(p++, run.getId());
+                        statement.setString(p++, summary.table);
+                        statement.setLong(p++, summary.workOids[i]);
+                        statement.setString(p++, columns[var]);
+                        statement.setFloat(p++, summary.mins[var][i]);
+                        statement.setLong(p++, summary.minTimes[var][i]);
+                        statement.setFloat(p++, summary.maxs[var][i]);
+                        statement.setLong(p++, summary.maxTimes[var][i]);
+                        statement.setFloat(p++, (float) (summary.sums[var][i] / timestepsCount));
+                        statement.addBatch();
+                        if (++rows % ROWS_PER_BATCH == 0) {
+                            statement.executeBatch();
+                        }
+                    }
+                }
+            }
+            statement.executeBatch();
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            statement.close();
+            connection.setAutoCommit(autoCommit);
+            connectionSource.releaseConnection(databaseConnection);
+            timestepsCount = 0;
+        }
+    }
+
+    /**
+     * The running statistics of the elements of one results table, as [variable][element].
+     */
+    private static class TableSummary {
+        final String table;
+        final int variablesCount;
+        final long[] workOids;
+        final float[][] mins;
+        final float[][] maxs;
+        final double[][] sums;
+        final long[][] minTimes;
+        final long[][] maxTimes;
+
+        TableSummary( String table, ElementResults first ) {
+            this.table = table;
+            // only pumps have an energy
+            variablesCount = isLinkTable(table) && !table.equals(PUMPSRESULT) ? VAR_ENERGY : first.values.length;
+            int size = first.size();
+            workOids = first.workOids.clone();
+            mins = new float[variablesCount][size];
+            maxs = new float[variablesCount][size];
+            sums = new double[variablesCount][size];
+            minTimes = new long[variablesCount][size];
+            maxTimes = new long[variablesCount][size];
+            for( int var = 0; var < variablesCount; var++ ) {
+                Arrays.fill(mins[var], Float.POSITIVE_INFINITY);
+                Arrays.fill(maxs[var], Float.NEGATIVE_INFINITY);
+            }
+        }
+
+        void add( ElementResults elementResults, long time ) {
+            for( int var = 0; var < variablesCount; var++ ) {
+                float[] values = elementResults.values[var];
+                float[] varMins = mins[var];
+                float[] varMaxs = maxs[var];
+                double[] varSums = sums[var];
+                for( int i = 0; i < values.length; i++ ) {
+                    float value = values[i];
+                    if (value < varMins[i]) {
+                        varMins[i] = value;
+                        minTimes[var][i] = time;
+                    }
+                    if (value > varMaxs[i]) {
+                        varMaxs[i] = value;
+                        maxTimes[var][i] = time;
+                    }
+                    varSums[i] += value;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Producer/consumer pipeline between the epanet solver and the results database.
+ *
+ * <p>The solver thread {@link #put(TimestepResults) puts} timestep snapshots on a bounded
+ * queue, a dedicated writer thread drains them into an {@link IResultsSink}
+ * (ex. the {@link EpanetResultsWriter}).</p>
+ * <ul>
+ * <li>backpressure: if the writer falls behind, the solver blocks once the queue is full;</li>
+ * <li>errors: a failure in the writer is rethrown to the solver at the next put or at {@link #finish()};</li>
+ * <li>cancel/solver errors: the solver just stops producing, the snapshots already queued
+ * are still written, so that partial results are preserved as in the sequential mode.</li>
+ * </ul>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class EpanetResultsPipeline {
+    private static final Logger logger = LoggerFactory.getLogger(EpanetResultsPipeline.class);
+
+    private static final TimestepResults END = new TimestepResults(null, null, null, null, null, null, null);
+    private static final long OFFER_TIMEOUT_MILLIS = 200;
+
+    private final BlockingQueue<TimestepResults> queue;
+    private final IResultsSink writer;
+    private final Thread writerThread;
+    private volatile Throwable failure;
+    private boolean finished = false;
+
+    /**
+     * Constructor.
+     *
+     * @param writer the sink to drain the queue into.
+     * @param capacity the maximum number of timesteps waiting to be written.
+     */
+    public EpanetResultsPipeline( IResultsSink writer, int capacity ) {
+        this.writer = writer;
+        queue = new ArrayBlockingQueue<TimestepResults>(Math.max(1, capacity));
+        writerThread = new Thread(new Runnable(){
+            public void run() {
+                drain();
+            }
+        }, "epanet-results-writer");
+    }
+
+    public void start() {
+        writerThread.start();
+    }
+
+    private void drain() {
+        try {
+            while( true ) {
+                TimestepResults results = queue.take();
+                if (results == END) {
+                    break;
+                }
+                writer.write(results);
+            }
+        } catch (Throwable e) {
+            logger.error("ERROR", e);
+            failure = e;
+            // unblock the producer
+            queue.clear();
+        }
+    }
+
+    /**
+     * Queue a timestep for writing, blocking while the queue is full.
+     *
+     * @param results the snapshot to write.
+     * @throws Exception if the writer thread failed.
+     */
+    public void put( TimestepResults results ) throws Exception {
+        checkFailure();
+        while( !queue.offer(results, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) ) {
+            checkFailure();
+        }
+    }
+
+    /**
+     * Wait for the queued timesteps to be written and stop the writer thread.
+     *
+     * <p>Can be called more than once, also from a finally block.</p>
+     *
+     * @throws InterruptedException
+     */
+    public void finish() throws InterruptedException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (!writerThread.isAlive()) {
+            return;
+        }
+        while( failure == null && !queue.offer(END, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) ) {
+            // wait for space
+        }
+        writerThread.join();
+    }
+
+    /**
+     * Rethrow a failure that happened in the writer thread, if any.
+     *
+     * @throws Exception
+     */
+    public void checkFailure() throws Exception {
+        Throwable t = failure;
+        if (t == null) {
+            return;
+        }
+        if (t instanceof Exception) {
+            throw (Exception) t;
+        }
+        throw new RuntimeException("An error occurred while writing the results.", t);
+    }
+}
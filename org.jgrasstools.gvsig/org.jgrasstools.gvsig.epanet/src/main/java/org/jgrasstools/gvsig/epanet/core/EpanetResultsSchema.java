@@ -0,0 +1,307 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+
+import com.j256.ormlite.misc.TransactionManager;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.support.DatabaseConnection;
+
+/**
+ * Schema management of the row based results tables.
+ *
+ * <p>Two things are handled here:</p>
+ * <ul>
+ * <li>the indexes used by the results queries, which filter on <code>RUN_ID</code> plus
+ * <code>UTCTIME</code> or <code>WORK_ID</code>. They are meant to be created after the
+ * bulk load of the results, so that the inserts don't have to maintain them;</li>
+ * <li>the clustered layout, in which the rows of a results table are stored in a
+ * <code>WITHOUT ROWID</code> table (<code>&lt;TABLE&gt;_DATA</code>) keyed on run, time and work,
+ * without the synthetic <code>OID</code>. The original table name is kept as a view, so
+ * that the ORMLite daos can still read the results.</li>
+ * </ul>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class EpanetResultsSchema {
+
+    public static final String DATA_POSTFIX = "_DATA";
+    public static final String RUN_TIME_INDEX_POSTFIX = "_RUN_TIME_IDX";
+    public static final String RUN_WORK_INDEX_POSTFIX = "_RUN_WORK_IDX";
+
+    /**
+     * The row based results tables.
+     */
+    public static final String[] RESULT_TABLES = {JUNCTIONSRESULT, RESERVOIRSRESULT, TANKSRESULT, PIPESRESULT, PUMPSRESULT,
+            VALVESRESULT};
+
+    private static final String[] NODE_COLUMNS = {DEMAND, HEAD, PRESSURE, QUALITY};
+    private static final String[] LINK_COLUMNS = {FLOW1, FLOW2, VELOCITY1, VELOCITY2, HEADLOSS, STATUS};
+    private static final String[] PUMP_COLUMNS = {FLOW1, FLOW2, VELOCITY1, VELOCITY2, HEADLOSS, STATUS, ENERGY};
+
+    /**
+     * Get the value columns of a row based results table.
+     *
+     * @param resultTable the results table.
+     * @return the names of the value columns.
+     */
+    public static String[] getValueColumns( String resultTable ) {
+        if (resultTable.equals(PUMPSRESULT)) {
+            return PUMP_COLUMNS;
+        } else if (TimestepResults.isLinkTable(resultTable)) {
+            return LINK_COLUMNS;
+        }
+        return NODE_COLUMNS;
+    }
+
+    /**
+     * Checks if a results table uses the clustered layout.
+     *
+     * @param connectionSource the connection source to the results database.
+     * @param resultTable the results table.
+     * @return <code>true</code> if the table is a view on a <code>WITHOUT ROWID</code> table.
+     * @throws SQLException
+     */
+    public static boolean isClustered( ConnectionSource connectionSource, String resultTable ) throws SQLException {
+        return countSchemaObjects(connectionSource, "view", resultTable) > 0;
+    }
+
+    /**
+     * Get the table into which the rows of a results table have to be inserted.
+     *
+     * @param connectionSource the connection source to the results database.
+     * @param resultTable the results table.
+     * @return the name of the table to write to.
+     * @throws SQLException
+     */
+    public static String getDataTable( ConnectionSource connectionSource, String resultTable ) throws SQLException {
+        if (isClustered(connectionSource, resultTable)) {
+            return resultTable + DATA_POSTFIX;
+        }
+        return resultTable;
+    }
+
+    /**
+     * Create the results tables in the clustered layout, if they don't exist yet.
+     *
+     * <p>This has to be called before the ORMLite tables creation, which then leaves the views alone.</p>
+     *
+     * @param connectionSource the connection source to the results database.
+     * @throws SQLException
+     */
+    public static void createClusteredTables( ConnectionSource connectionSource ) throws SQLException {
+        for( String table : RESULT_TABLES ) {
+            if (countSchemaObjects(connectionSource, null, table) > 0) {
+                continue;
+            }
+            execute(connectionSource, getCreateDataTableSql(table));
+            execute(connectionSource, getCreateViewSql(table));
+        }
+    }
+
+    /**
+     * Create the indexes of the results tables, if they don't exist yet.
+     *
+     * <p>Meant to be called after the bulk load of the results. Tables that don't
+     * exist are skipped and the statistics are only refreshed if an index was created.</p>
+     *
+     * @param connectionSource the connection source to the results database.
+     * @param pm the progress monitor.
+     * @throws SQLException
+     */
+    public static void createIndexes( ConnectionSource connectionSource, IJGTProgressMonitor pm ) throws SQLException {
+        pm.beginTask("Creating results indexes...", RESULT_TABLES.length);
+        try {
+            boolean created = false;
+            for( String table : RESULT_TABLES ) {
+                if (countSchemaObjects(connectionSource, null, table) == 0) {
+                    pm.worked(1);
+                    continue;
+                }
+                if (isClustered(connectionSource, table)) {
+                    // the primary key already clusters by run and time
+                    String index = table + RUN_WORK_INDEX_POSTFIX;
+                    if (countSchemaObjects(connectionSource, "index", index) == 0) {
+                        execute(connectionSource, "CREATE INDEX " + index + " ON " + table + DATA_POSTFIX + " (" + RUN_ID
+                                + ", " + WORK_ID + ", " + UTCTIME + ")");
+                        created = true;
+                    }
+                } else {
+                    // covering the timestep queries, the unique constraint covers the work ones
+                    String index = table + RUN_TIME_INDEX_POSTFIX;
+                    if (countSchemaObjects(connectionSource, "index", index) == 0) {
+                        StringBuilder sql = new StringBuilder();
+                        sql.append("CREATE INDEX ").append(index).append(" ON ").append(table);
+                        sql.append(" (").append(RUN_ID).append(", ").append(UTCTIME).append(", ").append(WORK_ID);
+                        for( String column : getValueColumns(table) ) {
+                            sql.append(", ").append(column);
+                        }
+                        sql.append(")");
+                        execute(connectionSource, sql.toString());
+                        created = true;
+                    }
+                }
+                pm.worked(1);
+            }
+            if (created) {
+                execute(connectionSource, "ANALYZE");
+            }
+        } finally {
+            pm.done();
+        }
+    }
+
+    /**
+     * Checks if any of the results tables holds rows.
+     *
+     * @param connectionSource the connection source to the results database.
+     * @return <code>true</code> if some results are stored.
+     * @throws SQLException
+     */
+    public static boolean hasResults( ConnectionSource connectionSource ) throws SQLException {
+        for( String table : RESULT_TABLES ) {
+            if (countSchemaObjects(connectionSource, null, table) == 0) {
+                continue;
+            }
+            if (queryForLong(connectionSource, "SELECT count(*) FROM (SELECT 1 FROM " + table + " LIMIT 1)") > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drop the indexes of the results tables before a bulk load, after which they are
+     * rebuilt by {@link #createIndexes(ConnectionSource, IJGTProgressMonitor)}.
+     *
+     * <p>Only meant for empty tables, see {@link #hasResults(ConnectionSource)}: the rebuild
+     * goes over all the stored rows, which costs more than keeping the indexes during the
+     * load of a run into a filled database.</p>
+     *
+     * @param connectionSource the connection source to the results database.
+     * @throws SQLException
+     */
+    public static void dropIndexes( ConnectionSource connectionSource ) throws SQLException {
+        for( String table : RESULT_TABLES ) {
+            execute(connectionSource, "DROP INDEX IF EXISTS " + table + RUN_TIME_INDEX_POSTFIX);
+            execute(connectionSource, "DROP INDEX IF EXISTS " + table + RUN_WORK_INDEX_POSTFIX);
+        }
+    }
+
+    /**
+     * Move the existing row based results tables to the clustered layout.
+     *
+     * <p>Every table is copied in its own transaction, ordered by the new key. Tables
+     * that are already clustered or don't exist are left alone.</p>
+     *
+     * @param connectionSource the connection source to the results database.
+     * @param pm the progress monitor.
+     * @throws SQLException
+     */
+    public static void moveToClustered( final ConnectionSource connectionSource, IJGTProgressMonitor pm )
+            throws SQLException {
+        pm.beginTask("Moving results to the clustered layout...", RESULT_TABLES.length);
+        try {
+            for( final String table : RESULT_TABLES ) {
+                if (countSchemaObjects(connectionSource, "table", table) > 0) {
+                    TransactionManager.callInTransaction(connectionSource, new Callable<Void>(){
+                        public Void call() throws Exception {
+                            moveTableToClustered(connectionSource, table);
+                            return null;
+                        }
+                    });
+                }
+                pm.worked(1);
+            }
+        } finally {
+            pm.done();
+        }
+    }
+
+    private static void moveTableToClustered( ConnectionSource connectionSource, String table ) throws SQLException {
+        String columns = RUN_ID + ", " + UTCTIME + ", " + WORK_ID;
+        for( String column : getValueColumns(table) ) {
+            columns = columns + ", " + column;
+        }
+        execute(connectionSource, getCreateDataTableSql(table));
+        execute(connectionSource, "INSERT INTO " + table + DATA_POSTFIX + " (" + columns + ") SELECT " + columns + " FROM "
+                + table + " ORDER BY " + RUN_ID + ", " + UTCTIME + ", " + WORK_ID);
+        execute(connectionSource, "DROP INDEX IF EXISTS " + table + RUN_TIME_INDEX_POSTFIX);
+        execute(connectionSource, "DROP TABLE " + table);
+        execute(connectionSource, getCreateViewSql(table));
+    }
+
+    private static String getCreateDataTableSql( String table ) {
+        StringBuilder sql = new StringBuilder();
+        sql.append("CREATE TABLE IF NOT EXISTS ").append(table).append(DATA_POSTFIX).append(" (");
+        sql.append(RUN_ID).append(" INTEGER NOT NULL, ");
+        sql.append(UTCTIME).append(" BIGINT NOT NULL, ");
+        sql.append(WORK_ID).append(" INTEGER NOT NULL");
+        for( String column : getValueColumns(table) ) {
+            sql.append(", ").append(column).append(" FLOAT NOT NULL");
+        }
+        sql.append(", PRIMARY KEY (").append(RUN_ID).append(", ").append(UTCTIME).append(", ").append(WORK_ID).append(")");
+        sql.append(") WITHOUT ROWID");
+        return sql.toString();
+    }
+
+    private static String getCreateViewSql( String table ) {
+        StringBuilder sql = new StringBuilder();
+        sql.append("CREATE VIEW ").append(table).append(" AS SELECT NULL AS ").append(OID).append(", ");
+        sql.append(RUN_ID).append(", ").append(WORK_ID).append(", ").append(UTCTIME);
+        for( String column : getValueColumns(table) ) {
+            sql.append(", ").append(column);
+        }
+        sql.append(" FROM ").append(table).append(DATA_POSTFIX);
+        return sql.toString();
+    }
+
+    private static long countSchemaObjects( ConnectionSource connectionSource, String type, String name )
+            throws SQLException {
+        String sql = "SELECT count(*) FROM sqlite_master WHERE name = '" + name + "'";
+        if (type != null) {
+            sql = sql + " AND type = '" + type + "'";
+        }
+        return queryForLong(connectionSource, sql);
+    }
+
+    private static long queryForLong( ConnectionSource connectionSource, String sql ) throws SQLException {
+        DatabaseConnection connection = connectionSource.getReadOnlyConnection();
+        try {
+            return connection.queryForLong(sql);
+        } finally {
+            connectionSource.releaseConnection(connection);
+        }
+    }
+
+    private static void execute( ConnectionSource connectionSource, String sql ) throws SQLException {
+        DatabaseConnection connection = connectionSource.getReadWriteConnection();
+        try {
+            connection.executeStatement(sql, DatabaseConnection.DEFAULT_RESULT_FLAGS);
+        } finally {
+            connectionSource.releaseConnection(connection);
+        }
+    }
+}
@@ -19,24 +19,22 @@ package org.jgrasstools.gvsig.epanet.core;
 
 import java.awt.Color;
 import java.text.DecimalFormat;
-import java.util.HashMap;
 import java.util.List;
-import java.util.TreeSet;
 
-import org.gvsig.fmap.dal.feature.Feature;
-import org.gvsig.fmap.dal.feature.FeatureSet;
-import org.gvsig.fmap.dal.feature.FeatureStore;
 import org.gvsig.fmap.mapcontext.MapContextLocator;
 import org.gvsig.fmap.mapcontext.MapContextManager;
 import org.gvsig.fmap.mapcontext.layers.vectorial.FLyrVect;
+import org.gvsig.fmap.mapcontext.rendering.legend.IVectorLegend;
+import org.gvsig.fmap.mapcontext.rendering.legend.IVectorialIntervalLegend;
 import org.gvsig.fmap.mapcontext.rendering.legend.IVectorialUniqueValueLegend;
 import org.gvsig.fmap.mapcontext.rendering.symbols.ISymbol;
 import org.gvsig.fmap.mapcontext.rendering.symbols.SymbolManager;
+import org.gvsig.symbology.fmap.mapcontext.rendering.legend.impl.FInterval;
 import org.gvsig.symbology.fmap.mapcontext.rendering.legend.impl.VectorialUniqueValueLegend;
 import org.gvsig.symbology.fmap.mapcontext.rendering.symbol.line.ISimpleLineSymbol;
 import org.gvsig.symbology.fmap.mapcontext.rendering.symbol.marker.ISimpleMarkerSymbol;
-import org.gvsig.tools.dispose.DisposableIterator;
-import org.jgrasstools.gvsig.epanet.core.style.ColorArrayInterpolator;
+import org.jgrasstools.gvsig.epanet.core.style.ColorLookupTable;
+import org.jgrasstools.gvsig.epanet.database.EpanetRun;
 import org.jgrasstools.gvsig.epanet.database.ILinkResults;
 import org.jgrasstools.gvsig.epanet.database.INodeResults;
 import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.ResultsLinkParameters;
@@ -50,58 +48,104 @@ import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.ResultsNod
  */
 public class EpanetResultsStyler {
     private static final String ID = "id";
+
+    /**
+     * The attribute holding the result value of an element, used by the classes legends if the layer has it.
+     */
+    public static final String RESULT_FIELD = "result";
+
+    /**
+     * The default number of classes of the classes legends.
+     */
+    public static final int DEFAULT_CLASSES_COUNT = 10;
+
+    /**
+     * The ways the results can be styled.
+     */
+    public static enum LegendMode {
+        /**
+         * One symbol per element.
+         */
+        ELEMENTS,
+        /**
+         * A fixed number of color classes.
+         */
+        CLASSES,
+        /**
+         * A fixed number of color classes on the results joined to the layers, kept for the whole timeline.
+         */
+        JOINED
+    }
     private static MapContextManager mapContextManager = MapContextLocator.getMapContextManager();
+    private static VirtualElementsCache virtualElementsCache = new VirtualElementsCache();
 
-    public static VectorialUniqueValueLegend createPipesLegend( FLyrVect layer, List<ILinkResults> linksResults,
+    public static VectorialUniqueValueLegend createPipesLegend( FLyrVect layer, EpanetRun run, List<ILinkResults> linksResults,
             ResultsLinkParameters linkVar, float[] linksMinMax ) throws Exception {
-        SymbolManager symbolManager = mapContextManager.getSymbolManager();
-        VectorialUniqueValueLegend leg = (VectorialUniqueValueLegend) mapContextManager
-                .createLegend(IVectorialUniqueValueLegend.LEGEND_NAME);
+        String[] ids = new String[linksResults.size()];
+        float[] values = new float[ids.length];
+        fillLinkValues(linksResults, linkVar, ids, values);
+        return createPipesLegend(layer, run, ids, values, ids.length, linksMinMax);
+    }
 
-        leg.setClassifyingFieldNames(new String[]{ID});
-        leg.setShapeType(layer.getShapeType());
+    public static VectorialUniqueValueLegend createPointLinkLegend( FLyrVect layer, List<ILinkResults> linksResults,
+            ResultsLinkParameters linkVar, float[] linksMinMax, int size ) throws Exception {
+        String[] ids = new String[linksResults.size()];
+        float[] values = new float[ids.length];
+        fillLinkValues(linksResults, linkVar, ids, values);
+        return createPointLegend(layer, ids, values, ids.length, linksMinMax, size);
+    }
 
-        Color[] colorScheme = new Color[EpanetUtilities.rainbow.length];
-        for( int i = 0; i < colorScheme.length; i++ ) {
-            int[] rgb = EpanetUtilities.rainbow[i];
-            colorScheme[i] = new Color(rgb[0], rgb[1], rgb[2]);
+    public static VectorialUniqueValueLegend createPointNodeLegend( FLyrVect layer, List<INodeResults> nodeResults,
+            ResultsNodeParameters nodeVar, float[] nodeMinMax, int size ) throws Exception {
+        String[] ids = new String[nodeResults.size()];
+        float[] values = new float[ids.length];
+        int i = 0;
+        for( INodeResults nodeResult : nodeResults ) {
+            ids[i] = nodeResult.getId();
+            values[i] = (float) getValue(nodeVar, nodeResult);
+            i++;
         }
-        leg.setColorScheme(colorScheme);
+        return createPointLegend(layer, ids, values, ids.length, nodeMinMax, size);
+    }
 
-        /*
-         * first find min and max for the color ramp
-         */
-        float max = Float.NEGATIVE_INFINITY;
-        float min = Float.POSITIVE_INFINITY;
-        if (linksMinMax == null) {
-            for( ILinkResults linkResult : linksResults ) {
-                double value = getValue(linkVar, linkResult);
-                min = (float) Math.min(value, min);
-                max = (float) Math.max(value, max);
-            }
-        } else {
-            min = linksMinMax[0];
-            max = linksMinMax[1];
+    private static void fillLinkValues( List<ILinkResults> linksResults, ResultsLinkParameters linkVar, String[] ids,
+            float[] values ) {
+        int i = 0;
+        for( ILinkResults linkResult : linksResults ) {
+            ids[i] = linkResult.getId();
+            values[i] = (float) getValue(linkVar, linkResult);
+            i++;
         }
+    }
 
-        float delta = (max - min) / 5;
-        double[] ramp = new double[6];
-        for( int i = 0; i < ramp.length; i++ ) {
-            ramp[i] = min + i * delta;
-        }
-        ColorArrayInterpolator colorInterpolator = new ColorArrayInterpolator(ramp, EpanetUtilities.rainbow);
+    /**
+     * Create the legend of a pipes layer from the values of its elements.
+     * 
+     * <p>Pipes without values (dummy pipes) are styled in grey.</p>
+     * 
+     * @param layer the pipes layer.
+     * @param run the run of the values, the pipes without values are found once per run.
+     * @param ids the ids of the elements.
+     * @param values the values of the elements, in the same order of the ids.
+     * @param count the number of elements to use from the arrays.
+     * @param linksMinMax the range of the color ramp. If <code>null</code>, the range of the values is used.
+     * @return the legend.
+     * @throws Exception
+     */
+    public static VectorialUniqueValueLegend createPipesLegend( FLyrVect layer, EpanetRun run, String[] ids, float[] values,
+            int count, float[] linksMinMax ) throws Exception {
+        SymbolManager symbolManager = mapContextManager.getSymbolManager();
+        VectorialUniqueValueLegend leg = createLegend(layer);
+        ColorLookupTable colorTable = createColorTable(values, count, linksMinMax);
 
         /*
          * then create color rules
          */
         DecimalFormat formatter = new DecimalFormat("0.00");
-        TreeSet<String> idSet = new TreeSet<String>();
-        for( ILinkResults linkResult : linksResults ) {
-            double value = getValue(linkVar, linkResult);
-            String id = linkResult.getId();
-            idSet.add(id);
-            int[] rgb = colorInterpolator.interpolate(value);
-            Color color = new Color(rgb[0], rgb[1], rgb[2]);
+        for( int i = 0; i < count; i++ ) {
+            double value = values[i];
+            String id = ids[i];
+            Color color = colorTable.getColor(value);
             ISymbol theSymbol = symbolManager.createSymbol(layer.getShapeType(), color);
             if (theSymbol instanceof ISimpleLineSymbol) {
                 ISimpleLineSymbol lineSymbol = (ISimpleLineSymbol) theSymbol;
@@ -114,92 +158,37 @@ public class EpanetResultsStyler {
         /*
          * if there are pipes that are dummy, make them grey
          */
-        FeatureStore elRs = layer.getFeatureStore();
-        FeatureSet set = null;
-        DisposableIterator iterator = null;
-        Color color = Color.lightGray;
-        ISymbol theSymbol = symbolManager.createSymbol(layer.getShapeType(), color);
-        if (theSymbol instanceof ISimpleLineSymbol) {
-            ISimpleLineSymbol lineSymbol = (ISimpleLineSymbol) theSymbol;
-            lineSymbol.setLineWidth(3);
-        }
-        theSymbol.setDescription("Virtual pipe");
-        try {
-            set = elRs.getFeatureSet();
-            iterator = set.fastIterator();
-            while( iterator.hasNext() ) {
-                Feature feature = (Feature) iterator.next();
-                Object pipeIdObject = feature.get(ID);
-                if (pipeIdObject == null) {
-                    continue;
-                }
-                String pipeId = (String) pipeIdObject;
-                if (!idSet.contains(pipeId)) {
-                    leg.addSymbol(pipeIdObject, theSymbol);
-                }
-            }
-        } finally {
-            if (iterator != null) {
-                iterator.dispose();
-            }
-            if (set != null) {
-                set.dispose();
-            }
-        }
+        addVirtualPipes(layer, run, leg, ids, count);
 
         return leg;
     }
 
-    public static VectorialUniqueValueLegend createPointLinkLegend( FLyrVect layer, List<ILinkResults> linksResults,
-            ResultsLinkParameters linkVar, float[] linksMinMax, int size ) throws Exception {
+    /**
+     * Create the legend of a point layer (nodes, pumps or valves) from the values of its elements.
+     * 
+     * @param layer the point layer.
+     * @param ids the ids of the elements.
+     * @param values the values of the elements, in the same order of the ids.
+     * @param count the number of elements to use from the arrays.
+     * @param minMax the range of the color ramp. If <code>null</code>, the range of the values is used.
+     * @param size the size of the point symbols.
+     * @return the legend.
+     * @throws Exception
+     */
+    public static VectorialUniqueValueLegend createPointLegend( FLyrVect layer, String[] ids, float[] values, int count,
+            float[] minMax, int size ) throws Exception {
         SymbolManager symbolManager = mapContextManager.getSymbolManager();
-        VectorialUniqueValueLegend leg = (VectorialUniqueValueLegend) mapContextManager
-                .createLegend(IVectorialUniqueValueLegend.LEGEND_NAME);
-
-        leg.setClassifyingFieldNames(new String[]{ID});
-        leg.setShapeType(layer.getShapeType());
-
-        Color[] colorScheme = new Color[EpanetUtilities.rainbow.length];
-        for( int i = 0; i < colorScheme.length; i++ ) {
-            int[] rgb = EpanetUtilities.rainbow[i];
-            colorScheme[i] = new Color(rgb[0], rgb[1], rgb[2]);
-        }
-        leg.setColorScheme(colorScheme);
-
-        /*
-         * first find min and max for the color ramp
-         */
-        float max = Float.NEGATIVE_INFINITY;
-        float min = Float.POSITIVE_INFINITY;
-        if (linksMinMax == null) {
-            for( ILinkResults linkResult : linksResults ) {
-                double value = getValue(linkVar, linkResult);
-                min = (float) Math.min(value, min);
-                max = (float) Math.max(value, max);
-            }
-        } else {
-            min = linksMinMax[0];
-            max = linksMinMax[1];
-        }
-
-        float delta = (max - min) / 5;
-        double[] ramp = new double[6];
-        for( int i = 0; i < ramp.length; i++ ) {
-            ramp[i] = min + i * delta;
-        }
-        ColorArrayInterpolator colorInterpolator = new ColorArrayInterpolator(ramp, EpanetUtilities.rainbow);
+        VectorialUniqueValueLegend leg = createLegend(layer);
+        ColorLookupTable colorTable = createColorTable(values, count, minMax);
 
         /*
          * then create color rules
          */
         DecimalFormat formatter = new DecimalFormat("0.00");
-        TreeSet<String> idSet = new TreeSet<String>();
-        for( ILinkResults linkResult : linksResults ) {
-            double value = getValue(linkVar, linkResult);
-            String id = linkResult.getId();
-            idSet.add(id);
-            int[] rgb = colorInterpolator.interpolate(value);
-            Color color = new Color(rgb[0], rgb[1], rgb[2]);
+        for( int i = 0; i < count; i++ ) {
+            double value = values[i];
+            String id = ids[i];
+            Color color = colorTable.getColor(value);
             ISymbol theSymbol = symbolManager.createSymbol(layer.getShapeType(), color);
             if (theSymbol instanceof ISimpleMarkerSymbol) {
                 ISimpleMarkerSymbol pointSymbol = (ISimpleMarkerSymbol) theSymbol;
@@ -212,9 +201,138 @@ public class EpanetResultsStyler {
         return leg;
     }
 
-    public static VectorialUniqueValueLegend createPointNodeLegend( FLyrVect layer, List<INodeResults> nodeResults,
-            ResultsNodeParameters nodeVar, float[] nodeMinMax, int size ) throws Exception {
+    /**
+     * Create a legend of a pipes layer made of a fixed number of color classes.
+     * 
+     * <p>If the layer has the {@link #RESULT_FIELD} attribute, an interval legend on that
+     * attribute is created and the values are not used. Else every element gets the shared
+     * symbol of its class. In both cases the symbols count doesn't depend on the network size.
+     * Pipes without values (dummy pipes) are styled in grey.</p>
+     * 
+     * @param layer the pipes layer.
+     * @param run the run of the values, the pipes without values are found once per run.
+     * @param ids the ids of the elements.
+     * @param values the values of the elements, in the same order of the ids.
+     * @param count the number of elements to use from the arrays.
+     * @param linksMinMax the range of the classes. If <code>null</code>, the range of the values is used.
+     * @param classesCount the number of classes.
+     * @return the legend.
+     * @throws Exception
+     */
+    public static IVectorLegend createPipesClassesLegend( FLyrVect layer, EpanetRun run, String[] ids, float[] values,
+            int count, float[] linksMinMax, int classesCount ) throws Exception {
+        return createClassesLegend(layer, run, ids, values, count, linksMinMax, classesCount, -1);
+    }
+
+    /**
+     * Create a legend of a point layer (nodes, pumps or valves) made of a fixed number of color classes.
+     * 
+     * @param layer the point layer.
+     * @param ids the ids of the elements.
+     * @param values the values of the elements, in the same order of the ids.
+     * @param count the number of elements to use from the arrays.
+     * @param minMax the range of the classes. If <code>null</code>, the range of the values is used.
+     * @param classesCount the number of classes.
+     * @param size the size of the point symbols.
+     * @return the legend.
+     * @throws Exception
+     * @see #createPipesClassesLegend(FLyrVect, EpanetRun, String[], float[], int, float[], int)
+     */
+    public static IVectorLegend createPointClassesLegend( FLyrVect layer, String[] ids, float[] values, int count,
+            float[] minMax, int classesCount, int size ) throws Exception {
+        return createClassesLegend(layer, null, ids, values, count, minMax, classesCount, size);
+    }
+
+    /**
+     * @param run the run of the values of a pipes layer, <code>null</code> for the point layers.
+     */
+    private static IVectorLegend createClassesLegend( FLyrVect layer, EpanetRun run, String[] ids, float[] values,
+            int count, float[] minMax, int classesCount, int size ) throws Exception {
+        boolean isPipes = run != null;
+        float[] range = getRange(values, count, minMax);
+        float min = range[0];
+        float max = range[1];
+        double delta = (max - min) / classesCount;
+        ColorLookupTable colorTable = createColorTable(values, count, range);
+
+        /*
+         * one symbol per class, colored at the class center
+         */
+        DecimalFormat formatter = new DecimalFormat("0.00");
+        ISymbol[] classSymbols = new ISymbol[classesCount];
+        for( int k = 0; k < classesCount; k++ ) {
+            double from = min + k * delta;
+            double to = from + delta;
+            classSymbols[k] = createSymbol(layer, colorTable.getColor(from + delta / 2.0), size);
+            classSymbols[k].setDescription(formatter.format(from) + " - " + formatter.format(to));
+        }
+        ISymbol virtualSymbol = createSymbol(layer, Color.lightGray, size);
+        virtualSymbol.setDescription("Virtual pipe");
+
+        if (hasAttribute(layer, RESULT_FIELD)) {
+            IVectorialIntervalLegend leg = (IVectorialIntervalLegend) mapContextManager
+                    .createLegend(IVectorialIntervalLegend.LEGEND_NAME);
+            leg.setShapeType(layer.getShapeType());
+            leg.setClassifyingFieldNames(new String[]{RESULT_FIELD});
+            for( int k = 0; k < classesCount; k++ ) {
+                // the outer classes are open, so that no value falls outside
+                double from = k == 0 ? -Double.MAX_VALUE : min + k * delta;
+                double to = k == classesCount - 1 ? Double.MAX_VALUE : min + (k + 1) * delta;
+                leg.addSymbol(new FInterval(from, to), classSymbols[k]);
+            }
+            if (isPipes) {
+                // elements without a joined result
+                leg.setDefaultSymbol(virtualSymbol);
+                leg.useDefaultSymbol(true);
+            }
+            return leg;
+        }
+
+        VectorialUniqueValueLegend leg = createLegend(layer);
+        for( int i = 0; i < count; i++ ) {
+            int k = delta > 0 ? (int) ((values[i] - min) / delta) : 0;
+            k = Math.max(0, Math.min(classesCount - 1, k));
+            leg.addSymbol(ids[i], classSymbols[k]);
+        }
+        if (isPipes) {
+            addVirtualPipes(layer, run, leg, ids, count, virtualSymbol);
+        }
+        return leg;
+    }
+
+    private static ISymbol createSymbol( FLyrVect layer, Color color, int size ) throws Exception {
         SymbolManager symbolManager = mapContextManager.getSymbolManager();
+        ISymbol theSymbol = symbolManager.createSymbol(layer.getShapeType(), color);
+        if (theSymbol instanceof ISimpleLineSymbol) {
+            ISimpleLineSymbol lineSymbol = (ISimpleLineSymbol) theSymbol;
+            lineSymbol.setLineWidth(3);
+        } else if (theSymbol instanceof ISimpleMarkerSymbol && size > 0) {
+            ISimpleMarkerSymbol pointSymbol = (ISimpleMarkerSymbol) theSymbol;
+            pointSymbol.setSize(size);
+        }
+        return theSymbol;
+    }
+
+    private static boolean hasAttribute( FLyrVect layer, String name ) throws Exception {
+        return layer.getFeatureStore().getDefaultFeatureType().getAttributeDescriptor(name) != null;
+    }
+
+    private static void addVirtualPipes( FLyrVect layer, EpanetRun run, VectorialUniqueValueLegend leg, String[] ids,
+            int count ) throws Exception {
+        ISymbol theSymbol = createSymbol(layer, Color.lightGray, -1);
+        theSymbol.setDescription("Virtual pipe");
+        addVirtualPipes(layer, run, leg, ids, count, theSymbol);
+    }
+
+    private static void addVirtualPipes( FLyrVect layer, EpanetRun run, VectorialUniqueValueLegend leg, String[] ids,
+            int count, ISymbol theSymbol ) throws Exception {
+        // the layer is only scanned again if its store changes, the virtual pipes if the run changes
+        for( String pipeId : virtualElementsCache.getVirtualIds(layer, run, ids, count) ) {
+            leg.addSymbol(pipeId, theSymbol);
+        }
+    }
+
+    private static VectorialUniqueValueLegend createLegend( FLyrVect layer ) throws Exception {
         VectorialUniqueValueLegend leg = (VectorialUniqueValueLegend) mapContextManager
                 .createLegend(IVectorialUniqueValueLegend.LEGEND_NAME);
 
@@ -227,54 +345,31 @@ public class EpanetResultsStyler {
             colorScheme[i] = new Color(rgb[0], rgb[1], rgb[2]);
         }
         leg.setColorScheme(colorScheme);
+        return leg;
+    }
 
-        /*
-         * first find min and max for the color ramp
-         */
+    private static float[] getRange( float[] values, int count, float[] minMax ) {
+        if (minMax != null) {
+            return minMax;
+        }
         float max = Float.NEGATIVE_INFINITY;
         float min = Float.POSITIVE_INFINITY;
-        if (nodeMinMax == null) {
-            for( INodeResults nodeResult : nodeResults ) {
-                double value = getValue(nodeVar, nodeResult);
-                min = (float) Math.min(value, min);
-                max = (float) Math.max(value, max);
-            }
-        } else {
-            min = nodeMinMax[0];
-            max = nodeMinMax[1];
-        }
-
-        float delta = (max - min) / 5;
-        double[] ramp = new double[6];
-        for( int i = 0; i < ramp.length; i++ ) {
-            ramp[i] = min + i * delta;
+        for( int i = 0; i < count; i++ ) {
+            min = Math.min(values[i], min);
+            max = Math.max(values[i], max);
         }
-        ColorArrayInterpolator colorInterpolator = new ColorArrayInterpolator(ramp, EpanetUtilities.rainbow);
+        return new float[]{min, max};
+    }
 
+    private static ColorLookupTable createColorTable( float[] values, int count, float[] minMax ) {
         /*
-         * then create color rules
+         * first find min and max for the color ramp
          */
-        DecimalFormat formatter = new DecimalFormat("0.00");
-        TreeSet<String> idSet = new TreeSet<String>();
-        for( INodeResults nodeResult : nodeResults ) {
-            double value = getValue(nodeVar, nodeResult);
-            String id = nodeResult.getId();
-            idSet.add(id);
-            int[] rgb = colorInterpolator.interpolate(value);
-            Color color = new Color(rgb[0], rgb[1], rgb[2]);
-            ISymbol theSymbol = symbolManager.createSymbol(layer.getShapeType(), color);
-            if (theSymbol instanceof ISimpleMarkerSymbol) {
-                ISimpleMarkerSymbol pointSymbol = (ISimpleMarkerSymbol) theSymbol;
-                pointSymbol.setSize(size);
-            }
-            theSymbol.setDescription(id + ": " + formatter.format(value));
-            leg.addSymbol(id, theSymbol);
-        }
-
-        return leg;
+        float[] range = getRange(values, count, minMax);
+        return ColorLookupTable.fromRamp(EpanetUtilities.rainbow, range[0], range[1], ColorLookupTable.DEFAULT_SIZE);
     }
 
-    private static double getValue( ResultsLinkParameters linkVar, ILinkResults linkResult ) {
+    static double getValue( ResultsLinkParameters linkVar, ILinkResults linkResult ) {
         double value = -9999;
         switch( linkVar ) {
         case FLOW:
@@ -298,7 +393,7 @@ public class EpanetResultsStyler {
         return value;
     }
 
-    private static double getValue( ResultsNodeParameters nodeVar, INodeResults nodeResult ) {
+    static double getValue( ResultsNodeParameters nodeVar, INodeResults nodeResult ) {
         double value = -9999;
         switch( nodeVar ) {
         case DEMAND:
@@ -0,0 +1,403 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import static org.jgrasstools.gvsig.epanet.core.TimestepResults.*;
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+import org.jgrasstools.gvsig.epanet.core.TimestepResults.ElementResults;
+import org.jgrasstools.gvsig.epanet.database.EpanetRun;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.j256.ormlite.jdbc.JdbcDatabaseConnection;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.support.DatabaseConnection;
+
+/**
+ * Batched writer for the epanet results tables.
+ *
+ * <p>Rows are buffered per results table and inserted through prepared multi-row
+ * statements. Instead of one autocommit transaction per row, every timestep (or
+ * every <code>batchSize</code> rows, if positive) is committed as a single transaction.</p>
+ *
+ * <p>The writer works on the connection of the supplied {@link ConnectionSource}, which
+ * is saved as special connection until {@link #close()} is called, so that daos
+ * used in the meantime share the same transaction.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class EpanetResultsWriter implements IResultsSink {
+    private static final Logger logger = LoggerFactory.getLogger(EpanetResultsWriter.class);
+
+    /**
+     * The sqlite limit of parameters per statement (before 3.32), which bounds the rows per multi-row insert.
+     */
+    private static final int MAX_PARAMETERS = 999;
+
+    /**
+     * Pipes and valves have no energy column.
+     */
+    private static final String[] NO_ENERGY_LINK_COLUMNS = {FLOW1, FLOW2, VELOCITY1, VELOCITY2, HEADLOSS, STATUS};
+
+    private final ConnectionSource connectionSource;
+    private final DatabaseConnection databaseConnection;
+    private final Connection connection;
+    private final long runId;
+    private final int batchSize;
+    private final IJGTProgressMonitor pm;
+
+    private final TableBuffer junctions;
+    private final TableBuffer reservoirs;
+    private final TableBuffer tanks;
+    private final TableBuffer pipes;
+    private final TableBuffer pumps;
+    private final TableBuffer valves;
+    private final TableBuffer[] buffers;
+
+    private long currentTime;
+    private long rowsSinceCommit = 0;
+    private long totalRows = 0;
+    private long startNanos;
+    private boolean closed = false;
+
+    /**
+     * Constructor.
+     *
+     * @param connectionSource the connection source to the results database.
+     * @param run the {@link EpanetRun run} the results belong to.
+     * @param batchSize the number of rows after which to commit. If <= 0, every
+     *              timestep is committed as one transaction.
+     * @param pm the progress monitor, used to report the write throughput.
+     * @throws SQLException
+     */
+    public EpanetResultsWriter( ConnectionSource connectionSource, EpanetRun run, int batchSize, IJGTProgressMonitor pm )
+            throws SQLException {
+        this.connectionSource = connectionSource;
+        this.runId = run.getId();
+        this.batchSize = batchSize;
+        this.pm = pm;
+
+        databaseConnection = connectionSource.getReadWriteConnection();
+        connectionSource.saveSpecialConnection(databaseConnection);
+        connection = ((JdbcDatabaseConnection) databaseConnection).getInternalConnection();
+        connection.setAutoCommit(false);
+
+        junctions = new TableBuffer(JUNCTIONSRESULT, NODE_COLUMNS);
+        reservoirs = new TableBuffer(RESERVOIRSRESULT, NODE_COLUMNS);
+        tanks = new TableBuffer(TANKSRESULT, NODE_COLUMNS);
+        pipes = new TableBuffer(PIPESRESULT, NO_ENERGY_LINK_COLUMNS);
+        pumps = new TableBuffer(PUMPSRESULT, LINK_COLUMNS);
+        valves = new TableBuffer(VALVESRESULT, NO_ENERGY_LINK_COLUMNS);
+        buffers = new TableBuffer[]{junctions, reservoirs, tanks, pipes, pumps, valves};
+
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Set the time of the rows added from now on.
+     *
+     * @param time the timestep time.
+     */
+    public void beginTimestep( DateTime time ) {
+        currentTime = time.getMillis();
+    }
+
+    /**
+     * Signal that all the rows of the current timestep have been added.
+     *
+     * <p>If no row based batch size is set, this commits the timestep.</p>
+     *
+     * @throws SQLException
+     */
+    public void endTimestep() throws SQLException {
+        if (batchSize <= 0) {
+            commit();
+        }
+    }
+
+    /**
+     * Write a complete timestep.
+     *
+     * @param results the timestep snapshot.
+     * @throws SQLException
+     */
+    public void write( TimestepResults results ) throws SQLException {
+        beginTimestep(results.time);
+        ElementResults r = results.junctions;
+        float[][] v = r.values;
+        for( int i = 0; i < r.size(); i++ ) {
+            writeJunction(r.workOids[i], v[VAR_DEMAND][i], v[VAR_HEAD][i], v[VAR_PRESSURE][i], v[VAR_QUALITY][i]);
+        }
+        r = results.reservoirs;
+        v = r.values;
+        for( int i = 0; i < r.size(); i++ ) {
+            writeReservoir(r.workOids[i], v[VAR_DEMAND][i], v[VAR_HEAD][i], v[VAR_PRESSURE][i], v[VAR_QUALITY][i]);
+        }
+        r = results.tanks;
+        v = r.values;
+        for( int i = 0; i < r.size(); i++ ) {
+            writeTank(r.workOids[i], v[VAR_DEMAND][i], v[VAR_HEAD][i], v[VAR_PRESSURE][i], v[VAR_QUALITY][i]);
+        }
+        r = results.pipes;
+        v = r.values;
+        for( int i = 0; i < r.size(); i++ ) {
+            writePipe(r.workOids[i], v[VAR_FLOW1][i], v[VAR_FLOW2][i], v[VAR_VELOCITY1][i], v[VAR_VELOCITY2][i],
+                    v[VAR_HEADLOSS][i], v[VAR_STATUS][i]);
+        }
+        r = results.pumps;
+        v = r.values;
+        for( int i = 0; i < r.size(); i++ ) {
+            writePump(r.workOids[i], v[VAR_FLOW1][i], v[VAR_FLOW2][i], v[VAR_VELOCITY1][i], v[VAR_VELOCITY2][i],
+                    v[VAR_HEADLOSS][i], v[VAR_STATUS][i], v[VAR_ENERGY][i]);
+        }
+        r = results.valves;
+        v = r.values;
+        for( int i = 0; i < r.size(); i++ ) {
+            writeValve(r.workOids[i], v[VAR_FLOW1][i], v[VAR_FLOW2][i], v[VAR_VELOCITY1][i], v[VAR_VELOCITY2][i],
+                    v[VAR_HEADLOSS][i], v[VAR_STATUS][i]);
+        }
+        endTimestep();
+    }
+
+    public void writeJunction( long workOid, float demand, float head, float pressure, float quality ) throws SQLException {
+        junctions.add(workOid, demand, head, pressure, quality, 0f, 0f, 0f);
+        rowAdded();
+    }
+
+    public void writeReservoir( long workOid, float demand, float head, float pressure, float quality ) throws SQLException {
+        reservoirs.add(workOid, demand, head, pressure, quality, 0f, 0f, 0f);
+        rowAdded();
+    }
+
+    public void writeTank( long workOid, float demand, float head, float pressure, float quality ) throws SQLException {
+        tanks.add(workOid, demand, head, pressure, quality, 0f, 0f, 0f);
+        rowAdded();
+    }
+
+    public void writePipe( long workOid, float flow1, float flow2, float velocity1, float velocity2, float headloss,
+            float status ) throws SQLException {
+        pipes.add(workOid, flow1, flow2, velocity1, velocity2, headloss, status, 0f);
+        rowAdded();
+    }
+
+    public void writePump( long workOid, float flow1, float flow2, float velocity1, float velocity2, float headloss,
+            float status, float energy ) throws SQLException {
+        pumps.add(workOid, flow1, flow2, velocity1, velocity2, headloss, status, energy);
+        rowAdded();
+    }
+
+    public void writeValve( long workOid, float flow1, float flow2, float velocity1, float velocity2, float headloss,
+            float status ) throws SQLException {
+        valves.add(workOid, flow1, flow2, velocity1, velocity2, headloss, status, 0f);
+        rowAdded();
+    }
+
+    private void rowAdded() throws SQLException {
+        rowsSinceCommit++;
+        totalRows++;
+        if (batchSize > 0 && rowsSinceCommit >= batchSize) {
+            commit();
+        }
+    }
+
+    /**
+     * Flush all buffered rows and commit the current transaction.
+     *
+     * @throws SQLException
+     */
+    public void commit() throws SQLException {
+        for( TableBuffer buffer : buffers ) {
+            buffer.flush();
+        }
+        connection.commit();
+        rowsSinceCommit = 0;
+    }
+
+    /**
+     * @return the number of rows written so far.
+     */
+    public long getTotalRows() {
+        return totalRows;
+    }
+
+    /**
+     * @return the average write throughput since the writer was created.
+     */
+    public double getRowsPerSecond() {
+        double seconds = (System.nanoTime() - startNanos) / 1E9;
+        if (seconds <= 0) {
+            return 0;
+        }
+        return totalRows / seconds;
+    }
+
+    /**
+     * Commit what is still buffered and give the connection back to the connection source.
+     *
+     * <p>This is meant to be called in a finally block, so that the results written up
+     * to an error or a user cancel are preserved.</p>
+     *
+     * @throws SQLException
+     */
+    public void close() throws SQLException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            commit();
+            String msg = "Results written: " + totalRows + " rows at " + (long) getRowsPerSecond() + " rows/s";
+            logger.info(msg);
+            if (pm != null) {
+                pm.message(msg);
+            }
+        } finally {
+            for( TableBuffer buffer : buffers ) {
+                buffer.close();
+            }
+            connection.setAutoCommit(true);
+            connectionSource.clearSpecialConnection(databaseConnection);
+            connectionSource.releaseConnection(databaseConnection);
+        }
+    }
+
+    /**
+     * Row buffer for a single results table, backed by primitive arrays.
+     */
+    private class TableBuffer {
+        private final int valuesCount;
+        private final int rowsPerInsert;
+        private final long[] workIds;
+        private final long[] times;
+        private final float[] values;
+        private int count = 0;
+
+        private final PreparedStatement multiRowStatement;
+        private final PreparedStatement singleRowStatement;
+
+        public TableBuffer( String table, String[] columns ) throws SQLException {
+            valuesCount = columns.length;
+            // run id, work id and time, plus the values
+            rowsPerInsert = MAX_PARAMETERS / (3 + valuesCount);
+            workIds = new long[rowsPerInsert];
+            times = new long[rowsPerInsert];
+            values = new float[rowsPerInsert * valuesCount];
+
+            StringBuilder insert = new StringBuilder();
+            // clustered tables are written through their data table
+            String dataTable = EpanetResultsSchema.getDataTable(connectionSource, table);
+            insert.append("INSERT INTO ").append(dataTable).append(" (");
+            insert.append(RUN_ID).append(",").append(WORK_ID).append(",").append(UTCTIME);
+            for( String column : columns ) {
+                insert.append(",").append(column);
+            }
+            insert.append(") VALUES ");
+
+            StringBuilder row = new StringBuilder("(?,?,?");
+            for( int i = 0; i < valuesCount; i++ ) {
+                row.append(",?");
+            }
+            row.append(")");
+
+            StringBuilder multi = new StringBuilder(insert);
+            for( int i = 0; i < rowsPerInsert; i++ ) {
+                if (i > 0) {
+                    multi.append(",");
+                }
+                multi.append(row);
+            }
+            multiRowStatement = connection.prepareStatement(multi.toString());
+            singleRowStatement = connection.prepareStatement(insert.toString() + row);
+        }
+
+        public void add( long workId, float v0, float v1, float v2, float v3, float v4, float v5, float v6 )
+                throws SQLException {
+            workIds[count] = workId;
+            times[count] = currentTime;
+            int offset = count * valuesCount;
+            switch( valuesCount ) {
+            case 7:
+                values[offset + 6] = v6;
+            case 6:
+                values[offset + 5] = v5;
+                values[offset + 4] = v4;
+            case 4:
+                values[offset + 3] = v3;
+                values[offset + 2] = v2;
+                values[offset + 1] = v1;
+                values[offset] = v0;
+                break;
+            default:
+                throw new IllegalStateException("Unsupported number of columns: " + valuesCount);
+            }
+            count++;
+            if (count == rowsPerInsert) {
+                insertFull();
+            }
+        }
+
+        private void insertFull() throws SQLException {
+            int p = 1;
+            for( int r = 0; r < rowsPerInsert; r++ ) {
+                p = bindRow(multiRowStatement, p, r);
+            }
+            multiRowStatement.executeUpdate();
+            count = 0;
+        }
+
+        public void flush() throws SQLException {
+            if (count == 0) {
+                return;
+            }
+            for( int r = 0; r < count; r++ ) {
+                bindRow(singleRowStatement, 1, r);
+                singleRowStatement.addBatch();
+            }
+            singleRowStatement.executeBatch();
+            count = 0;
+        }
+
+        private int bindRow( PreparedStatement statement, int p, int r ) throws SQLException {
+            statement.setLong(p++, runId);
+            statement.setLong(p++, workIds[r]);
+            statement.setLong(p++, times[r]);
+            int offset = r * valuesCount;
+            for( int i = 0; i < valuesCount; i++ ) {
+                statement.setFloat(p++, values[offset + i]);
+            }
+            return p;
+        }
+
+        public void close() {
+            try {
+                multiRowStatement.close();
+                singleRowStatement.close();
+            } catch (SQLException e) {
+                logger.error("ERROR", e);
+            }
+        }
+    }
+}
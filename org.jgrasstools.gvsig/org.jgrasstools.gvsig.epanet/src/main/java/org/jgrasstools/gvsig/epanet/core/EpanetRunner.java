@@ -18,6 +18,7 @@
 package org.jgrasstools.gvsig.epanet.core;
 
 import static org.jgrasstools.gears.utils.time.UtcTimeUtilities.fromStringWithSeconds;
+import static org.jgrasstools.gvsig.epanet.core.TimestepResults.*;
 
 import java.io.File;
 import java.net.URL;
@@ -26,18 +27,14 @@ import java.util.List;
 
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+import org.jgrasstools.gvsig.epanet.core.TimestepResults.ElementResults;
 import org.jgrasstools.gvsig.epanet.database.EpanetRun;
-import org.jgrasstools.gvsig.epanet.database.JunctionsResultsTable;
+import org.jgrasstools.gvsig.epanet.database.IWork;
 import org.jgrasstools.gvsig.epanet.database.JunctionsTable;
-import org.jgrasstools.gvsig.epanet.database.PipesResultsTable;
 import org.jgrasstools.gvsig.epanet.database.PipesTable;
-import org.jgrasstools.gvsig.epanet.database.PumpsResultsTable;
 import org.jgrasstools.gvsig.epanet.database.PumpsTable;
-import org.jgrasstools.gvsig.epanet.database.ReservoirsResultsTable;
 import org.jgrasstools.gvsig.epanet.database.ReservoirsTable;
-import org.jgrasstools.gvsig.epanet.database.TanksResultsTable;
 import org.jgrasstools.gvsig.epanet.database.TanksTable;
-import org.jgrasstools.gvsig.epanet.database.ValvesResultsTable;
 import org.jgrasstools.gvsig.epanet.database.ValvesTable;
 import org.jgrasstools.hortonmachine.modules.networktools.epanet.OmsEpanet;
 import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.types.Junction;
@@ -51,8 +48,6 @@ import org.joda.time.format.DateTimeFormatter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.j256.ormlite.dao.Dao;
-import com.j256.ormlite.dao.DaoManager;
 import com.j256.ormlite.support.ConnectionSource;
 import com.sun.jna.Platform;
 
@@ -62,10 +57,33 @@ import com.sun.jna.Platform;
  * @author Andrea Antonello (www.hydrologis.com)
  */
 public class EpanetRunner {
+
+    /**
+     * The storage layout of the results.
+     */
+    public static enum ResultsLayout {
+        /**
+         * One row per element and timestep in the results tables.
+         */
+        ROWS,
+        /**
+         * One block of packed values per variable and timestep.
+         */
+        COLUMNAR
+    }
+
     private final String inpFilePath;
     private String dllPath;
     private static final Logger logger = LoggerFactory.getLogger(EpanetRunner.class);
     private StringBuilder warningsBuilder = null;
+    private int resultsBatchSize = 0;
+    private boolean pipelined = false;
+    private int pipelineCapacity = 8;
+    private ResultsLayout resultsLayout = ResultsLayout.ROWS;
+    private File binaryResultsFile = null;
+    private boolean elementsSummary = false;
+    private List<AlertRule> alertRules = null;
+    private StepsAggregator.Aggregation stepsAggregation = StepsAggregator.Aggregation.NONE;
 
     public EpanetRunner( String inpFilePath ) {
         this.inpFilePath = inpFilePath;
@@ -98,6 +116,92 @@ public class EpanetRunner {
         return new File(res.getPath());
     }
 
+    /**
+     * Set the number of result rows to group in a single database transaction.
+     * 
+     * <p>Used only with the {@link ResultsLayout#ROWS} layout.</p>
+     * 
+     * @param resultsBatchSize the number of rows per transaction. If <= 0 (the default),
+     *              every reporting timestep is written in one transaction.
+     */
+    public void setResultsBatchSize( int resultsBatchSize ) {
+        this.resultsBatchSize = resultsBatchSize;
+    }
+
+    /**
+     * Enable the pipelined mode, in which the results are written to the database
+     * by a dedicated thread while the solver computes the next timesteps.
+     * 
+     * @param pipelined if <code>true</code>, the pipelined mode is used.
+     * @param capacity the maximum number of timesteps kept in memory waiting to be written.
+     */
+    public void setPipelined( boolean pipelined, int capacity ) {
+        this.pipelined = pipelined;
+        this.pipelineCapacity = capacity;
+    }
+
+    /**
+     * Set how the solver timesteps between two reporting timesteps are used.
+     * 
+     * @param stepsAggregation the aggregation. The default is {@link StepsAggregator.Aggregation#NONE},
+     *              which drops the intermediate timesteps.
+     */
+    public void setStepsAggregation( StepsAggregator.Aggregation stepsAggregation ) {
+        this.stepsAggregation = stepsAggregation;
+    }
+
+    /**
+     * Set the storage layout of the results.
+     * 
+     * @param resultsLayout the layout to use. The default is {@link ResultsLayout#ROWS}.
+     */
+    public void setResultsLayout( ResultsLayout resultsLayout ) {
+        this.resultsLayout = resultsLayout;
+    }
+
+    /**
+     * Also write the results to a memory mappable {@link BinaryResultsFile binary file}.
+     * 
+     * @param binaryResultsFile the file to write or <code>null</code> to disable it (the default).
+     */
+    public void setBinaryResultsFile( File binaryResultsFile ) {
+        this.binaryResultsFile = binaryResultsFile;
+    }
+
+    /**
+     * @return the path of the epanet native library used.
+     */
+    public String getDllPath() {
+        return dllPath;
+    }
+
+    /**
+     * Set the epanet native library to use instead of the bundled one.
+     * 
+     * @param dllPath the path of the library.
+     */
+    public void setDllPath( String dllPath ) {
+        this.dllPath = dllPath;
+    }
+
+    /**
+     * Also store the whole run min, max and mean of every element in the {@link ElementsSummaryWriter elements summary}.
+     * 
+     * @param elementsSummary if <code>true</code>, the summary is stored.
+     */
+    public void setElementsSummary( boolean elementsSummary ) {
+        this.elementsSummary = elementsSummary;
+    }
+
+    /**
+     * Evaluate alert rules while the run proceeds and store their violations (see {@link AlertsWriter}).
+     * 
+     * @param alertRules the rules or <code>null</code> to disable the alerts (the default).
+     */
+    public void setAlertRules( List<AlertRule> alertRules ) {
+        this.alertRules = alertRules;
+    }
+
     public String getWarnings() {
         if (warningsBuilder != null) {
             String warnings = warningsBuilder.toString();
@@ -118,15 +222,66 @@ public class EpanetRunner {
             HashMap<String, ReservoirsTable> rId2Table, //
             ConnectionSource connectionSource //
     ) throws Exception {
+        IResultsSink sink = createResultsSink(connectionSource, run, binaryResultsFile, pm);
+        run(tStart, hydraulicTimestep, pm, sink, jId2Table, piId2Table, puId2Table, vId2Table, tId2Table, rId2Table);
+    }
+
+    /**
+     * Create the sink storing the results of a run, following the layout set in this runner.
+     * 
+     * @param connectionSource the connection to the results database.
+     * @param run the run the results belong to.
+     * @param binaryResultsFile the binary results file to also write or <code>null</code>.
+     * @param pm the monitor.
+     * @return the sink.
+     * @throws Exception
+     */
+    public IResultsSink createResultsSink( ConnectionSource connectionSource, EpanetRun run, File binaryResultsFile,
+            IJGTProgressMonitor pm ) throws Exception {
+        IResultsSink writer;
+        if (resultsLayout == ResultsLayout.COLUMNAR) {
+            writer = new ColumnarResultsWriter(connectionSource, run, pm);
+        } else {
+            writer = new EpanetResultsWriter(connectionSource, run, resultsBatchSize, pm);
+        }
+        CompositeResultsSink sinks = new CompositeResultsSink();
+        sinks.add(writer);
+        if (binaryResultsFile != null) {
+            sinks.add(new BinaryResultsWriter(binaryResultsFile, run));
+        }
+        sinks.add(new ResultsSummaryWriter(connectionSource, run));
+        if (elementsSummary) {
+            sinks.add(new ElementsSummaryWriter(connectionSource, run));
+        }
+        if (alertRules != null && !alertRules.isEmpty()) {
+            sinks.add(new AlertsWriter(connectionSource, run, alertRules));
+        }
+        // last, so that the catalogue only lists timesteps already committed
+        sinks.add(new TimestepsCatalogueWriter(connectionSource, run));
+        return sinks;
+    }
 
-        Dao<JunctionsResultsTable, Long> junctionsResultsDao = DaoManager.createDao(connectionSource,
-                JunctionsResultsTable.class);
-        Dao<PipesResultsTable, Long> pipesResultsDao = DaoManager.createDao(connectionSource, PipesResultsTable.class);
-        Dao<PumpsResultsTable, Long> pumpsResultsDao = DaoManager.createDao(connectionSource, PumpsResultsTable.class);
-        Dao<ValvesResultsTable, Long> valvesResultsDao = DaoManager.createDao(connectionSource, ValvesResultsTable.class);
-        Dao<TanksResultsTable, Long> tanksResultsDao = DaoManager.createDao(connectionSource, TanksResultsTable.class);
-        Dao<ReservoirsResultsTable, Long> reservoirsResultsDao = DaoManager.createDao(connectionSource,
-                ReservoirsResultsTable.class);
+    /**
+     * Run the simulation, handing the results of every reporting timestep to a sink.
+     * 
+     * <p>The table maps supply the work oids of the elements. If they are <code>null</code>,
+     * the oids are left to 0 and only the ids identify the elements.</p>
+     * 
+     * @param tStart the start time.
+     * @param hydraulicTimestep the reporting timestep in minutes.
+     * @param pm the monitor.
+     * @param writer the sink of the results, closed at the end.
+     * @throws Exception
+     */
+    public void run( String tStart, double hydraulicTimestep, IJGTProgressMonitor pm, IResultsSink writer,
+            // table maps
+            HashMap<String, JunctionsTable> jId2Table, //
+            HashMap<String, PipesTable> piId2Table, //
+            HashMap<String, PumpsTable> puId2Table, //
+            HashMap<String, ValvesTable> vId2Table, //
+            HashMap<String, TanksTable> tId2Table, //
+            HashMap<String, ReservoirsTable> rId2Table //
+    ) throws Exception {
 
         OmsEpanet epanet = new OmsEpanet();
         DateTime startDate = fromStringWithSeconds("1970-01-01 00:00:00");
@@ -141,120 +296,219 @@ public class EpanetRunner {
         epanet.inInp = inpFilePath;
 
         DateTime runningDate = startDate;
-        epanet.initProcess();
-        while( epanet.doProcess ) {
-            epanet.process();
-            String tCurrent = epanet.tCurrent;
-            
-
-            String warnings = epanet.warnings;
-            if (warnings != null) {
-                warningsBuilder.append(tCurrent).append(":").append(warnings).append("\n");
-            }
+        StepsAggregator aggregator = null;
+        TimestepResults stepBuffer = null;
+        if (stepsAggregation != StepsAggregator.Aggregation.NONE) {
+            aggregator = new StepsAggregator(stepsAggregation);
+        }
+        EpanetResultsPipeline pipeline = null;
+        if (pipelined) {
+            pipeline = new EpanetResultsPipeline(writer, pipelineCapacity);
+            pipeline.start();
+        }
+        try {
+            epanet.initProcess();
+            while( epanet.doProcess ) {
+                epanet.process();
+                String tCurrent = epanet.tCurrent;
 
-            DateTime dt = fromStringWithSeconds(tCurrent);
-            boolean isEqualDate = dt.equals(runningDate);
-            if (!isEqualDate) {
-                // jump over intermediate timesteps
-                pm.message("Jumping over timestep: " + tCurrent);
-                continue;
-            }
-            pm.message("Processing: "+ tCurrent);
+                String warnings = epanet.warnings;
+                if (warnings != null) {
+                    warningsBuilder.append(tCurrent).append(":").append(warnings).append("\n");
+                }
 
-            runningDate = runningDate.plusMinutes((int) hydraulicTimestep);
+                DateTime dt = fromStringWithSeconds(tCurrent);
+                boolean isEqualDate = dt.equals(runningDate);
+                if (!isEqualDate) {
+                    if (aggregator != null && aggregator.isStarted()) {
+                        // the buffer is allocated once and refilled at every intermediate timestep
+                        if (stepBuffer == null) {
+                            stepBuffer = snapshot(epanet, dt, jId2Table, piId2Table, puId2Table, vId2Table, tId2Table,
+                                    rId2Table);
+                        } else {
+                            fillValues(epanet, stepBuffer);
+                        }
+                        aggregator.add(stepBuffer, dt.getMillis());
+                        pm.message("Aggregating timestep: " + tCurrent);
+                    } else {
+                        // jump over intermediate timesteps
+                        pm.message("Jumping over timestep: " + tCurrent);
+                    }
+                    continue;
+                }
+                pm.message("Processing: " + tCurrent);
 
-            /*
-             * insert records in the database
-             */
-            List<Junction> junctionsList = epanet.junctionsList;
-            for( Junction junction : junctionsList ) {
-                epanet.checkCancel();
-                String id = junction.id;
-                JunctionsResultsTable jrt = new JunctionsResultsTable();
-                jrt.setWork(jId2Table.get(id));
-                jrt.setRun(run);
-                jrt.setUtcTime(dt);
-                jrt.setDemand(junction.demand);
-                jrt.setHead(junction.head);
-                jrt.setPressure(junction.pressure);
-                jrt.setQuality(junction.quality);
-                junctionsResultsDao.create(jrt);
-            }
-            List<Reservoir> reservoirsList = epanet.reservoirsList;
-            for( Reservoir reservoir : reservoirsList ) {
-                epanet.checkCancel();
-                String id = reservoir.id;
-                ReservoirsResultsTable rrt = new ReservoirsResultsTable();
-                rrt.setWork(rId2Table.get(id));
-                rrt.setRun(run);
-                rrt.setUtcTime(dt);
-                rrt.setDemand(reservoir.demand);
-                rrt.setHead(reservoir.head);
-                rrt.setQuality(reservoir.quality);
-                reservoirsResultsDao.create(rrt);
-            }
-            List<Tank> tankList = epanet.tanksList;
-            for( Tank tank : tankList ) {
-                epanet.checkCancel();
-                String id = tank.id;
-                TanksResultsTable trt = new TanksResultsTable();
-                trt.setWork(tId2Table.get(id));
-                trt.setRun(run);
-                trt.setUtcTime(dt);
-                trt.setDemand(tank.demand);
-                trt.setHead(tank.head);
-                trt.setPressure(tank.pressure);
-                trt.setQuality(tank.quality);
-                tanksResultsDao.create(trt);
-            }
-            List<Pipe> pipesList = epanet.pipesList;
-            for( Pipe pipe : pipesList ) {
-                epanet.checkCancel();
-                String id = pipe.id;
-                PipesResultsTable pirt = new PipesResultsTable();
-                pirt.setWork(piId2Table.get(id));
-                pirt.setRun(run);
-                pirt.setUtcTime(dt);
-                pirt.setFlow1(pipe.flow[0]);
-                pirt.setFlow2(pipe.flow[1]);
-                pirt.setHeadloss(pipe.headloss);
-                pirt.setVelocity1(pipe.velocity[0]);
-                pirt.setVelocity2(pipe.velocity[1]);
-                pirt.setStatus(pipe.status);
-                pipesResultsDao.create(pirt);
+                runningDate = runningDate.plusMinutes((int) hydraulicTimestep);
+
+                /*
+                 * insert records in the database
+                 */
+                TimestepResults results = snapshot(epanet, dt, jId2Table, piId2Table, puId2Table, vId2Table, tId2Table,
+                        rId2Table);
+                if (aggregator != null) {
+                    aggregator.aggregate(results);
+                }
+                if (pipeline != null) {
+                    pipeline.put(results);
+                } else {
+                    writer.write(results);
+                }
             }
-            List<Pump> pumpsList = epanet.pumpsList;
-            for( Pump pump : pumpsList ) {
-                epanet.checkCancel();
-                String id = pump.id;
-                PumpsResultsTable purt = new PumpsResultsTable();
-                purt.setWork(puId2Table.get(id));
-                purt.setRun(run);
-                purt.setUtcTime(dt);
-                purt.setFlow1(pump.flow);
-                purt.setFlow2(pump.flow);
-                purt.setHeadloss(pump.headloss);
-                purt.setVelocity1(pump.velocity);
-                purt.setVelocity2(pump.velocity);
-                purt.setStatus(pump.status);
-                pumpsResultsDao.create(purt);
+            if (pipeline != null) {
+                pipeline.finish();
+                pipeline.checkFailure();
             }
-            List<Valve> valvesList = epanet.valvesList;
-            for( Valve valve : valvesList ) {
-                epanet.checkCancel();
-                String id = valve.id;
-                ValvesResultsTable purt = new ValvesResultsTable();
-                purt.setWork(vId2Table.get(id));
-                purt.setRun(run);
-                purt.setUtcTime(dt);
-                purt.setFlow1(valve.flow);
-                purt.setFlow2(valve.flow);
-                purt.setHeadloss(valve.headloss);
-                purt.setVelocity1(valve.velocity);
-                purt.setVelocity2(valve.velocity);
-                purt.setStatus(valve.status);
-                valvesResultsDao.create(purt);
+        } finally {
+            /*
+             * commit what has been written up to here, also on cancel
+             */
+            if (pipeline != null) {
+                pipeline.finish();
             }
+            writer.close();
+        }
+    }
+
+    /**
+     * Copy the current results of the epanet solver into a {@link TimestepResults snapshot}.
+     */
+    private TimestepResults snapshot( OmsEpanet epanet, DateTime dt, //
+            HashMap<String, JunctionsTable> jId2Table, //
+            HashMap<String, PipesTable> piId2Table, //
+            HashMap<String, PumpsTable> puId2Table, //
+            HashMap<String, ValvesTable> vId2Table, //
+            HashMap<String, TanksTable> tId2Table, //
+            HashMap<String, ReservoirsTable> rId2Table //
+    ) throws Exception {
+        List<Junction> junctionsList = epanet.junctionsList;
+        ElementResults junctions = new ElementResults(junctionsList.size(), NODE_VARIABLES);
+        int i = 0;
+        for( Junction junction : junctionsList ) {
+            junctions.ids[i] = junction.id;
+            junctions.workOids[i] = getOid(jId2Table, junction.id);
+            i++;
+        }
+        List<Reservoir> reservoirsList = epanet.reservoirsList;
+        ElementResults reservoirs = new ElementResults(reservoirsList.size(), NODE_VARIABLES);
+        i = 0;
+        for( Reservoir reservoir : reservoirsList ) {
+            reservoirs.ids[i] = reservoir.id;
+            reservoirs.workOids[i] = getOid(rId2Table, reservoir.id);
+            i++;
+        }
+        List<Tank> tankList = epanet.tanksList;
+        ElementResults tanks = new ElementResults(tankList.size(), NODE_VARIABLES);
+        i = 0;
+        for( Tank tank : tankList ) {
+            tanks.ids[i] = tank.id;
+            tanks.workOids[i] = getOid(tId2Table, tank.id);
+            i++;
+        }
+        List<Pipe> pipesList = epanet.pipesList;
+        ElementResults pipes = new ElementResults(pipesList.size(), LINK_VARIABLES);
+        i = 0;
+        for( Pipe pipe : pipesList ) {
+            pipes.ids[i] = pipe.id;
+            pipes.workOids[i] = getOid(piId2Table, pipe.id);
+            i++;
+        }
+        List<Pump> pumpsList = epanet.pumpsList;
+        ElementResults pumps = new ElementResults(pumpsList.size(), LINK_VARIABLES);
+        i = 0;
+        for( Pump pump : pumpsList ) {
+            pumps.ids[i] = pump.id;
+            pumps.workOids[i] = getOid(puId2Table, pump.id);
+            i++;
+        }
+        List<Valve> valvesList = epanet.valvesList;
+        ElementResults valves = new ElementResults(valvesList.size(), LINK_VARIABLES);
+        i = 0;
+        for( Valve valve : valvesList ) {
+            valves.ids[i] = valve.id;
+            valves.workOids[i] = getOid(vId2Table, valve.id);
+            i++;
+        }
+        TimestepResults results = new TimestepResults(dt, junctions, reservoirs, tanks, pipes, pumps, valves);
+        fillValues(epanet, results);
+        return results;
+    }
+
+    /**
+     * Copy the current values of the epanet solver into the value arrays of a snapshot
+     * of the same elements, without allocating.
+     */
+    private static void fillValues( OmsEpanet epanet, TimestepResults results ) throws Exception {
+        ElementResults junctions = results.junctions;
+        int i = 0;
+        for( Junction junction : epanet.junctionsList ) {
+            epanet.checkCancel();
+            junctions.values[VAR_DEMAND][i] = junction.demand;
+            junctions.values[VAR_HEAD][i] = junction.head;
+            junctions.values[VAR_PRESSURE][i] = junction.pressure;
+            junctions.values[VAR_QUALITY][i] = junction.quality;
+            i++;
+        }
+        ElementResults reservoirs = results.reservoirs;
+        i = 0;
+        for( Reservoir reservoir : epanet.reservoirsList ) {
+            epanet.checkCancel();
+            reservoirs.values[VAR_DEMAND][i] = reservoir.demand;
+            reservoirs.values[VAR_HEAD][i] = reservoir.head;
+            reservoirs.values[VAR_QUALITY][i] = reservoir.quality;
+            i++;
+        }
+        ElementResults tanks = results.tanks;
+        i = 0;
+        for( Tank tank : epanet.tanksList ) {
+            epanet.checkCancel();
+            tanks.values[VAR_DEMAND][i] = tank.demand;
+            tanks.values[VAR_HEAD][i] = tank.head;
+            tanks.values[VAR_PRESSURE][i] = tank.pressure;
+            tanks.values[VAR_QUALITY][i] = tank.quality;
+            i++;
+        }
+        ElementResults pipes = results.pipes;
+        i = 0;
+        for( Pipe pipe : epanet.pipesList ) {
+            epanet.checkCancel();
+            pipes.values[VAR_FLOW1][i] = pipe.flow[0];
+            pipes.values[VAR_FLOW2][i] = pipe.flow[1];
+            pipes.values[VAR_VELOCITY1][i] = pipe.velocity[0];
+            pipes.values[VAR_VELOCITY2][i] = pipe.velocity[1];
+            pipes.values[VAR_HEADLOSS][i] = pipe.headloss;
+            pipes.values[VAR_STATUS][i] = pipe.status;
+            i++;
+        }
+        ElementResults pumps = results.pumps;
+        i = 0;
+        for( Pump pump : epanet.pumpsList ) {
+            epanet.checkCancel();
+            pumps.values[VAR_FLOW1][i] = pump.flow;
+            pumps.values[VAR_FLOW2][i] = pump.flow;
+            pumps.values[VAR_VELOCITY1][i] = pump.velocity;
+            pumps.values[VAR_VELOCITY2][i] = pump.velocity;
+            pumps.values[VAR_HEADLOSS][i] = pump.headloss;
+            pumps.values[VAR_STATUS][i] = pump.status;
+            i++;
+        }
+        ElementResults valves = results.valves;
+        i = 0;
+        for( Valve valve : epanet.valvesList ) {
+            epanet.checkCancel();
+            valves.values[VAR_FLOW1][i] = valve.flow;
+            valves.values[VAR_FLOW2][i] = valve.flow;
+            valves.values[VAR_VELOCITY1][i] = valve.velocity;
+            valves.values[VAR_VELOCITY2][i] = valve.velocity;
+            valves.values[VAR_HEADLOSS][i] = valve.headloss;
+            valves.values[VAR_STATUS][i] = valve.status;
+            i++;
+        }
+    }
+
+    private static long getOid( HashMap<String, ? extends IWork> id2Table, String id ) {
+        if (id2Table == null) {
+            return 0;
         }
+        return id2Table.get(id).getOid();
     }
 }
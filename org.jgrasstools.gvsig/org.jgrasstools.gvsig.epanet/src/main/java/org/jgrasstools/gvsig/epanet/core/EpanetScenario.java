@@ -0,0 +1,207 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org 
+ * (C) HydroloGIS - www.hydrologis.com 
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map.Entry;
+
+/**
+ * A variant of an epanet INP file, used to run several scenarios of the same network.
+ *
+ * <p>A scenario overrides entries of the [OPTIONS] section and can replace the [CONTROLS]
+ * section. Everything else, and therefore the network, is left untouched.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class EpanetScenario {
+
+    public static final String DEMAND_MULTIPLIER = "Demand Multiplier";
+
+    private static final String OPTIONS_SECTION = "[OPTIONS]";
+    private static final String CONTROLS_SECTION = "[CONTROLS]";
+    private static final String END_SECTION = "[END]";
+
+    private final String title;
+    private final LinkedHashMap<String, String> options = new LinkedHashMap<String, String>();
+    private List<String> controls = null;
+
+    /**
+     * Constructor.
+     *
+     * @param title the title of the scenario, used for the title of its run.
+     */
+    public EpanetScenario( String title ) {
+        this.title = title;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * Override an entry of the [OPTIONS] section.
+     *
+     * @param key the option key (ex. "Demand Multiplier").
+     * @param value the value.
+     */
+    public void setOption( String key, String value ) {
+        options.put(key, value);
+    }
+
+    /**
+     * Scale all the demands of the network.
+     *
+     * @param multiplier the demand multiplier.
+     */
+    public void setDemandMultiplier( double multiplier ) {
+        setOption(DEMAND_MULTIPLIER, String.valueOf(multiplier));
+    }
+
+    /**
+     * Replace the [CONTROLS] section.
+     *
+     * @param controls the control lines or <code>null</code> to keep the ones of the INP file.
+     */
+    public void setControls( List<String> controls ) {
+        this.controls = controls;
+    }
+
+    /**
+     * Apply the scenario to an INP file.
+     *
+     * @param inp the text of the INP file.
+     * @return the text of the scenario INP file.
+     */
+    public String apply( String inp ) {
+        List<String> lines = new ArrayList<String>();
+        for( String line : inp.split("\r?\n", -1) ) {
+            lines.add(line);
+        }
+        edit(lines);
+
+        StringBuilder sb = new StringBuilder();
+        for( int i = 0; i < lines.size(); i++ ) {
+            if (i > 0) {
+                sb.append("\n");
+            }
+            sb.append(lines.get(i));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Edit the lines of the INP file. Subclasses adding changes call this first.
+     *
+     * @param lines the lines, edited in place.
+     */
+    protected void edit( List<String> lines ) {
+        if (!options.isEmpty()) {
+            int[] section = findSection(lines, OPTIONS_SECTION);
+            LinkedHashMap<String, String> missing = new LinkedHashMap<String, String>(options);
+            for( int i = section[0]; i < section[1]; i++ ) {
+                String key = getMatchingKey(lines.get(i));
+                if (key != null) {
+                    lines.set(i, key + "\t" + options.get(key));
+                    missing.remove(key);
+                }
+            }
+            List<String> added = new ArrayList<String>();
+            for( Entry<String, String> entry : missing.entrySet() ) {
+                added.add(entry.getKey() + "\t" + entry.getValue());
+            }
+            lines.addAll(section[1], added);
+        }
+
+        if (controls != null) {
+            int[] section = findSection(lines, CONTROLS_SECTION);
+            for( int i = section[1] - 1; i >= section[0]; i-- ) {
+                lines.remove(i);
+            }
+            lines.addAll(section[0], controls);
+        }
+    }
+
+    /**
+     * Find the body of a section.
+     *
+     * @param lines the lines of the INP file.
+     * @param sectionName the section name (ex. "[JUNCTIONS]").
+     * @return the first line and the line after the last of the body, empty lines at the end excluded,
+     *          or <code>null</code> if the section is missing.
+     */
+    protected static int[] getSection( List<String> lines, String sectionName ) {
+        for( int i = 0; i < lines.size(); i++ ) {
+            if (lines.get(i).trim().toUpperCase(Locale.ENGLISH).startsWith(sectionName)) {
+                int start = i + 1;
+                int end = start;
+                for( int j = start; j < lines.size(); j++ ) {
+                    String line = lines.get(j).trim();
+                    if (line.startsWith("[")) {
+                        break;
+                    }
+                    if (line.length() > 0) {
+                        end = j + 1;
+                    }
+                }
+                return new int[]{start, end};
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the body of a section, adding the section before [END] if it is missing.
+     *
+     * @return the first line and the line after the last of the body, empty lines at the end excluded.
+     */
+    private static int[] findSection( List<String> lines, String sectionName ) {
+        int[] section = getSection(lines, sectionName);
+        if (section == null) {
+            int endIndex = lines.size();
+            for( int i = 0; i < lines.size(); i++ ) {
+                if (lines.get(i).trim().toUpperCase(Locale.ENGLISH).startsWith(END_SECTION)) {
+                    endIndex = i;
+                    break;
+                }
+            }
+            lines.add(endIndex, sectionName);
+            lines.add(endIndex + 1, "");
+            return new int[]{endIndex + 1, endIndex + 1};
+        }
+        return section;
+    }
+
+    private String getMatchingKey( String line ) {
+        String upperLine = line.trim().toUpperCase(Locale.ENGLISH).replaceAll("\\s+", " ");
+        for( String key : options.keySet() ) {
+            String upperKey = key.toUpperCase(Locale.ENGLISH);
+            if (upperLine.startsWith(upperKey + " ")) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    public String toString() {
+        return title;
+    }
+}
@@ -38,12 +38,12 @@ import org.jgrasstools.gvsig.epanet.database.ILinkResults;
 import org.jgrasstools.gvsig.epanet.database.INodeResults;
 import org.jgrasstools.gvsig.epanet.database.IResult;
 import org.jgrasstools.gvsig.epanet.database.IWork;
-import org.jgrasstools.gvsig.epanet.database.JunctionsResultsTable;
 import org.jgrasstools.gvsig.epanet.database.JunctionsTable;
 import org.jgrasstools.gvsig.epanet.database.PipesTable;
 import org.jgrasstools.gvsig.epanet.database.PumpsTable;
 import org.jgrasstools.gvsig.epanet.database.ReservoirsTable;
 import org.jgrasstools.gvsig.epanet.database.TanksTable;
+import org.jgrasstools.gvsig.epanet.database.TimestepsTable;
 import org.jgrasstools.gvsig.epanet.database.ValvesTable;
 import org.jgrasstools.hortonmachine.modules.networktools.epanet.OmsEpanet;
 import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.EpanetFeatureTypes;
@@ -55,6 +55,7 @@ import org.joda.time.format.DateTimeFormatter;
 
 import com.j256.ormlite.dao.Dao;
 import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.dao.GenericRawResults;
 import com.j256.ormlite.stmt.PreparedQuery;
 import com.j256.ormlite.stmt.QueryBuilder;
 import com.j256.ormlite.stmt.Where;
@@ -377,21 +378,15 @@ public class EpanetUtilities {
         List<String> nodesIdsList = new ArrayList<String>();
         nodesIdsList.add(null);
 
-        JunctionsTable jt = new JunctionsTable();
-        jt.setRun(run);
-        List<JunctionsTable> jtList = junctionsDao.queryForMatching(jt);
+        List<JunctionsTable> jtList = junctionsDao.query(NetworkVersions.queryWorksOf(junctionsDao, run));
         for( JunctionsTable junctionsTable : jtList ) {
             nodesIdsList.add(junctionsTable.getId());
         }
-        TanksTable tt = new TanksTable();
-        tt.setRun(run);
-        List<TanksTable> ttList = tanksDao.queryForMatching(tt);
+        List<TanksTable> ttList = tanksDao.query(NetworkVersions.queryWorksOf(tanksDao, run));
         for( TanksTable tankTable : ttList ) {
             nodesIdsList.add(tankTable.getId());
         }
-        ReservoirsTable rt = new ReservoirsTable();
-        rt.setRun(run);
-        List<ReservoirsTable> rtList = reservoirsDao.queryForMatching(rt);
+        List<ReservoirsTable> rtList = reservoirsDao.query(NetworkVersions.queryWorksOf(reservoirsDao, run));
         for( ReservoirsTable reservoirTable : rtList ) {
             nodesIdsList.add(reservoirTable.getId());
         }
@@ -420,21 +415,15 @@ public class EpanetUtilities {
         List<String> linksIdsList = new ArrayList<String>();
         linksIdsList.add(null);
 
-        PipesTable pipt = new PipesTable();
-        pipt.setRun(run);
-        List<PipesTable> jtList = pipesDao.queryForMatching(pipt);
+        List<PipesTable> jtList = pipesDao.query(NetworkVersions.queryWorksOf(pipesDao, run));
         for( PipesTable pipesTable : jtList ) {
             linksIdsList.add(pipesTable.getId());
         }
-        PumpsTable pt = new PumpsTable();
-        pt.setRun(run);
-        List<PumpsTable> ttList = pumpsDao.queryForMatching(pt);
+        List<PumpsTable> ttList = pumpsDao.query(NetworkVersions.queryWorksOf(pumpsDao, run));
         for( PumpsTable pumpTable : ttList ) {
             linksIdsList.add(pumpTable.getId());
         }
-        ValvesTable vt = new ValvesTable();
-        vt.setRun(run);
-        List<ValvesTable> rtList = valvesDao.queryForMatching(vt);
+        List<ValvesTable> rtList = valvesDao.query(NetworkVersions.queryWorksOf(valvesDao, run));
         for( ValvesTable valveTable : rtList ) {
             linksIdsList.add(valveTable.getId());
         }
@@ -704,22 +693,52 @@ public class EpanetUtilities {
         return resultsList;
     }
 
-    public static String[] getTimesList( Dao<INodeResults, Long> junctionsResultDao, EpanetRun run ) throws SQLException {
+    /**
+     * Get the reported times of a run.
+     *
+     * <p>The times are read from the {@link TimestepsTable timesteps catalogue}. Runs
+     * stored before the catalogue existed fall back to the distinct times of the junctions results.</p>
+     *
+     * @param timestepsDao the dao of the timesteps catalogue.
+     * @param junctionsResultDao the dao of the junctions results.
+     * @param run the run.
+     * @return the formatted times, with a leading <code>null</code> entry.
+     * @throws SQLException
+     */
+    public static String[] getTimesList( Dao<TimestepsTable, Long> timestepsDao, Dao<INodeResults, Long> junctionsResultDao,
+            EpanetRun run ) throws SQLException {
         if (run == null) {
             return new String[0];
         }
 
-        JunctionsResultsTable queryJrt = new JunctionsResultsTable();
-        queryJrt.setRun(run);
-
-        List<INodeResults> jrtList = junctionsResultDao.queryForMatching(queryJrt);
+        List<DateTime> timesList = new ArrayList<DateTime>();
+        if (timestepsDao.isTableExists()) {
+            QueryBuilder<TimestepsTable, Long> qb = timestepsDao.queryBuilder();
+            qb.where().eq(IEpanetTableConstants.RUN_ID, run);
+            qb.orderBy(IEpanetTableConstants.UTCTIME, true);
+            for( TimestepsTable timestep : timestepsDao.query(qb.prepare()) ) {
+                timesList.add(timestep.getUtcTime());
+            }
+        }
+        if (timesList.isEmpty()) {
+            GenericRawResults<String[]> rawTimes = junctionsResultDao.queryRaw("SELECT DISTINCT "
+                    + IEpanetTableConstants.UTCTIME + " FROM " + IEpanetTableConstants.JUNCTIONSRESULT + " WHERE "
+                    + IEpanetTableConstants.RUN_ID + " = ? ORDER BY " + IEpanetTableConstants.UTCTIME,
+                    String.valueOf(run.getId()));
+            try {
+                for( String[] row : rawTimes ) {
+                    timesList.add(new DateTime(Long.parseLong(row[0])));
+                }
+            } finally {
+                rawTimes.close();
+            }
+        }
 
         DateTimeFormatter formatter = OmsEpanet.formatter;
-        String[] times = new String[jrtList.size() + 1];
+        String[] times = new String[timesList.size() + 1];
         times[0] = null;
         int i = 1;
-        for( INodeResults junctionsResultsTable : jrtList ) {
-            DateTime utcTime = junctionsResultsTable.getUtcTime();
+        for( DateTime utcTime : timesList ) {
             times[i++] = utcTime.toString(formatter);
         }
         return times;
@@ -1090,8 +1109,8 @@ public class EpanetUtilities {
     // }
     // }
     //
-    public static void chartNode( ConnectionSource connectionSource, EpanetRun run, String currentSelectedNodeId,
-            ResultsNodeParameters currentSelectedNodeVar ) throws ClassNotFoundException, SQLException {
+    public static void chartNode( IResultsReader resultsReader, EpanetRun run, String currentSelectedNodeId,
+            ResultsNodeParameters currentSelectedNodeVar ) throws Exception {
         String title = "Results for node " + currentSelectedNodeId + " in run " + run.getId();
         String xLabel = "time";
         String yLabel = "";
@@ -1110,20 +1129,15 @@ public class EpanetUtilities {
             break;
         }
 
-        IWork work = getWorkById(connectionSource, run, currentSelectedNodeId);
-        String workName = work.getClass().getCanonicalName();
-        workName = workName.replace("Table", "ResultsTable");
-        Class<IResult> clazz = (Class<IResult>) Class.forName(workName);
-
-        LinkedHashMap<DateTime, float[]> valuesMap = getValuesById(connectionSource, run, work, currentSelectedNodeVar, null,
-                clazz);
+        LinkedHashMap<DateTime, float[]> valuesMap = resultsReader.getValuesById(run, currentSelectedNodeId,
+                currentSelectedNodeVar, null);
         List<LinkedHashMap<DateTime, float[]>> list = new ArrayList<LinkedHashMap<DateTime, float[]>>();
         list.add(valuesMap);
         ChartHelper.chart(list, title, xLabel, yLabel);
     }
 
-    public static void chartLink( ConnectionSource connectionSource, EpanetRun run, String currentSelectedLinkId,
-            ResultsLinkParameters currentSelectedLinkVar ) throws ClassNotFoundException, SQLException {
+    public static void chartLink( IResultsReader resultsReader, EpanetRun run, String currentSelectedLinkId,
+            ResultsLinkParameters currentSelectedLinkVar ) throws Exception {
         String title = "Results for link " + currentSelectedLinkId + " in run " + run.getId();
         String xLabel = "time";
         String yLabel = "";
@@ -1148,13 +1162,8 @@ public class EpanetUtilities {
             break;
         }
 
-        IWork work = getWorkById(connectionSource, run, currentSelectedLinkId);
-        String workName = work.getClass().getCanonicalName();
-        workName = workName.replace("Table", "ResultsTable");
-        Class<IResult> clazz = (Class<IResult>) Class.forName(workName);
-
-        LinkedHashMap<DateTime, float[]> valuesMap = EpanetUtilities.getValuesById(connectionSource, run, work, null,
-                currentSelectedLinkVar, clazz);
+        LinkedHashMap<DateTime, float[]> valuesMap = resultsReader.getValuesById(run, currentSelectedLinkId, null,
+                currentSelectedLinkVar);
         List<LinkedHashMap<DateTime, float[]>> list = new ArrayList<LinkedHashMap<DateTime, float[]>>();
         list.add(valuesMap);
         ChartHelper.chart(list, title, xLabel, yLabel);
@@ -1178,7 +1187,7 @@ public class EpanetUtilities {
 
             QueryBuilder<IWork, Long> qb = dao.queryBuilder();
             Where<IWork, Long> where = qb.where();
-            where.eq(IEpanetTableConstants.RUN_ID, run);
+            NetworkVersions.whereWorksOf(where, run);
             where.and();
             where.eq(IEpanetTableConstants.ID, id);
             PreparedQuery<IWork> preparedQuery = qb.prepare();
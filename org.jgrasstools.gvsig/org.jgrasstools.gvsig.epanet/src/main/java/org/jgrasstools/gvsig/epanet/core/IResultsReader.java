@@ -0,0 +1,112 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.jgrasstools.gvsig.epanet.database.EpanetRun;
+import org.jgrasstools.gvsig.epanet.database.ILinkResults;
+import org.jgrasstools.gvsig.epanet.database.INodeResults;
+import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.ResultsLinkParameters;
+import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.ResultsNodeParameters;
+import org.joda.time.DateTime;
+
+/**
+ * Read access to the results of epanet runs, independent of the storage layout.
+ *
+ * <p>Results tables are identified by the names of the row based tables
+ * (ex. {@link org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants#PIPESRESULT}).</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public interface IResultsReader {
+
+    /**
+     * Get the list of the available timesteps of a run.
+     *
+     * @param run the run to consider.
+     * @return the formatted times, preceded by a <code>null</code> entry.
+     * @throws Exception
+     */
+    public String[] getTimesList( EpanetRun run ) throws Exception;
+
+    /**
+     * Get the results of all the links of a results table at a given timestep.
+     *
+     * @param resultTable the name of the link results table.
+     * @param run the run to consider.
+     * @param time the timestep.
+     * @return the list of results.
+     * @throws Exception
+     */
+    public List<ILinkResults> getResults4Links( String resultTable, EpanetRun run, DateTime time ) throws Exception;
+
+    /**
+     * Get the results of all the nodes of a results table at a given timestep.
+     *
+     * @param resultTable the name of the node results table.
+     * @param run the run to consider.
+     * @param time the timestep.
+     * @return the list of results.
+     * @throws Exception
+     */
+    public List<INodeResults> getResults4Nodes( String resultTable, EpanetRun run, DateTime time ) throws Exception;
+
+    /**
+     * Get the range of a link variable over pipes, pumps and valves at a given timestep.
+     *
+     * @return the array of min and max.
+     * @throws Exception
+     */
+    public float[] getLinksMinMax( EpanetRun run, DateTime time, ResultsLinkParameters linkVar ) throws Exception;
+
+    /**
+     * Get the range of a node variable over junctions, tanks and reservoirs at a given timestep.
+     *
+     * @return the array of min and max.
+     * @throws Exception
+     */
+    public float[] getNodesMinMax( EpanetRun run, DateTime time, ResultsNodeParameters nodeVar ) throws Exception;
+
+    /**
+     * Get the timeseries of a variable for an element of a run.
+     *
+     * @param run the run to consider.
+     * @param id the id of the element.
+     * @param nodeVar the node variable to query. One of linkVar or this has to be != null.
+     * @param linkVar the link variable to query. One of nodeVar or this has to be != null.
+     * @return the ordered map of date-value.
+     * @throws Exception
+     */
+    public LinkedHashMap<DateTime, float[]> getValuesById( EpanetRun run, String id, ResultsNodeParameters nodeVar,
+            ResultsLinkParameters linkVar ) throws Exception;
+
+    /**
+     * Load all the values of a variable of a run into a {@link ResultsCube cube}.
+     *
+     * @param run the run to consider.
+     * @param nodeVar the node variable. One of linkVar or this has to be != null.
+     * @param linkVar the link variable. One of nodeVar or this has to be != null.
+     * @return the cube.
+     * @throws Exception
+     */
+    public ResultsCube loadCube( EpanetRun run, ResultsNodeParameters nodeVar, ResultsLinkParameters linkVar )
+            throws Exception;
+
+}
@@ -0,0 +1,41 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+/**
+ * A consumer of the results of an epanet run, fed one reporting timestep at a time.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public interface IResultsSink {
+
+    /**
+     * Consume the results of a timestep.
+     *
+     * @param results the timestep snapshot.
+     * @throws Exception
+     */
+    public void write( TimestepResults results ) throws Exception;
+
+    /**
+     * Finish writing. Called also when the run fails or is canceled.
+     *
+     * @throws Exception
+     */
+    public void close() throws Exception;
+}
@@ -0,0 +1,339 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org 
+ * (C) HydroloGIS - www.hydrologis.com 
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import static org.jgrasstools.gvsig.epanet.core.TimestepResults.*;
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+import org.jgrasstools.gvsig.epanet.core.TimestepResults.ElementResults;
+import org.jgrasstools.gvsig.epanet.database.EpanetRun;
+import org.jgrasstools.gvsig.epanet.database.JunctionsTable;
+import org.jgrasstools.gvsig.epanet.database.MonteCarloStatsTable;
+import org.jgrasstools.gvsig.epanet.database.PipesTable;
+import org.jgrasstools.gvsig.epanet.database.PumpsTable;
+import org.jgrasstools.gvsig.epanet.database.ReservoirsTable;
+import org.jgrasstools.gvsig.epanet.database.TanksTable;
+import org.jgrasstools.gvsig.epanet.database.ValvesTable;
+import org.joda.time.DateTime;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.jdbc.JdbcDatabaseConnection;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.support.DatabaseConnection;
+import com.j256.ormlite.table.TableUtils;
+
+/**
+ * Monte Carlo analysis of the uncertainty of the demands.
+ *
+ * <p>The INP file produced by the inp generator is run many times with randomly perturbed
+ * junction demands and pattern multipliers (see {@link PerturbedDemandsScenario}), through the
+ * {@link ScenarioBatchRunner} workers. The runs are not stored: the timesteps of a run are kept
+ * until it completes and then added to the running statistics of their elements, which at the
+ * end are stored in the {@link MonteCarloStatsTable} for the run representing the analysis. Memory
+ * and database size therefore depend on the network, the number of timesteps and of workers, not
+ * on the number of runs.</p>
+ *
+ * <p>Failed runs add no sample, so that the statistics of all the timesteps come from the same
+ * runs. The number of samples of a statistic is still stored with it, since runs that report
+ * different timesteps give timesteps with different numbers of samples.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class MonteCarloEngine {
+
+    /**
+     * The probabilities of the estimated quantiles, the P5 and P95 of the statistics table.
+     */
+    private static final double[] QUANTILES = {0.05, 0.95};
+
+    private static final int ROWS_PER_BATCH = 1000;
+
+    private final String dllPath;
+    private int runsCount = 100;
+    private long seed = 0;
+    private double demandsCv = 0.1;
+    private double patternsCv = 0.1;
+    private int workersCount = Runtime.getRuntime().availableProcessors();
+    private int[] nodeVariables = {VAR_PRESSURE};
+    private int[] linkVariables = {VAR_FLOW1, VAR_VELOCITY1};
+
+    /**
+     * The statistics per results table and time, one per collected variable.
+     */
+    private final HashMap<String, LinkedHashMap<Long, RunningStatistics[]>> statistics = new HashMap<String, LinkedHashMap<Long, RunningStatistics[]>>();
+    /**
+     * The work oids per results table, in the order of the results.
+     */
+    private final HashMap<String, long[]> workOids = new HashMap<String, long[]>();
+    private String warnings;
+
+    /**
+     * Constructor.
+     *
+     * @param dllPath the path of the epanet library (see {@link EpanetRunner#getDllPath()}).
+     */
+    public MonteCarloEngine( String dllPath ) {
+        this.dllPath = dllPath;
+    }
+
+    /**
+     * @param runsCount the number of perturbed runs.
+     */
+    public void setRunsCount( int runsCount ) {
+        this.runsCount = runsCount;
+    }
+
+    /**
+     * @param seed the seed of the perturbations, so that an analysis can be repeated.
+     */
+    public void setSeed( long seed ) {
+        this.seed = seed;
+    }
+
+    /**
+     * Set the uncertainty of the demands.
+     *
+     * @param demandsCv the coefficient of variation of the base demands.
+     * @param patternsCv the coefficient of variation of the pattern multipliers.
+     */
+    public void setUncertainty( double demandsCv, double patternsCv ) {
+        this.demandsCv = demandsCv;
+        this.patternsCv = patternsCv;
+    }
+
+    /**
+     * @param workersCount the number of runs executed at the same time.
+     */
+    public void setWorkersCount( int workersCount ) {
+        this.workersCount = workersCount;
+    }
+
+    /**
+     * Set the variables to collect the statistics for.
+     *
+     * @param nodeVariables the node variable indexes (ex. {@link TimestepResults#VAR_PRESSURE}).
+     * @param linkVariables the link variable indexes (ex. {@link TimestepResults#VAR_FLOW1}).
+     */
+    public void setVariables( int[] nodeVariables, int[] linkVariables ) {
+        this.nodeVariables = nodeVariables;
+        this.linkVariables = linkVariables;
+    }
+
+    public String getWarnings() {
+        return warnings;
+    }
+
+    /**
+     * Run the analysis and store its statistics.
+     *
+     * @param inpFile the INP file produced by the inp generator.
+     * @param tStart the start time.
+     * @param hydraulicTimestep the reporting timestep in minutes.
+     * @param run the stored run representing the analysis, the statistics are stored for it.
+     * @param connectionSource the connection to the results database.
+     * @param pm the monitor.
+     * @throws Exception
+     */
+    public void run( File inpFile, String tStart, double hydraulicTimestep, final EpanetRun run,
+            // table maps
+            HashMap<String, JunctionsTable> jId2Table, //
+            HashMap<String, PipesTable> piId2Table, //
+            HashMap<String, PumpsTable> puId2Table, //
+            HashMap<String, ValvesTable> vId2Table, //
+            HashMap<String, TanksTable> tId2Table, //
+            HashMap<String, ReservoirsTable> rId2Table, //
+            ConnectionSource connectionSource, IJGTProgressMonitor pm //
+    ) throws Exception {
+        statistics.clear();
+        workOids.clear();
+
+        Random seeds = new Random(seed);
+        List<EpanetScenario> scenarios = new ArrayList<EpanetScenario>();
+        for( int i = 0; i < runsCount; i++ ) {
+            scenarios.add(new PerturbedDemandsScenario(run.getTitle() + " - sample " + (i + 1), seeds.nextLong(), demandsCv,
+                    patternsCv));
+        }
+
+        ScenarioBatchRunner batchRunner = new ScenarioBatchRunner(dllPath, workersCount);
+        batchRunner.setKeepFiles(false);
+        batchRunner.run(inpFile, scenarios, tStart, hydraulicTimestep, new ScenarioBatchRunner.RunsFactory(){
+            public EpanetRun createRun( EpanetScenario scenario, String inp ) {
+                return null;
+            }
+            public IResultsSink createSink( EpanetRun scenarioRun ) {
+                // a run that fails halfway would add a sample to its first timesteps only
+                return new ScenarioBatchRunner.ScenarioSink(){
+                    private final List<TimestepResults> timesteps = new ArrayList<TimestepResults>();
+                    public void write( TimestepResults results ) {
+                        timesteps.add(results);
+                    }
+                    public void completed() {
+                        for( TimestepResults results : timesteps ) {
+                            collect(results);
+                        }
+                    }
+                    public void close() {
+                        // the statistics are stored once all the runs finished
+                        timesteps.clear();
+                    }
+                };
+            }
+        }, jId2Table, piId2Table, puId2Table, vId2Table, tId2Table, rId2Table, pm);
+        warnings = batchRunner.getWarnings();
+
+        store(connectionSource, run, pm);
+    }
+
+    private void collect( TimestepResults results ) {
+        for( String table : NODE_TABLES ) {
+            collect(results, table, nodeVariables);
+        }
+        for( String table : LINK_TABLES ) {
+            collect(results, table, linkVariables);
+        }
+    }
+
+    private void collect( TimestepResults results, String table, int[] variables ) {
+        ElementResults elementResults = results.getResults(table);
+        int size = elementResults.size();
+        if (size == 0 || variables.length == 0) {
+            return;
+        }
+        LinkedHashMap<Long, RunningStatistics[]> tableStatistics = statistics.get(table);
+        if (tableStatistics == null) {
+            tableStatistics = new LinkedHashMap<Long, RunningStatistics[]>();
+            statistics.put(table, tableStatistics);
+            workOids.put(table, elementResults.workOids.clone());
+        }
+        long time = results.time.getMillis();
+        RunningStatistics[] timeStatistics = tableStatistics.get(time);
+        if (timeStatistics == null) {
+            timeStatistics = new RunningStatistics[variables.length];
+            for( int v = 0; v < variables.length; v++ ) {
+                timeStatistics[v] = new RunningStatistics(size, QUANTILES);
+            }
+            tableStatistics.put(time, timeStatistics);
+        }
+        if (timeStatistics[0].size() != size) {
+            throw new IllegalStateException("The runs of the analysis have different elements in " + table);
+        }
+        for( int v = 0; v < variables.length; v++ ) {
+            timeStatistics[v].add(elementResults.values[variables[v]]);
+        }
+    }
+
+    private void store( ConnectionSource connectionSource, EpanetRun run, IJGTProgressMonitor pm ) throws SQLException {
+        TableUtils.createTableIfNotExists(connectionSource, MonteCarloStatsTable.class);
+
+        pm.beginTask("Storing the statistics of the analysis...", statistics.size());
+        DatabaseConnection databaseConnection = connectionSource.getReadWriteConnection();
+        Connection connection = ((JdbcDatabaseConnection) databaseConnection).getInternalConnection();
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        PreparedStatement statement = connection.prepareStatement("INSERT INTO " + MONTECARLOSTATS + " (" + RUN_ID + ","
+                + RESULTTABLE + "," + WORK_ID + "," + UTCTIME + "," + VARIABLE + "," + SAMPLES + "," + MEANVALUE + ","
+                + STDDEVVALUE + "," + MINVALUE + "," + MAXVALUE + "," + P05VALUE + "," + P95VALUE
+                + ") VALUES (?,?,?,?,?,?,?,?,?,?,?,?)");
+        try {
+            int rows = 0;
+            for( Entry<String, LinkedHashMap<Long, RunningStatistics[]>> tableEntry : statistics.entrySet() ) {
+                String table = tableEntry.getKey();
+                boolean isLink = TimestepResults.isLinkTable(table);
+                int[] variables = isLink ? linkVariables : nodeVariables;
+                String[] columns = isLink ? LINK_COLUMNS : NODE_COLUMNS;
+                long[] oids = workOids.get(table);
+                for( Entry<Long, RunningStatistics[]> timeEntry : tableEntry.getValue().entrySet() ) {
+                    for( int v = 0; v < variables.length; v++ ) {
+                        RunningStatistics stats = timeEntry.getValue()[v];
+                        for( int i = 0; i < stats.size(); i++ ) {
+                            if (stats.getCount(i) == 0) {
+                                continue;
+                            }
+                            int p = 1;
+                            statement.setLong(p++, run.getId());
+                            statement.setString(p++, table);
+                            statement.setLong(p++, oids[i]);
+                            statement.setLong(p++, timeEntry.getKey());
+                            statement.setString(p++, columns[variables[v]]);
+                            statement.setInt(p++, stats.getCount(i));
+                            statement.setFloat(p++, stats.getMean(i));
+                            statement.setFloat(p++, stats.getStandardDeviation(i));
+                            statement.setFloat(p++, stats.getMin(i));
+                            statement.setFloat(p++, stats.getMax(i));
+                            statement.setFloat(p++, stats.getQuantile(i, 0));
+                            statement.setFloat(p++, stats.getQuantile(i, 1));
+                            statement.addBatch();
+                            if (++rows % ROWS_PER_BATCH == 0) {
+                                statement.executeBatch();
+                            }
+                        }
+                    }
+                }
+                pm.worked(1);
+            }
+            statement.executeBatch();
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            statement.close();
+            connection.setAutoCommit(autoCommit);
+            connectionSource.releaseConnection(databaseConnection);
+            pm.done();
+        }
+    }
+
+    /**
+     * Get the statistics of an element of an analysis through time.
+     *
+     * @param connectionSource the connection to the results database.
+     * @param run the run of the analysis.
+     * @param resultTable the results table of the element (ex. JUNCTIONSRESULT).
+     * @param workOid the oid of the element.
+     * @param variable the variable column (ex. PRESSURE).
+     * @return the mean, standard deviation, min, max, P5 and P95 for every time.
+     * @throws SQLException
+     */
+    public static LinkedHashMap<DateTime, float[]> getEnvelope( ConnectionSource connectionSource, EpanetRun run,
+            String resultTable, long workOid, String variable ) throws SQLException {
+        Dao<MonteCarloStatsTable, Long> statsDao = DaoManager.createDao(connectionSource, MonteCarloStatsTable.class);
+        List<MonteCarloStatsTable> rows = statsDao.queryBuilder().orderBy(UTCTIME, true).where().eq(RUN_ID, run).and()
+                .eq(RESULTTABLE, resultTable).and().eq(WORK_ID, workOid).and().eq(VARIABLE, variable).query();
+        LinkedHashMap<DateTime, float[]> envelope = new LinkedHashMap<DateTime, float[]>();
+        for( MonteCarloStatsTable row : rows ) {
+            envelope.put(row.getUtcTime(), new float[]{row.getMean(), row.getStdDev(), row.getMin(), row.getMax(),
+                    row.getP05(), row.getP95()});
+        }
+        return envelope;
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.jgrasstools.gears.libs.exceptions.ModelsUserCancelException;
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+import org.jgrasstools.gears.utils.CrsUtilities;
+import org.jgrasstools.gears.utils.features.FeatureUtilities;
+import org.jgrasstools.gvsig.epanet.database.EpanetRun;
+import org.jgrasstools.gvsig.epanet.database.IWork;
+import org.jgrasstools.gvsig.epanet.database.JunctionsTable;
+import org.jgrasstools.gvsig.epanet.database.NetworksTable;
+import org.jgrasstools.gvsig.epanet.database.PipesTable;
+import org.jgrasstools.gvsig.epanet.database.PumpsTable;
+import org.jgrasstools.gvsig.epanet.database.ReservoirsTable;
+import org.jgrasstools.gvsig.epanet.database.TanksTable;
+import org.jgrasstools.gvsig.epanet.database.ValvesTable;
+import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.EpanetConstants;
+import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.EpanetFeatureTypes.Junctions;
+import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.EpanetFeatureTypes.Pipes;
+import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.EpanetFeatureTypes.Pumps;
+import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.EpanetFeatureTypes.Reservoirs;
+import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.EpanetFeatureTypes.Tanks;
+import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.EpanetFeatureTypes.Valves;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.misc.TransactionManager;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.support.DatabaseConnection;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKBWriter;
+import com.vividsolutions.jts.io.WKTWriter;
+
+/**
+ * Imports the network layers of a run into the database.
+ *
+ * <p>Every layer is written in a single transaction, with the crs code resolved once per
+ * layer and the geometry writers reused for all the features. The geometries can be
+ * stored as WKB, which is faster to write and read and smaller than the WKT. Columns
+ * declared not null in the database keep their WKT in any case.</p>
+ *
+ * <p>The elements are imported only for a new {@link NetworkVersions network version},
+ * runs on a stored version reuse its elements.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class NetworkImporter {
+
+    private final ConnectionSource connectionSource;
+    private final EpanetRun run;
+    private final boolean storeWkb;
+    private NetworksTable network;
+    private final IJGTProgressMonitor pm;
+    private final WKTWriter wktWriter = new WKTWriter();
+    private final WKBWriter wkbWriter = new WKBWriter();
+
+    /**
+     * Constructor.
+     *
+     * @param connectionSource the database connection.
+     * @param run the run the network belongs to.
+     * @param storeWkb if <code>true</code>, the geometries are stored as WKB.
+     * @param pm the monitor, checked for cancel.
+     */
+    public NetworkImporter( ConnectionSource connectionSource, EpanetRun run, boolean storeWkb, IJGTProgressMonitor pm ) {
+        this.connectionSource = connectionSource;
+        this.run = run;
+        this.storeWkb = storeWkb;
+        this.pm = pm;
+    }
+
+    /**
+     * Set the network version the imported elements belong to.
+     *
+     * @param network the network version.
+     */
+    public void setNetwork( NetworksTable network ) {
+        this.network = network;
+    }
+
+    /**
+     * Compute the hash identifying the network version of the layers.
+     *
+     * @return the hash, as {@link NetworkVersions.Hasher} computes it for the stored elements.
+     * @throws Exception
+     */
+    public String computeHash( List<SimpleFeature> junctions, List<SimpleFeature> reservoirs, List<SimpleFeature> tanks,
+            List<SimpleFeature> pipes, List<SimpleFeature> pumps, List<SimpleFeature> valves ) throws Exception {
+        NetworkVersions.Hasher hasher = new NetworkVersions.Hasher();
+        addToHash(hasher, JUNCTIONS, junctions, Junctions.ID.getAttributeName());
+        addToHash(hasher, RESERVOIRS, reservoirs, Reservoirs.ID.getAttributeName());
+        addToHash(hasher, TANKS, tanks, Tanks.ID.getAttributeName());
+        addToHash(hasher, PIPES, pipes, Pipes.ID.getAttributeName());
+        addToHash(hasher, PUMPS, pumps, Pumps.ID.getAttributeName());
+        addToHash(hasher, VALVES, valves, Valves.ID.getAttributeName());
+        return hasher.getHash();
+    }
+
+    private void addToHash( NetworkVersions.Hasher hasher, String table, List<SimpleFeature> features, String idAttribute )
+            throws Exception {
+        String crsCode = getCrsCode(features);
+        String dummyPipeId = EpanetConstants.DUMMYPIPE.toString();
+        for( SimpleFeature feature : features ) {
+            checkCancel();
+            String idStr = FeatureUtilities.getAttributeCaseChecked(feature, idAttribute).toString();
+            if (table.equals(PIPES) && idStr.equals(dummyPipeId)) {
+                // not stored
+                continue;
+            }
+            hasher.add(table, idStr, wktWriter.write((Geometry) feature.getDefaultGeometry()), crsCode);
+        }
+    }
+
+    /**
+     * Add the WKB columns to network tables created before they existed.
+     *
+     * @param connectionSource the database connection.
+     * @throws SQLException
+     */
+    public static void addWkbColumns( ConnectionSource connectionSource ) throws SQLException {
+        String[] tables = {JUNCTIONS, PIPES, PUMPS, VALVES, TANKS, RESERVOIRS};
+        for( String table : tables ) {
+            addColumnIfMissing(connectionSource, table, WKB);
+        }
+        addColumnIfMissing(connectionSource, PUMPS, LINKWKB);
+        addColumnIfMissing(connectionSource, VALVES, LINKWKB);
+    }
+
+    private static void addColumnIfMissing( ConnectionSource connectionSource, String table, String column )
+            throws SQLException {
+        DatabaseConnection connection = connectionSource.getReadWriteConnection();
+        try {
+            try {
+                connection.queryForLong("SELECT count(" + column + ") FROM " + table + " WHERE 0");
+            } catch (SQLException e) {
+                connection.executeStatement("ALTER TABLE " + table + " ADD COLUMN " + column + " BLOB",
+                        DatabaseConnection.DEFAULT_RESULT_FLAGS);
+            }
+        } finally {
+            connectionSource.releaseConnection(connection);
+        }
+    }
+
+    public HashMap<String, JunctionsTable> importJunctions( List<SimpleFeature> features ) throws Exception {
+        return importWorks(JunctionsTable.class, features, Junctions.ID.getAttributeName(), null, null);
+    }
+
+    /**
+     * Import the pipes, skipping the dummy pipes.
+     */
+    public HashMap<String, PipesTable> importPipes( List<SimpleFeature> features ) throws Exception {
+        return importWorks(PipesTable.class, features, Pipes.ID.getAttributeName(), EpanetConstants.DUMMYPIPE.toString(),
+                null);
+    }
+
+    /**
+     * Import the pumps, with the pipe they lie on as link geometry.
+     */
+    public HashMap<String, PumpsTable> importPumps( List<SimpleFeature> features, final PipesSnapper pipesSnapper )
+            throws Exception {
+        return importWorks(PumpsTable.class, features, Pumps.ID.getAttributeName(), null, new LinkWriter<PumpsTable>(){
+            public void writeLink( PumpsTable table, Geometry geometry ) {
+                Geometry link = getLink(pipesSnapper, geometry);
+                // not null columns
+                table.setWkt(wktWriter.write(geometry));
+                table.setLinkWkt(wktWriter.write(link));
+                if (storeWkb) {
+                    table.setLinkWkb(wkbWriter.write(link));
+                }
+            }
+        });
+    }
+
+    /**
+     * Import the valves, with the pipe they lie on as link geometry.
+     */
+    public HashMap<String, ValvesTable> importValves( List<SimpleFeature> features, final PipesSnapper pipesSnapper )
+            throws Exception {
+        return importWorks(ValvesTable.class, features, Valves.ID.getAttributeName(), null, new LinkWriter<ValvesTable>(){
+            public void writeLink( ValvesTable table, Geometry geometry ) {
+                Geometry link = getLink(pipesSnapper, geometry);
+                // not null column
+                table.setLinkWkt(wktWriter.write(link));
+                if (storeWkb) {
+                    table.setLinkWkb(wkbWriter.write(link));
+                }
+            }
+        });
+    }
+
+    public HashMap<String, TanksTable> importTanks( List<SimpleFeature> features ) throws Exception {
+        return importWorks(TanksTable.class, features, Tanks.ID.getAttributeName(), null, null);
+    }
+
+    public HashMap<String, ReservoirsTable> importReservoirs( List<SimpleFeature> features ) throws Exception {
+        return importWorks(ReservoirsTable.class, features, Reservoirs.ID.getAttributeName(), null, null);
+    }
+
+    /**
+     * Writes the link geometry of the works lying on a pipe.
+     */
+    private interface LinkWriter<T extends IWork> {
+        /**
+         * @param table the work, with its own geometry already set.
+         * @param geometry the geometry of the work.
+         */
+        void writeLink( T table, Geometry geometry );
+    }
+
+    /**
+     * Import the features of a layer as works of a table in a single transaction.
+     *
+     * @param workClass the class of the table.
+     * @param features the features of the layer.
+     * @param idAttribute the name of the id attribute of the layer.
+     * @param skipId the id of the features not to store, or <code>null</code>.
+     * @param linkWriter the writer of the link geometry, or <code>null</code> for works not lying on a pipe.
+     * @return the map of the stored works by id.
+     * @throws Exception
+     */
+    private <T extends IWork> HashMap<String, T> importWorks( final Class<T> workClass, final List<SimpleFeature> features,
+            final String idAttribute, final String skipId, final LinkWriter<T> linkWriter ) throws Exception {
+        final Dao<T, Long> dao = DaoManager.createDao(connectionSource, workClass);
+        final HashMap<String, T> id2Table = new HashMap<String, T>();
+        final String crsCode = getCrsCode(features);
+        callInTransaction(new Callable<Void>(){
+            public Void call() throws Exception {
+                for( SimpleFeature feature : features ) {
+                    checkCancel();
+                    String idStr = FeatureUtilities.getAttributeCaseChecked(feature, idAttribute).toString();
+                    if (idStr.equals(skipId)) {
+                        continue;
+                    }
+                    Geometry g = (Geometry) feature.getDefaultGeometry();
+                    T table = workClass.newInstance();
+                    table.setId(idStr);
+                    table.setRun(run);
+                    table.setNetwork(network);
+                    if (storeWkb) {
+                        table.setWkb(wkbWriter.write(g));
+                    } else {
+                        table.setWkt(wktWriter.write(g));
+                    }
+                    if (linkWriter != null) {
+                        linkWriter.writeLink(table, g);
+                    }
+                    table.setCrsCode(crsCode);
+                    dao.create(table);
+                    id2Table.put(idStr, table);
+                }
+                return null;
+            }
+        });
+        return id2Table;
+    }
+
+    private static Geometry getLink( PipesSnapper pipesSnapper, Geometry geometry ) {
+        Geometry pipe = pipesSnapper.getPipe(geometry);
+        return pipe != null ? pipe : geometry;
+    }
+
+    /**
+     * The features of a layer share the feature type, so the crs code is resolved once.
+     */
+    private static String getCrsCode( List<SimpleFeature> features ) throws Exception {
+        if (features.isEmpty()) {
+            return null;
+        }
+        CoordinateReferenceSystem crs = features.get(0).getType().getCoordinateReferenceSystem();
+        return CrsUtilities.getCodeFromCrs(crs);
+    }
+
+    /**
+     * Call a block in a single transaction, rethrowing the cancel of the user.
+     *
+     * <p>The layer imports called in the block join its transaction, so that they are
+     * committed or rolled back together.</p>
+     *
+     * @param callable the block.
+     * @return the result of the block.
+     * @throws Exception
+     */
+    public <T> T callInTransaction( Callable<T> callable ) throws Exception {
+        try {
+            return TransactionManager.callInTransaction(connectionSource, callable);
+        } catch (SQLException e) {
+            // the transaction wraps the cancel of the user
+            if (e.getCause() instanceof ModelsUserCancelException) {
+                throw (ModelsUserCancelException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void checkCancel() {
+        if (pm != null && pm.isCanceled()) {
+            throw new ModelsUserCancelException();
+        }
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+import org.jgrasstools.gvsig.epanet.database.EpanetRun;
+import org.jgrasstools.gvsig.epanet.database.IWork;
+import org.jgrasstools.gvsig.epanet.database.JunctionsTable;
+import org.jgrasstools.gvsig.epanet.database.NetworksTable;
+import org.jgrasstools.gvsig.epanet.database.PipesTable;
+import org.jgrasstools.gvsig.epanet.database.PumpsTable;
+import org.jgrasstools.gvsig.epanet.database.ReservoirsTable;
+import org.jgrasstools.gvsig.epanet.database.TanksTable;
+import org.jgrasstools.gvsig.epanet.database.ValvesTable;
+import org.joda.time.DateTime;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.misc.TransactionManager;
+import com.j256.ormlite.stmt.PreparedQuery;
+import com.j256.ormlite.stmt.QueryBuilder;
+import com.j256.ormlite.stmt.Where;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.support.DatabaseConnection;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKTWriter;
+
+/**
+ * Versions of the network geometries, stored once and shared by all the runs done on them.
+ *
+ * <p>A version is identified by the hash of the ids, WKT and crs of its elements, so that
+ * runs on an unchanged network reuse the stored elements instead of adding a copy. Runs
+ * stored before the versions existed are moved to them by {@link #migrate(ConnectionSource, IJGTProgressMonitor)}.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class NetworkVersions {
+
+    /**
+     * The network tables, in the order of {@link #RESULT_TABLES}.
+     */
+    public static final String[] WORK_TABLES = {JUNCTIONS, RESERVOIRS, TANKS, PIPES, PUMPS, VALVES};
+    private static final String[] RESULT_TABLES = {JUNCTIONSRESULT, RESERVOIRSRESULT, TANKSRESULT, PIPESRESULT,
+            PUMPSRESULT, VALVESRESULT};
+    private static final Class< ? >[] WORK_CLASSES = {JunctionsTable.class, ReservoirsTable.class, TanksTable.class,
+            PipesTable.class, PumpsTable.class, ValvesTable.class};
+
+    /**
+     * Collects the elements of a network and computes the hash of their content, independent of their order.
+     */
+    public static class Hasher {
+        private final TreeMap<String, String> entries = new TreeMap<String, String>();
+
+        public void add( String table, String id, String wkt, String crsCode ) {
+            entries.put(table + "\u0000" + id, wkt + "\u0000" + crsCode);
+        }
+
+        /**
+         * @return the hex SHA-1 of the elements.
+         */
+        public String getHash() {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-1");
+                Charset utf8 = Charset.forName("UTF-8");
+                for( Entry<String, String> entry : entries.entrySet() ) {
+                    digest.update(entry.getKey().getBytes(utf8));
+                    digest.update((byte) 0);
+                    digest.update(entry.getValue().getBytes(utf8));
+                    digest.update((byte) '\n');
+                }
+                StringBuilder sb = new StringBuilder();
+                for( byte b : digest.digest() ) {
+                    sb.append(String.format("%02x", b));
+                }
+                return sb.toString();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Add the network columns, and their indexes, to tables created before they existed.
+     *
+     * @param connectionSource the database connection.
+     * @throws SQLException
+     */
+    public static void addNetworkColumns( ConnectionSource connectionSource ) throws SQLException {
+        addColumnIfMissing(connectionSource, EPANETRUN, NETWORK_ID);
+        addNetworkIndex(connectionSource, EPANETRUN);
+        for( String table : WORK_TABLES ) {
+            addColumnIfMissing(connectionSource, table, NETWORK_ID);
+            addNetworkIndex(connectionSource, table);
+        }
+    }
+
+    /**
+     * The elements of a run are looked up and deleted by network, the index has the name ORMLite gives it.
+     */
+    private static void addNetworkIndex( ConnectionSource connectionSource, String table ) throws SQLException {
+        execute(connectionSource, "CREATE INDEX IF NOT EXISTS " + table + "_" + NETWORK_ID + "_idx ON " + table + " ("
+                + NETWORK_ID + ")");
+    }
+
+    /**
+     * Get a stored network version.
+     *
+     * @param connectionSource the database connection.
+     * @param hash the hash of the network.
+     * @return the version or <code>null</code> if the network is not stored.
+     * @throws SQLException
+     */
+    public static NetworksTable getNetwork( ConnectionSource connectionSource, String hash ) throws SQLException {
+        Dao<NetworksTable, Long> networksDao = DaoManager.createDao(connectionSource, NetworksTable.class);
+        List<NetworksTable> networks = networksDao.queryForEq(HASH, hash);
+        return networks.isEmpty() ? null : networks.get(0);
+    }
+
+    /**
+     * Store a new network version.
+     *
+     * <p>A stored version is reused by the runs on the same network, so it has to be
+     * created in the transaction that stores its elements.</p>
+     *
+     * @param connectionSource the database connection.
+     * @param hash the hash of the network.
+     * @return the created version.
+     * @throws SQLException
+     */
+    public static NetworksTable createNetwork( ConnectionSource connectionSource, String hash ) throws SQLException {
+        Dao<NetworksTable, Long> networksDao = DaoManager.createDao(connectionSource, NetworksTable.class);
+        NetworksTable network = new NetworksTable();
+        network.setHash(hash);
+        network.setUtcTime(new DateTime());
+        networksDao.create(network);
+        return network;
+    }
+
+    /**
+     * Load the elements of a network version.
+     *
+     * @param connectionSource the database connection.
+     * @param clazz the class of the network table.
+     * @param network the network version.
+     * @return the elements by id.
+     * @throws SQLException
+     */
+    public static <T extends IWork> HashMap<String, T> loadWorks( ConnectionSource connectionSource, Class<T> clazz,
+            NetworksTable network ) throws SQLException {
+        Dao<T, Long> dao = DaoManager.createDao(connectionSource, clazz);
+        List<T> works = dao.queryForEq(NETWORK_ID, network);
+        HashMap<String, T> id2Work = new HashMap<String, T>();
+        for( T work : works ) {
+            id2Work.put(work.getId(), work);
+        }
+        return id2Work;
+    }
+
+    /**
+     * Restrict a query on a network table to the elements of a run.
+     *
+     * <p>Runs on a network version share its elements, older runs have their own.</p>
+     *
+     * @param where the where of the query.
+     * @param run the run.
+     * @throws SQLException
+     */
+    public static void whereWorksOf( Where< ? , ? > where, EpanetRun run ) throws SQLException {
+        if (run.getNetwork() != null) {
+            where.eq(NETWORK_ID, run.getNetwork());
+        } else {
+            where.eq(RUN_ID, run);
+        }
+    }
+
+    /**
+     * Prepare the query of the elements of a run in a network table.
+     *
+     * @param dao the dao of the network table.
+     * @param run the run.
+     * @return the query.
+     * @throws SQLException
+     */
+    public static <T> PreparedQuery<T> queryWorksOf( Dao<T, Long> dao, EpanetRun run ) throws SQLException {
+        QueryBuilder<T, Long> qb = dao.queryBuilder();
+        whereWorksOf(qb.where(), run);
+        return qb.prepare();
+    }
+
+    /**
+     * Move the runs stored before the network versions to them.
+     *
+     * <p>The first run on a network keeps its elements, which become the version. The
+     * results of later runs on the same network are moved to the shared elements and
+     * their own copies deleted. The work oids in the binary results files of these runs
+     * are not changed, the elements are found there by id. Runs are never moved to a
+     * version that misses some of their elements, they keep their own instead.</p>
+     *
+     * @param connectionSource the database connection.
+     * @param pm the monitor.
+     * @throws Exception
+     */
+    public static void migrate( final ConnectionSource connectionSource, IJGTProgressMonitor pm ) throws Exception {
+        addNetworkColumns(connectionSource);
+        final Dao<EpanetRun, Long> runsDao = DaoManager.createDao(connectionSource, EpanetRun.class);
+        List<EpanetRun> runs = runsDao.query(runsDao.queryBuilder().where().isNull(NETWORK_ID).prepare());
+        if (runs.isEmpty()) {
+            return;
+        }
+        pm.beginTask("Moving the runs to shared network versions...", runs.size());
+        for( final EpanetRun run : runs ) {
+            final String hash = getHash(connectionSource, run);
+            final NetworksTable existing = getNetwork(connectionSource, hash);
+            boolean isEmpty = false;
+            if (existing != null && !hasWorksOf(connectionSource, existing, run)) {
+                isEmpty = countWorks(connectionSource, existing) == 0;
+                if (!isEmpty) {
+                    // an incomplete version, the run keeps its own elements
+                    pm.worked(1);
+                    continue;
+                }
+            }
+            // an empty version, as left by an interrupted import, takes the elements of the run
+            final boolean isNew = existing == null || isEmpty;
+            TransactionManager.callInTransaction(connectionSource, new Callable<Void>(){
+                public Void call() throws Exception {
+                    // the version is created with the moves, a failed move leaves no empty version
+                    NetworksTable network = existing != null ? existing : createNetwork(connectionSource, hash);
+                    for( int i = 0; i < WORK_TABLES.length; i++ ) {
+                        if (isNew) {
+                            execute(connectionSource, "UPDATE " + WORK_TABLES[i] + " SET " + NETWORK_ID + "="
+                                    + network.getOid() + " WHERE " + RUN_ID + "=" + run.getId());
+                        } else {
+                            moveToNetwork(connectionSource, run, network, WORK_TABLES[i], RESULT_TABLES[i]);
+                        }
+                    }
+                    run.setNetwork(network);
+                    runsDao.update(run);
+                    return null;
+                }
+            });
+            pm.worked(1);
+        }
+        pm.done();
+    }
+
+    /**
+     * Move the results of a run to the elements of a version, matching them by id, and delete the own elements of the run.
+     *
+     * @throws SQLException if the version has not all the elements of the run in the table, which would leave
+     *          results without element.
+     */
+    private static void moveToNetwork( ConnectionSource connectionSource, EpanetRun run, NetworksTable network,
+            String workTable, String resultTable ) throws SQLException {
+        long runWorks = queryForLong(connectionSource, "SELECT count(*) FROM " + workTable + " WHERE " + RUN_ID + "="
+                + run.getId() + " AND " + NETWORK_ID + " IS NULL");
+        long sharedWorks = queryForLong(connectionSource, "SELECT count(*) FROM " + workTable + " WHERE " + NETWORK_ID
+                + "=" + network.getOid());
+        if (sharedWorks < runWorks) {
+            throw new SQLException("The network version " + network.getOid() + " misses elements of " + workTable
+                    + " of the run " + run.getId() + ", the run is not moved to it.");
+        }
+        String sharedOid = "(SELECT s." + OID + " FROM " + workTable + " s, " + workTable + " o WHERE o." + OID + "=%s."
+                + WORK_ID + " AND s." + ID + "=o." + ID + " AND s." + NETWORK_ID + "=" + network.getOid() + ")";
+        // the results tables are missing in databases whose runs are stored in their own files
+        if (tableExists(connectionSource, resultTable)) {
+            String dataTable = EpanetResultsSchema.getDataTable(connectionSource, resultTable);
+            execute(connectionSource, "UPDATE " + dataTable + " SET " + WORK_ID + "=" + String.format(sharedOid, dataTable)
+                    + " WHERE " + RUN_ID + "=" + run.getId());
+        }
+        if (tableExists(connectionSource, RESULTSELEMENTS)) {
+            execute(connectionSource, "UPDATE " + RESULTSELEMENTS + " SET " + WORK_ID + "="
+                    + String.format(sharedOid, RESULTSELEMENTS) + " WHERE " + RUN_ID + "=" + run.getId() + " AND "
+                    + RESULTTABLE + "='" + resultTable + "'");
+        }
+        execute(connectionSource, "DELETE FROM " + workTable + " WHERE " + RUN_ID + "=" + run.getId());
+    }
+
+    /**
+     * @return <code>true</code> if the version has as many elements as the own elements of the run in every table.
+     */
+    private static boolean hasWorksOf( ConnectionSource connectionSource, NetworksTable network, EpanetRun run )
+            throws SQLException {
+        for( String table : WORK_TABLES ) {
+            long runWorks = queryForLong(connectionSource, "SELECT count(*) FROM " + table + " WHERE " + RUN_ID + "="
+                    + run.getId() + " AND " + NETWORK_ID + " IS NULL");
+            long sharedWorks = queryForLong(connectionSource, "SELECT count(*) FROM " + table + " WHERE " + NETWORK_ID
+                    + "=" + network.getOid());
+            if (sharedWorks != runWorks) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long countWorks( ConnectionSource connectionSource, NetworksTable network ) throws SQLException {
+        long count = 0;
+        for( String table : WORK_TABLES ) {
+            count += queryForLong(connectionSource, "SELECT count(*) FROM " + table + " WHERE " + NETWORK_ID + "="
+                    + network.getOid());
+        }
+        return count;
+    }
+
+    private static String getHash( ConnectionSource connectionSource, EpanetRun run ) throws Exception {
+        Hasher hasher = new Hasher();
+        WKBReader wkbReader = new WKBReader();
+        WKTWriter wktWriter = new WKTWriter();
+        for( int i = 0; i < WORK_TABLES.length; i++ ) {
+            Dao< ? , Long> dao = DaoManager.createDao(connectionSource, WORK_CLASSES[i]);
+            for( Object object : dao.queryForEq(RUN_ID, run) ) {
+                IWork work = (IWork) object;
+                String wkt = work.getWkt();
+                if (wkt == null && work.getWkb() != null) {
+                    wkt = wktWriter.write(wkbReader.read(work.getWkb()));
+                }
+                hasher.add(WORK_TABLES[i], work.getId(), wkt, work.getCrsCode());
+            }
+        }
+        return hasher.getHash();
+    }
+
+    private static void addColumnIfMissing( ConnectionSource connectionSource, String table, String column )
+            throws SQLException {
+        DatabaseConnection connection = connectionSource.getReadWriteConnection();
+        try {
+            try {
+                connection.queryForLong("SELECT count(" + column + ") FROM " + table + " WHERE 0");
+            } catch (SQLException e) {
+                connection.executeStatement("ALTER TABLE " + table + " ADD COLUMN " + column + " INTEGER",
+                        DatabaseConnection.DEFAULT_RESULT_FLAGS);
+            }
+        } finally {
+            connectionSource.releaseConnection(connection);
+        }
+    }
+
+    private static boolean tableExists( ConnectionSource connectionSource, String table ) throws SQLException {
+        return queryForLong(connectionSource, "SELECT count(*) FROM sqlite_master WHERE name = '" + table + "'") > 0;
+    }
+
+    private static long queryForLong( ConnectionSource connectionSource, String sql ) throws SQLException {
+        DatabaseConnection connection = connectionSource.getReadOnlyConnection();
+        try {
+            return connection.queryForLong(sql);
+        } finally {
+            connectionSource.releaseConnection(connection);
+        }
+    }
+
+    private static void execute( ConnectionSource connectionSource, String sql ) throws SQLException {
+        DatabaseConnection connection = connectionSource.getReadWriteConnection();
+        try {
+            connection.executeStatement(sql, DatabaseConnection.DEFAULT_RESULT_FLAGS);
+        } finally {
+            connectionSource.releaseConnection(connection);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org 
+ * (C) HydroloGIS - www.hydrologis.com 
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * {@link EpanetScenario} with randomly perturbed junction demands and pattern multipliers.
+ *
+ * <p>Every value is multiplied by <code>max(0, 1 + cv * g)</code>, g being a standard normal
+ * sample. The samples are drawn from a generator seeded by the scenario, so that a scenario
+ * always produces the same INP and nothing but the seed needs to be kept.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class PerturbedDemandsScenario extends EpanetScenario {
+
+    private final long seed;
+    private final double demandsCv;
+    private final double patternsCv;
+
+    /**
+     * Constructor.
+     *
+     * @param title the title of the scenario.
+     * @param seed the seed of the random perturbations.
+     * @param demandsCv the coefficient of variation of the base demands of the junctions.
+     * @param patternsCv the coefficient of variation of the pattern multipliers.
+     */
+    public PerturbedDemandsScenario( String title, long seed, double demandsCv, double patternsCv ) {
+        super(title);
+        this.seed = seed;
+        this.demandsCv = demandsCv;
+        this.patternsCv = patternsCv;
+    }
+
+    @Override
+    protected void edit( List<String> lines ) {
+        super.edit(lines);
+        Random random = new Random(seed);
+        // junctions: id, elevation, demand, pattern
+        perturb(lines, "[JUNCTIONS]", 2, 2, demandsCv, random);
+        // demands: junction, demand, pattern, category
+        perturb(lines, "[DEMANDS]", 1, 1, demandsCv, random);
+        // patterns: id, multipliers
+        perturb(lines, "[PATTERNS]", 1, Integer.MAX_VALUE, patternsCv, random);
+    }
+
+    private static void perturb( List<String> lines, String sectionName, int firstColumn, int lastColumn, double cv,
+            Random random ) {
+        int[] section = getSection(lines, sectionName);
+        if (section == null || cv <= 0) {
+            return;
+        }
+        for( int i = section[0]; i < section[1]; i++ ) {
+            String line = lines.get(i);
+            String comment = "";
+            int commentIndex = line.indexOf(';');
+            if (commentIndex != -1) {
+                comment = line.substring(commentIndex);
+                line = line.substring(0, commentIndex);
+            }
+            String[] columns = line.trim().split("\\s+");
+            if (columns.length <= firstColumn) {
+                continue;
+            }
+            StringBuilder sb = new StringBuilder();
+            for( int c = 0; c < columns.length; c++ ) {
+                String column = columns[c];
+                if (c >= firstColumn && c <= lastColumn) {
+                    try {
+                        double value = Double.parseDouble(column);
+                        double factor = Math.max(0, 1 + cv * random.nextGaussian());
+                        column = String.valueOf(value * factor);
+                    } catch (NumberFormatException e) {
+                        // not a number, ex. a pattern id
+                    }
+                }
+                if (c > 0) {
+                    sb.append("\t");
+                }
+                sb.append(column);
+            }
+            if (comment.length() > 0) {
+                sb.append("\t").append(comment);
+            }
+            lines.set(i, sb.toString());
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import java.util.List;
+
+import org.opengis.feature.simple.SimpleFeature;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+/**
+ * Finds the pipe a pump or valve lies on, through a spatial index of the pipes.
+ *
+ * <p>The index is built once and can be reused for all the pumps and valves of a network.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class PipesSnapper {
+
+    /**
+     * The default max distance of an element from its pipe.
+     */
+    public static final double DEFAULT_TOLERANCE = 1.0;
+
+    private final STRtree index = new STRtree();
+    private final double tolerance;
+
+    /**
+     * Constructor.
+     *
+     * @param pipes the pipes features.
+     * @param tolerance the max distance of an element from its pipe.
+     */
+    public PipesSnapper( List<SimpleFeature> pipes, double tolerance ) {
+        this.tolerance = tolerance;
+        int order = 0;
+        for( SimpleFeature pipe : pipes ) {
+            Geometry geometry = (Geometry) pipe.getDefaultGeometry();
+            if (geometry != null) {
+                index.insert(geometry.getEnvelopeInternal(), new IndexedPipe(order, geometry));
+            }
+            order++;
+        }
+        index.build();
+    }
+
+    /**
+     * Get the nearest pipe within the tolerance.
+     *
+     * @param geometry the geometry of the pump or valve.
+     * @return the geometry of the nearest pipe, the first in pipes order on equal distance,
+     *          or <code>null</code> if no pipe is within the tolerance.
+     */
+    public Geometry getPipe( Geometry geometry ) {
+        Envelope searchEnvelope = new Envelope(geometry.getEnvelopeInternal());
+        searchEnvelope.expandBy(tolerance);
+        List< ? > candidates = index.query(searchEnvelope);
+
+        IndexedPipe nearest = null;
+        double nearestDistance = Double.POSITIVE_INFINITY;
+        for( Object candidate : candidates ) {
+            IndexedPipe pipe = (IndexedPipe) candidate;
+            if (!pipe.geometry.isWithinDistance(geometry, tolerance)) {
+                continue;
+            }
+            double distance = pipe.geometry.distance(geometry);
+            if (distance < nearestDistance || (distance == nearestDistance && pipe.order < nearest.order)) {
+                nearest = pipe;
+                nearestDistance = distance;
+            }
+        }
+        return nearest != null ? nearest.geometry : null;
+    }
+
+    private static class IndexedPipe {
+        final int order;
+        final Geometry geometry;
+
+        IndexedPipe( int order, Geometry geometry ) {
+            this.order = order;
+            this.geometry = geometry;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Plays the results timeline at a target frame rate.
+ *
+ * <p>A producer thread computes the {@link ResultsFrame frames} ahead of the one on the
+ * map, at most {@link #LOOKAHEAD} of them. A ticker shows at every tick the latest frame that is
+ * due. When the producer falls behind the clock it jumps to the due frame instead of
+ * queueing the late ones, so the animation keeps the pace and skips frames.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class ResultsAnimator {
+    private static final Logger logger = LoggerFactory.getLogger(ResultsAnimator.class);
+
+    /**
+     * The number of frames computed ahead of the shown one.
+     */
+    public static final int LOOKAHEAD = 2;
+
+    /**
+     * Computes the frame of a timestep.
+     */
+    public static interface IFrameProducer {
+        /**
+         * @param timeIndex the index of the timestep in the timeline.
+         * @return the frame or <code>null</code>, if the timestep has no data.
+         * @throws Exception
+         */
+        public ResultsFrame createFrame( int timeIndex ) throws Exception;
+    }
+
+    /**
+     * Notified of the animation progress. Calls come from the animation threads.
+     */
+    public static interface IAnimationListener {
+        /**
+         * Called after a frame has been set on the map.
+         */
+        public void frameShown( ResultsFrame frame );
+
+        /**
+         * Called about once a second and at the end of the animation.
+         *
+         * @param framesPerSecond the frames shown per second in the last period.
+         * @param skippedFrames the frames skipped since the animation started.
+         */
+        public void framesPerSecond( double framesPerSecond, int skippedFrames );
+
+        /**
+         * Called when the animation ends or is stopped.
+         *
+         * @param lastTimeIndex the index of the last shown timestep.
+         */
+        public void animationStopped( int lastTimeIndex );
+    }
+
+    private final IFrameProducer producer;
+    private final IAnimationListener listener;
+    private final int timestepsCount;
+    private final ArrayBlockingQueue<ResultsFrame> frames = new ArrayBlockingQueue<ResultsFrame>(LOOKAHEAD);
+
+    private volatile boolean running = false;
+    private volatile boolean producerDone = false;
+    private Thread producerThread;
+    private ScheduledExecutorService ticker;
+
+    private double targetFps;
+    private int startIndex;
+    private long startNanos;
+    private volatile int lastShownIndex;
+    private final AtomicInteger skippedFrames = new AtomicInteger();
+    private int shownFrames;
+    private long periodStartNanos;
+    private int periodFrames;
+
+    /**
+     * Constructor.
+     *
+     * @param producer the producer of the frames.
+     * @param timestepsCount the number of timesteps of the timeline.
+     * @param listener the listener to notify.
+     */
+    public ResultsAnimator( IFrameProducer producer, int timestepsCount, IAnimationListener listener ) {
+        this.producer = producer;
+        this.timestepsCount = timestepsCount;
+        this.listener = listener;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Start the animation.
+     *
+     * @param fromIndex the index of the first timestep to show.
+     * @param targetFps the frames per second to aim at.
+     */
+    public synchronized void start( int fromIndex, double targetFps ) {
+        if (running || fromIndex >= timestepsCount) {
+            return;
+        }
+        this.targetFps = targetFps;
+        startIndex = Math.max(0, fromIndex);
+        lastShownIndex = startIndex - 1;
+        skippedFrames.set(0);
+        shownFrames = 0;
+        periodFrames = 0;
+        frames.clear();
+        producerDone = false;
+        running = true;
+        startNanos = System.nanoTime();
+        periodStartNanos = startNanos;
+
+        producerThread = new Thread(new Runnable(){
+            public void run() {
+                produce();
+            }
+        }, "epanet-animation-frames");
+        producerThread.setDaemon(true);
+        producerThread.start();
+
+        ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+            public Thread newThread( Runnable r ) {
+                Thread thread = new Thread(r, "epanet-animation-ticker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long periodMicros = (long) (1000000 / targetFps);
+        ticker.scheduleAtFixedRate(new Runnable(){
+            public void run() {
+                tick();
+            }
+        }, 0, periodMicros, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Stop the animation, leaving the last shown frame on the map.
+     */
+    public void stop() {
+        ScheduledExecutorService tickerToStop;
+        int lastIndex;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            producerThread.interrupt();
+            tickerToStop = ticker;
+            lastIndex = lastShownIndex;
+        }
+        tickerToStop.shutdownNow();
+
+        double seconds = (System.nanoTime() - startNanos) / 1E9;
+        double fps = seconds > 0 ? shownFrames / seconds : 0;
+        logger.info("Animation stopped: " + shownFrames + " frames shown, " + skippedFrames.get() + " skipped, "
+                + String.format("%.1f", fps) + " frames/s with a target of " + targetFps);
+        listener.framesPerSecond(fps, skippedFrames.get());
+        listener.animationStopped(lastIndex);
+    }
+
+    /**
+     * @return the index of the timestep that should be on the map now.
+     */
+    private int getDueIndex() {
+        return startIndex + (int) ((System.nanoTime() - startNanos) * targetFps / 1E9);
+    }
+
+    private void produce() {
+        int next = startIndex;
+        try {
+            while( running && next < timestepsCount ) {
+                int due = getDueIndex();
+                if (next < due) {
+                    // too late for these, go for the one due now
+                    skippedFrames.addAndGet(due - next);
+                    next = due;
+                    if (next >= timestepsCount) {
+                        break;
+                    }
+                }
+                ResultsFrame frame = producer.createFrame(next);
+                if (frame != null) {
+                    while( running && !frames.offer(frame, 100, TimeUnit.MILLISECONDS) ) {
+                        // wait for the ticker to make room
+                    }
+                }
+                next++;
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (Exception e) {
+            logger.error("ERROR", e);
+        } finally {
+            producerDone = true;
+        }
+    }
+
+    private void tick() {
+        try {
+            int due = getDueIndex();
+            ResultsFrame toShow = null;
+            ResultsFrame frame;
+            while( (frame = frames.peek()) != null && frame.getTimeIndex() <= due ) {
+                frames.poll();
+                if (toShow != null) {
+                    skippedFrames.incrementAndGet();
+                }
+                toShow = frame;
+            }
+            if (toShow != null && running) {
+                toShow.apply();
+                lastShownIndex = toShow.getTimeIndex();
+                shownFrames++;
+                periodFrames++;
+                listener.frameShown(toShow);
+            }
+
+            long now = System.nanoTime();
+            if (now - periodStartNanos >= 1000000000L) {
+                listener.framesPerSecond(periodFrames * 1E9 / (now - periodStartNanos), skippedFrames.get());
+                periodStartNanos = now;
+                periodFrames = 0;
+            }
+
+            if (producerDone && frames.isEmpty()) {
+                stop();
+            }
+        } catch (Exception e) {
+            logger.error("ERROR", e);
+            stop();
+        }
+    }
+}
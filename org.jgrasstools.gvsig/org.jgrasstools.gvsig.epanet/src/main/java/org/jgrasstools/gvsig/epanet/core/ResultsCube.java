@@ -0,0 +1,423 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import static org.jgrasstools.gvsig.epanet.core.TimestepResults.*;
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jgrasstools.gvsig.epanet.database.EpanetRun;
+import org.jgrasstools.gvsig.epanet.database.ILinkResults;
+import org.jgrasstools.gvsig.epanet.database.INodeResults;
+import org.jgrasstools.hortonmachine.modules.networktools.epanet.OmsEpanet;
+import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.ResultsLinkParameters;
+import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.ResultsNodeParameters;
+import org.joda.time.DateTime;
+
+import com.j256.ormlite.jdbc.JdbcDatabaseConnection;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.support.DatabaseConnection;
+
+/**
+ * All the values of one variable of a run, held in memory as <code>float[time][element]</code>
+ * for each results table of the variable's element kind (nodes or links).
+ *
+ * <p>Once loaded, a timestep is styled with array lookups only. The range of the
+ * variable over the element kind is precomputed for every timestep.</p>
+ *
+ * <p>Cubes of the row based results tables are {@link #loadColumns(ConnectionSource, String[], EpanetRun, ResultsNodeParameters, ResultsLinkParameters) loaded}
+ * with one query per table on the column of the variable, the other layouts through
+ * the timestep reads of their {@link IResultsReader reader}.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class ResultsCube {
+
+    private final String key;
+    private final String[] tables;
+    private final long[] times;
+    private final String[][] ids;
+    private final float[][][] values;
+    private final float[][] minMax;
+
+    private ResultsCube( String key, String[] tables, long[] times ) {
+        this.key = key;
+        this.tables = tables;
+        this.times = times;
+        ids = new String[tables.length][];
+        values = new float[tables.length][times.length][];
+        minMax = new float[times.length][];
+    }
+
+    /**
+     * Get the cache key of the cube of a variable.
+     *
+     * @param run the run.
+     * @param nodeVar the node variable. One of linkVar or this has to be != null.
+     * @param linkVar the link variable. One of nodeVar or this has to be != null.
+     * @return the key.
+     */
+    public static String getKey( EpanetRun run, ResultsNodeParameters nodeVar, ResultsLinkParameters linkVar ) {
+        if (nodeVar != null) {
+            return run.getId() + "/NODE/" + nodeVar.name();
+        }
+        return run.getId() + "/LINK/" + linkVar.name();
+    }
+
+    /**
+     * Load the cube of a variable.
+     *
+     * @param reader the reader to load the values from.
+     * @param run the run.
+     * @param nodeVar the node variable. One of linkVar or this has to be != null.
+     * @param linkVar the link variable. One of nodeVar or this has to be != null.
+     * @return the loaded cube.
+     * @throws Exception
+     */
+    public static ResultsCube load( IResultsReader reader, EpanetRun run, ResultsNodeParameters nodeVar,
+            ResultsLinkParameters linkVar ) throws Exception {
+        long[] times = parseTimes(reader.getTimesList(run));
+        int timesCount = times.length;
+
+        String[] tables = nodeVar != null ? NODE_TABLES : LINK_TABLES;
+        ResultsCube cube = new ResultsCube(getKey(run, nodeVar, linkVar), tables, times);
+        for( int t = 0; t < timesCount; t++ ) {
+            DateTime time = new DateTime(times[t]);
+            for( int tab = 0; tab < tables.length; tab++ ) {
+                float[] slice;
+                if (nodeVar != null) {
+                    List<INodeResults> results = reader.getResults4Nodes(tables[tab], run, time);
+                    slice = cube.newSlice(tab, results.size());
+                    int i = 0;
+                    for( INodeResults result : results ) {
+                        if (i == slice.length) {
+                            break;
+                        }
+                        cube.setId(tab, i, result.getId());
+                        slice[i++] = (float) EpanetResultsStyler.getValue(nodeVar, result);
+                    }
+                } else {
+                    List<ILinkResults> results = reader.getResults4Links(tables[tab], run, time);
+                    slice = cube.newSlice(tab, results.size());
+                    int i = 0;
+                    for( ILinkResults result : results ) {
+                        if (i == slice.length) {
+                            break;
+                        }
+                        cube.setId(tab, i, result.getId());
+                        slice[i++] = (float) EpanetResultsStyler.getValue(linkVar, result);
+                    }
+                }
+                cube.values[tab][t] = slice;
+            }
+        }
+        cube.computeMinMax(nodeVar, linkVar);
+        return cube;
+    }
+
+    /**
+     * Load the cube of a variable from the row based results tables.
+     *
+     * <p>Every table is read with a single query on the column of the variable, ordered by
+     * time and work, straight into the slices, without building a result object per row.</p>
+     *
+     * @param connectionSource the connection to the results database.
+     * @param timesList the timesteps of the run, as given by {@link IResultsReader#getTimesList(EpanetRun)}.
+     * @param run the run.
+     * @param nodeVar the node variable. One of linkVar or this has to be != null.
+     * @param linkVar the link variable. One of nodeVar or this has to be != null.
+     * @return the loaded cube.
+     * @throws SQLException
+     */
+    public static ResultsCube loadColumns( ConnectionSource connectionSource, String[] timesList, EpanetRun run,
+            ResultsNodeParameters nodeVar, ResultsLinkParameters linkVar ) throws SQLException {
+        long[] times = parseTimes(timesList);
+        String[] tables = nodeVar != null ? NODE_TABLES : LINK_TABLES;
+        String column = nodeVar != null ? NODE_COLUMNS[getVariableIndex(nodeVar)] : LINK_COLUMNS[getVariableIndex(linkVar)];
+        ResultsCube cube = new ResultsCube(getKey(run, nodeVar, linkVar), tables, times);
+
+        DatabaseConnection databaseConnection = connectionSource.getReadOnlyConnection();
+        try {
+            Connection connection = ((JdbcDatabaseConnection) databaseConnection).getInternalConnection();
+            for( int tab = 0; tab < tables.length; tab++ ) {
+                String table = tables[tab];
+                long[] workOids = cube.readElements(connection, tab, run, times);
+                for( int t = 0; t < times.length; t++ ) {
+                    float[] slice = new float[workOids.length];
+                    Arrays.fill(slice, -9999f);
+                    cube.values[tab][t] = slice;
+                }
+                if (times.length == 0 || !Arrays.asList(EpanetResultsSchema.getValueColumns(table)).contains(column)) {
+                    // ex. pipes and valves have no energy
+                    continue;
+                }
+                PreparedStatement statement = connection.prepareStatement("SELECT " + WORK_ID + ", " + UTCTIME + ", "
+                        + column + " FROM " + table + " WHERE " + RUN_ID + "=? ORDER BY " + UTCTIME + ", " + WORK_ID);
+                try {
+                    statement.setLong(1, run.getId());
+                    ResultSet resultSet = statement.executeQuery();
+                    try {
+                        int t = 0;
+                        while( resultSet.next() ) {
+                            long time = resultSet.getLong(2);
+                            // the rows are ordered by time, the timestep only moves forward
+                            while( t < times.length && times[t] < time ) {
+                                t++;
+                            }
+                            if (t == times.length) {
+                                break;
+                            }
+                            if (times[t] != time) {
+                                continue;
+                            }
+                            int element = Arrays.binarySearch(workOids, resultSet.getLong(1));
+                            if (element >= 0) {
+                                cube.values[tab][t][element] = resultSet.getFloat(3);
+                            }
+                        }
+                    } finally {
+                        resultSet.close();
+                    }
+                } finally {
+                    statement.close();
+                }
+            }
+        } finally {
+            connectionSource.releaseConnection(databaseConnection);
+        }
+        cube.computeMinMax(nodeVar, linkVar);
+        return cube;
+    }
+
+    /**
+     * Read the elements of a table, those of the first timestep, ordered by work oid.
+     *
+     * @return the sorted work oids, the ids are set in the same order.
+     */
+    private long[] readElements( Connection connection, int tableIndex, EpanetRun run, long[] times ) throws SQLException {
+        String table = tables[tableIndex];
+        String workTable = getWorkTable(table);
+        if (times.length == 0) {
+            ids[tableIndex] = new String[0];
+            return new long[0];
+        }
+        PreparedStatement statement = connection.prepareStatement("SELECT " + OID + ", " + ID + " FROM " + workTable
+                + " WHERE " + OID + " IN (SELECT " + WORK_ID + " FROM " + table + " WHERE " + RUN_ID + "=? AND " + UTCTIME
+                + "=?) ORDER BY " + OID);
+        try {
+            statement.setLong(1, run.getId());
+            statement.setLong(2, times[0]);
+            ResultSet resultSet = statement.executeQuery();
+            try {
+                List<Long> oids = new ArrayList<Long>();
+                List<String> elementIds = new ArrayList<String>();
+                while( resultSet.next() ) {
+                    oids.add(resultSet.getLong(1));
+                    elementIds.add(resultSet.getString(2));
+                }
+                ids[tableIndex] = elementIds.toArray(new String[elementIds.size()]);
+                long[] sortedOids = new long[oids.size()];
+                for( int i = 0; i < sortedOids.length; i++ ) {
+                    sortedOids[i] = oids.get(i);
+                }
+                return sortedOids;
+            } finally {
+                resultSet.close();
+            }
+        } finally {
+            statement.close();
+        }
+    }
+
+    private static String getWorkTable( String resultTable ) {
+        for( int i = 0; i < EpanetResultsSchema.RESULT_TABLES.length; i++ ) {
+            if (EpanetResultsSchema.RESULT_TABLES[i].equals(resultTable)) {
+                return NetworkVersions.WORK_TABLES[i];
+            }
+        }
+        throw new IllegalArgumentException("Not a results table: " + resultTable);
+    }
+
+    private static long[] parseTimes( String[] timesList ) {
+        // the first entry is the empty selection
+        int timesCount = Math.max(0, timesList.length - 1);
+        long[] times = new long[timesCount];
+        for( int t = 0; t < timesCount; t++ ) {
+            times[t] = OmsEpanet.formatter.parseDateTime(timesList[t + 1]).getMillis();
+        }
+        return times;
+    }
+
+    private void computeMinMax( ResultsNodeParameters nodeVar, ResultsLinkParameters linkVar ) {
+        for( int t = 0; t < times.length; t++ ) {
+            float[] timeMinMax = {Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY};
+            for( int tab = 0; tab < tables.length; tab++ ) {
+                if (!isInRange(tables[tab], nodeVar, linkVar)) {
+                    continue;
+                }
+                for( float value : values[tab][t] ) {
+                    if (value == -9999f) {
+                        // elements missing at the timestep
+                        continue;
+                    }
+                    if (value < timeMinMax[0]) {
+                        timeMinMax[0] = value;
+                    }
+                    if (value > timeMinMax[1]) {
+                        timeMinMax[1] = value;
+                    }
+                }
+            }
+            minMax[t] = timeMinMax;
+        }
+    }
+
+    /**
+     * Same exclusions as the readers: pipes and valves have no energy, reservoirs no pressure.
+     */
+    private static boolean isInRange( String table, ResultsNodeParameters nodeVar, ResultsLinkParameters linkVar ) {
+        if (nodeVar == ResultsNodeParameters.PRESSURE && table.equals(RESERVOIRSRESULT)) {
+            return false;
+        }
+        if (linkVar == ResultsLinkParameters.ENERGY && !table.equals(PUMPSRESULT)) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Create the slice of a timestep, sized on the elements of the first loaded timestep.
+     */
+    private float[] newSlice( int tableIndex, int elementsCount ) {
+        if (ids[tableIndex] == null) {
+            ids[tableIndex] = new String[elementsCount];
+        }
+        float[] slice = new float[ids[tableIndex].length];
+        if (elementsCount < slice.length) {
+            Arrays.fill(slice, -9999f);
+        }
+        return slice;
+    }
+
+    private void setId( int tableIndex, int element, String id ) {
+        if (ids[tableIndex][element] == null) {
+            ids[tableIndex][element] = id;
+        }
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public int getTimestepsCount() {
+        return times.length;
+    }
+
+    /**
+     * Get the index of a timestep.
+     *
+     * @param time the time.
+     * @return the index of the timestep or a negative value if it is not in the cube.
+     */
+    public int getTimeIndex( DateTime time ) {
+        return Arrays.binarySearch(times, time.getMillis());
+    }
+
+    /**
+     * @param resultTable the results table.
+     * @return the ids of the elements of the table, in slice order.
+     */
+    public String[] getIds( String resultTable ) {
+        String[] tableIds = ids[getTableIndex(resultTable)];
+        return tableIds != null ? tableIds : new String[0];
+    }
+
+    /**
+     * Get the values of the elements of a results table at a timestep.
+     *
+     * <p>The returned array is the cube's own and must not be modified.</p>
+     *
+     * @param resultTable the results table.
+     * @param timeIndex the timestep index.
+     * @return the values, in the order of {@link #getIds(String)}.
+     */
+    public float[] getSlice( String resultTable, int timeIndex ) {
+        return values[getTableIndex(resultTable)][timeIndex];
+    }
+
+    /**
+     * @param timeIndex the timestep index.
+     * @return the min and max of the variable over all the element tables at the timestep.
+     */
+    public float[] getMinMax( int timeIndex ) {
+        return minMax[timeIndex].clone();
+    }
+
+    /**
+     * Replace the range of a timestep, as when it is read from the summary of the run.
+     *
+     * @param timeIndex the timestep index.
+     * @param timeMinMax the min and max of the variable at the timestep.
+     */
+    void setMinMax( int timeIndex, float[] timeMinMax ) {
+        minMax[timeIndex] = timeMinMax;
+    }
+
+    /**
+     * @return the min and max of the variable over all the element tables and timesteps.
+     */
+    public float[] getRange() {
+        float[] range = {Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        for( float[] timeMinMax : minMax ) {
+            range[0] = Math.min(range[0], timeMinMax[0]);
+            range[1] = Math.max(range[1], timeMinMax[1]);
+        }
+        return range;
+    }
+
+    /**
+     * @return the approximate memory used by the values of the cube.
+     */
+    public long getSizeInBytes() {
+        // times and ranges
+        long size = 8L * times.length + 24L * times.length;
+        for( int tab = 0; tab < tables.length; tab++ ) {
+            int elementsCount = ids[tab] != null ? ids[tab].length : 0;
+            // values plus the array headers of the slices
+            size += (4L * elementsCount + 16L) * times.length;
+        }
+        return size;
+    }
+
+    private int getTableIndex( String resultTable ) {
+        for( int i = 0; i < tables.length; i++ ) {
+            if (tables[i].equals(resultTable)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Results table not in the cube: " + resultTable);
+    }
+}
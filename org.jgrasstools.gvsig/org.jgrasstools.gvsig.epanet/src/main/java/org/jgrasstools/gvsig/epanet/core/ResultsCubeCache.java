@@ -0,0 +1,194 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.jgrasstools.gvsig.epanet.database.EpanetRun;
+import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.ResultsLinkParameters;
+import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.ResultsNodeParameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Memory bounded cache of {@link ResultsCube results cubes}, across runs and variables.
+ *
+ * <p>Cubes are loaded by a single background thread, so that loads and prefetches never
+ * compete for the database connection. When the cached cubes exceed the memory ceiling,
+ * the least recently used ones are evicted. A cube bigger than the ceiling is handed
+ * out but not kept.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class ResultsCubeCache {
+    private static final Logger logger = LoggerFactory.getLogger(ResultsCubeCache.class);
+
+    private final LinkedHashMap<String, ResultsCube> cubes = new LinkedHashMap<String, ResultsCube>(16, 0.75f, true);
+    private final HashMap<String, Future<ResultsCube>> loading = new HashMap<String, Future<ResultsCube>>();
+    private final ExecutorService loader;
+    private final long memoryCeiling;
+    private long usedMemory = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param memoryCeiling the maximum memory in bytes used by the cached cubes.
+     */
+    public ResultsCubeCache( long memoryCeiling ) {
+        this.memoryCeiling = memoryCeiling;
+        loader = Executors.newSingleThreadExecutor(new ThreadFactory(){
+            public Thread newThread( Runnable r ) {
+                Thread thread = new Thread(r, "epanet-results-cubes");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Get the cube of a variable, waiting for it to be loaded if necessary.
+     *
+     * @param reader the reader to load the values from.
+     * @param run the run.
+     * @param nodeVar the node variable. One of linkVar or this has to be != null.
+     * @param linkVar the link variable. One of nodeVar or this has to be != null.
+     * @return the cube.
+     * @throws Exception
+     */
+    public ResultsCube get( IResultsReader reader, EpanetRun run, ResultsNodeParameters nodeVar,
+            ResultsLinkParameters linkVar ) throws Exception {
+        Future<ResultsCube> future;
+        synchronized (this) {
+            ResultsCube cube = cubes.get(ResultsCube.getKey(run, nodeVar, linkVar));
+            if (cube != null) {
+                return cube;
+            }
+            future = submit(reader, run, nodeVar, linkVar);
+        }
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Get the cube of a variable, if it is already loaded.
+     *
+     * @param run the run.
+     * @param nodeVar the node variable. One of linkVar or this has to be != null.
+     * @param linkVar the link variable. One of nodeVar or this has to be != null.
+     * @return the cube or <code>null</code>, if it is not loaded yet.
+     */
+    public synchronized ResultsCube getIfLoaded( EpanetRun run, ResultsNodeParameters nodeVar,
+            ResultsLinkParameters linkVar ) {
+        return cubes.get(ResultsCube.getKey(run, nodeVar, linkVar));
+    }
+
+    /**
+     * Start loading the cube of a variable in the background, if it is not available yet.
+     *
+     * @param reader the reader to load the values from.
+     * @param run the run.
+     * @param nodeVar the node variable. One of linkVar or this has to be != null.
+     * @param linkVar the link variable. One of nodeVar or this has to be != null.
+     */
+    public synchronized void prefetch( IResultsReader reader, EpanetRun run, ResultsNodeParameters nodeVar,
+            ResultsLinkParameters linkVar ) {
+        if (!cubes.containsKey(ResultsCube.getKey(run, nodeVar, linkVar))) {
+            submit(reader, run, nodeVar, linkVar);
+        }
+    }
+
+    private Future<ResultsCube> submit( final IResultsReader reader, final EpanetRun run,
+            final ResultsNodeParameters nodeVar, final ResultsLinkParameters linkVar ) {
+        final String key = ResultsCube.getKey(run, nodeVar, linkVar);
+        Future<ResultsCube> future = loading.get(key);
+        if (future == null) {
+            future = loader.submit(new Callable<ResultsCube>(){
+                public ResultsCube call() throws Exception {
+                    try {
+                        long t0 = System.currentTimeMillis();
+                        ResultsCube cube = reader.loadCube(run, nodeVar, linkVar);
+                        logger.info("Loaded results cube " + key + " (" + cube.getSizeInBytes() / 1024 + " KB) in "
+                                + (System.currentTimeMillis() - t0) + " ms");
+                        put(cube);
+                        return cube;
+                    } finally {
+                        synchronized (ResultsCubeCache.this) {
+                            loading.remove(key);
+                        }
+                    }
+                }
+            });
+            loading.put(key, future);
+        }
+        return future;
+    }
+
+    private synchronized void put( ResultsCube cube ) {
+        long size = cube.getSizeInBytes();
+        if (size > memoryCeiling) {
+            return;
+        }
+        ResultsCube previous = cubes.put(cube.getKey(), cube);
+        if (previous != null) {
+            usedMemory -= previous.getSizeInBytes();
+        }
+        usedMemory += size;
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Entry<String, ResultsCube>> iterator = cubes.entrySet().iterator();
+        while( usedMemory > memoryCeiling && iterator.hasNext() ) {
+            ResultsCube eldest = iterator.next().getValue();
+            usedMemory -= eldest.getSizeInBytes();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Remove all the cached cubes.
+     */
+    public synchronized void clear() {
+        cubes.clear();
+        usedMemory = 0;
+    }
+
+    /**
+     * Clear the cache and stop the loading thread.
+     */
+    public synchronized void dispose() {
+        clear();
+        loader.shutdownNow();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map.Entry;
+
+import org.gvsig.fmap.mapcontext.layers.vectorial.FLyrVect;
+import org.gvsig.fmap.mapcontext.rendering.legend.IVectorLegend;
+import org.joda.time.DateTime;
+
+/**
+ * The legends of the network layers at one timestep, computed ahead of being shown on the map.
+ *
+ * <p>Layers joined with the results through a {@link ResultsJoinTransform} only get their
+ * values column swapped, the legend is set only when it changes.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class ResultsFrame {
+
+    private final int timeIndex;
+    private final DateTime time;
+    private final LinkedHashMap<FLyrVect, IVectorLegend> legends = new LinkedHashMap<FLyrVect, IVectorLegend>();
+    private final LinkedHashMap<FLyrVect, Object[]> columns = new LinkedHashMap<FLyrVect, Object[]>();
+
+    public ResultsFrame( int timeIndex, DateTime time ) {
+        this.timeIndex = timeIndex;
+        this.time = time;
+    }
+
+    /**
+     * @return the index of the timestep in the timeline.
+     */
+    public int getTimeIndex() {
+        return timeIndex;
+    }
+
+    public DateTime getTime() {
+        return time;
+    }
+
+    public void addLegend( FLyrVect layer, IVectorLegend legend ) {
+        legends.put(layer, legend);
+    }
+
+    /**
+     * Add the values column of a layer joined with the results.
+     *
+     * @param layer the layer.
+     * @param transform the join of the layer.
+     * @param ids the ids of the elements.
+     * @param values the values of the elements at the timestep.
+     */
+    public void addValues( FLyrVect layer, ResultsJoinTransform transform, String[] ids, float[] values ) {
+        columns.put(layer, new Object[]{transform, ids, values});
+    }
+
+    /**
+     * Set the values columns and the legends on their layers.
+     *
+     * @throws Exception
+     */
+    public void apply() throws Exception {
+        LinkedHashSet<FLyrVect> toRepaint = new LinkedHashSet<FLyrVect>();
+        for( Entry<FLyrVect, Object[]> entry : columns.entrySet() ) {
+            Object[] column = entry.getValue();
+            ((ResultsJoinTransform) column[0]).setValues((String[]) column[1], (float[]) column[2]);
+            toRepaint.add(entry.getKey());
+        }
+        for( Entry<FLyrVect, IVectorLegend> entry : legends.entrySet() ) {
+            entry.getKey().setLegend(entry.getValue());
+            // setting the legend already repaints
+            toRepaint.remove(entry.getKey());
+        }
+        if (!toRepaint.isEmpty()) {
+            toRepaint.iterator().next().getMapContext().invalidate();
+        }
+    }
+}
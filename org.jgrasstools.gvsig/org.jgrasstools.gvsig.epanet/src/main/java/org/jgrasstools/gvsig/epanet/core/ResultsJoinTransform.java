@@ -0,0 +1,169 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.gvsig.fmap.dal.DataTypes;
+import org.gvsig.fmap.dal.exception.DataException;
+import org.gvsig.fmap.dal.feature.AbstractFeatureStoreTransform;
+import org.gvsig.fmap.dal.feature.EditableFeature;
+import org.gvsig.fmap.dal.feature.EditableFeatureType;
+import org.gvsig.fmap.dal.feature.Feature;
+import org.gvsig.fmap.dal.feature.FeatureAttributeDescriptor;
+import org.gvsig.fmap.dal.feature.FeatureStore;
+import org.gvsig.fmap.dal.feature.FeatureStoreTransforms;
+import org.gvsig.fmap.dal.feature.FeatureType;
+import org.gvsig.fmap.mapcontext.layers.vectorial.FLyrVect;
+
+/**
+ * Transform joining the features of a network layer with the results of one timestep.
+ *
+ * <p>The layer gets the {@link EpanetResultsStyler#RESULT_FIELD} attribute, read by <code>id</code>
+ * from the current values column. Changing timestep only swaps the column, so that one attribute
+ * driven legend can be kept on the layer for the whole timeline.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class ResultsJoinTransform extends AbstractFeatureStoreTransform {
+
+    private static final String ID = "id";
+    private static final float NO_DATA = -9999f;
+
+    private final FeatureType sourceFeatureType;
+
+    /**
+     * The column of values shown, swapped as a whole.
+     */
+    private volatile Column column = new Column(new String[0], new HashMap<String, Integer>(), new float[0]);
+
+    private ResultsJoinTransform( FeatureStore store ) throws DataException {
+        setFeatureStore(store);
+        sourceFeatureType = store.getDefaultFeatureType();
+        EditableFeatureType targetFeatureType = sourceFeatureType.getEditable();
+        targetFeatureType.add(EpanetResultsStyler.RESULT_FIELD, DataTypes.DOUBLE);
+        FeatureType target = targetFeatureType.getNotEditableCopy();
+        setFeatureTypes(Arrays.asList(new FeatureType[]{target}), target);
+    }
+
+    /**
+     * Get the results join of a layer, adding it if it is not there yet.
+     *
+     * @param layer the network layer.
+     * @return the join of the layer.
+     * @throws DataException
+     */
+    public static ResultsJoinTransform install( FLyrVect layer ) throws DataException {
+        ResultsJoinTransform transform = get(layer);
+        if (transform == null) {
+            FeatureStore store = layer.getFeatureStore();
+            transform = new ResultsJoinTransform(store);
+            store.getTransforms().add(transform);
+        }
+        return transform;
+    }
+
+    /**
+     * Remove the results join from a layer, if there is one.
+     *
+     * @param layer the network layer.
+     */
+    public static void uninstall( FLyrVect layer ) {
+        ResultsJoinTransform transform = get(layer);
+        if (transform != null) {
+            layer.getFeatureStore().getTransforms().remove(transform);
+        }
+    }
+
+    /**
+     * @param layer the network layer.
+     * @return the results join of the layer or <code>null</code>.
+     */
+    public static ResultsJoinTransform get( FLyrVect layer ) {
+        FeatureStoreTransforms transforms = layer.getFeatureStore().getTransforms();
+        Iterator< ? > iterator = transforms.iterator();
+        while( iterator.hasNext() ) {
+            Object transform = iterator.next();
+            if (transform instanceof ResultsJoinTransform) {
+                return (ResultsJoinTransform) transform;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Set the values shown by the layer.
+     *
+     * <p>The ids lookup is only rebuilt if the ids array changes, which for a run
+     * read from a results cube or binary file happens only when the run changes.</p>
+     *
+     * @param ids the ids of the elements.
+     * @param values the values, in the order of the ids. The array is not copied.
+     */
+    public void setValues( String[] ids, float[] values ) {
+        Column current = column;
+        if (current.ids == ids) {
+            column = new Column(ids, current.indexes, values);
+            return;
+        }
+        HashMap<String, Integer> indexes = new HashMap<String, Integer>(ids.length * 2);
+        for( int i = 0; i < ids.length; i++ ) {
+            indexes.put(ids[i], i);
+        }
+        column = new Column(ids, indexes, values);
+    }
+
+    public FeatureType getSourceFeatureTypeFrom( FeatureType targetFeatureType ) {
+        return sourceFeatureType;
+    }
+
+    public void applyTransform( Feature source, EditableFeature target ) throws DataException {
+        for( FeatureAttributeDescriptor attribute : source.getType().getAttributeDescriptors() ) {
+            String name = attribute.getName();
+            target.set(name, source.get(name));
+        }
+        Column current = column;
+        Object id = source.get(ID);
+        Integer index = id != null ? current.indexes.get(id.toString()) : null;
+        if (index == null || index >= current.values.length || current.values[index] == NO_DATA) {
+            // virtual pipes and elements without data
+            target.set(EpanetResultsStyler.RESULT_FIELD, null);
+        } else {
+            target.setDouble(EpanetResultsStyler.RESULT_FIELD, current.values[index]);
+        }
+    }
+
+    public boolean isTransformsOriginalValues() {
+        return false;
+    }
+
+    private static class Column {
+        final String[] ids;
+        final HashMap<String, Integer> indexes;
+        final float[] values;
+
+        Column( String[] ids, HashMap<String, Integer> indexes, float[] values ) {
+            this.ids = ids;
+            this.indexes = indexes;
+            this.values = values;
+        }
+    }
+}
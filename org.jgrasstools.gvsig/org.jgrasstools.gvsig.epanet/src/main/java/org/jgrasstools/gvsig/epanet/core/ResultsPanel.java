@@ -17,6 +17,8 @@
  */
 package org.jgrasstools.gvsig.epanet.core;
 
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
 import java.awt.Dimension;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
@@ -27,42 +29,47 @@ import java.awt.event.ComponentEvent;
 import java.awt.event.ComponentListener;
 import java.io.File;
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.swing.BorderFactory;
 import javax.swing.DefaultComboBoxModel;
+import javax.swing.JButton;
 import javax.swing.JComboBox;
 import javax.swing.JComponent;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JSpinner;
 import javax.swing.JTextArea;
+import javax.swing.SpinnerNumberModel;
 import javax.swing.SwingUtilities;
 
 import org.gvsig.fmap.mapcontext.MapContext;
 import org.gvsig.fmap.mapcontext.layers.FLayer;
 import org.gvsig.fmap.mapcontext.layers.FLayers;
 import org.gvsig.fmap.mapcontext.layers.vectorial.FLyrVect;
-import org.gvsig.symbology.fmap.mapcontext.rendering.legend.impl.VectorialUniqueValueLegend;
+import org.gvsig.fmap.mapcontext.rendering.legend.IVectorLegend;
 import org.gvsig.tools.swing.api.Component;
 import org.gvsig.tools.swing.api.ToolsSwingLocator;
 import org.gvsig.tools.swing.api.threadsafedialogs.ThreadSafeDialogsManager;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+import org.jgrasstools.gears.libs.monitor.LogProgressMonitor;
 import org.jgrasstools.gvsig.base.ProjectUtilities;
+import org.jgrasstools.gvsig.epanet.core.EpanetResultsStyler.LegendMode;
+import org.jgrasstools.gvsig.epanet.core.ResultsAnimator.IAnimationListener;
+import org.jgrasstools.gvsig.epanet.core.ResultsAnimator.IFrameProducer;
 import org.jgrasstools.gvsig.epanet.database.EpanetRun;
 import org.jgrasstools.gvsig.epanet.database.ILinkResults;
 import org.jgrasstools.gvsig.epanet.database.INodeResults;
-import org.jgrasstools.gvsig.epanet.database.JunctionsResultsTable;
 import org.jgrasstools.gvsig.epanet.database.JunctionsTable;
-import org.jgrasstools.gvsig.epanet.database.PipesResultsTable;
 import org.jgrasstools.gvsig.epanet.database.PipesTable;
-import org.jgrasstools.gvsig.epanet.database.PumpsResultsTable;
 import org.jgrasstools.gvsig.epanet.database.PumpsTable;
-import org.jgrasstools.gvsig.epanet.database.ReservoirsResultsTable;
 import org.jgrasstools.gvsig.epanet.database.ReservoirsTable;
-import org.jgrasstools.gvsig.epanet.database.TanksResultsTable;
 import org.jgrasstools.gvsig.epanet.database.TanksTable;
-import org.jgrasstools.gvsig.epanet.database.ValvesResultsTable;
 import org.jgrasstools.gvsig.epanet.database.ValvesTable;
 import org.jgrasstools.hortonmachine.modules.networktools.epanet.OmsEpanet;
 import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.EpanetFeatureTypes;
@@ -91,9 +98,22 @@ public class ResultsPanel extends JPanel implements Component {
     private File resultsFile;
 
     private ConnectionSource connectionSource = null;
-    private Dao<INodeResults, Long> junctionsResultDao;
+    private ConnectionSource runConnectionSource = null;
+    private ConnectionSource readersConnectionSource = null;
+    private IResultsReader resultsReader;
+    private IResultsReader daoResultsReader;
+    private ColumnarResultsReader columnarResultsReader;
+    private IResultsReader summaryColumnarResultsReader;
+    private BinaryResultsReader binaryResultsReader;
+    private ResultsCubeCache cubeCache = new ResultsCubeCache(Runtime.getRuntime().maxMemory() / 4);
 
     private JComboBox<String> timeCombo;
+    private volatile boolean adjustingTimeCombo = false;
+    private JButton playButton;
+    private JSpinner fpsSpinner;
+    private JLabel frameLabel;
+    private JLabel fpsLabel;
+    private ResultsAnimator animator;
 
     private JComboBox<String> nodesPlotCombo;
 
@@ -104,15 +124,10 @@ public class ResultsPanel extends JPanel implements Component {
 
     private ResultsNodeParameters currentSelectedNodeVar;
 
-    private Dao<ILinkResults, Long> pipesResultDao;
-
-    private Dao<ILinkResults, Long> pumpsResultDao;
-
-    private Dao<ILinkResults, Long> valvesResultDao;
-
-    private Dao<INodeResults, Long> tanksResultDao;
-
-    private Dao<INodeResults, Long> reservoirsResultDao;
+    private volatile LegendMode legendMode = LegendMode.ELEMENTS;
+    private final Map<FLyrVect, IVectorLegend> joinedLegends = new ConcurrentHashMap<FLyrVect, IVectorLegend>();
+    private final Map<FLyrVect, String> joinedLegendKeys = new ConcurrentHashMap<FLyrVect, String>();
+    private final Map<String, float[]> runRanges = new ConcurrentHashMap<String, float[]>();
 
     public ResultsPanel( File resultsFile ) {
         this.resultsFile = resultsFile;
@@ -150,6 +165,10 @@ public class ResultsPanel extends JPanel implements Component {
     }
 
     private void freeResources() {
+        stopPlayback();
+        removeJoins();
+        cubeCache.dispose();
+        closeRunConnection();
         if (connectionSource != null)
             try {
                 connectionSource.close();
@@ -158,7 +177,6 @@ public class ResultsPanel extends JPanel implements Component {
             }
     }
 
-    @SuppressWarnings("unchecked")
     private void init() {
         setLayout(new GridBagLayout());
         Insets insets = new Insets(5, 5, 5, 5);
@@ -209,22 +227,11 @@ public class ResultsPanel extends JPanel implements Component {
         try {
             String databaseUrl = "jdbc:sqlite:" + resultsFile.getAbsolutePath();
             connectionSource = new JdbcConnectionSource(databaseUrl);
+            // databases from older versions miss the newer columns of the network tables
+            NetworkImporter.addWkbColumns(connectionSource);
+            NetworkVersions.addNetworkColumns(connectionSource);
 
-            Dao<EpanetRun, Long> epanetRunDao = DaoManager.createDao(connectionSource, EpanetRun.class);
-
-            Class<INodeResults> clazzNode = (Class<INodeResults>) Class.forName(JunctionsResultsTable.class.getCanonicalName());
-            junctionsResultDao = DaoManager.createDao(connectionSource, clazzNode);
-            clazzNode = (Class<INodeResults>) Class.forName(TanksResultsTable.class.getCanonicalName());
-            tanksResultDao = DaoManager.createDao(connectionSource, clazzNode);
-            clazzNode = (Class<INodeResults>) Class.forName(ReservoirsResultsTable.class.getCanonicalName());
-            reservoirsResultDao = DaoManager.createDao(connectionSource, clazzNode);
-
-            Class<ILinkResults> clazzLink = (Class<ILinkResults>) Class.forName(PipesResultsTable.class.getCanonicalName());
-            pipesResultDao = DaoManager.createDao(connectionSource, clazzLink);
-            clazzLink = (Class<ILinkResults>) Class.forName(PumpsResultsTable.class.getCanonicalName());
-            pumpsResultDao = DaoManager.createDao(connectionSource, clazzLink);
-            clazzLink = (Class<ILinkResults>) Class.forName(ValvesResultsTable.class.getCanonicalName());
-            valvesResultDao = DaoManager.createDao(connectionSource, clazzLink);
+            createReaders(connectionSource);
 
             final Dao<JunctionsTable, Long> junctionsDao = DaoManager.createDao(connectionSource, JunctionsTable.class);
             final Dao<PipesTable, Long> pipesDao = DaoManager.createDao(connectionSource, PipesTable.class);
@@ -237,7 +244,8 @@ public class ResultsPanel extends JPanel implements Component {
              * RUNPANEL
              */
 
-            List<EpanetRun> allRuns = epanetRunDao.queryForAll();
+            // the runs are listed without their INP, which is loaded only when needed
+            List<EpanetRun> allRuns = RunInps.listRuns(connectionSource);
 
             EpanetRun[] runs = new EpanetRun[allRuns.size() + 1];
             runs[0] = null;
@@ -260,9 +268,63 @@ public class ResultsPanel extends JPanel implements Component {
             c.weighty = 1;
             runPanel.add(descriptionArea, c);
 
+            JPanel runButtonsPanel = new JPanel(new GridBagLayout());
+            c.gridx = 0;
+            c.gridy = 2;
+            c.weightx = 1;
+            c.weighty = 0;
+            runPanel.add(runButtonsPanel, c);
+
+            JButton removeRunButton = new JButton("Remove run");
+            removeRunButton.setToolTipText("Remove the selected run and all its results.");
+            c.gridx = 0;
+            c.gridy = 0;
+            runButtonsPanel.add(removeRunButton, c);
+            removeRunButton.addActionListener(new ActionListener(){
+                public void actionPerformed( ActionEvent e ) {
+                    final EpanetRun run = (EpanetRun) runsCombo.getSelectedItem();
+                    if (run == null) {
+                        return;
+                    }
+                    int answer = dialogManager.confirmDialog("Remove the run: " + run.getTitle() + " and all its results?",
+                            "Remove run", JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
+                    if (answer != JOptionPane.YES_OPTION) {
+                        return;
+                    }
+                    removeRuns(runsCombo, run, -1);
+                }
+            });
+
+            JButton keepRunsButton = new JButton("Keep last runs");
+            keepRunsButton.setToolTipText("Remove all the runs but the most recent ones.");
+            c.gridx = 1;
+            c.gridy = 0;
+            runButtonsPanel.add(keepRunsButton, c);
+            keepRunsButton.addActionListener(new ActionListener(){
+                public void actionPerformed( ActionEvent e ) {
+                    String value = dialogManager.inputDialog("Insert the number of most recent runs to keep.", "Keep last runs");
+                    if (value == null || value.trim().length() == 0) {
+                        return;
+                    }
+                    int keepCount;
+                    try {
+                        keepCount = Integer.parseInt(value.trim());
+                    } catch (NumberFormatException e1) {
+                        keepCount = -1;
+                    }
+                    if (keepCount < 0) {
+                        dialogManager.messageDialog("The number of runs to keep has to be a positive integer.", "ERROR",
+                                JOptionPane.ERROR_MESSAGE);
+                        return;
+                    }
+                    removeRuns(runsCombo, null, keepCount);
+                }
+            });
+
             runsCombo.addActionListener(new ActionListener(){
 
                 public void actionPerformed( ActionEvent e ) {
+                    stopPlayback();
                     currentSelectedRun = (EpanetRun) runsCombo.getSelectedItem();
                     StringBuilder sb = new StringBuilder();
                     if (currentSelectedRun != null) {
@@ -276,7 +338,20 @@ public class ResultsPanel extends JPanel implements Component {
                     descriptionArea.setText(sb.toString());
 
                     try {
-                        String[] timesList = EpanetUtilities.getTimesList(junctionsResultDao, currentSelectedRun);
+                        binaryResultsReader = null;
+                        openRunReaders(currentSelectedRun);
+                        File binaryFile = currentSelectedRun != null ? BinaryResultsFile.getFile(resultsFile,
+                                currentSelectedRun) : null;
+                        if (binaryFile != null && binaryFile.exists()) {
+                            binaryResultsReader = new BinaryResultsReader(binaryFile);
+                            resultsReader = binaryResultsReader;
+                        } else if (columnarResultsReader.contains(currentSelectedRun)) {
+                            resultsReader = summaryColumnarResultsReader;
+                        } else {
+                            resultsReader = daoResultsReader;
+                        }
+                        String[] timesList = resultsReader.getTimesList(currentSelectedRun);
+                        prefetchSelected();
                         timeCombo.setModel(new DefaultComboBoxModel<String>(timesList));
                         if (timesList.length == 0) {
                             // run has no data
@@ -290,7 +365,7 @@ public class ResultsPanel extends JPanel implements Component {
                         String[] links = EpanetUtilities.getLinks(pipesDao, pumpsDao, valvesDao, currentSelectedRun);
                         linksPlotCombo.setModel(new DefaultComboBoxModel<String>(links));
 
-                    } catch (SQLException e1) {
+                    } catch (Exception e1) {
                         e1.printStackTrace();
                     }
                 }
@@ -325,6 +400,7 @@ public class ResultsPanel extends JPanel implements Component {
                     if (selectedItem instanceof String) {
                         String selectedNodeId = (String) selectedItem;
                         currentSelectedNodeVar = ResultsNodeParameters.forCode(selectedNodeId);
+                        prefetchSelected();
                     }
                 }
             });
@@ -355,6 +431,33 @@ public class ResultsPanel extends JPanel implements Component {
                     if (selectedItem instanceof String) {
                         String selectedLinkId = (String) selectedItem;
                         currentSelectedLinkVar = ResultsLinkParameters.forCode(selectedLinkId);
+                        prefetchSelected();
+                    }
+                }
+            });
+
+            JLabel legendLabel = new JLabel("Legend");
+            c.gridx = 0;
+            c.gridy = 2;
+            c.weightx = 1;
+            c.weighty = 0;
+            variablesPanel.add(legendLabel, c);
+
+            final JComboBox<String> legendCombo = new JComboBox<String>(new String[]{"One color per element",
+                    EpanetResultsStyler.DEFAULT_CLASSES_COUNT + " color classes",
+                    EpanetResultsStyler.DEFAULT_CLASSES_COUNT + " color classes on joined results"});
+            c.gridx = 1;
+            c.gridy = 2;
+            c.weightx = 1;
+            c.weighty = 0;
+            variablesPanel.add(legendCombo, c);
+            legendCombo.addActionListener(new ActionListener(){
+                public void actionPerformed( ActionEvent e ) {
+                    stopPlayback();
+                    LegendMode[] modes = {LegendMode.ELEMENTS, LegendMode.CLASSES, LegendMode.JOINED};
+                    legendMode = modes[legendCombo.getSelectedIndex()];
+                    if (legendMode != LegendMode.JOINED) {
+                        removeJoins();
                     }
                 }
             });
@@ -377,6 +480,9 @@ public class ResultsPanel extends JPanel implements Component {
             timeLinePanel.add(timeCombo, c);
             timeCombo.addActionListener(new ActionListener(){
                 public void actionPerformed( ActionEvent e ) {
+                    if (adjustingTimeCombo) {
+                        return;
+                    }
                     new Thread(new Runnable(){
                         public void run() {
                             selectTime();
@@ -386,6 +492,40 @@ public class ResultsPanel extends JPanel implements Component {
 
             });
 
+            playButton = new JButton("Play");
+            c.gridx = 0;
+            c.gridy = 1;
+            c.weightx = 1;
+            c.weighty = 0;
+            timeLinePanel.add(playButton, c);
+            playButton.addActionListener(new ActionListener(){
+                public void actionPerformed( ActionEvent e ) {
+                    togglePlayback();
+                }
+            });
+
+            fpsSpinner = new JSpinner(new SpinnerNumberModel(5, 1, 30, 1));
+            fpsSpinner.setToolTipText("Target frames per second");
+            c.gridx = 1;
+            c.gridy = 1;
+            c.weightx = 1;
+            c.weighty = 0;
+            timeLinePanel.add(fpsSpinner, c);
+
+            frameLabel = new JLabel(" ");
+            c.gridx = 0;
+            c.gridy = 2;
+            c.weightx = 1;
+            c.weighty = 0;
+            timeLinePanel.add(frameLabel, c);
+
+            fpsLabel = new JLabel(" ");
+            c.gridx = 1;
+            c.gridy = 2;
+            c.weightx = 1;
+            c.weighty = 0;
+            timeLinePanel.add(fpsLabel, c);
+
             /*
              * PLOT PANEL
              */
@@ -408,7 +548,7 @@ public class ResultsPanel extends JPanel implements Component {
                     logger.info("Selected Node: " + selectedNode);
                     if (currentSelectedRun != null)
                         try {
-                            EpanetUtilities.chartNode(connectionSource, currentSelectedRun, selectedNode, currentSelectedNodeVar);
+                            EpanetUtilities.chartNode(resultsReader, currentSelectedRun, selectedNode, currentSelectedNodeVar);
                         } catch (Exception e1) {
                             e1.printStackTrace();
                         }
@@ -434,7 +574,7 @@ public class ResultsPanel extends JPanel implements Component {
                     logger.info("Selected Link: " + selectedLink);
                     if (currentSelectedRun != null)
                         try {
-                            EpanetUtilities.chartLink(connectionSource, currentSelectedRun, selectedLink, currentSelectedLinkVar);
+                            EpanetUtilities.chartLink(resultsReader, currentSelectedRun, selectedLink, currentSelectedLinkVar);
                         } catch (Exception e1) {
                             e1.printStackTrace();
                         }
@@ -448,6 +588,99 @@ public class ResultsPanel extends JPanel implements Component {
 
     }
 
+    /**
+     * Point the readers to the database holding the results of a run. That is the
+     * {@link RunFiles own database} of the run, with the catalogue attached, if it has
+     * one, else the opened database itself.
+     *
+     * @param run the run or <code>null</code>.
+     * @throws Exception
+     */
+    private void openRunReaders( EpanetRun run ) throws Exception {
+        closeRunConnection();
+        ConnectionSource readersConnection = connectionSource;
+        if (run != null) {
+            File runFile = RunFiles.getFile(resultsFile, run);
+            if (runFile.exists()) {
+                runConnectionSource = RunFiles.openForReading(runFile, resultsFile);
+                readersConnection = runConnectionSource;
+            }
+        }
+        if (readersConnection != readersConnectionSource) {
+            createReaders(readersConnection);
+        }
+    }
+
+    private void createReaders( ConnectionSource readersConnection ) throws Exception {
+        daoResultsReader = new SummaryResultsReader(readersConnection, new DaoResultsReader(readersConnection));
+        columnarResultsReader = new ColumnarResultsReader(readersConnection);
+        summaryColumnarResultsReader = new SummaryResultsReader(readersConnection, columnarResultsReader);
+        resultsReader = daoResultsReader;
+        readersConnectionSource = readersConnection;
+    }
+
+    private void closeRunConnection() {
+        if (runConnectionSource != null) {
+            try {
+                runConnectionSource.close();
+            } catch (SQLException e) {
+                logger.error("ERROR", e);
+            }
+            runConnectionSource = null;
+            // the daos of the closed connection are cached by the manager
+            DaoManager.clearDaoCache();
+        }
+    }
+
+    /**
+     * Remove a run or all but the last runs, then compact the database and reload the runs list.
+     *
+     * @param runsCombo the runs combo to reload.
+     * @param run the run to remove, or <code>null</code> to apply the retention.
+     * @param keepCount the number of most recent runs to keep, used if the run is <code>null</code>.
+     */
+    private void removeRuns( final JComboBox<EpanetRun> runsCombo, final EpanetRun run, final int keepCount ) {
+        stopPlayback();
+        removeJoins();
+        cubeCache.clear();
+        // release the files of the selected run, which could be removed
+        binaryResultsReader = null;
+        try {
+            openRunReaders(null);
+        } catch (Exception e) {
+            logger.error("ERROR", e);
+        }
+        new Thread(new Runnable(){
+            public void run() {
+                IJGTProgressMonitor pm = new LogProgressMonitor();
+                try {
+                    if (run != null) {
+                        RunsManager.removeRun(connectionSource, resultsFile, run, pm);
+                    } else {
+                        RunsManager.keepLastRuns(connectionSource, resultsFile, keepCount, pm);
+                    }
+                    RunsManager.compact(connectionSource, pm);
+
+                    List<EpanetRun> allRuns = RunInps.listRuns(connectionSource);
+                    final EpanetRun[] runs = new EpanetRun[allRuns.size() + 1];
+                    for( int i = 0; i < allRuns.size(); i++ ) {
+                        runs[i + 1] = allRuns.get(i);
+                    }
+                    SwingUtilities.invokeLater(new Runnable(){
+                        public void run() {
+                            runsCombo.setModel(new DefaultComboBoxModel<EpanetRun>(runs));
+                            runsCombo.setSelectedIndex(0);
+                        }
+                    });
+                } catch (Exception e) {
+                    logger.error("Error removing runs", e);
+                    dialogManager.messageDialog("An error occurred while removing the runs: " + e.getLocalizedMessage(),
+                            "ERROR", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }).start();
+    }
+
     private void selectTime() {
         String selectedTime = (String) timeCombo.getSelectedItem();
         logger.info("Selected time: " + selectedTime);
@@ -456,97 +689,416 @@ public class ResultsPanel extends JPanel implements Component {
             DateTime currentSelectedTime = OmsEpanet.formatter.parseDateTime(selectedTime);
             MapContext mapcontext = ProjectUtilities.getCurrentMapcontext();
             if (mapcontext != null) {
-                FLayers layers = mapcontext.getLayers();
-
-                /*
-                 * FIRST WORK ON LINKS
-                 */
-                float[] linksMinMax = EpanetUtilities.getLinksMinMax(pipesResultDao, pumpsResultDao, valvesResultDao,
-                        currentSelectedRun, currentSelectedTime, currentSelectedLinkVar);
-
-                FLayer pipesLayer = layers.getLayer(EpanetFeatureTypes.Pipes.ID.getName());
-                if (pipesLayer instanceof FLyrVect) {
-                    FLyrVect pipesVectLayer = (FLyrVect) pipesLayer;
-
-                    // get all data for pipes
-                    List<ILinkResults> results4Pipes = EpanetUtilities.getResults4Links(pipesResultDao, currentSelectedRun,
-                            currentSelectedTime);
-                    // create pipes legend
-                    VectorialUniqueValueLegend pipesLegend = EpanetResultsStyler.createPipesLegend(pipesVectLayer, results4Pipes,
-                            currentSelectedLinkVar, linksMinMax);
-                    pipesVectLayer.setLegend(pipesLegend);
-
-                }
-                FLayer pumpsLayer = layers.getLayer(EpanetFeatureTypes.Pumps.ID.getName());
-                if (pumpsLayer instanceof FLyrVect) {
-                    FLyrVect pumpsVectLayer = (FLyrVect) pumpsLayer;
-
-                    // get all data for pipes
-                    List<ILinkResults> results4Pumps = EpanetUtilities.getResults4Links(pumpsResultDao, currentSelectedRun,
-                            currentSelectedTime);
-                    VectorialUniqueValueLegend pumpsLegend = EpanetResultsStyler.createPointLinkLegend(pumpsVectLayer,
-                            results4Pumps, currentSelectedLinkVar, linksMinMax, 15);
-                    pumpsVectLayer.setLegend(pumpsLegend);
-                }
-                FLayer valvesLayer = layers.getLayer(EpanetFeatureTypes.Valves.ID.getName());
-                if (valvesLayer instanceof FLyrVect) {
-                    FLyrVect valvesVectLayer = (FLyrVect) valvesLayer;
-
-                    // get all data for pipes
-                    List<ILinkResults> results4Valves = EpanetUtilities.getResults4Links(valvesResultDao, currentSelectedRun,
-                            currentSelectedTime);
-                    VectorialUniqueValueLegend valvesLegend = EpanetResultsStyler.createPointLinkLegend(valvesVectLayer,
-                            results4Valves, currentSelectedLinkVar, linksMinMax, 15);
-                    valvesVectLayer.setLegend(valvesLegend);
+                ResultsFrame frame = createFrame(mapcontext.getLayers(), timeCombo.getSelectedIndex() - 1,
+                        currentSelectedTime);
+                if (frame != null) {
+                    frame.apply();
                 }
+            }
+        } catch (Exception e1) {
+            e1.printStackTrace();
+        }
+    }
 
-                /*
-                 * THEN WORK ON NODES
-                 */
-                float[] nodesMinMax = EpanetUtilities.getNodesMinMax(junctionsResultDao, tanksResultDao, reservoirsResultDao,
-                        currentSelectedRun, currentSelectedTime, currentSelectedNodeVar);
-
-                FLayer junctionsLayer = layers.getLayer(EpanetFeatureTypes.Junctions.ID.getName());
-                if (junctionsLayer instanceof FLyrVect) {
-                    FLyrVect junctionsVectLayer = (FLyrVect) junctionsLayer;
-
-                    // get all data for junctions
-                    List<INodeResults> results4Junctions = EpanetUtilities.getResults4Nodes(junctionsResultDao,
-                            currentSelectedRun, currentSelectedTime);
-                    // create junctions legend
-                    VectorialUniqueValueLegend junctionsLegend = EpanetResultsStyler.createPointNodeLegend(junctionsVectLayer,
-                            results4Junctions, currentSelectedNodeVar, nodesMinMax, 15);
-                    junctionsVectLayer.setLegend(junctionsLegend);
-                }
-                FLayer tanksLayer = layers.getLayer(EpanetFeatureTypes.Tanks.ID.getName());
-                if (tanksLayer instanceof FLyrVect) {
-                    FLyrVect tanksVectLayer = (FLyrVect) tanksLayer;
-
-                    // get all data for tanks
-                    List<INodeResults> results4Tanks = EpanetUtilities.getResults4Nodes(tanksResultDao, currentSelectedRun,
-                            currentSelectedTime);
-                    // create tanks legend
-                    VectorialUniqueValueLegend tanksLegend = EpanetResultsStyler.createPointNodeLegend(tanksVectLayer,
-                            results4Tanks, currentSelectedNodeVar, nodesMinMax, 15);
-                    tanksVectLayer.setLegend(tanksLegend);
+    /**
+     * Start the timeline animation from the selected timestep or pause it.
+     */
+    private void togglePlayback() {
+        if (animator != null && animator.isRunning()) {
+            animator.stop();
+            return;
+        }
+        final int timestepsCount = timeCombo.getItemCount() - 1;
+        final MapContext mapcontext = ProjectUtilities.getCurrentMapcontext();
+        if (currentSelectedRun == null || timestepsCount <= 0 || mapcontext == null) {
+            return;
+        }
+        final DateTime[] times = new DateTime[timestepsCount];
+        for( int i = 0; i < timestepsCount; i++ ) {
+            times[i] = OmsEpanet.formatter.parseDateTime(timeCombo.getItemAt(i + 1));
+        }
+        int fromIndex = timeCombo.getSelectedIndex() - 1;
+        if (fromIndex < 0 || fromIndex >= timestepsCount - 1) {
+            fromIndex = 0;
+        }
+
+        IFrameProducer producer = new IFrameProducer(){
+            public ResultsFrame createFrame( int timeIndex ) throws Exception {
+                return ResultsPanel.this.createFrame(mapcontext.getLayers(), timeIndex, times[timeIndex]);
+            }
+        };
+        IAnimationListener listener = new IAnimationListener(){
+            public void frameShown( final ResultsFrame frame ) {
+                SwingUtilities.invokeLater(new Runnable(){
+                    public void run() {
+                        frameLabel.setText(frame.getTime().toString(OmsEpanet.formatter));
+                    }
+                });
+            }
+
+            public void framesPerSecond( final double framesPerSecond, final int skippedFrames ) {
+                SwingUtilities.invokeLater(new Runnable(){
+                    public void run() {
+                        fpsLabel.setText(String.format("%.1f frames/s, %d skipped", framesPerSecond, skippedFrames));
+                    }
+                });
+            }
+
+            public void animationStopped( final int lastTimeIndex ) {
+                SwingUtilities.invokeLater(new Runnable(){
+                    public void run() {
+                        playButton.setText("Play");
+                        if (lastTimeIndex >= 0 && lastTimeIndex < timestepsCount) {
+                            // the frame is already on the map
+                            adjustingTimeCombo = true;
+                            timeCombo.setSelectedIndex(lastTimeIndex + 1);
+                            adjustingTimeCombo = false;
+                        }
+                    }
+                });
+            }
+        };
+        animator = new ResultsAnimator(producer, timestepsCount, listener);
+        playButton.setText("Pause");
+        animator.start(fromIndex, ((Number) fpsSpinner.getValue()).doubleValue());
+    }
+
+    private void stopPlayback() {
+        if (animator != null) {
+            animator.stop();
+        }
+    }
+
+    /**
+     * Compute the legends of the network layers at a timestep.
+     *
+     * @param layers the layers of the map.
+     * @param timeIndex the index of the timestep in the timeline.
+     * @param currentSelectedTime the timestep.
+     * @return the frame or <code>null</code>, if the timestep is not available.
+     * @throws Exception
+     */
+    private ResultsFrame createFrame( FLayers layers, int timeIndex, DateTime currentSelectedTime ) throws Exception {
+        ResultsFrame frame = new ResultsFrame(timeIndex, currentSelectedTime);
+        BinaryResultsReader binaryReader = binaryResultsReader;
+        if (binaryReader != null) {
+            return fillFrame(binaryReader, layers, frame) ? frame : null;
+        }
+
+        IResultsReader reader = resultsReader;
+        EpanetRun run = currentSelectedRun;
+        ResultsLinkParameters linkVar = currentSelectedLinkVar;
+        ResultsNodeParameters nodeVar = currentSelectedNodeVar;
+        ResultsCube linksCube = cubeCache.getIfLoaded(run, null, linkVar);
+        ResultsCube nodesCube = cubeCache.getIfLoaded(run, nodeVar, null);
+        if (linksCube == null || nodesCube == null) {
+            if (legendMode != LegendMode.JOINED) {
+                // show the timestep right away, the cubes are filled in the background
+                cubeCache.prefetch(reader, run, null, linkVar);
+                cubeCache.prefetch(reader, run, nodeVar, null);
+                prefetchNeighbours(reader, run, nodeVar, linkVar);
+                return fillFrame(reader, layers, frame) ? frame : null;
+            }
+            // the joined legends are built once on the range of the whole run
+            linksCube = cubeCache.get(reader, run, null, linkVar);
+            nodesCube = cubeCache.get(reader, run, nodeVar, null);
+        }
+        prefetchNeighbours(reader, run, nodeVar, linkVar);
+
+        int cubeTimeIndex = linksCube.getTimeIndex(currentSelectedTime);
+        if (cubeTimeIndex < 0) {
+            return null;
+        }
+
+        /*
+         * FIRST WORK ON LINKS
+         */
+        float[] linksMinMax = linksCube.getMinMax(cubeTimeIndex);
+        float[] linksRange = legendMode == LegendMode.JOINED ? linksCube.getRange() : null;
+
+        FLayer pipesLayer = layers.getLayer(EpanetFeatureTypes.Pipes.ID.getName());
+        if (pipesLayer instanceof FLyrVect) {
+            String[] ids = linksCube.getIds(PIPESRESULT);
+            addToFrame(frame, (FLyrVect) pipesLayer, ids, linksCube.getSlice(PIPESRESULT, cubeTimeIndex), linksMinMax, linksRange, true);
+        }
+        FLayer pumpsLayer = layers.getLayer(EpanetFeatureTypes.Pumps.ID.getName());
+        if (pumpsLayer instanceof FLyrVect) {
+            String[] ids = linksCube.getIds(PUMPSRESULT);
+            addToFrame(frame, (FLyrVect) pumpsLayer, ids, linksCube.getSlice(PUMPSRESULT, cubeTimeIndex), linksMinMax, linksRange, false);
+        }
+        FLayer valvesLayer = layers.getLayer(EpanetFeatureTypes.Valves.ID.getName());
+        if (valvesLayer instanceof FLyrVect) {
+            String[] ids = linksCube.getIds(VALVESRESULT);
+            addToFrame(frame, (FLyrVect) valvesLayer, ids, linksCube.getSlice(VALVESRESULT, cubeTimeIndex), linksMinMax, linksRange, false);
+        }
+
+        /*
+         * THEN WORK ON NODES
+         */
+        float[] nodesMinMax = nodesCube.getMinMax(cubeTimeIndex);
+        float[] nodesRange = legendMode == LegendMode.JOINED ? nodesCube.getRange() : null;
+        String[] nodeLayers = {EpanetFeatureTypes.Junctions.ID.getName(), EpanetFeatureTypes.Tanks.ID.getName(),
+                EpanetFeatureTypes.Reservoirs.ID.getName()};
+        String[] nodeTables = {JUNCTIONSRESULT, TANKSRESULT, RESERVOIRSRESULT};
+        for( int i = 0; i < nodeLayers.length; i++ ) {
+            FLayer nodeLayer = layers.getLayer(nodeLayers[i]);
+            if (nodeLayer instanceof FLyrVect) {
+                String[] ids = nodesCube.getIds(nodeTables[i]);
+                addToFrame(frame, (FLyrVect) nodeLayer, ids, nodesCube.getSlice(nodeTables[i], cubeTimeIndex), nodesMinMax, nodesRange, false);
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Start loading the cubes of the selected variables, unless the run is read from its binary file.
+     */
+    private void prefetchSelected() {
+        if (currentSelectedRun != null && binaryResultsReader == null) {
+            cubeCache.prefetch(resultsReader, currentSelectedRun, null, currentSelectedLinkVar);
+            cubeCache.prefetch(resultsReader, currentSelectedRun, currentSelectedNodeVar, null);
+        }
+    }
+
+    /**
+     * Start loading the cubes of the variables next to the selected ones in the variables lists.
+     */
+    private void prefetchNeighbours( IResultsReader reader, EpanetRun run, ResultsNodeParameters nodeVar,
+            ResultsLinkParameters linkVar ) {
+        ResultsLinkParameters[] linkVariables = ResultsLinkParameters.values();
+        int linkIndex = linkVar.ordinal();
+        if (linkIndex > 0) {
+            cubeCache.prefetch(reader, run, null, linkVariables[linkIndex - 1]);
+        }
+        if (linkIndex < linkVariables.length - 1) {
+            cubeCache.prefetch(reader, run, null, linkVariables[linkIndex + 1]);
+        }
+        ResultsNodeParameters[] nodeVariables = ResultsNodeParameters.values();
+        int nodeIndex = nodeVar.ordinal();
+        if (nodeIndex > 0) {
+            cubeCache.prefetch(reader, run, nodeVariables[nodeIndex - 1], null);
+        }
+        if (nodeIndex < nodeVariables.length - 1) {
+            cubeCache.prefetch(reader, run, nodeVariables[nodeIndex + 1], null);
+        }
+    }
+
+
+    /**
+     * Compute the legends reading the time slices directly from the binary results file.
+     *
+     * @return <code>false</code>, if the timestep is not in the file.
+     */
+    /**
+     * Fill a frame with a single timestep read, used while the cubes of the variables are loading.
+     */
+    private boolean fillFrame( IResultsReader reader, FLayers layers, ResultsFrame frame ) throws Exception {
+        DateTime currentSelectedTime = frame.getTime();
+        EpanetRun run = currentSelectedRun;
+        ResultsLinkParameters linkVar = currentSelectedLinkVar;
+        ResultsNodeParameters nodeVar = currentSelectedNodeVar;
+
+        /*
+         * FIRST WORK ON LINKS
+         */
+        float[] linksMinMax = reader.getLinksMinMax(run, currentSelectedTime, linkVar);
+        String[] linkLayers = {EpanetFeatureTypes.Pipes.ID.getName(), EpanetFeatureTypes.Pumps.ID.getName(),
+                EpanetFeatureTypes.Valves.ID.getName()};
+        String[] linkTables = {PIPESRESULT, PUMPSRESULT, VALVESRESULT};
+        boolean hasData = false;
+        for( int i = 0; i < linkLayers.length; i++ ) {
+            FLayer linkLayer = layers.getLayer(linkLayers[i]);
+            if (linkLayer instanceof FLyrVect) {
+                List<ILinkResults> results = reader.getResults4Links(linkTables[i], run, currentSelectedTime);
+                String[] ids = new String[results.size()];
+                float[] slice = new float[results.size()];
+                int index = 0;
+                for( ILinkResults result : results ) {
+                    ids[index] = result.getId();
+                    slice[index++] = (float) EpanetResultsStyler.getValue(linkVar, result);
                 }
-                FLayer reservoirsLayer = layers.getLayer(EpanetFeatureTypes.Reservoirs.ID.getName());
-                if (reservoirsLayer instanceof FLyrVect) {
-                    FLyrVect reservoirsVectLayer = (FLyrVect) reservoirsLayer;
-
-                    // get all data for reservoirs
-                    List<INodeResults> results4Reservoirs = EpanetUtilities.getResults4Nodes(reservoirsResultDao,
-                            currentSelectedRun, currentSelectedTime);
-                    // create reservoirs legend
-                    VectorialUniqueValueLegend reservoirsLegend = EpanetResultsStyler.createPointNodeLegend(reservoirsVectLayer,
-                            results4Reservoirs, currentSelectedNodeVar, nodesMinMax, 15);
-                    reservoirsVectLayer.setLegend(reservoirsLegend);
+                hasData = hasData || index > 0;
+                addToFrame(frame, (FLyrVect) linkLayer, ids, slice, linksMinMax, null, i == 0);
+            }
+        }
+
+        /*
+         * THEN WORK ON NODES
+         */
+        float[] nodesMinMax = reader.getNodesMinMax(run, currentSelectedTime, nodeVar);
+        String[] nodeLayers = {EpanetFeatureTypes.Junctions.ID.getName(), EpanetFeatureTypes.Tanks.ID.getName(),
+                EpanetFeatureTypes.Reservoirs.ID.getName()};
+        String[] nodeTables = {JUNCTIONSRESULT, TANKSRESULT, RESERVOIRSRESULT};
+        for( int i = 0; i < nodeLayers.length; i++ ) {
+            FLayer nodeLayer = layers.getLayer(nodeLayers[i]);
+            if (nodeLayer instanceof FLyrVect) {
+                List<INodeResults> results = reader.getResults4Nodes(nodeTables[i], run, currentSelectedTime);
+                String[] ids = new String[results.size()];
+                float[] slice = new float[results.size()];
+                int index = 0;
+                for( INodeResults result : results ) {
+                    ids[index] = result.getId();
+                    slice[index++] = (float) EpanetResultsStyler.getValue(nodeVar, result);
                 }
+                hasData = hasData || index > 0;
+                addToFrame(frame, (FLyrVect) nodeLayer, ids, slice, nodesMinMax, null, false);
+            }
+        }
+        return hasData;
+    }
 
+    private boolean fillFrame( BinaryResultsReader binaryReader, FLayers layers, ResultsFrame frame ) throws Exception {
+        DateTime currentSelectedTime = frame.getTime();
+        int timeIndex = binaryReader.getTimeIndex(currentSelectedTime);
+        if (timeIndex < 0) {
+            return false;
+        }
+
+        /*
+         * FIRST WORK ON LINKS
+         */
+        float[] linksMinMax = binaryReader.getLinksMinMax(currentSelectedRun, currentSelectedTime, currentSelectedLinkVar);
+        float[] linksRange = legendMode == LegendMode.JOINED ? getRunRange(binaryReader, true) : null;
+        int linkVariable = TimestepResults.getVariableIndex(currentSelectedLinkVar);
+        boolean isEnergy = currentSelectedLinkVar == ResultsLinkParameters.ENERGY;
+
+        FLayer pipesLayer = layers.getLayer(EpanetFeatureTypes.Pipes.ID.getName());
+        if (pipesLayer instanceof FLyrVect) {
+            float[] slice = readSlice(binaryReader, PIPESRESULT, linkVariable, timeIndex, isEnergy);
+            String[] ids = binaryReader.getIds(PIPESRESULT);
+            addToFrame(frame, (FLyrVect) pipesLayer, ids, slice, linksMinMax, linksRange, true);
+        }
+        FLayer pumpsLayer = layers.getLayer(EpanetFeatureTypes.Pumps.ID.getName());
+        if (pumpsLayer instanceof FLyrVect) {
+            float[] slice = readSlice(binaryReader, PUMPSRESULT, linkVariable, timeIndex, false);
+            String[] ids = binaryReader.getIds(PUMPSRESULT);
+            addToFrame(frame, (FLyrVect) pumpsLayer, ids, slice, linksMinMax, linksRange, false);
+        }
+        FLayer valvesLayer = layers.getLayer(EpanetFeatureTypes.Valves.ID.getName());
+        if (valvesLayer instanceof FLyrVect) {
+            float[] slice = readSlice(binaryReader, VALVESRESULT, linkVariable, timeIndex, isEnergy);
+            String[] ids = binaryReader.getIds(VALVESRESULT);
+            addToFrame(frame, (FLyrVect) valvesLayer, ids, slice, linksMinMax, linksRange, false);
+        }
+
+        /*
+         * THEN WORK ON NODES
+         */
+        float[] nodesMinMax = binaryReader.getNodesMinMax(currentSelectedRun, currentSelectedTime, currentSelectedNodeVar);
+        float[] nodesRange = legendMode == LegendMode.JOINED ? getRunRange(binaryReader, false) : null;
+        int nodeVariable = TimestepResults.getVariableIndex(currentSelectedNodeVar);
+        String[] nodeLayers = {EpanetFeatureTypes.Junctions.ID.getName(), EpanetFeatureTypes.Tanks.ID.getName(),
+                EpanetFeatureTypes.Reservoirs.ID.getName()};
+        String[] nodeTables = {JUNCTIONSRESULT, TANKSRESULT, RESERVOIRSRESULT};
+        for( int i = 0; i < nodeLayers.length; i++ ) {
+            FLayer nodeLayer = layers.getLayer(nodeLayers[i]);
+            if (nodeLayer instanceof FLyrVect) {
+                float[] slice = readSlice(binaryReader, nodeTables[i], nodeVariable, timeIndex, false);
+                String[] ids = binaryReader.getIds(nodeTables[i]);
+                addToFrame(frame, (FLyrVect) nodeLayer, ids, slice, nodesMinMax, nodesRange, false);
             }
-        } catch (Exception e1) {
-            e1.printStackTrace();
         }
+        return true;
+    }
+
+    /**
+     * Add the styling of a network layer to a frame.
+     *
+     * <p>In {@link LegendMode#JOINED} mode the layer is joined with the results and only its values
+     * column is swapped, while the legend, built on the range of the whole run, is kept as long as
+     * run and variables do not change.</p>
+     *
+     * @param minMax the range of the timestep.
+     * @param runRange the range of the whole run, needed only in {@link LegendMode#JOINED} mode.
+     * @param isPipes if <code>true</code>, the layer is the pipes layer.
+     */
+    private void addToFrame( ResultsFrame frame, FLyrVect layer, String[] ids, float[] values, float[] minMax,
+            float[] runRange, boolean isPipes ) throws Exception {
+        int classesCount = EpanetResultsStyler.DEFAULT_CLASSES_COUNT;
+        IVectorLegend legend;
+        switch( legendMode ) {
+        case JOINED:
+            ResultsJoinTransform transform = ResultsJoinTransform.install(layer);
+            frame.addValues(layer, transform, ids, values);
+            String legendKey = currentSelectedRun.getId() + "/" + currentSelectedNodeVar + "/" + currentSelectedLinkVar;
+            if (!legendKey.equals(joinedLegendKeys.get(layer))) {
+                legend = isPipes ? EpanetResultsStyler.createPipesClassesLegend(layer, currentSelectedRun, ids, values,
+                        ids.length, runRange, classesCount) : EpanetResultsStyler.createPointClassesLegend(layer, ids,
+                        values, ids.length, runRange, classesCount, 15);
+                joinedLegends.put(layer, legend);
+                joinedLegendKeys.put(layer, legendKey);
+            }
+            legend = joinedLegends.get(layer);
+            // frames can be skipped, so check what is actually on the layer
+            if (layer.getLegend() != legend) {
+                frame.addLegend(layer, legend);
+            }
+            return;
+        case CLASSES:
+            legend = isPipes ? EpanetResultsStyler.createPipesClassesLegend(layer, currentSelectedRun, ids, values,
+                    ids.length, minMax, classesCount) : EpanetResultsStyler.createPointClassesLegend(layer, ids, values,
+                    ids.length, minMax, classesCount, 15);
+            break;
+        default:
+            legend = isPipes ? EpanetResultsStyler.createPipesLegend(layer, currentSelectedRun, ids, values, ids.length,
+                    minMax) : EpanetResultsStyler.createPointLegend(layer, ids, values, ids.length, minMax, 15);
+            break;
+        }
+        frame.addLegend(layer, legend);
+    }
+
+    /**
+     * Get the range of the selected link or node variable over the whole run of a binary results file.
+     */
+    private float[] getRunRange( BinaryResultsReader binaryReader, boolean links ) {
+        String key = ResultsCube.getKey(currentSelectedRun, links ? null : currentSelectedNodeVar,
+                links ? currentSelectedLinkVar : null);
+        float[] range = runRanges.get(key);
+        if (range == null) {
+            range = new float[]{Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY};
+            for( int t = 0; t < binaryReader.getTimestepsCount(); t++ ) {
+                DateTime time = new DateTime(binaryReader.getTime(t));
+                float[] minMax = links ? binaryReader.getLinksMinMax(currentSelectedRun, time, currentSelectedLinkVar)
+                        : binaryReader.getNodesMinMax(currentSelectedRun, time, currentSelectedNodeVar);
+                range[0] = Math.min(range[0], minMax[0]);
+                range[1] = Math.max(range[1], minMax[1]);
+            }
+            runRanges.put(key, range);
+        }
+        return range;
+    }
+
+    /**
+     * Remove the results joins from the network layers of the current map.
+     */
+    private void removeJoins() {
+        MapContext mapcontext = ProjectUtilities.getCurrentMapcontext();
+        if (mapcontext == null) {
+            return;
+        }
+        String[] layerNames = {EpanetFeatureTypes.Pipes.ID.getName(), EpanetFeatureTypes.Pumps.ID.getName(),
+                EpanetFeatureTypes.Valves.ID.getName(), EpanetFeatureTypes.Junctions.ID.getName(),
+                EpanetFeatureTypes.Tanks.ID.getName(), EpanetFeatureTypes.Reservoirs.ID.getName()};
+        for( String layerName : layerNames ) {
+            FLayer layer = mapcontext.getLayers().getLayer(layerName);
+            if (layer instanceof FLyrVect) {
+                ResultsJoinTransform.uninstall((FLyrVect) layer);
+            }
+        }
+        joinedLegends.clear();
+        joinedLegendKeys.clear();
+    }
+
+    private float[] readSlice( BinaryResultsReader binaryReader, String resultTable, int variable, int timeIndex,
+            boolean noData ) {
+        float[] slice = new float[binaryReader.getElementsCount(resultTable)];
+        if (noData) {
+            // pipes and valves have no energy
+            Arrays.fill(slice, -9999f);
+        } else {
+            binaryReader.readSlice(resultTable, variable, timeIndex, slice);
+        }
+        return slice;
     }
 
     public JComponent asJComponent() {
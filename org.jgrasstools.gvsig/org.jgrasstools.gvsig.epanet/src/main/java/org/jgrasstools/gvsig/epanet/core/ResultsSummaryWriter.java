@@ -0,0 +1,115 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import static org.jgrasstools.gvsig.epanet.core.TimestepResults.*;
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.jgrasstools.gvsig.epanet.core.TimestepResults.ElementResults;
+import org.jgrasstools.gvsig.epanet.database.EpanetRun;
+import org.jgrasstools.gvsig.epanet.database.ResultsSummaryTable;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.misc.TransactionManager;
+import com.j256.ormlite.support.ConnectionSource;
+
+/**
+ * {@link IResultsSink} computing the min, max and mean of every variable of every
+ * results table at each timestep and storing them in the {@link ResultsSummaryTable summary table}.
+ *
+ * <p>The statistics are computed while the run proceeds and inserted in a single
+ * transaction when the sink is closed.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class ResultsSummaryWriter implements IResultsSink {
+
+    private final ConnectionSource connectionSource;
+    private final EpanetRun run;
+    private final List<ResultsSummaryTable> summaries = new ArrayList<ResultsSummaryTable>();
+
+    public ResultsSummaryWriter( ConnectionSource connectionSource, EpanetRun run ) {
+        this.connectionSource = connectionSource;
+        this.run = run;
+    }
+
+    public void write( TimestepResults results ) {
+        for( String table : NODE_TABLES ) {
+            summarize(results, table, NODE_COLUMNS, NODE_VARIABLES);
+        }
+        for( String table : LINK_TABLES ) {
+            // only pumps have an energy
+            int variablesCount = table.equals(PUMPSRESULT) ? LINK_VARIABLES : VAR_ENERGY;
+            summarize(results, table, LINK_COLUMNS, variablesCount);
+        }
+    }
+
+    private void summarize( TimestepResults results, String table, String[] columns, int variablesCount ) {
+        ElementResults elementResults = results.getResults(table);
+        int count = elementResults.size();
+        if (count == 0) {
+            return;
+        }
+        for( int var = 0; var < variablesCount; var++ ) {
+            float[] values = elementResults.values[var];
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            double sum = 0;
+            for( int i = 0; i < count; i++ ) {
+                float value = values[i];
+                if (value < min) {
+                    min = value;
+                }
+                if (value > max) {
+                    max = value;
+                }
+                sum += value;
+            }
+            ResultsSummaryTable summary = new ResultsSummaryTable();
+            summary.setRun(run);
+            summary.setUtcTime(results.time);
+            summary.setResultTable(table);
+            summary.setVariable(columns[var]);
+            summary.setMin(min);
+            summary.setMax(max);
+            summary.setMean((float) (sum / count));
+            summaries.add(summary);
+        }
+    }
+
+    public void close() throws Exception {
+        if (summaries.isEmpty()) {
+            return;
+        }
+        final Dao<ResultsSummaryTable, Long> summaryDao = DaoManager.createDao(connectionSource, ResultsSummaryTable.class);
+        TransactionManager.callInTransaction(connectionSource, new Callable<Void>(){
+            public Void call() throws Exception {
+                for( ResultsSummaryTable summary : summaries ) {
+                    summaryDao.create(summary);
+                }
+                return null;
+            }
+        });
+        summaries.clear();
+    }
+}
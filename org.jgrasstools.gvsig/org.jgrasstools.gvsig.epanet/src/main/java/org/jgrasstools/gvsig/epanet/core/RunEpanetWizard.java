@@ -6,11 +6,15 @@ import java.awt.Insets;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JTextField;
@@ -34,7 +38,6 @@ import org.gvsig.tools.swing.api.windowmanager.WindowManager.MODE;
 import org.jgrasstools.gears.libs.exceptions.ModelsUserCancelException;
 import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
 import org.jgrasstools.gears.libs.monitor.LogProgressMonitor;
-import org.jgrasstools.gears.utils.CrsUtilities;
 import org.jgrasstools.gears.utils.features.FeatureUtilities;
 import org.jgrasstools.gears.utils.files.FileUtilities;
 import org.jgrasstools.gvsig.base.JGTUtilities;
@@ -43,36 +46,24 @@ import org.jgrasstools.gvsig.base.utils.console.LogConsoleController;
 import org.jgrasstools.gvsig.epanet.CreateProjectFilesExtension;
 import org.jgrasstools.gvsig.epanet.RunEpanetExtension;
 import org.jgrasstools.gvsig.epanet.SyncEpanetShapefilesExtension;
+import org.jgrasstools.gvsig.epanet.core.EpanetRunner.ResultsLayout;
 import org.jgrasstools.gvsig.epanet.database.EpanetRun;
-import org.jgrasstools.gvsig.epanet.database.JunctionsResultsTable;
 import org.jgrasstools.gvsig.epanet.database.JunctionsTable;
-import org.jgrasstools.gvsig.epanet.database.PipesResultsTable;
+import org.jgrasstools.gvsig.epanet.database.NetworksTable;
 import org.jgrasstools.gvsig.epanet.database.PipesTable;
-import org.jgrasstools.gvsig.epanet.database.PumpsResultsTable;
 import org.jgrasstools.gvsig.epanet.database.PumpsTable;
-import org.jgrasstools.gvsig.epanet.database.ReservoirsResultsTable;
 import org.jgrasstools.gvsig.epanet.database.ReservoirsTable;
-import org.jgrasstools.gvsig.epanet.database.TanksResultsTable;
 import org.jgrasstools.gvsig.epanet.database.TanksTable;
-import org.jgrasstools.gvsig.epanet.database.ValvesResultsTable;
 import org.jgrasstools.gvsig.epanet.database.ValvesTable;
 import org.jgrasstools.hortonmachine.modules.networktools.epanet.OmsEpanetInpGenerator;
 import org.jgrasstools.hortonmachine.modules.networktools.epanet.OmsEpanetParametersOptions;
 import org.jgrasstools.hortonmachine.modules.networktools.epanet.OmsEpanetParametersTime;
-import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.EpanetConstants;
 import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.EpanetException;
 import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.EpanetFeatureTypes;
-import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.EpanetFeatureTypes.Junctions;
-import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.EpanetFeatureTypes.Pipes;
-import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.EpanetFeatureTypes.Pumps;
-import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.EpanetFeatureTypes.Reservoirs;
-import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.EpanetFeatureTypes.Tanks;
-import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.EpanetFeatureTypes.Valves;
 import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.OptionParameterCodes;
 import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.TimeParameterCodes;
 import org.joda.time.DateTime;
 import org.opengis.feature.simple.SimpleFeature;
-import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -81,8 +72,6 @@ import com.j256.ormlite.dao.DaoManager;
 import com.j256.ormlite.jdbc.JdbcConnectionSource;
 import com.j256.ormlite.support.ConnectionSource;
 import com.j256.ormlite.table.TableUtils;
-import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.io.WKTWriter;
 
 import jwizardcomponent.FinishAction;
 import jwizardcomponent.JWizardComponents;
@@ -122,7 +111,37 @@ public class RunEpanetWizard extends JWizardFrame {
     private static final String CONTROL_FILE_PATH = "CONTROL_FILE_PATH";
     private static final String DEMANDS_FILE_PATH = "DEMANDS_FILE_PATH";
     private static final String DB_FILE_PATH = "DB_FILE_PATH";
+    private static final String COLUMNAR_RESULTS = "COLUMNAR_RESULTS";
+    private static final String BINARY_RESULTS = "BINARY_RESULTS";
+    private static final String CLUSTERED_RESULTS = "CLUSTERED_RESULTS";
+    private static final String WKB_GEOMETRIES = "WKB_GEOMETRIES";
+    private static final String SCENARIO_MULTIPLIERS = "SCENARIO_MULTIPLIERS";
+    private static final String SCENARIO_WORKERS = "SCENARIO_WORKERS";
+    private static final String ALERT_RULES = "ALERT_RULES";
+    private static final String STEPS_AGGREGATION = "STEPS_AGGREGATION";
+    private static final String RUN_FILES = "RUN_FILES";
+    private static final String STAGED_RUNS = "STAGED_RUNS";
     private JTextField P5_dbText;
+    private JCheckBox P5_columnarCheck;
+    private JCheckBox P5_binaryCheck;
+    private JCheckBox P5_clusteredCheck;
+    private JCheckBox P5_wkbCheck;
+    private JTextField P5_multipliersText;
+    private JTextField P5_workersText;
+    private JTextField P5_alertsText;
+    private JComboBox<StepsAggregator.Aggregation> P5_aggregationCombo;
+    private JCheckBox P5_runFilesCheck;
+    private boolean runFiles = false;
+    private JCheckBox P5_stagedCheck;
+    private boolean stagedRuns = false;
+    private StepsAggregator.Aggregation stepsAggregation = StepsAggregator.Aggregation.NONE;
+    private boolean columnarResults = false;
+    private boolean binaryResults = false;
+    private boolean clusteredResults = false;
+    private boolean wkbGeometries = false;
+    private double[] scenarioMultipliers = new double[0];
+    private int scenarioWorkers = 1;
+    private List<AlertRule> alertRules = new ArrayList<AlertRule>();
     private JTextField P4_extrasText;
     private JTextField P4_demandsText;
     private JTextField P4_controlText;
@@ -203,6 +222,35 @@ public class RunEpanetWizard extends JWizardFrame {
         prefsMap.put(RULES_FILE_PATH, rulesPath);
         final String dbPath = P5_dbText.getText();
         prefsMap.put(DB_FILE_PATH, dbPath);
+        columnarResults = P5_columnarCheck.isSelected();
+        prefsMap.put(COLUMNAR_RESULTS, String.valueOf(columnarResults));
+        binaryResults = P5_binaryCheck.isSelected();
+        prefsMap.put(BINARY_RESULTS, String.valueOf(binaryResults));
+        clusteredResults = P5_clusteredCheck.isSelected();
+        prefsMap.put(CLUSTERED_RESULTS, String.valueOf(clusteredResults));
+        wkbGeometries = P5_wkbCheck.isSelected();
+        prefsMap.put(WKB_GEOMETRIES, String.valueOf(wkbGeometries));
+        String multipliers = P5_multipliersText.getText().trim();
+        prefsMap.put(SCENARIO_MULTIPLIERS, multipliers);
+        scenarioMultipliers = parseMultipliers(multipliers);
+        String workers = P5_workersText.getText().trim();
+        prefsMap.put(SCENARIO_WORKERS, workers);
+        scenarioWorkers = parseWorkers(workers);
+        String alerts = P5_alertsText.getText().trim();
+        prefsMap.put(ALERT_RULES, alerts);
+        alertRules = AlertRule.parseRules(alerts);
+        stepsAggregation = (StepsAggregator.Aggregation) P5_aggregationCombo.getSelectedItem();
+        prefsMap.put(STEPS_AGGREGATION, stepsAggregation.name());
+        runFiles = P5_runFilesCheck.isSelected();
+        prefsMap.put(RUN_FILES, String.valueOf(runFiles));
+        stagedRuns = P5_stagedCheck.isSelected();
+        prefsMap.put(STAGED_RUNS, String.valueOf(stagedRuns));
+        // the staged database is copied as a whole, so it needs a file of its own
+        runFiles = runFiles || stagedRuns;
+        // parallel scenarios can't share the transaction of a single database connection
+        if (scenarioMultipliers.length > 0 && scenarioWorkers > 1) {
+            runFiles = true;
+        }
 
         for( Entry<TimeParameterCodes, JTextField> entry : timeKey2ValueMap.entrySet() ) {
             TimeParameterCodes key = entry.getKey();
@@ -352,6 +400,7 @@ public class RunEpanetWizard extends JWizardFrame {
         File outputEpanetFile = new File(inpFile.getParentFile(), name + "_epanet.inp");
         ConnectionSource connectionSource = null;
         boolean canceledByUser = false;
+        boolean indexesDropped = false;
         try {
 
             pm.beginTask("Connect to output database and create tables if necessary...", IJGTProgressMonitor.UNKNOWN);
@@ -365,21 +414,16 @@ public class RunEpanetWizard extends JWizardFrame {
             TableUtils.createTableIfNotExists(connectionSource, ValvesTable.class);
             TableUtils.createTableIfNotExists(connectionSource, TanksTable.class);
             TableUtils.createTableIfNotExists(connectionSource, ReservoirsTable.class);
+            NetworkImporter.addWkbColumns(connectionSource);
+            TableUtils.createTableIfNotExists(connectionSource, NetworksTable.class);
+
+            if (!runFiles) {
+                RunFiles.createResultsTables(connectionSource, clusteredResults, pm);
+            }
+            NetworkVersions.migrate(connectionSource, pm);
+            RunInps.migrate(connectionSource, pm);
 
-            TableUtils.createTableIfNotExists(connectionSource, JunctionsResultsTable.class);
-            TableUtils.createTableIfNotExists(connectionSource, PipesResultsTable.class);
-            TableUtils.createTableIfNotExists(connectionSource, PumpsResultsTable.class);
-            TableUtils.createTableIfNotExists(connectionSource, ValvesResultsTable.class);
-            TableUtils.createTableIfNotExists(connectionSource, TanksResultsTable.class);
-            TableUtils.createTableIfNotExists(connectionSource, ReservoirsResultsTable.class);
-
-            Dao<EpanetRun, Long> epanetRunDao = DaoManager.createDao(connectionSource, EpanetRun.class);
-            Dao<JunctionsTable, Long> junctionsDao = DaoManager.createDao(connectionSource, JunctionsTable.class);
-            Dao<PipesTable, Long> pipesDao = DaoManager.createDao(connectionSource, PipesTable.class);
-            Dao<PumpsTable, Long> pumpsDao = DaoManager.createDao(connectionSource, PumpsTable.class);
-            Dao<ValvesTable, Long> valvesDao = DaoManager.createDao(connectionSource, ValvesTable.class);
-            Dao<TanksTable, Long> tanksDao = DaoManager.createDao(connectionSource, TanksTable.class);
-            Dao<ReservoirsTable, Long> reservoirsDao = DaoManager.createDao(connectionSource, ReservoirsTable.class);
+            final Dao<EpanetRun, Long> epanetRunDao = DaoManager.createDao(connectionSource, EpanetRun.class);
             pm.done();
 
             String title = P1_titleText.getText();
@@ -387,185 +431,154 @@ public class RunEpanetWizard extends JWizardFrame {
             String user = P1_userText.getText();
             DateTime dateTime = new DateTime();
 
-            EpanetRun run = new EpanetRun();
-            run.setInp(FileUtilities.readFile(outputEpanetFile));
+            final List<SimpleFeature> jList = FeatureUtilities.featureCollectionToList(jFC);
+            final List<SimpleFeature> rList = FeatureUtilities.featureCollectionToList(rFC);
+            final List<SimpleFeature> tList = FeatureUtilities.featureCollectionToList(tFC);
+            final List<SimpleFeature> piList = FeatureUtilities.featureCollectionToList(piFC);
+            final List<SimpleFeature> puList = FeatureUtilities.featureCollectionToList(puFC);
+            final List<SimpleFeature> vList = FeatureUtilities.featureCollectionToList(vFC);
+
+            final EpanetRun run = new EpanetRun();
             run.setTitle(title);
             run.setDescription(descr);
             run.setUser(user);
             run.setUtcTime(dateTime);
-            epanetRunDao.create(run);
-
-            HashMap<String, JunctionsTable> jId2Table = new HashMap<String, JunctionsTable>();
-            HashMap<String, PipesTable> piId2Table = new HashMap<String, PipesTable>();
-            HashMap<String, PumpsTable> puId2Table = new HashMap<String, PumpsTable>();
-            HashMap<String, ValvesTable> vId2Table = new HashMap<String, ValvesTable>();
-            HashMap<String, TanksTable> tId2Table = new HashMap<String, TanksTable>();
-            HashMap<String, ReservoirsTable> rId2Table = new HashMap<String, ReservoirsTable>();
-
-            pm.beginTask("Importing network data to the database...", IJGTProgressMonitor.UNKNOWN);
-            List<SimpleFeature> jList = FeatureUtilities.featureCollectionToList(jFC);
-            for( SimpleFeature j : jList ) {
-                checkCancel(pm);
-                Geometry g = (Geometry) j.getDefaultGeometry();
-                WKTWriter r = new WKTWriter();
-                String wkt = r.write(g);
-                CoordinateReferenceSystem crs = j.getType().getCoordinateReferenceSystem();
-                String crsCode = CrsUtilities.getCodeFromCrs(crs);
-                Object id = FeatureUtilities.getAttributeCaseChecked(j, Junctions.ID.getAttributeName());
-                JunctionsTable jt = new JunctionsTable();
-                String idStrs = id.toString();
-                jt.setId(idStrs);
-                jt.setRun(run);
-                jt.setWkt(wkt);
-                jt.setCrsCode(crsCode);
-                junctionsDao.create(jt);
-
-                jId2Table.put(idStrs, jt);
-            }
-            pm.worked(1);
-
-            List<SimpleFeature> piList = FeatureUtilities.featureCollectionToList(piFC);
-            for( SimpleFeature pi : piList ) {
-                checkCancel(pm);
-                Object id = FeatureUtilities.getAttributeCaseChecked(pi, Pipes.ID.getAttributeName());
-                String idStr = id.toString();
-                if (idStr.equals(EpanetConstants.DUMMYPIPE.toString())) {
-                    continue;
-                }
-                Geometry g = (Geometry) pi.getDefaultGeometry();
-                WKTWriter r = new WKTWriter();
-                String wkt = r.write(g);
-                CoordinateReferenceSystem crs = pi.getType().getCoordinateReferenceSystem();
-                String crsCode = CrsUtilities.getCodeFromCrs(crs);
-                PipesTable pit = new PipesTable();
-                pit.setId(idStr);
-                pit.setRun(run);
-                pit.setWkt(wkt);
-                pit.setCrsCode(crsCode);
-                pipesDao.create(pit);
-
-                piId2Table.put(idStr, pit);
-            }
-            pm.worked(1);
-
-            List<SimpleFeature> puList = FeatureUtilities.featureCollectionToList(puFC);
-            for( SimpleFeature pu : puList ) {
-                checkCancel(pm);
-                Geometry g = (Geometry) pu.getDefaultGeometry();
-                Geometry buffer = g.buffer(1.0);
-                Geometry pipe = null;
-                for( SimpleFeature pi : piList ) {
-                    Geometry piGeom = (Geometry) pi.getDefaultGeometry();
-                    if (buffer.intersects(piGeom)) {
-                        pipe = piGeom;
-                        break;
+            final NetworkImporter importer = new NetworkImporter(connectionSource, run, wkbGeometries, pm);
+            final String networkHash = importer.computeHash(jList, rList, tList, piList, puList, vList);
+            final String inp = FileUtilities.readFile(outputEpanetFile);
+            final ConnectionSource importConnection = connectionSource;
+
+            final HashMap<String, JunctionsTable> jId2Table = new HashMap<String, JunctionsTable>();
+            final HashMap<String, PipesTable> piId2Table = new HashMap<String, PipesTable>();
+            final HashMap<String, PumpsTable> puId2Table = new HashMap<String, PumpsTable>();
+            final HashMap<String, ValvesTable> vId2Table = new HashMap<String, ValvesTable>();
+            final HashMap<String, TanksTable> tId2Table = new HashMap<String, TanksTable>();
+            final HashMap<String, ReservoirsTable> rId2Table = new HashMap<String, ReservoirsTable>();
+            NetworksTable network = NetworkVersions.getNetwork(connectionSource, networkHash);
+            if (network == null) {
+                pm.beginTask("Importing network data to the database...", 6);
+                /*
+                 * the version is committed together with all its elements and the run, a
+                 * canceled or failed import leaves no version to be reused without elements
+                 */
+                network = importer.callInTransaction(new Callable<NetworksTable>(){
+                    public NetworksTable call() throws Exception {
+                        NetworksTable newNetwork = NetworkVersions.createNetwork(importConnection, networkHash);
+                        run.setNetwork(newNetwork);
+                        epanetRunDao.create(run);
+                        RunInps.store(importConnection, run, inp);
+
+                        importer.setNetwork(newNetwork);
+                        jId2Table.putAll(importer.importJunctions(jList));
+                        pm.worked(1);
+                        piId2Table.putAll(importer.importPipes(piList));
+                        pm.worked(1);
+
+                        // one index of the pipes for both pumps and valves
+                        PipesSnapper pipesSnapper = new PipesSnapper(piList, PipesSnapper.DEFAULT_TOLERANCE);
+                        puId2Table.putAll(importer.importPumps(puList, pipesSnapper));
+                        pm.worked(1);
+                        vId2Table.putAll(importer.importValves(vList, pipesSnapper));
+                        pm.worked(1);
+
+                        tId2Table.putAll(importer.importTanks(tList));
+                        pm.worked(1);
+                        rId2Table.putAll(importer.importReservoirs(rList));
+                        pm.worked(1);
+                        return newNetwork;
                     }
-                }
+                });
+            } else {
+                run.setNetwork(network);
+                epanetRunDao.create(run);
+                RunInps.store(connectionSource, run, inp);
+
+                // the network is already stored, reuse its elements
+                pm.beginTask("Loading the stored network data...", IJGTProgressMonitor.UNKNOWN);
+                jId2Table.putAll(NetworkVersions.loadWorks(connectionSource, JunctionsTable.class, network));
+                piId2Table.putAll(NetworkVersions.loadWorks(connectionSource, PipesTable.class, network));
+                puId2Table.putAll(NetworkVersions.loadWorks(connectionSource, PumpsTable.class, network));
+                vId2Table.putAll(NetworkVersions.loadWorks(connectionSource, ValvesTable.class, network));
+                tId2Table.putAll(NetworkVersions.loadWorks(connectionSource, TanksTable.class, network));
+                rId2Table.putAll(NetworkVersions.loadWorks(connectionSource, ReservoirsTable.class, network));
+            }
+            pm.done();
 
-                WKTWriter r = new WKTWriter();
-                String wkt = r.write(g);
-                String secondaryWkt = wkt;
-                if (pipe != null) {
-                    secondaryWkt = r.write(pipe);
+            if (!columnarResults && !runFiles) {
+                if (EpanetResultsSchema.hasResults(connectionSource)) {
+                    // the existing indexes are kept, rebuilding them would go over all the stored results
+                    EpanetResultsSchema.createIndexes(connectionSource, pm);
+                } else {
+                    // the indexes of the empty tables are not maintained during the bulk load, they are built after it
+                    EpanetResultsSchema.dropIndexes(connectionSource);
+                    indexesDropped = true;
                 }
-                CoordinateReferenceSystem crs = pu.getType().getCoordinateReferenceSystem();
-                String crsCode = CrsUtilities.getCodeFromCrs(crs);
-                Object id = FeatureUtilities.getAttributeCaseChecked(pu, Pumps.ID.getAttributeName());
-                PumpsTable put = new PumpsTable();
-                String idStr = id.toString();
-                put.setId(idStr);
-                put.setRun(run);
-                put.setWkt(wkt);
-                put.setCrsCode(crsCode);
-                put.setLinkWkt(secondaryWkt);
-                pumpsDao.create(put);
-
-                puId2Table.put(idStr, put);
             }
-            pm.worked(1);
-
-            List<SimpleFeature> vList = FeatureUtilities.featureCollectionToList(vFC);
-            for( SimpleFeature v : vList ) {
-                checkCancel(pm);
-                Geometry g = (Geometry) v.getDefaultGeometry();
-                Geometry buffer = g.buffer(1.0);
-                Geometry pipe = null;
-                for( SimpleFeature pi : piList ) {
-                    Geometry piGeom = (Geometry) pi.getDefaultGeometry();
-                    if (buffer.intersects(piGeom)) {
-                        pipe = piGeom;
-                        break;
-                    }
-                }
-                WKTWriter r = new WKTWriter();
-                String wkt = r.write(g);
-                String secondaryWkt = wkt;
-                if (pipe != null) {
-                    secondaryWkt = r.write(pipe);
-                }
-                CoordinateReferenceSystem crs = v.getType().getCoordinateReferenceSystem();
-                String crsCode = CrsUtilities.getCodeFromCrs(crs);
-                Object id = FeatureUtilities.getAttributeCaseChecked(v, Valves.ID.getAttributeName());
-                ValvesTable vt = new ValvesTable();
-                String idStr = id.toString();
-                vt.setId(idStr);
-                vt.setRun(run);
-                vt.setWkt(wkt);
-                vt.setCrsCode(crsCode);
-                vt.setLinkWkt(secondaryWkt);
-                valvesDao.create(vt);
-
-                vId2Table.put(idStr, vt);
+
+            EpanetRunner runner = new EpanetRunner(outputEpanetFile.getAbsolutePath());
+            runner.setPipelined(true, 8);
+            runner.setElementsSummary(true);
+            runner.setAlertRules(alertRules);
+            runner.setStepsAggregation(stepsAggregation);
+            if (columnarResults) {
+                runner.setResultsLayout(ResultsLayout.COLUMNAR);
             }
-            pm.worked(1);
-
-            List<SimpleFeature> tList = FeatureUtilities.featureCollectionToList(tFC);
-            for( SimpleFeature t : tList ) {
-                checkCancel(pm);
-                Geometry g = (Geometry) t.getDefaultGeometry();
-                WKTWriter r = new WKTWriter();
-                String wkt = r.write(g);
-                CoordinateReferenceSystem crs = t.getType().getCoordinateReferenceSystem();
-                String crsCode = CrsUtilities.getCodeFromCrs(crs);
-                Object id = FeatureUtilities.getAttributeCaseChecked(t, Tanks.ID.getAttributeName());
-                TanksTable tt = new TanksTable();
-                String idStr = id.toString();
-                tt.setId(idStr);
-                tt.setRun(run);
-                tt.setWkt(wkt);
-                tt.setCrsCode(crsCode);
-                tanksDao.create(tt);
-
-                tId2Table.put(idStr, tt);
+            if (binaryResults) {
+                runner.setBinaryResultsFile(BinaryResultsFile.getFile(new File(dbPath), run));
             }
-            pm.worked(1);
-
-            List<SimpleFeature> rList = FeatureUtilities.featureCollectionToList(rFC);
-            for( SimpleFeature res : rList ) {
-                checkCancel(pm);
-                Geometry g = (Geometry) res.getDefaultGeometry();
-                WKTWriter r = new WKTWriter();
-                String wkt = r.write(g);
-                CoordinateReferenceSystem crs = res.getType().getCoordinateReferenceSystem();
-                String crsCode = CrsUtilities.getCodeFromCrs(crs);
-                Object id = FeatureUtilities.getAttributeCaseChecked(res, Reservoirs.ID.getAttributeName());
-                ReservoirsTable rt = new ReservoirsTable();
-                String idStr = id.toString();
-                rt.setId(idStr);
-                rt.setRun(run);
-                rt.setWkt(wkt);
-                rt.setCrsCode(crsCode);
-                reservoirsDao.create(rt);
-
-                rId2Table.put(idStr, rt);
+            String warnings;
+            if (scenarioMultipliers.length == 0 && runFiles) {
+                IResultsSink sink = createRunFileSink(runner, new File(dbPath), run, pm);
+                runner.run(time.startClockTime, time.hydraulicTimestep, pm, sink, jId2Table, piId2Table, puId2Table,
+                        vId2Table, tId2Table, rId2Table);
+                warnings = runner.getWarnings();
+            } else if (scenarioMultipliers.length == 0) {
+                runner.run(time.startClockTime, time.hydraulicTimestep, pm, run, jId2Table, piId2Table, puId2Table,
+                        vId2Table, tId2Table, rId2Table, connectionSource);
+                warnings = runner.getWarnings();
+            } else {
+                // the run of the unchanged INP and one run per demand multiplier
+                final List<EpanetScenario> scenarios = new ArrayList<EpanetScenario>();
+                scenarios.add(new EpanetScenario(title));
+                for( double multiplier : scenarioMultipliers ) {
+                    EpanetScenario scenario = new EpanetScenario(title + " - demand x" + multiplier);
+                    scenario.setDemandMultiplier(multiplier);
+                    scenarios.add(scenario);
+                }
+                final EpanetRun baseRun = run;
+                final NetworksTable runsNetwork = network;
+                final ConnectionSource runsConnection = connectionSource;
+                final File dbFile = new File(dbPath);
+                final EpanetRunner sinksRunner = runner;
+                ScenarioBatchRunner.RunsFactory factory = new ScenarioBatchRunner.RunsFactory(){
+                    public EpanetRun createRun( EpanetScenario scenario, String inp ) throws Exception {
+                        if (scenario == scenarios.get(0)) {
+                            return baseRun;
+                        }
+                        EpanetRun scenarioRun = new EpanetRun();
+                        scenarioRun.setTitle(scenario.getTitle());
+                        scenarioRun.setDescription(baseRun.getDescription());
+                        scenarioRun.setUser(baseRun.getUser());
+                        scenarioRun.setUtcTime(baseRun.getUtcTime());
+                        scenarioRun.setNetwork(runsNetwork);
+                        DaoManager.createDao(runsConnection, EpanetRun.class).create(scenarioRun);
+                        RunInps.store(runsConnection, scenarioRun, inp);
+                        return scenarioRun;
+                    }
+                    public IResultsSink createSink( EpanetRun scenarioRun ) throws Exception {
+                        if (runFiles) {
+                            // every scenario writes to its own database, not locking the others
+                            return createRunFileSink(sinksRunner, dbFile, scenarioRun, pm);
+                        }
+                        File binaryFile = binaryResults ? BinaryResultsFile.getFile(dbFile, scenarioRun) : null;
+                        return sinksRunner.createResultsSink(runsConnection, scenarioRun, binaryFile, pm);
+                    }
+                };
+                ScenarioBatchRunner batchRunner = new ScenarioBatchRunner(runner.getDllPath(), scenarioWorkers);
+                batchRunner.run(outputEpanetFile, scenarios, time.startClockTime, time.hydraulicTimestep, factory,
+                        jId2Table, piId2Table, puId2Table, vId2Table, tId2Table, rId2Table, pm);
+                warnings = batchRunner.getWarnings();
             }
-            pm.worked(1);
-            pm.done();
-
-            EpanetRunner runner = new EpanetRunner(outputEpanetFile.getAbsolutePath());
-            runner.run(time.startClockTime, time.hydraulicTimestep, pm, run, jId2Table, piId2Table, puId2Table, vId2Table,
-                    tId2Table, rId2Table, connectionSource);
-            String warnings = runner.getWarnings();
 
             dialogManager.messageDialog(warnings, "WARNING", JOptionPane.WARNING_MESSAGE);
 
@@ -588,10 +601,13 @@ public class RunEpanetWizard extends JWizardFrame {
              * screwed up and understand how to solve.
              */
             try {
+                if (indexesDropped) {
+                    // also after a cancel or an error, the results written up to there are indexed
+                    EpanetResultsSchema.createIndexes(connectionSource, pm);
+                }
+            } finally {
                 if (connectionSource != null)
                     connectionSource.close();
-            } catch (Exception e) {
-                throw e;
             }
             if (canceledByUser) {
                 return;
@@ -614,9 +630,46 @@ public class RunEpanetWizard extends JWizardFrame {
         }
     }
 
-    private void checkCancel( IJGTProgressMonitor pm ) {
-        if (pm != null && pm.isCanceled()) {
-            throw new ModelsUserCancelException();
+    /**
+     * Create the sink writing a run to its {@link RunFiles own database}, directly or staged in memory.
+     */
+    private IResultsSink createRunFileSink( EpanetRunner runner, File dbFile, EpanetRun run, IJGTProgressMonitor pm )
+            throws Exception {
+        File runFile = RunFiles.getFile(dbFile, run);
+        ConnectionSource runConnection;
+        if (stagedRuns) {
+            runConnection = RunFiles.openStaged(clusteredResults, pm);
+        } else {
+            runConnection = RunFiles.openForWriting(runFile, clusteredResults, pm);
+        }
+        File binaryFile = binaryResults ? BinaryResultsFile.getFile(dbFile, run) : null;
+        IResultsSink sink;
+        try {
+            sink = runner.createResultsSink(runConnection, run, binaryFile, pm);
+        } catch (Exception e) {
+            runConnection.close();
+            throw e;
+        }
+        return RunFiles.closingSink(sink, runConnection, !columnarResults, stagedRuns ? runFile : null, pm);
+    }
+
+    private static double[] parseMultipliers( String text ) {
+        if (text.length() == 0) {
+            return new double[0];
+        }
+        String[] split = text.split("[,;\\s]+");
+        double[] multipliers = new double[split.length];
+        for( int i = 0; i < split.length; i++ ) {
+            multipliers[i] = Double.parseDouble(split[i]);
+        }
+        return multipliers;
+    }
+
+    private static int parseWorkers( String text ) {
+        try {
+            return Math.max(1, Integer.parseInt(text));
+        } catch (NumberFormatException e) {
+            return Runtime.getRuntime().availableProcessors();
         }
     }
 
@@ -1160,6 +1213,125 @@ public class RunEpanetWizard extends JWizardFrame {
                 }
             });
 
+            P5_columnarCheck = new JCheckBox("Store results in compact columnar layout");
+            P5_columnarCheck.setToolTipText(
+                    "Store every variable of a timestep as a single packed block instead of one row per element.");
+            P5_columnarCheck.setSelected(Boolean.parseBoolean(prefsMap.get(COLUMNAR_RESULTS)));
+            c.gridx = col;
+            c.gridy = 1;
+            c.gridwidth = times;
+            add(P5_columnarCheck, c);
+
+            P5_binaryCheck = new JCheckBox("Also write a binary results file for fast browsing");
+            P5_binaryCheck.setToolTipText("Write the results also to a memory mapped file beside the database.");
+            P5_binaryCheck.setSelected(Boolean.parseBoolean(prefsMap.get(BINARY_RESULTS)));
+            c.gridy = 2;
+            add(P5_binaryCheck, c);
+
+            P5_clusteredCheck = new JCheckBox("Cluster the results rows by run and time");
+            P5_clusteredCheck.setToolTipText(
+                    "Store the results rows in tables keyed on run, time and element. Existing results are moved once.");
+            P5_clusteredCheck.setSelected(Boolean.parseBoolean(prefsMap.get(CLUSTERED_RESULTS)));
+            c.gridy = 3;
+            add(P5_clusteredCheck, c);
+
+            P5_wkbCheck = new JCheckBox("Store the network geometries as binary WKB");
+            P5_wkbCheck.setToolTipText("Store the geometries of the network elements as WKB instead of WKT text.");
+            P5_wkbCheck.setSelected(Boolean.parseBoolean(prefsMap.get(WKB_GEOMETRIES)));
+            c.gridy = 4;
+            add(P5_wkbCheck, c);
+
+            JLabel multipliersLabel = new JLabel("Scenario demand multipliers");
+            multipliersLabel.setToolTipText(
+                    "Comma separated demand multipliers. Each one is run as an additional scenario in its own process.");
+            c.gridy = 5;
+            c.gridwidth = width;
+            add(multipliersLabel, c);
+
+            value = prefsMap.get(SCENARIO_MULTIPLIERS);
+            P5_multipliersText = new JTextField(value == null ? "" : value);
+            c.gridx = col + 1;
+            c.gridwidth = times - 1;
+            c.weightx = 1.0;
+            add(P5_multipliersText, c);
+
+            JLabel workersLabel = new JLabel("Parallel scenario workers");
+            workersLabel.setToolTipText(
+                    "The number of scenarios run at the same time. With more than one, every run is stored in its own database file.");
+            c.gridx = col;
+            c.gridy = 6;
+            c.gridwidth = width;
+            c.weightx = 0.0;
+            add(workersLabel, c);
+
+            value = prefsMap.get(SCENARIO_WORKERS);
+            if (value == null) {
+                value = String.valueOf(Runtime.getRuntime().availableProcessors());
+            }
+            P5_workersText = new JTextField(value);
+            c.gridx = col + 1;
+            c.gridwidth = times - 1;
+            c.weightx = 1.0;
+            add(P5_workersText, c);
+
+            JLabel alertsLabel = new JLabel("Alert rules");
+            alertsLabel.setToolTipText(
+                    "Semicolon separated rules stored as events when violated, ex. junctions pressure < 15; tanks head < 102 for 120");
+            c.gridx = col;
+            c.gridy = 7;
+            c.gridwidth = width;
+            c.weightx = 0.0;
+            add(alertsLabel, c);
+
+            value = prefsMap.get(ALERT_RULES);
+            P5_alertsText = new JTextField(value == null ? "" : value);
+            c.gridx = col + 1;
+            c.gridwidth = times - 1;
+            c.weightx = 1.0;
+            add(P5_alertsText, c);
+
+            JLabel aggregationLabel = new JLabel("Intermediate timesteps");
+            aggregationLabel.setToolTipText(
+                    "How the solver timesteps between two reporting timesteps are used: dropped or aggregated as time weighted mean, min or max.");
+            c.gridx = col;
+            c.gridy = 8;
+            c.gridwidth = width;
+            c.weightx = 0.0;
+            add(aggregationLabel, c);
+
+            P5_aggregationCombo = new JComboBox<StepsAggregator.Aggregation>(StepsAggregator.Aggregation.values());
+            value = prefsMap.get(STEPS_AGGREGATION);
+            if (value != null) {
+                try {
+                    P5_aggregationCombo.setSelectedItem(StepsAggregator.Aggregation.valueOf(value));
+                } catch (IllegalArgumentException e) {
+                    // ignore stale preferences
+                }
+            }
+            c.gridx = col + 1;
+            c.gridwidth = times - 1;
+            c.weightx = 1.0;
+            add(P5_aggregationCombo, c);
+
+            P5_runFilesCheck = new JCheckBox("Store the results of every run in its own database file");
+            P5_runFilesCheck.setToolTipText(
+                    "The chosen database only lists the runs, the results of each run go to a separate file beside it.");
+            P5_runFilesCheck.setSelected(Boolean.parseBoolean(prefsMap.get(RUN_FILES)));
+            c.gridx = col;
+            c.gridy = 9;
+            c.gridwidth = times;
+            c.weightx = 0.0;
+            add(P5_runFilesCheck, c);
+
+            P5_stagedCheck = new JCheckBox("Stage every run in memory and copy it to its database file at the end");
+            P5_stagedCheck.setToolTipText(
+                    "Faster for runs that fit in memory. Implies one database file per run, partial results are kept on errors.");
+            P5_stagedCheck.setSelected(Boolean.parseBoolean(prefsMap.get(STAGED_RUNS)));
+            c.gridy = 10;
+            add(P5_stagedCheck, c);
+            P5_multipliersText.getDocument().addDocumentListener(textListener);
+            P5_alertsText.getDocument().addDocumentListener(textListener);
+
             update();
         }
 
@@ -1173,6 +1345,13 @@ public class RunEpanetWizard extends JWizardFrame {
                 setFinishButtonEnabled(false);
                 return;
             }
+            try {
+                parseMultipliers(P5_multipliersText.getText().trim());
+                AlertRule.parseRules(P5_alertsText.getText());
+            } catch (IllegalArgumentException e) {
+                setFinishButtonEnabled(false);
+                return;
+            }
 
             setFinishButtonEnabled(true);
         }
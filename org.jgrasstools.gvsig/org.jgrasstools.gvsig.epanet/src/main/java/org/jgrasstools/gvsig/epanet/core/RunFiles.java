@@ -0,0 +1,255 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+import org.jgrasstools.gears.utils.files.FileUtilities;
+import org.jgrasstools.gvsig.epanet.database.EpanetRun;
+import org.jgrasstools.gvsig.epanet.database.JunctionsResultsTable;
+import org.jgrasstools.gvsig.epanet.database.PipesResultsTable;
+import org.jgrasstools.gvsig.epanet.database.PumpsResultsTable;
+import org.jgrasstools.gvsig.epanet.database.ReservoirsResultsTable;
+import org.jgrasstools.gvsig.epanet.database.ResultsBlockTable;
+import org.jgrasstools.gvsig.epanet.database.ResultsElementTable;
+import org.jgrasstools.gvsig.epanet.database.ResultsSummaryTable;
+import org.jgrasstools.gvsig.epanet.database.TanksResultsTable;
+import org.jgrasstools.gvsig.epanet.database.TimestepsTable;
+import org.jgrasstools.gvsig.epanet.database.ValvesResultsTable;
+
+import com.j256.ormlite.jdbc.JdbcConnectionSource;
+import com.j256.ormlite.jdbc.JdbcDatabaseConnection;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.support.DatabaseConnection;
+import com.j256.ormlite.table.TableUtils;
+
+/**
+ * The layout with one results database per run.
+ *
+ * <p>The database chosen by the user becomes a catalogue, holding the runs, their INP and the
+ * network versions. The results of every run go to their own file beside it, so that runs
+ * are written without contending the lock of a shared database, removed by deleting a file
+ * and archived one by one.</p>
+ *
+ * <p>The results of a run are read through a connection to its file, on which the catalogue
+ * is attached. The results tables are in the main schema, as the readers expect, and the
+ * network elements referenced by the results are found in the catalogue.</p>
+ *
+ * <p>A run can also be staged in an in memory database, without journal, and copied to its
+ * file with the online backup of SQLite once finished. The file is then written in one
+ * sequential pass instead of one transaction per timestep.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class RunFiles {
+
+    public static final String EXTENSION = ".sqlite";
+
+    /**
+     * The schema name under which the catalogue is attached.
+     */
+    public static final String CATALOGUE_SCHEMA = "CATALOGUE";
+
+    /**
+     * Get the results database of a run.
+     *
+     * @param catalogueFile the catalogue database.
+     * @param run the run.
+     * @return the results database file of the run.
+     */
+    public static File getFile( File catalogueFile, EpanetRun run ) {
+        String name = FileUtilities.getNameWithoutExtention(catalogueFile);
+        return new File(catalogueFile.getParentFile(), name + "_run" + run.getId() + EXTENSION);
+    }
+
+    /**
+     * Create the results tables, if they don't exist yet.
+     *
+     * @param connectionSource the database connection.
+     * @param clustered if <code>true</code>, the results tables use the clustered layout.
+     * @param pm the monitor.
+     * @throws SQLException
+     */
+    public static void createResultsTables( ConnectionSource connectionSource, boolean clustered, IJGTProgressMonitor pm )
+            throws SQLException {
+        if (clustered) {
+            // existing results are moved once, new databases get the clustered tables directly
+            EpanetResultsSchema.moveToClustered(connectionSource, pm);
+            EpanetResultsSchema.createClusteredTables(connectionSource);
+        }
+        TableUtils.createTableIfNotExists(connectionSource, JunctionsResultsTable.class);
+        TableUtils.createTableIfNotExists(connectionSource, PipesResultsTable.class);
+        TableUtils.createTableIfNotExists(connectionSource, PumpsResultsTable.class);
+        TableUtils.createTableIfNotExists(connectionSource, ValvesResultsTable.class);
+        TableUtils.createTableIfNotExists(connectionSource, TanksResultsTable.class);
+        TableUtils.createTableIfNotExists(connectionSource, ReservoirsResultsTable.class);
+
+        TableUtils.createTableIfNotExists(connectionSource, ResultsBlockTable.class);
+        TableUtils.createTableIfNotExists(connectionSource, ResultsElementTable.class);
+        TableUtils.createTableIfNotExists(connectionSource, TimestepsTable.class);
+        TableUtils.createTableIfNotExists(connectionSource, ResultsSummaryTable.class);
+        ElementsSummaryWriter.createTable(connectionSource);
+        AlertsWriter.createTables(connectionSource);
+    }
+
+    /**
+     * Create the results database of a run and open it for writing.
+     *
+     * @param runFile the results database of the run.
+     * @param clustered if <code>true</code>, the results tables use the clustered layout.
+     * @param pm the monitor.
+     * @return the connection to the run database.
+     * @throws SQLException
+     */
+    public static ConnectionSource openForWriting( File runFile, boolean clustered, IJGTProgressMonitor pm )
+            throws SQLException {
+        ConnectionSource connectionSource = new JdbcConnectionSource("jdbc:sqlite:" + runFile.getAbsolutePath());
+        try {
+            createResultsTables(connectionSource, clustered, pm);
+        } catch (SQLException e) {
+            connectionSource.close();
+            throw e;
+        }
+        return connectionSource;
+    }
+
+    /**
+     * Create an in memory results database, in which a run is staged before being
+     * copied to its file.
+     *
+     * @param clustered if <code>true</code>, the results tables use the clustered layout.
+     * @param pm the monitor.
+     * @return the connection to the in memory database, which lives as long as the connection.
+     * @throws SQLException
+     */
+    public static ConnectionSource openStaged( boolean clustered, IJGTProgressMonitor pm ) throws SQLException {
+        ConnectionSource connectionSource = new JdbcConnectionSource("jdbc:sqlite::memory:");
+        DatabaseConnection connection = connectionSource.getReadWriteConnection();
+        try {
+            // nothing to recover, on failure the file is written from what has been staged
+            connection.executeStatement("PRAGMA journal_mode=OFF", DatabaseConnection.DEFAULT_RESULT_FLAGS);
+            connection.executeStatement("PRAGMA synchronous=OFF", DatabaseConnection.DEFAULT_RESULT_FLAGS);
+            createResultsTables(connectionSource, clustered, pm);
+        } catch (SQLException e) {
+            connectionSource.releaseConnection(connection);
+            connectionSource.close();
+            throw e;
+        }
+        connectionSource.releaseConnection(connection);
+        return connectionSource;
+    }
+
+    /**
+     * Copy a database to a file with the online backup of SQLite.
+     *
+     * <p>The file is replaced by a copy of the whole database.</p>
+     *
+     * @param connectionSource the database to copy.
+     * @param targetFile the file to write.
+     * @param pm the monitor.
+     * @throws SQLException
+     */
+    public static void backup( ConnectionSource connectionSource, File targetFile, IJGTProgressMonitor pm )
+            throws SQLException {
+        pm.beginTask("Copying the staged results to " + targetFile.getName() + "...", IJGTProgressMonitor.UNKNOWN);
+        DatabaseConnection databaseConnection = connectionSource.getReadWriteConnection();
+        try {
+            Connection connection = ((JdbcDatabaseConnection) databaseConnection).getInternalConnection();
+            Statement statement = connection.createStatement();
+            try {
+                // the backup command of the sqlite jdbc driver, which runs the online backup
+                statement.executeUpdate("backup to \"" + targetFile.getAbsolutePath() + "\"");
+            } finally {
+                statement.close();
+            }
+        } finally {
+            connectionSource.releaseConnection(databaseConnection);
+            pm.done();
+        }
+    }
+
+    /**
+     * Open the results database of a run for reading, with the catalogue attached.
+     *
+     * @param runFile the results database of the run.
+     * @param catalogueFile the catalogue database.
+     * @return the connection to the run database.
+     * @throws SQLException
+     */
+    public static ConnectionSource openForReading( File runFile, File catalogueFile ) throws SQLException {
+        ConnectionSource connectionSource = new JdbcConnectionSource("jdbc:sqlite:" + runFile.getAbsolutePath());
+        DatabaseConnection connection = connectionSource.getReadWriteConnection();
+        try {
+            String cataloguePath = catalogueFile.getAbsolutePath().replace("'", "''");
+            connection.executeStatement("ATTACH DATABASE '" + cataloguePath + "' AS " + CATALOGUE_SCHEMA,
+                    DatabaseConnection.DEFAULT_RESULT_FLAGS);
+        } catch (SQLException e) {
+            connectionSource.releaseConnection(connection);
+            connectionSource.close();
+            throw e;
+        }
+        connectionSource.releaseConnection(connection);
+        return connectionSource;
+    }
+
+    /**
+     * Wrap a sink writing to the results database of a run, so that the database is
+     * indexed and closed with the sink.
+     *
+     * <p>The database is indexed, and a staged database copied to its file, also if the sink
+     * fails to close, so that what has been written up to there is kept.</p>
+     *
+     * @param sink the sink writing to the run database.
+     * @param connectionSource the connection to the run database.
+     * @param createIndexes if <code>true</code>, the results indexes are created after the last timestep.
+     * @param stagedFile the file to copy the staged database to, or <code>null</code> if not staged.
+     * @param pm the monitor.
+     * @return the wrapping sink.
+     */
+    public static IResultsSink closingSink( final IResultsSink sink, final ConnectionSource connectionSource,
+            final boolean createIndexes, final File stagedFile, final IJGTProgressMonitor pm ) {
+        return new IResultsSink(){
+            public void write( TimestepResults results ) throws Exception {
+                sink.write(results);
+            }
+
+            public void close() throws Exception {
+                try {
+                    sink.close();
+                } finally {
+                    try {
+                        if (createIndexes) {
+                            EpanetResultsSchema.createIndexes(connectionSource, pm);
+                        }
+                        if (stagedFile != null) {
+                            backup(connectionSource, stagedFile, pm);
+                        }
+                    } finally {
+                        connectionSource.close();
+                    }
+                }
+            }
+        };
+    }
+
+}
@@ -0,0 +1,214 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+import org.jgrasstools.gvsig.epanet.database.EpanetRun;
+import org.jgrasstools.gvsig.epanet.database.RunInpTable;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.dao.GenericRawResults;
+import com.j256.ormlite.misc.TransactionManager;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.table.TableUtils;
+
+/**
+ * Storage of the INP files of the runs and light listing of the runs.
+ *
+ * <p>The INP text is stored gzip compressed in the {@link RunInpTable} and loaded only
+ * when asked for, the runs are listed without it. Runs stored by older versions keep the
+ * text in the run table until {@link #migrate(ConnectionSource, IJGTProgressMonitor)} moves it.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class RunInps {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The columns read when listing the runs.
+     */
+    private static final String[] LIST_COLUMNS = {ID, TITLE, DESCRIPTION, USER, UTCTIME, NETWORK_ID};
+
+    /**
+     * Create the INP table if it doesn't exist.
+     *
+     * @param connectionSource the database connection.
+     * @throws SQLException
+     */
+    public static void createTable( ConnectionSource connectionSource ) throws SQLException {
+        TableUtils.createTableIfNotExists(connectionSource, RunInpTable.class);
+    }
+
+    /**
+     * List the runs of a database without their INP text.
+     *
+     * <p>The runs are meant for reading only, updating them would clear the INP of older runs.</p>
+     *
+     * @param connectionSource the database connection.
+     * @return the runs, ordered by id.
+     * @throws SQLException
+     */
+    public static List<EpanetRun> listRuns( ConnectionSource connectionSource ) throws SQLException {
+        Dao<EpanetRun, Long> runsDao = DaoManager.createDao(connectionSource, EpanetRun.class);
+        return runsDao.queryBuilder().selectColumns(LIST_COLUMNS).orderBy(ID, true).query();
+    }
+
+    /**
+     * Store the INP file of a run.
+     *
+     * @param connectionSource the database connection.
+     * @param run the stored run.
+     * @param inp the INP text.
+     * @throws SQLException
+     */
+    public static void store( ConnectionSource connectionSource, EpanetRun run, String inp ) throws SQLException {
+        RunInpTable inpTable = new RunInpTable();
+        inpTable.setRun(run);
+        inpTable.setInpGz(compress(inp));
+        Dao<RunInpTable, Long> inpsDao = DaoManager.createDao(connectionSource, RunInpTable.class);
+        inpsDao.create(inpTable);
+    }
+
+    /**
+     * Load the INP file of a run.
+     *
+     * @param connectionSource the database connection.
+     * @param run the run.
+     * @return the INP text or <code>null</code> if the run has none.
+     * @throws SQLException
+     */
+    public static String load( ConnectionSource connectionSource, EpanetRun run ) throws SQLException {
+        if (isTableAvailable(connectionSource)) {
+            Dao<RunInpTable, Long> inpsDao = DaoManager.createDao(connectionSource, RunInpTable.class);
+            List<RunInpTable> inps = inpsDao.queryForEq(RUN_ID, run);
+            if (!inps.isEmpty()) {
+                return decompress(inps.get(0).getInpGz());
+            }
+        }
+        String legacyInp = readLegacyInp(connectionSource, run.getId());
+        return legacyInp == null || legacyInp.length() == 0 ? null : legacyInp;
+    }
+
+    /**
+     * Move the INP text of the runs stored by older versions to the compressed table.
+     *
+     * @param connectionSource the database connection.
+     * @param pm the monitor.
+     * @throws Exception
+     */
+    public static void migrate( final ConnectionSource connectionSource, IJGTProgressMonitor pm ) throws Exception {
+        createTable(connectionSource);
+        final Dao<EpanetRun, Long> runsDao = DaoManager.createDao(connectionSource, EpanetRun.class);
+        List<Long> runIds = new ArrayList<Long>();
+        GenericRawResults<String[]> rawResults = runsDao.queryRaw("SELECT " + ID + " FROM " + EPANETRUN + " WHERE length("
+                + INP + ")>0");
+        try {
+            for( String[] row : rawResults ) {
+                runIds.add(Long.parseLong(row[0]));
+            }
+        } finally {
+            rawResults.close();
+        }
+        if (runIds.isEmpty()) {
+            return;
+        }
+        pm.beginTask("Compressing the INP files of the runs...", runIds.size());
+        for( final Long runId : runIds ) {
+            TransactionManager.callInTransaction(connectionSource, new Callable<Void>(){
+                public Void call() throws Exception {
+                    EpanetRun run = new EpanetRun();
+                    run.setId(runId);
+                    store(connectionSource, run, readLegacyInp(connectionSource, runId));
+                    runsDao.updateRaw("UPDATE " + EPANETRUN + " SET " + INP + "='' WHERE " + ID + "=" + runId);
+                    return null;
+                }
+            });
+            pm.worked(1);
+        }
+        pm.done();
+    }
+
+    private static boolean isTableAvailable( ConnectionSource connectionSource ) throws SQLException {
+        Dao<RunInpTable, Long> inpsDao = DaoManager.createDao(connectionSource, RunInpTable.class);
+        return inpsDao.isTableExists();
+    }
+
+    private static String readLegacyInp( ConnectionSource connectionSource, long runId ) throws SQLException {
+        Dao<EpanetRun, Long> runsDao = DaoManager.createDao(connectionSource, EpanetRun.class);
+        GenericRawResults<String[]> rawResults = runsDao.queryRaw("SELECT " + INP + " FROM " + EPANETRUN + " WHERE " + ID
+                + "=" + runId);
+        try {
+            String[] row = rawResults.getFirstResult();
+            return row == null ? null : row[0];
+        } finally {
+            rawResults.close();
+        }
+    }
+
+    private static byte[] compress( String inp ) throws SQLException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            OutputStream out = new GZIPOutputStream(bytes);
+            try {
+                out.write(inp.getBytes(UTF8));
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new SQLException("Unable to compress the INP file.", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String decompress( byte[] inpGz ) throws SQLException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            InputStream in = new GZIPInputStream(new ByteArrayInputStream(inpGz));
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while( (read = in.read(buffer)) != -1 ) {
+                    bytes.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new SQLException("Unable to decompress the INP file.", e);
+        }
+        return new String(bytes.toByteArray(), UTF8);
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org 
+ * (C) HydroloGIS - www.hydrologis.com 
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import java.util.Arrays;
+
+/**
+ * Running statistics of a vector of values, updated one sample of the whole vector at a time.
+ *
+ * <p>For every cell the count, mean and variance (Welford), min and max are kept, together with
+ * a P<sup>2</sup> sketch (Jain and Chlamtac) of each of the requested quantiles. The memory
+ * used depends on the number of cells only, not on the number of samples.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class RunningStatistics {
+
+    private static final int MARKERS = 5;
+
+    private final int size;
+    private final double[] probabilities;
+    private final int[] counts;
+    private final double[] means;
+    private final double[] m2s;
+    private final float[] mins;
+    private final float[] maxs;
+    /**
+     * Marker heights as [cell][quantile][marker].
+     */
+    private final double[] heights;
+    /**
+     * Marker positions as [cell][quantile][marker], 1 based.
+     */
+    private final int[] positions;
+
+    /**
+     * Constructor.
+     *
+     * @param size the number of cells.
+     * @param probabilities the probabilities of the quantiles to estimate (ex. 0.05, 0.95).
+     */
+    public RunningStatistics( int size, double... probabilities ) {
+        this.size = size;
+        this.probabilities = probabilities;
+        counts = new int[size];
+        means = new double[size];
+        m2s = new double[size];
+        mins = new float[size];
+        maxs = new float[size];
+        Arrays.fill(mins, Float.POSITIVE_INFINITY);
+        Arrays.fill(maxs, Float.NEGATIVE_INFINITY);
+        heights = new double[size * probabilities.length * MARKERS];
+        positions = new int[size * probabilities.length * MARKERS];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Add a sample of all the cells.
+     *
+     * @param values the values, one per cell.
+     */
+    public void add( float[] values ) {
+        for( int i = 0; i < size; i++ ) {
+            add(i, values[i]);
+        }
+    }
+
+    /**
+     * Add a sample of a cell.
+     *
+     * @param cell the cell index.
+     * @param value the value. NaN values are ignored.
+     */
+    public void add( int cell, float value ) {
+        if (Float.isNaN(value)) {
+            return;
+        }
+        int count = ++counts[cell];
+        double delta = value - means[cell];
+        means[cell] += delta / count;
+        m2s[cell] += delta * (value - means[cell]);
+        if (value < mins[cell]) {
+            mins[cell] = value;
+        }
+        if (value > maxs[cell]) {
+            maxs[cell] = value;
+        }
+        for( int q = 0; q < probabilities.length; q++ ) {
+            addToSketch((cell * probabilities.length + q) * MARKERS, probabilities[q], count, value);
+        }
+    }
+
+    private void addToSketch( int offset, double p, int count, double value ) {
+        if (count <= MARKERS) {
+            heights[offset + count - 1] = value;
+            if (count == MARKERS) {
+                Arrays.sort(heights, offset, offset + MARKERS);
+                for( int i = 0; i < MARKERS; i++ ) {
+                    positions[offset + i] = i + 1;
+                }
+            }
+            return;
+        }
+
+        int k;
+        if (value < heights[offset]) {
+            heights[offset] = value;
+            k = 0;
+        } else if (value >= heights[offset + 4]) {
+            heights[offset + 4] = value;
+            k = 3;
+        } else {
+            k = 0;
+            while( k < 3 && value >= heights[offset + k + 1] ) {
+                k++;
+            }
+        }
+        for( int i = k + 1; i < MARKERS; i++ ) {
+            positions[offset + i]++;
+        }
+
+        for( int i = 1; i < 4; i++ ) {
+            // the middle markers aim at p/2, p and (1+p)/2
+            double increment = i == 1 ? p / 2 : i == 2 ? p : (1 + p) / 2;
+            double desired = 1 + (count - 1) * increment;
+            int n = positions[offset + i];
+            int nPrev = positions[offset + i - 1];
+            int nNext = positions[offset + i + 1];
+            double d = desired - n;
+            if ((d >= 1 && nNext - n > 1) || (d <= -1 && nPrev - n < -1)) {
+                int s = d > 0 ? 1 : -1;
+                double q = heights[offset + i];
+                double qPrev = heights[offset + i - 1];
+                double qNext = heights[offset + i + 1];
+                double parabolic = q + s / (double) (nNext - nPrev)
+                        * ((n - nPrev + s) * (qNext - q) / (nNext - n) + (nNext - n - s) * (q - qPrev) / (n - nPrev));
+                if (qPrev < parabolic && parabolic < qNext) {
+                    heights[offset + i] = parabolic;
+                } else {
+                    heights[offset + i] = q + s * (heights[offset + i + s] - q) / (positions[offset + i + s] - n);
+                }
+                positions[offset + i] = n + s;
+            }
+        }
+    }
+
+    public int getCount( int cell ) {
+        return counts[cell];
+    }
+
+    public float getMean( int cell ) {
+        return counts[cell] == 0 ? Float.NaN : (float) means[cell];
+    }
+
+    /**
+     * @return the sample standard deviation, 0 with a single sample.
+     */
+    public float getStandardDeviation( int cell ) {
+        int count = counts[cell];
+        if (count == 0) {
+            return Float.NaN;
+        }
+        return count == 1 ? 0f : (float) Math.sqrt(m2s[cell] / (count - 1));
+    }
+
+    public float getMin( int cell ) {
+        return counts[cell] == 0 ? Float.NaN : mins[cell];
+    }
+
+    public float getMax( int cell ) {
+        return counts[cell] == 0 ? Float.NaN : maxs[cell];
+    }
+
+    /**
+     * Get the estimate of a quantile.
+     *
+     * @param cell the cell index.
+     * @param quantileIndex the index of the quantile in the probabilities given to the constructor.
+     * @return the estimate. With less than 5 samples it is the nearest rank of the samples.
+     */
+    public float getQuantile( int cell, int quantileIndex ) {
+        int count = counts[cell];
+        if (count == 0) {
+            return Float.NaN;
+        }
+        int offset = (cell * probabilities.length + quantileIndex) * MARKERS;
+        if (count >= MARKERS) {
+            return (float) heights[offset + 2];
+        }
+        double[] samples = Arrays.copyOfRange(heights, offset, offset + count);
+        Arrays.sort(samples);
+        int rank = (int) Math.round(probabilities[quantileIndex] * (count - 1));
+        return (float) samples[rank];
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+import org.jgrasstools.gvsig.epanet.database.EpanetRun;
+
+import com.j256.ormlite.misc.TransactionManager;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.support.DatabaseConnection;
+
+/**
+ * Removal of runs from a results database and compaction of the freed space.
+ *
+ * <p>A run is removed with one set based <code>DELETE</code> per table, all in a single
+ * transaction. The elements of a network version are removed only together with its last
+ * run, as long as other runs use them they are kept and, if needed, handed to one of them.
+ * The binary results files and the {@link RunFiles run databases} beside the database are deleted
+ * once the transaction is committed.</p>
+ *
+ * <p>The freed pages are given back to the filesystem by {@link #compact(ConnectionSource, IJGTProgressMonitor)}.
+ * The first compaction of a database switches it to the incremental auto vacuum with a full
+ * <code>VACUUM</code>, the next ones only release the free pages.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class RunsManager {
+
+    /**
+     * The tables holding rows of a run in a <code>RUN_ID</code> column, in deletion order.
+     */
+    private static final String[] RUN_TABLES = {ALERTEVENTS, ALERTRULES, ELEMENTSSUMMARY, MONTECARLOSTATS, RESULTSSUMMARY,
+            RESULTSBLOCKS, RESULTSELEMENTS, TIMESTEPS, RUNINPS};
+
+    /**
+     * The number of pages released per incremental vacuum step.
+     */
+    private static final int VACUUM_PAGES_STEP = 1000;
+
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    /**
+     * Remove a run and all its data.
+     *
+     * @param connectionSource the database connection.
+     * @param databaseFile the database file, used to find the binary results files. Can be <code>null</code>.
+     * @param run the run to remove.
+     * @param pm the monitor.
+     * @throws Exception
+     */
+    public static void removeRun( ConnectionSource connectionSource, File databaseFile, EpanetRun run,
+            IJGTProgressMonitor pm ) throws Exception {
+        List<EpanetRun> runs = new ArrayList<EpanetRun>();
+        runs.add(run);
+        removeRuns(connectionSource, databaseFile, runs, pm);
+    }
+
+    /**
+     * Remove runs and all their data.
+     *
+     * @param connectionSource the database connection.
+     * @param databaseFile the database file, used to find the binary results files. Can be <code>null</code>.
+     * @param runs the runs to remove.
+     * @param pm the monitor.
+     * @throws Exception
+     */
+    public static void removeRuns( final ConnectionSource connectionSource, File databaseFile, final List<EpanetRun> runs,
+            final IJGTProgressMonitor pm ) throws Exception {
+        if (runs.isEmpty()) {
+            return;
+        }
+        final List<String> runTables = new ArrayList<String>();
+        for( String table : RUN_TABLES ) {
+            if (tableExists(connectionSource, table)) {
+                runTables.add(table);
+            }
+        }
+        final List<String> dataTables = new ArrayList<String>();
+        for( String table : EpanetResultsSchema.RESULT_TABLES ) {
+            if (tableExists(connectionSource, table)) {
+                dataTables.add(EpanetResultsSchema.getDataTable(connectionSource, table));
+            }
+        }
+        final boolean hasNetworks = tableExists(connectionSource, NETWORKS);
+
+        pm.beginTask("Removing runs...", runs.size());
+        TransactionManager.callInTransaction(connectionSource, new Callable<Void>(){
+            public Void call() throws Exception {
+                for( EpanetRun run : runs ) {
+                    long runId = run.getId();
+                    for( String table : runTables ) {
+                        execute(connectionSource, "DELETE FROM " + table + " WHERE " + RUN_ID + "=" + runId);
+                    }
+                    for( String table : dataTables ) {
+                        execute(connectionSource, "DELETE FROM " + table + " WHERE " + RUN_ID + "=" + runId);
+                    }
+                    removeWorks(connectionSource, run, hasNetworks);
+                    execute(connectionSource, "DELETE FROM " + EPANETRUN + " WHERE " + ID + "=" + runId);
+                    pm.worked(1);
+                }
+                return null;
+            }
+        });
+        pm.done();
+
+        if (databaseFile != null) {
+            for( EpanetRun run : runs ) {
+                File[] runFiles = {BinaryResultsFile.getFile(databaseFile, run), RunFiles.getFile(databaseFile, run)};
+                for( File runFile : runFiles ) {
+                    if (runFile.exists() && !runFile.delete()) {
+                        runFile.deleteOnExit();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all the runs but the last ones.
+     *
+     * @param connectionSource the database connection.
+     * @param databaseFile the database file, used to find the binary results files. Can be <code>null</code>.
+     * @param keepCount the number of most recent runs to keep.
+     * @param pm the monitor.
+     * @return the removed runs.
+     * @throws Exception
+     */
+    public static List<EpanetRun> keepLastRuns( ConnectionSource connectionSource, File databaseFile, int keepCount,
+            IJGTProgressMonitor pm ) throws Exception {
+        if (keepCount < 0) {
+            throw new IllegalArgumentException("The number of runs to keep can't be negative: " + keepCount);
+        }
+        // the runs are listed by id, which follows the insertion order
+        List<EpanetRun> runs = RunInps.listRuns(connectionSource);
+        List<EpanetRun> toRemove = new ArrayList<EpanetRun>();
+        if (runs.size() > keepCount) {
+            toRemove.addAll(runs.subList(0, runs.size() - keepCount));
+        }
+        removeRuns(connectionSource, databaseFile, toRemove, pm);
+        return toRemove;
+    }
+
+    /**
+     * Give the free pages of the database back to the filesystem.
+     *
+     * @param connectionSource the database connection.
+     * @param pm the monitor.
+     * @throws SQLException
+     */
+    public static void compact( ConnectionSource connectionSource, IJGTProgressMonitor pm ) throws SQLException {
+        if (queryForLong(connectionSource, "PRAGMA auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+            // the auto vacuum mode of an existing database is changed only by a full vacuum
+            pm.beginTask("Compacting the database...", IJGTProgressMonitor.UNKNOWN);
+            execute(connectionSource, "PRAGMA auto_vacuum=INCREMENTAL");
+            execute(connectionSource, "VACUUM");
+            pm.done();
+            return;
+        }
+        long freePages = queryForLong(connectionSource, "PRAGMA freelist_count");
+        if (freePages == 0) {
+            return;
+        }
+        int steps = (int) ((freePages + VACUUM_PAGES_STEP - 1) / VACUUM_PAGES_STEP);
+        pm.beginTask("Releasing " + freePages + " free database pages...", steps);
+        for( int i = 0; i < steps; i++ ) {
+            if (pm.isCanceled()) {
+                break;
+            }
+            execute(connectionSource, "PRAGMA incremental_vacuum(" + VACUUM_PAGES_STEP + ")");
+            pm.worked(1);
+        }
+        pm.done();
+    }
+
+    /**
+     * Remove the network elements of a run that no other run uses.
+     */
+    private static void removeWorks( ConnectionSource connectionSource, EpanetRun run, boolean hasNetworks )
+            throws SQLException {
+        long runId = run.getId();
+        if (run.getNetwork() == null) {
+            // runs stored before the network versions own their elements
+            for( String table : NetworkVersions.WORK_TABLES ) {
+                execute(connectionSource, "DELETE FROM " + table + " WHERE " + RUN_ID + "=" + runId);
+            }
+            return;
+        }
+        long networkId = run.getNetwork().getOid();
+        long otherRunId = queryForLong(connectionSource, "SELECT ifnull(min(" + ID + "), -1) FROM " + EPANETRUN + " WHERE "
+                + NETWORK_ID + "=" + networkId + " AND " + ID + "<>" + runId);
+        if (otherRunId < 0) {
+            for( String table : NetworkVersions.WORK_TABLES ) {
+                execute(connectionSource, "DELETE FROM " + table + " WHERE " + NETWORK_ID + "=" + networkId);
+            }
+            if (hasNetworks) {
+                execute(connectionSource, "DELETE FROM " + NETWORKS + " WHERE " + OID + "=" + networkId);
+            }
+        } else {
+            // the shared elements have been created by this run, hand them to one still using them
+            for( String table : NetworkVersions.WORK_TABLES ) {
+                execute(connectionSource, "UPDATE " + table + " SET " + RUN_ID + "=" + otherRunId + " WHERE " + RUN_ID
+                        + "=" + runId + " AND " + NETWORK_ID + "=" + networkId);
+            }
+        }
+    }
+
+    private static boolean tableExists( ConnectionSource connectionSource, String table ) throws SQLException {
+        return queryForLong(connectionSource, "SELECT count(*) FROM sqlite_master WHERE name = '" + table + "'") > 0;
+    }
+
+    private static long queryForLong( ConnectionSource connectionSource, String sql ) throws SQLException {
+        DatabaseConnection connection = connectionSource.getReadOnlyConnection();
+        try {
+            return connection.queryForLong(sql);
+        } finally {
+            connectionSource.releaseConnection(connection);
+        }
+    }
+
+    private static void execute( ConnectionSource connectionSource, String sql ) throws SQLException {
+        DatabaseConnection connection = connectionSource.getReadWriteConnection();
+        try {
+            connection.executeStatement(sql, DatabaseConnection.DEFAULT_RESULT_FLAGS);
+        } finally {
+            connectionSource.releaseConnection(connection);
+        }
+    }
+
+}
@@ -0,0 +1,420 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org 
+ * (C) HydroloGIS - www.hydrologis.com 
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.jgrasstools.gears.libs.exceptions.ModelsUserCancelException;
+import org.jgrasstools.gears.libs.modules.JGTConstants;
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+import org.jgrasstools.gears.utils.files.FileUtilities;
+import org.jgrasstools.gvsig.epanet.core.TimestepResults.ElementResults;
+import org.jgrasstools.gvsig.epanet.database.EpanetRun;
+import org.jgrasstools.gvsig.epanet.database.IWork;
+import org.jgrasstools.gvsig.epanet.database.JunctionsTable;
+import org.jgrasstools.gvsig.epanet.database.PipesTable;
+import org.jgrasstools.gvsig.epanet.database.PumpsTable;
+import org.jgrasstools.gvsig.epanet.database.ReservoirsTable;
+import org.jgrasstools.gvsig.epanet.database.TanksTable;
+import org.jgrasstools.gvsig.epanet.database.ValvesTable;
+import org.jgrasstools.hortonmachine.modules.networktools.epanet.OmsEpanet;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.j256.ormlite.support.ConnectionSource;
+import com.sun.jna.Platform;
+
+/**
+ * Runner of several {@link EpanetScenario scenarios} of the same network in parallel.
+ *
+ * <p>Every scenario is run by a {@link ScenarioWorker} in its own java process, since the epanet
+ * library can't run more than one simulation per process. The workers stream their results back
+ * and a single writer, the thread calling {@link #run}, stores them as separate {@link EpanetRun runs}.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class ScenarioBatchRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(ScenarioBatchRunner.class);
+
+    /**
+     * Creates the runs of the scenarios and the sinks storing their results.
+     */
+    public static interface RunsFactory {
+        /**
+         * Create and store the run of a scenario.
+         *
+         * @param scenario the scenario.
+         * @param inp the text of the INP file of the scenario.
+         * @return the stored run or <code>null</code> if the results of the scenario are not stored as a run.
+         * @throws Exception
+         */
+        public EpanetRun createRun( EpanetScenario scenario, String inp ) throws Exception;
+
+        /**
+         * Create the sink storing the results of a run.
+         *
+         * <p>With more than one worker the sinks of different runs are open at the same
+         * time, so they must not share the transaction of a database connection.</p>
+         *
+         * @param run the run, <code>null</code> if none was created for the scenario.
+         * @return the sink.
+         * @throws Exception
+         */
+        public IResultsSink createSink( EpanetRun run ) throws Exception;
+    }
+
+    /**
+     * A sink that is told when its scenario completed.
+     *
+     * <p>The sinks of failed or canceled scenarios are closed without the call, so that
+     * sinks combining the scenarios can leave their partial results out.</p>
+     */
+    public static interface ScenarioSink extends IResultsSink {
+        /**
+         * Called once the scenario finished successfully, before the sink is closed.
+         *
+         * @throws Exception
+         */
+        public void completed() throws Exception;
+    }
+
+    private final String dllPath;
+    private final int workersCount;
+    private String workerMemory = null;
+    private boolean keepFiles = true;
+    private final StringBuilder warningsBuilder = new StringBuilder();
+    private final List<Process> processes = new ArrayList<Process>();
+
+    /**
+     * Constructor.
+     *
+     * @param dllPath the path of the epanet library the workers use.
+     * @param workersCount the number of scenarios run at the same time.
+     */
+    public ScenarioBatchRunner( String dllPath, int workersCount ) {
+        this.dllPath = dllPath;
+        this.workersCount = Math.max(1, workersCount);
+    }
+
+    /**
+     * Set the maximum heap of the worker processes.
+     *
+     * @param workerMemory the memory in the -Xmx format (ex. "512m") or <code>null</code> for the java default.
+     */
+    public void setWorkerMemory( String workerMemory ) {
+        this.workerMemory = workerMemory;
+    }
+
+    /**
+     * Set whether the INP, report and log files of the scenarios are kept once they finished.
+     *
+     * @param keepFiles if <code>false</code>, the files of the successful scenarios are deleted.
+     */
+    public void setKeepFiles( boolean keepFiles ) {
+        this.keepFiles = keepFiles;
+    }
+
+    public String getWarnings() {
+        String warnings = warningsBuilder.toString();
+        if (warnings.length() > 0) {
+            return warnings;
+        }
+        return null;
+    }
+
+    /**
+     * Run the scenarios.
+     *
+     * <p>The INP files of the scenarios and the logs of their workers are written beside the base INP
+     * file. A failing scenario doesn't stop the others, its error is added to the warnings.</p>
+     *
+     * @param baseInpFile the INP file the scenarios are applied to.
+     * @param scenarios the scenarios.
+     * @param tStart the start time.
+     * @param hydraulicTimestep the reporting timestep in minutes.
+     * @param factory the factory of the runs and their sinks.
+     * @param pm the monitor, advancing by one for every finished scenario.
+     * @return the runs of the scenarios, in the scenarios order.
+     * @throws Exception
+     */
+    public List<EpanetRun> run( File baseInpFile, List<EpanetScenario> scenarios, final String tStart,
+            final double hydraulicTimestep,
+            RunsFactory factory, //
+            // table maps
+            HashMap<String, JunctionsTable> jId2Table, //
+            HashMap<String, PipesTable> piId2Table, //
+            HashMap<String, PumpsTable> puId2Table, //
+            HashMap<String, ValvesTable> vId2Table, //
+            HashMap<String, TanksTable> tId2Table, //
+            HashMap<String, ReservoirsTable> rId2Table, //
+            IJGTProgressMonitor pm //
+    ) throws Exception {
+        // same order as BinaryResultsFile.TABLES
+        List<HashMap<String, ? extends IWork>> id2Tables = new ArrayList<HashMap<String, ? extends IWork>>();
+        id2Tables.add(jId2Table);
+        id2Tables.add(rId2Table);
+        id2Tables.add(tId2Table);
+        id2Tables.add(piId2Table);
+        id2Tables.add(puId2Table);
+        id2Tables.add(vId2Table);
+
+        String baseInp = FileUtilities.readFile(baseInpFile);
+        String baseName = FileUtilities.getNameWithoutExtention(baseInpFile);
+        int count = scenarios.size();
+        List<EpanetRun> runs = new ArrayList<EpanetRun>();
+        final File[] inpFiles = new File[count];
+        for( int i = 0; i < count; i++ ) {
+            EpanetScenario scenario = scenarios.get(i);
+            String inp = scenario.apply(baseInp);
+            inpFiles[i] = new File(baseInpFile.getParentFile(), baseName + "_scenario" + (i + 1) + ".inp");
+            FileUtilities.writeFile(inp, inpFiles[i]);
+            runs.add(factory.createRun(scenario, inp));
+        }
+
+        final BlockingQueue<Message> queue = new ArrayBlockingQueue<Message>(4 * workersCount);
+        final String classpath = getWorkerClasspath();
+        ExecutorService executor = Executors.newFixedThreadPool(workersCount);
+        for( int i = 0; i < count; i++ ) {
+            final int index = i;
+            executor.submit(new Runnable(){
+                public void run() {
+                    runWorker(index, inpFiles[index], tStart, hydraulicTimestep, classpath, queue);
+                }
+            });
+        }
+        executor.shutdown();
+
+        IResultsSink[] sinks = new IResultsSink[count];
+        pm.beginTask("Running " + count + " scenarios on " + workersCount + " workers...", count);
+        int finished = 0;
+        try {
+            while( finished < count ) {
+                if (pm.isCanceled()) {
+                    throw new ModelsUserCancelException();
+                }
+                Message message = queue.poll(500, TimeUnit.MILLISECONDS);
+                if (message == null) {
+                    continue;
+                }
+                int index = message.scenario;
+                String title = scenarios.get(index).getTitle();
+                if (message.results != null) {
+                    if (sinks[index] == null) {
+                        sinks[index] = factory.createSink(runs.get(index));
+                    }
+                    setWorkOids(message.results, id2Tables);
+                    sinks[index].write(message.results);
+                    pm.message(title + ": " + message.results.time.toString(JGTConstants.dateTimeFormatterYYYYMMDDHHMMSS));
+                } else {
+                    if (message.text != null) {
+                        warningsBuilder.append(title).append(":\n").append(message.text).append("\n");
+                    }
+                    if (message.finished) {
+                        if (sinks[index] != null) {
+                            if (!message.failed && sinks[index] instanceof ScenarioSink) {
+                                ((ScenarioSink) sinks[index]).completed();
+                            }
+                            sinks[index].close();
+                            sinks[index] = null;
+                        }
+                        finished++;
+                        pm.worked(1);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            synchronized (processes) {
+                for( Process process : processes ) {
+                    process.destroy();
+                }
+            }
+            // commit what has been written up to here, also on cancel
+            for( IResultsSink sink : sinks ) {
+                if (sink != null) {
+                    sink.close();
+                }
+            }
+            pm.done();
+        }
+        return runs;
+    }
+
+    private void runWorker( int index, File inpFile, String tStart, double hydraulicTimestep, String classpath,
+            BlockingQueue<Message> queue ) {
+        Process process = null;
+        try {
+            List<String> command = new ArrayList<String>();
+            command.add(new File(System.getProperty("java.home"), "bin" + File.separator + "java").getAbsolutePath());
+            if (workerMemory != null) {
+                command.add("-Xmx" + workerMemory);
+            }
+            command.add("-cp");
+            command.add(classpath);
+            command.add(ScenarioWorker.class.getName());
+            command.add(dllPath);
+            command.add(inpFile.getAbsolutePath());
+            command.add(tStart == null ? "" : tStart);
+            command.add(String.valueOf(hydraulicTimestep));
+
+            ProcessBuilder builder = new ProcessBuilder(command);
+            builder.directory(inpFile.getParentFile());
+            File logFile = new File(inpFile.getParentFile(), FileUtilities.getNameWithoutExtention(inpFile) + ".log");
+            builder.redirectError(logFile);
+            synchronized (processes) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                process = builder.start();
+                processes.add(process);
+            }
+            process.getOutputStream().close();
+
+            ScenarioWorker.StreamReader reader = new ScenarioWorker.StreamReader(process.getInputStream());
+            while( true ) {
+                int type = reader.next();
+                if (type == ScenarioWorker.MSG_TIMESTEP) {
+                    queue.put(new Message(index, reader.readTimestep(), null, false, false));
+                } else if (type == ScenarioWorker.MSG_WARNINGS) {
+                    queue.put(new Message(index, null, reader.getText(), false, false));
+                } else if (type == ScenarioWorker.MSG_DONE) {
+                    queue.put(new Message(index, null, null, true, false));
+                    process.waitFor();
+                    if (!keepFiles) {
+                        deleteFiles(inpFile, logFile);
+                    }
+                    break;
+                } else if (type == ScenarioWorker.MSG_ERROR) {
+                    queue.put(new Message(index, null, "Failed: " + reader.getText(), true, true));
+                    break;
+                } else {
+                    queue.put(new Message(index, null, "The worker stopped unexpectedly, see " + logFile, true,
+                            true));
+                    break;
+                }
+            }
+            process.waitFor();
+        } catch (InterruptedException e) {
+            // canceled
+        } catch (Exception e) {
+            logger.error("Error running scenario worker", e);
+            try {
+                queue.put(new Message(index, null, "Failed: " + e.getMessage(), true, true));
+            } catch (InterruptedException e1) {
+                // canceled
+            }
+        } finally {
+            if (process != null) {
+                process.destroy();
+                synchronized (processes) {
+                    processes.remove(process);
+                }
+            }
+        }
+    }
+
+    private static void deleteFiles( File inpFile, File logFile ) {
+        String inpPath = inpFile.getAbsolutePath();
+        File[] files = {inpFile, new File(inpPath + ".rpt"), new File(inpPath + ".out"), logFile};
+        for( File file : files ) {
+            if (file.exists() && !file.delete()) {
+                logger.warn("Unable to delete the scenario file: " + file);
+            }
+        }
+    }
+
+    private static void setWorkOids( TimestepResults results, List<HashMap<String, ? extends IWork>> id2Tables ) {
+        for( int t = 0; t < BinaryResultsFile.TABLES.length; t++ ) {
+            ElementResults elementResults = results.getResults(BinaryResultsFile.TABLES[t]);
+            HashMap<String, ? extends IWork> id2Table = id2Tables.get(t);
+            for( int i = 0; i < elementResults.size(); i++ ) {
+                IWork work = id2Table.get(elementResults.ids[i]);
+                if (work == null) {
+                    throw new IllegalArgumentException("The scenario contains an element missing in the network: "
+                            + elementResults.ids[i]);
+                }
+                elementResults.workOids[i] = work.getOid();
+            }
+        }
+    }
+
+    /**
+     * The classpath of the workers, made of the one of this jvm and of the locations of the plugin classes
+     * the worker needs, which in the application are loaded by the plugin classloaders.
+     */
+    private static String getWorkerClasspath() {
+        LinkedHashSet<String> entries = new LinkedHashSet<String>();
+        Class< ? >[] classes = {ScenarioWorker.class, OmsEpanet.class, JGTConstants.class, DateTime.class, Platform.class,
+                LoggerFactory.class, ConnectionSource.class};
+        for( Class< ? > clazz : classes ) {
+            CodeSource codeSource = clazz.getProtectionDomain().getCodeSource();
+            if (codeSource != null && codeSource.getLocation() != null) {
+                try {
+                    entries.add(new File(codeSource.getLocation().toURI()).getAbsolutePath());
+                } catch (URISyntaxException e) {
+                    entries.add(codeSource.getLocation().getPath());
+                }
+            }
+        }
+        String classpath = System.getProperty("java.class.path");
+        if (classpath != null && classpath.length() > 0) {
+            entries.add(classpath);
+        }
+        StringBuilder sb = new StringBuilder();
+        for( String entry : entries ) {
+            if (sb.length() > 0) {
+                sb.append(File.pathSeparator);
+            }
+            sb.append(entry);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A message of a worker to the writer.
+     */
+    private static class Message {
+        final int scenario;
+        final TimestepResults results;
+        final String text;
+        final boolean finished;
+        final boolean failed;
+
+        Message( int scenario, TimestepResults results, String text, boolean finished, boolean failed ) {
+            this.scenario = scenario;
+            this.results = results;
+            this.text = text;
+            this.finished = finished;
+            this.failed = failed;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org 
+ * (C) HydroloGIS - www.hydrologis.com 
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+
+import org.jgrasstools.gears.libs.monitor.LogProgressMonitor;
+import org.jgrasstools.gvsig.epanet.core.TimestepResults.ElementResults;
+import org.joda.time.DateTime;
+
+/**
+ * Entry point of the child processes running a single epanet scenario.
+ *
+ * <p>The epanet library is not re-entrant, so concurrent runs each get their own process
+ * and with it their own instance of the library. The worker streams the results to its
+ * standard output, the standard output of the java code being redirected to the error
+ * stream to keep the results stream clean.</p>
+ *
+ * <p>Usage: <code>ScenarioWorker dllPath inpPath tStart hydraulicTimestep</code></p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class ScenarioWorker {
+
+    /*
+     * message types of the results stream
+     */
+    public static final int MSG_TIMESTEP = 1;
+    public static final int MSG_WARNINGS = 2;
+    public static final int MSG_DONE = 3;
+    public static final int MSG_ERROR = 4;
+
+    public static void main( String[] args ) {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        System.setOut(new PrintStream(new FileOutputStream(FileDescriptor.err), true));
+        try {
+            String dllPath = args[0];
+            String inpPath = args[1];
+            String tStart = args[2];
+            double hydraulicTimestep = Double.parseDouble(args[3]);
+
+            EpanetRunner runner = new EpanetRunner(inpPath);
+            runner.setDllPath(dllPath);
+            runner.run(tStart, hydraulicTimestep, new LogProgressMonitor(), new StreamSink(out), null, null, null, null,
+                    null, null);
+            String warnings = runner.getWarnings();
+            if (warnings != null) {
+                out.writeByte(MSG_WARNINGS);
+                out.writeUTF(truncate(warnings));
+            }
+            out.writeByte(MSG_DONE);
+            out.flush();
+            System.exit(0);
+        } catch (Throwable e) {
+            e.printStackTrace();
+            try {
+                out.writeByte(MSG_ERROR);
+                String message = e.getMessage();
+                out.writeUTF(truncate(message != null ? message : e.getClass().getName()));
+                out.flush();
+            } catch (IOException e1) {
+                // the parent is gone
+            }
+            System.exit(1);
+        }
+    }
+
+    private static String truncate( String text ) {
+        // writeUTF is limited to 64k bytes
+        return text.length() > 16000 ? text.substring(0, 16000) : text;
+    }
+
+    /**
+     * {@link IResultsSink} writing the timesteps to the results stream.
+     */
+    private static class StreamSink implements IResultsSink {
+        private final DataOutputStream out;
+
+        public StreamSink( DataOutputStream out ) {
+            this.out = out;
+        }
+
+        public void write( TimestepResults results ) throws IOException {
+            out.writeByte(MSG_TIMESTEP);
+            out.writeLong(results.time.getMillis());
+            for( String table : BinaryResultsFile.TABLES ) {
+                ElementResults elementResults = results.getResults(table);
+                out.writeInt(elementResults.size());
+                out.writeInt(elementResults.values.length);
+                for( int i = 0; i < elementResults.size(); i++ ) {
+                    out.writeUTF(elementResults.ids[i]);
+                }
+                for( float[] varValues : elementResults.values ) {
+                    for( float value : varValues ) {
+                        out.writeFloat(value);
+                    }
+                }
+            }
+            out.flush();
+        }
+
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+
+    /**
+     * Reader of the results stream of a worker.
+     */
+    public static class StreamReader {
+        private final DataInputStream in;
+        private String text;
+
+        public StreamReader( InputStream inputStream ) {
+            in = new DataInputStream(new BufferedInputStream(inputStream));
+        }
+
+        /**
+         * Read the next message.
+         *
+         * @return the message type or -1 if the stream ended without the worker saying so.
+         * @throws IOException
+         */
+        public int next() throws IOException {
+            try {
+                int type = in.readByte();
+                if (type == MSG_WARNINGS || type == MSG_ERROR) {
+                    text = in.readUTF();
+                }
+                return type;
+            } catch (EOFException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * @return the text of the last {@link #MSG_WARNINGS} or {@link #MSG_ERROR} message.
+         */
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * Read the timestep following a {@link #MSG_TIMESTEP} message.
+         *
+         * <p>The work oids of the elements are not part of the stream and are left to 0.</p>
+         *
+         * @return the timestep results.
+         * @throws IOException
+         */
+        public TimestepResults readTimestep() throws IOException {
+            DateTime time = new DateTime(in.readLong());
+            ElementResults[] tables = new ElementResults[BinaryResultsFile.TABLES.length];
+            for( int t = 0; t < tables.length; t++ ) {
+                int count = in.readInt();
+                int variables = in.readInt();
+                ElementResults elementResults = new ElementResults(count, variables);
+                for( int i = 0; i < count; i++ ) {
+                    elementResults.ids[i] = in.readUTF();
+                }
+                for( int var = 0; var < variables; var++ ) {
+                    float[] varValues = elementResults.values[var];
+                    for( int i = 0; i < count; i++ ) {
+                        varValues[i] = in.readFloat();
+                    }
+                }
+                tables[t] = elementResults;
+            }
+            // same order as BinaryResultsFile.TABLES
+            return new TimestepResults(time, tables[0], tables[1], tables[2], tables[3], tables[4], tables[5]);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org 
+ * (C) HydroloGIS - www.hydrologis.com 
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import static org.jgrasstools.gvsig.epanet.core.TimestepResults.*;
+
+import java.util.Arrays;
+
+import org.jgrasstools.gvsig.epanet.core.TimestepResults.ElementResults;
+
+/**
+ * Aggregator of the hydraulic timesteps the solver computes between two reporting timesteps.
+ *
+ * <p>The results are piecewise constant, every state lasting until the next solver step. Over the
+ * window between two reporting timesteps the min, the max and the time weighted mean of every value
+ * are accumulated in primitive arrays, allocated once, and the reporting snapshot gets the chosen
+ * aggregate instead of its instantaneous value. The status of the links is never aggregated.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class StepsAggregator {
+
+    /**
+     * The aggregate stored for the reporting timesteps.
+     */
+    public static enum Aggregation {
+        /**
+         * The intermediate timesteps are dropped, the instantaneous values are stored.
+         */
+        NONE,
+        /**
+         * The time weighted mean over the reporting window.
+         */
+        MEAN,
+        /**
+         * The min over the reporting window.
+         */
+        MIN,
+        /**
+         * The max over the reporting window.
+         */
+        MAX
+    }
+
+    private static final String[] TABLES = BinaryResultsFile.TABLES;
+
+    private final Aggregation aggregation;
+    /**
+     * The accumulators as [table][variable][element].
+     */
+    private double[][][] sums;
+    private float[][][] mins;
+    private float[][][] maxs;
+    private float[][][] lastValues;
+    private long windowStart;
+    private long lastTime;
+    private boolean started = false;
+
+    public StepsAggregator( Aggregation aggregation ) {
+        this.aggregation = aggregation;
+    }
+
+    /**
+     * @return <code>true</code> once the first reporting timestep has been seen.
+     */
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Add an intermediate solver step.
+     *
+     * @param results the values of the step. They are copied, the snapshot can be reused.
+     * @param time the time of the step.
+     */
+    public void add( TimestepResults results, long time ) {
+        if (!started) {
+            return;
+        }
+        for( int t = 0; t < TABLES.length; t++ ) {
+            float[][] values = results.getResults(TABLES[t]).values;
+            double weight = time - lastTime;
+            for( int var = 0; var < values.length; var++ ) {
+                float[] varValues = values[var];
+                float[] varLast = lastValues[t][var];
+                double[] varSums = sums[t][var];
+                float[] varMins = mins[t][var];
+                float[] varMaxs = maxs[t][var];
+                for( int i = 0; i < varValues.length; i++ ) {
+                    float value = varValues[i];
+                    varSums[i] += varLast[i] * weight;
+                    if (value < varMins[i]) {
+                        varMins[i] = value;
+                    }
+                    if (value > varMaxs[i]) {
+                        varMaxs[i] = value;
+                    }
+                    varLast[i] = value;
+                }
+            }
+        }
+        lastTime = time;
+    }
+
+    /**
+     * Close the window at a reporting timestep, replacing its values by the aggregates, and
+     * open the next window.
+     *
+     * @param results the snapshot of the reporting timestep, modified in place.
+     */
+    public void aggregate( TimestepResults results ) {
+        long time = results.time.getMillis();
+        if (!started) {
+            allocate(results);
+            restart(results, time);
+            started = true;
+            return;
+        }
+        // the state of the last step lasts until the reporting time
+        add(results, time);
+        double duration = time - windowStart;
+        for( int t = 0; t < TABLES.length; t++ ) {
+            ElementResults elementResults = results.getResults(TABLES[t]);
+            float[][] values = elementResults.values;
+            boolean isLink = TimestepResults.isLinkTable(TABLES[t]);
+            for( int var = 0; var < values.length; var++ ) {
+                if (isLink && var == VAR_STATUS) {
+                    continue;
+                }
+                float[] varValues = values[var];
+                for( int i = 0; i < varValues.length; i++ ) {
+                    switch( aggregation ) {
+                    case MEAN:
+                        if (duration > 0) {
+                            varValues[i] = (float) (sums[t][var][i] / duration);
+                        }
+                        break;
+                    case MIN:
+                        varValues[i] = mins[t][var][i];
+                        break;
+                    case MAX:
+                        varValues[i] = maxs[t][var][i];
+                        break;
+                    default:
+                        break;
+                    }
+                }
+            }
+        }
+        // the next window starts from the instantaneous state, kept in the last values
+        for( int t = 0; t < TABLES.length; t++ ) {
+            for( int var = 0; var < lastValues[t].length; var++ ) {
+                float[] varLast = lastValues[t][var];
+                System.arraycopy(varLast, 0, mins[t][var], 0, varLast.length);
+                System.arraycopy(varLast, 0, maxs[t][var], 0, varLast.length);
+                Arrays.fill(sums[t][var], 0);
+            }
+        }
+        windowStart = time;
+        lastTime = time;
+    }
+
+    private void allocate( TimestepResults results ) {
+        sums = new double[TABLES.length][][];
+        mins = new float[TABLES.length][][];
+        maxs = new float[TABLES.length][][];
+        lastValues = new float[TABLES.length][][];
+        for( int t = 0; t < TABLES.length; t++ ) {
+            float[][] values = results.getResults(TABLES[t]).values;
+            int size = values.length == 0 ? 0 : values[0].length;
+            sums[t] = new double[values.length][size];
+            mins[t] = new float[values.length][size];
+            maxs[t] = new float[values.length][size];
+            lastValues[t] = new float[values.length][size];
+        }
+    }
+
+    private void restart( TimestepResults results, long time ) {
+        for( int t = 0; t < TABLES.length; t++ ) {
+            float[][] values = results.getResults(TABLES[t]).values;
+            for( int var = 0; var < values.length; var++ ) {
+                System.arraycopy(values[var], 0, lastValues[t][var], 0, values[var].length);
+                System.arraycopy(values[var], 0, mins[t][var], 0, values[var].length);
+                System.arraycopy(values[var], 0, maxs[t][var], 0, values[var].length);
+            }
+        }
+        windowStart = time;
+        lastTime = time;
+    }
+}
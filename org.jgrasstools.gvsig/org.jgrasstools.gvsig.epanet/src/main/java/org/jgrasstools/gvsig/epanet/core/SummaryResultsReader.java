@@ -0,0 +1,189 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import static org.jgrasstools.gvsig.epanet.core.TimestepResults.*;
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.jgrasstools.gvsig.epanet.database.EpanetRun;
+import org.jgrasstools.gvsig.epanet.database.ILinkResults;
+import org.jgrasstools.gvsig.epanet.database.INodeResults;
+import org.jgrasstools.gvsig.epanet.database.ResultsSummaryTable;
+import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.ResultsLinkParameters;
+import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.ResultsNodeParameters;
+import org.joda.time.DateTime;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.dao.GenericRawResults;
+import com.j256.ormlite.support.ConnectionSource;
+
+/**
+ * {@link IResultsReader} that takes the variable ranges from the {@link ResultsSummaryTable summary table}.
+ *
+ * <p>The cubes loaded through it take the ranges of their timesteps from the summary too.
+ * Everything else, as well as the ranges of runs stored before the summary
+ * existed, is delegated to the wrapped reader.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class SummaryResultsReader implements IResultsReader {
+
+    private final IResultsReader delegate;
+    private final Dao<ResultsSummaryTable, Long> summaryDao;
+    private final boolean hasSummary;
+
+    public SummaryResultsReader( ConnectionSource connectionSource, IResultsReader delegate ) throws SQLException {
+        this.delegate = delegate;
+        summaryDao = DaoManager.createDao(connectionSource, ResultsSummaryTable.class);
+        hasSummary = summaryDao.isTableExists();
+    }
+
+    public String[] getTimesList( EpanetRun run ) throws Exception {
+        return delegate.getTimesList(run);
+    }
+
+    public List<ILinkResults> getResults4Links( String resultTable, EpanetRun run, DateTime time ) throws Exception {
+        return delegate.getResults4Links(resultTable, run, time);
+    }
+
+    public List<INodeResults> getResults4Nodes( String resultTable, EpanetRun run, DateTime time ) throws Exception {
+        return delegate.getResults4Nodes(resultTable, run, time);
+    }
+
+    public float[] getLinksMinMax( EpanetRun run, DateTime time, ResultsLinkParameters linkVar ) throws Exception {
+        String variable = LINK_COLUMNS[getVariableIndex(linkVar)];
+        float[] minMax = readMinMax(run, time, variable, LINK_TABLES);
+        if (minMax == null) {
+            minMax = delegate.getLinksMinMax(run, time, linkVar);
+        }
+        return minMax;
+    }
+
+    public float[] getNodesMinMax( EpanetRun run, DateTime time, ResultsNodeParameters nodeVar ) throws Exception {
+        String variable = NODE_COLUMNS[getVariableIndex(nodeVar)];
+        float[] minMax = readMinMax(run, time, variable, getNodeTables(nodeVar));
+        if (minMax == null) {
+            minMax = delegate.getNodesMinMax(run, time, nodeVar);
+        }
+        return minMax;
+    }
+
+    public LinkedHashMap<DateTime, float[]> getValuesById( EpanetRun run, String id, ResultsNodeParameters nodeVar,
+            ResultsLinkParameters linkVar ) throws Exception {
+        return delegate.getValuesById(run, id, nodeVar, linkVar);
+    }
+
+    /**
+     * Read the range of a variable over some results tables with a single query.
+     *
+     * @return the array of min and max or <code>null</code>, if the run has no summary.
+     */
+    private float[] readMinMax( EpanetRun run, DateTime time, String variable, String[] tables ) throws SQLException {
+        if (!hasSummary || run == null) {
+            return null;
+        }
+        StringBuilder sql = new StringBuilder();
+        sql.append("SELECT min(").append(MINVALUE).append("), max(").append(MAXVALUE).append(") FROM ").append(RESULTSSUMMARY);
+        sql.append(" WHERE ").append(RUN_ID).append(" = ? AND ").append(UTCTIME).append(" = ? AND ").append(VARIABLE)
+                .append(" = ? AND ");
+        appendTables(sql, tables);
+
+        GenericRawResults<String[]> rawResults = summaryDao.queryRaw(sql.toString(), String.valueOf(run.getId()),
+                String.valueOf(time.getMillis()), variable);
+        try {
+            String[] row = rawResults.getFirstResult();
+            if (row == null || row[0] == null || row[1] == null) {
+                return null;
+            }
+            return new float[]{Float.parseFloat(row[0]), Float.parseFloat(row[1])};
+        } finally {
+            rawResults.close();
+        }
+    }
+
+    /**
+     * Load the cube through the wrapped reader, with the ranges of the timesteps taken from the summary.
+     */
+    public ResultsCube loadCube( EpanetRun run, ResultsNodeParameters nodeVar, ResultsLinkParameters linkVar )
+            throws Exception {
+        ResultsCube cube = delegate.loadCube(run, nodeVar, linkVar);
+        if (!hasSummary || run == null) {
+            return cube;
+        }
+        if (nodeVar != null) {
+            readCubeMinMax(cube, run, NODE_COLUMNS[getVariableIndex(nodeVar)], getNodeTables(nodeVar));
+        } else {
+            readCubeMinMax(cube, run, LINK_COLUMNS[getVariableIndex(linkVar)], LINK_TABLES);
+        }
+        return cube;
+    }
+
+    /**
+     * Read the ranges of a variable at all the timesteps of a run with a single query and set them in the cube.
+     *
+     * <p>Timesteps missing from the summary keep the ranges computed on the cube values.</p>
+     */
+    private void readCubeMinMax( ResultsCube cube, EpanetRun run, String variable, String[] tables ) throws SQLException {
+        StringBuilder sql = new StringBuilder();
+        sql.append("SELECT ").append(UTCTIME).append(", min(").append(MINVALUE).append("), max(").append(MAXVALUE)
+                .append(") FROM ").append(RESULTSSUMMARY);
+        sql.append(" WHERE ").append(RUN_ID).append(" = ? AND ").append(VARIABLE).append(" = ? AND ");
+        appendTables(sql, tables);
+        sql.append(" GROUP BY ").append(UTCTIME);
+
+        GenericRawResults<String[]> rawResults = summaryDao.queryRaw(sql.toString(), String.valueOf(run.getId()), variable);
+        try {
+            for( String[] row : rawResults ) {
+                if (row[1] == null || row[2] == null) {
+                    continue;
+                }
+                int timeIndex = cube.getTimeIndex(new DateTime(Long.parseLong(row[0])));
+                if (timeIndex >= 0) {
+                    cube.setMinMax(timeIndex, new float[]{Float.parseFloat(row[1]), Float.parseFloat(row[2])});
+                }
+            }
+        } finally {
+            rawResults.close();
+        }
+    }
+
+    private static void appendTables( StringBuilder sql, String[] tables ) {
+        sql.append(RESULTTABLE).append(" IN (");
+        for( int i = 0; i < tables.length; i++ ) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append("'").append(tables[i]).append("'");
+        }
+        sql.append(")");
+    }
+
+    private static String[] getNodeTables( ResultsNodeParameters nodeVar ) {
+        if (nodeVar == ResultsNodeParameters.PRESSURE) {
+            // reservoirs have no pressure
+            return new String[]{JUNCTIONSRESULT, TANKSRESULT};
+        }
+        return NODE_TABLES;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.ResultsLinkParameters;
+import org.jgrasstools.hortonmachine.modules.networktools.epanet.core.ResultsNodeParameters;
+import org.joda.time.DateTime;
+
+/**
+ * Snapshot of the results of all network elements at one reporting timestep.
+ *
+ * <p>Values are stored column-wise as primitive arrays, indexed by variable and then by
+ * element, the element order being the one of the epanet results lists. Once filled
+ * and handed over, a snapshot is never modified, so it can be passed between threads.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TimestepResults {
+
+    /*
+     * node variables indexes
+     */
+    public static final int VAR_DEMAND = 0;
+    public static final int VAR_HEAD = 1;
+    public static final int VAR_PRESSURE = 2;
+    public static final int VAR_QUALITY = 3;
+    public static final int NODE_VARIABLES = 4;
+
+    /*
+     * link variables indexes
+     */
+    public static final int VAR_FLOW1 = 0;
+    public static final int VAR_FLOW2 = 1;
+    public static final int VAR_VELOCITY1 = 2;
+    public static final int VAR_VELOCITY2 = 3;
+    public static final int VAR_HEADLOSS = 4;
+    public static final int VAR_STATUS = 5;
+    public static final int VAR_ENERGY = 6;
+    public static final int LINK_VARIABLES = 7;
+
+    /**
+     * The results table column names of the node variables, in variable index order.
+     */
+    public static final String[] NODE_COLUMNS = {DEMAND, HEAD, PRESSURE, QUALITY};
+    /**
+     * The results table column names of the link variables, in variable index order.
+     */
+    public static final String[] LINK_COLUMNS = {FLOW1, FLOW2, VELOCITY1, VELOCITY2, HEADLOSS, STATUS, ENERGY};
+
+    /**
+     * The node results tables.
+     */
+    public static final String[] NODE_TABLES = {JUNCTIONSRESULT, RESERVOIRSRESULT, TANKSRESULT};
+    /**
+     * The link results tables.
+     */
+    public static final String[] LINK_TABLES = {PIPESRESULT, PUMPSRESULT, VALVESRESULT};
+
+    public final DateTime time;
+    public final ElementResults junctions;
+    public final ElementResults reservoirs;
+    public final ElementResults tanks;
+    public final ElementResults pipes;
+    public final ElementResults pumps;
+    public final ElementResults valves;
+
+    public TimestepResults( DateTime time, ElementResults junctions, ElementResults reservoirs, ElementResults tanks,
+            ElementResults pipes, ElementResults pumps, ElementResults valves ) {
+        this.time = time;
+        this.junctions = junctions;
+        this.reservoirs = reservoirs;
+        this.tanks = tanks;
+        this.pipes = pipes;
+        this.pumps = pumps;
+        this.valves = valves;
+    }
+
+    /**
+     * Get the results of the elements stored in a given results table.
+     * 
+     * @param resultTable the name of the results table (ex. PIPESRESULT).
+     * @return the results of the elements.
+     */
+    public ElementResults getResults( String resultTable ) {
+        if (resultTable.equals(JUNCTIONSRESULT)) {
+            return junctions;
+        } else if (resultTable.equals(RESERVOIRSRESULT)) {
+            return reservoirs;
+        } else if (resultTable.equals(TANKSRESULT)) {
+            return tanks;
+        } else if (resultTable.equals(PIPESRESULT)) {
+            return pipes;
+        } else if (resultTable.equals(PUMPSRESULT)) {
+            return pumps;
+        } else if (resultTable.equals(VALVESRESULT)) {
+            return valves;
+        }
+        throw new IllegalArgumentException("Unknown results table: " + resultTable);
+    }
+
+    /**
+     * Checks if a results table contains links.
+     * 
+     * @param resultTable the name of the results table.
+     * @return <code>true</code> for pipes, pumps and valves.
+     */
+    public static boolean isLinkTable( String resultTable ) {
+        return resultTable.equals(PIPESRESULT) || resultTable.equals(PUMPSRESULT) || resultTable.equals(VALVESRESULT);
+    }
+
+    /**
+     * Get the variable index of a node variable.
+     * 
+     * @param nodeVar the node variable.
+     * @return the index in the {@link ElementResults#values}.
+     */
+    public static int getVariableIndex( ResultsNodeParameters nodeVar ) {
+        switch( nodeVar ) {
+        case DEMAND:
+            return VAR_DEMAND;
+        case HEAD:
+            return VAR_HEAD;
+        case PRESSURE:
+            return VAR_PRESSURE;
+        default:
+            throw new RuntimeException("Undefined variable.");
+        }
+    }
+
+    /**
+     * Get the variable index of a link variable.
+     * 
+     * <p>For flow and velocity the index of the first value is returned.</p>
+     * 
+     * @param linkVar the link variable.
+     * @return the index in the {@link ElementResults#values}.
+     */
+    public static int getVariableIndex( ResultsLinkParameters linkVar ) {
+        switch( linkVar ) {
+        case FLOW:
+            return VAR_FLOW1;
+        case VELOCITY:
+            return VAR_VELOCITY1;
+        case HEADLOSS:
+            return VAR_HEADLOSS;
+        case STATUS:
+            return VAR_STATUS;
+        case ENERGY:
+            return VAR_ENERGY;
+        default:
+            throw new RuntimeException("Undefined variable.");
+        }
+    }
+
+    /**
+     * The results of one class of elements (junctions, pipes, ...).
+     */
+    public static class ElementResults {
+        /**
+         * The ids of the elements.
+         */
+        public final String[] ids;
+        /**
+         * The database oids of the elements work table records.
+         */
+        public final long[] workOids;
+        /**
+         * The values as [variable][element].
+         */
+        public final float[][] values;
+
+        public ElementResults( int elementsCount, int variablesCount ) {
+            ids = new String[elementsCount];
+            workOids = new long[elementsCount];
+            values = new float[variablesCount][elementsCount];
+        }
+
+        public int size() {
+            return ids.length;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.jgrasstools.gvsig.epanet.database.EpanetRun;
+import org.jgrasstools.gvsig.epanet.database.TimestepsTable;
+import org.joda.time.DateTime;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.misc.TransactionManager;
+import com.j256.ormlite.support.ConnectionSource;
+
+/**
+ * {@link IResultsSink} filling the {@link TimestepsTable timesteps catalogue} of a run.
+ *
+ * <p>The times are collected while the run proceeds and inserted in a single transaction
+ * when the sink is closed, so it has to be closed after the sinks writing the results.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TimestepsCatalogueWriter implements IResultsSink {
+
+    private final ConnectionSource connectionSource;
+    private final EpanetRun run;
+    private final List<DateTime> times = new ArrayList<DateTime>();
+
+    public TimestepsCatalogueWriter( ConnectionSource connectionSource, EpanetRun run ) {
+        this.connectionSource = connectionSource;
+        this.run = run;
+    }
+
+    public void write( TimestepResults results ) {
+        times.add(results.time);
+    }
+
+    public void close() throws Exception {
+        if (times.isEmpty()) {
+            return;
+        }
+        final Dao<TimestepsTable, Long> timestepsDao = DaoManager.createDao(connectionSource, TimestepsTable.class);
+        TransactionManager.callInTransaction(connectionSource, new Callable<Void>(){
+            public Void call() throws Exception {
+                for( DateTime time : times ) {
+                    TimestepsTable timestep = new TimestepsTable();
+                    timestep.setRun(run);
+                    timestep.setUtcTime(time);
+                    timestepsDao.create(timestep);
+                }
+                return null;
+            }
+        });
+        times.clear();
+    }
+}
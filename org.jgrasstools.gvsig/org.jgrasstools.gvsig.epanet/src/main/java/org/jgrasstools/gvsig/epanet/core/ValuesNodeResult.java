@@ -0,0 +1,95 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import static org.jgrasstools.gvsig.epanet.core.TimestepResults.*;
+
+import org.jgrasstools.gvsig.epanet.database.EpanetRun;
+import org.jgrasstools.gvsig.epanet.database.INodeResults;
+import org.jgrasstools.gvsig.epanet.database.IWork;
+import org.joda.time.DateTime;
+
+/**
+ * The node results of an element at one timestep, backed by an array of values.
+ *
+ * <p>Used by the results readers that do not work on the row based tables. The object
+ * acts also as its own {@link IWork}, since only id and oid of the work are known.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class ValuesNodeResult implements INodeResults, IWork {
+    private final String id;
+    private final long oid;
+    private final EpanetRun run;
+    private final DateTime time;
+    private final float[] values;
+
+    /**
+     * Constructor.
+     *
+     * @param id the element id.
+     * @param oid the oid of the element work table record.
+     * @param run the run.
+     * @param time the timestep.
+     * @param values the values, indexed by variable (length {@link TimestepResults#NODE_VARIABLES}).
+     */
+    public ValuesNodeResult( String id, long oid, EpanetRun run, DateTime time, float[] values ) {
+        this.id = id;
+        this.oid = oid;
+        this.run = run;
+        this.time = time;
+        this.values = values;
+    }
+
+    public IWork getWork() {
+        return this;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Long getOid() {
+        return oid;
+    }
+
+    public EpanetRun getRun() {
+        return run;
+    }
+
+    public DateTime getUtcTime() {
+        return time;
+    }
+
+    public float getDemand() {
+        return values[VAR_DEMAND];
+    }
+
+    public float getHead() {
+        return values[VAR_HEAD];
+    }
+
+    public float getPressure() {
+        return values[VAR_PRESSURE];
+    }
+
+    public float getQuality() {
+        return values[VAR_QUALITY];
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.gvsig.fmap.dal.exception.DataException;
+import org.gvsig.fmap.dal.feature.Feature;
+import org.gvsig.fmap.dal.feature.FeatureSet;
+import org.gvsig.fmap.dal.feature.FeatureStore;
+import org.gvsig.fmap.dal.feature.FeatureStoreNotification;
+import org.gvsig.fmap.mapcontext.layers.vectorial.FLyrVect;
+import org.gvsig.tools.dispose.DisposableIterator;
+import org.gvsig.tools.observer.Observable;
+import org.gvsig.tools.observer.Observer;
+import org.jgrasstools.gvsig.epanet.database.EpanetRun;
+
+/**
+ * Cache of the elements of a layer that have no results, as the virtual pipes.
+ *
+ * <p>The ids of the layer are read once and kept until the store notifies a change. The
+ * virtual ids are computed once per layer and run, since the elements with results of a
+ * run are the same at all its timesteps, whatever reader gives them.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class VirtualElementsCache implements Observer {
+
+    private static final String ID = "id";
+
+    private final Map<FeatureStore, Entry> entries = new WeakHashMap<FeatureStore, Entry>();
+
+    /**
+     * Get the ids of the features of a layer that are not in the results.
+     *
+     * @param layer the layer.
+     * @param run the run of the results.
+     * @param ids the ids of the elements with results, only used the first time the run is asked for.
+     * @param count the number of ids to use from the array.
+     * @return the ids of the features without results. The list must not be modified.
+     * @throws DataException
+     */
+    public synchronized List<String> getVirtualIds( FLyrVect layer, EpanetRun run, String[] ids, int count )
+            throws DataException {
+        FeatureStore store = layer.getFeatureStore();
+        Entry entry = entries.get(store);
+        if (entry == null) {
+            entry = new Entry(readIds(store));
+            entries.put(store, entry);
+            store.addObserver(this);
+        }
+        if (count == 0) {
+            // a timestep without results, not cached for the run
+            return Collections.unmodifiableList(entry.layerIds);
+        }
+        if (entry.virtualIds == null || !run.getId().equals(entry.runId)) {
+            HashSet<String> idSet = new HashSet<String>(count * 2);
+            for( int i = 0; i < count; i++ ) {
+                idSet.add(ids[i]);
+            }
+            List<String> virtualIds = new ArrayList<String>();
+            for( String layerId : entry.layerIds ) {
+                if (!idSet.contains(layerId)) {
+                    virtualIds.add(layerId);
+                }
+            }
+            entry.runId = run.getId();
+            entry.virtualIds = Collections.unmodifiableList(virtualIds);
+        }
+        return entry.virtualIds;
+    }
+
+    public void update( Observable observable, Object notification ) {
+        if (notification instanceof FeatureStoreNotification) {
+            String type = ((FeatureStoreNotification) notification).getType();
+            if (FeatureStoreNotification.SELECTION_CHANGE.equals(type)) {
+                return;
+            }
+        }
+        if (observable instanceof FeatureStore) {
+            invalidate((FeatureStore) observable);
+        }
+    }
+
+    /**
+     * Forget the ids of a store, so that they are read again on the next request.
+     *
+     * @param store the store.
+     */
+    public synchronized void invalidate( FeatureStore store ) {
+        if (entries.remove(store) != null) {
+            store.deleteObserver(this);
+        }
+    }
+
+    private static List<String> readIds( FeatureStore store ) throws DataException {
+        List<String> layerIds = new ArrayList<String>();
+        FeatureSet set = null;
+        DisposableIterator iterator = null;
+        try {
+            set = store.getFeatureSet();
+            iterator = set.fastIterator();
+            while( iterator.hasNext() ) {
+                Feature feature = (Feature) iterator.next();
+                Object idObject = feature.get(ID);
+                if (idObject != null) {
+                    layerIds.add((String) idObject);
+                }
+            }
+        } finally {
+            if (iterator != null) {
+                iterator.dispose();
+            }
+            if (set != null) {
+                set.dispose();
+            }
+        }
+        return layerIds;
+    }
+
+    private static class Entry {
+        final List<String> layerIds;
+        Long runId;
+        List<String> virtualIds;
+
+        Entry( List<String> layerIds ) {
+            this.layerIds = layerIds;
+        }
+    }
+}
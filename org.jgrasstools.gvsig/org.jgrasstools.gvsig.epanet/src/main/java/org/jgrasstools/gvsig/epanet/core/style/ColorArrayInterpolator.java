@@ -17,6 +17,7 @@
  */
 package org.jgrasstools.gvsig.epanet.core.style;
 
+import java.util.Arrays;
 
 /**
  * A class for doing linear interpolations on color triplets.
@@ -64,4 +65,41 @@ public class ColorArrayInterpolator {
         }
         return new int[]{0, 0, 0};
     }
+
+    /**
+     * Interpolate a color without allocating it.
+     * 
+     * <p>The segment is found through binary search. For many values over the same
+     * range a {@link ColorLookupTable} is faster.</p>
+     * 
+     * @param x the value.
+     * @return the color packed as rgb in an int.
+     */
+    public int interpolateRGB( double x ) {
+        int last = xList.length - 1;
+        if (!(x > xList[0])) {
+            return pack(yList[0]);
+        }
+        if (x >= xList[last]) {
+            return pack(yList[last]);
+        }
+        int index = Arrays.binarySearch(xList, x);
+        if (index >= 0) {
+            return pack(yList[index]);
+        }
+        int i = -index - 1;
+        double x1 = xList[i - 1];
+        double x2 = xList[i];
+        int[] y1 = yList[i - 1];
+        int[] y2 = yList[i];
+        double f = (x - x1) / (x2 - x1);
+        int r = (int) ((y2[0] - y1[0]) * f + y1[0]);
+        int g = (int) ((y2[1] - y1[1]) * f + y1[1]);
+        int b = (int) ((y2[2] - y1[2]) * f + y1[2]);
+        return (r << 16) | (g << 8) | b;
+    }
+
+    private static int pack( int[] rgb ) {
+        return (rgb[0] << 16) | (rgb[1] << 8) | rgb[2];
+    }
 }
@@ -0,0 +1,173 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core.style;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jgrasstools.gvsig.base.DefaultGvsigTables;
+
+/**
+ * A precomputed color ramp, mapping values to colors in constant time and without allocations.
+ * 
+ * <p>The range is divided in a fixed number of entries holding the packed rgb of the
+ * interpolated color at their center. The {@link Color} objects of the entries are
+ * created once, so that the same instance is returned for the values of an entry.</p>
+ * 
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class ColorLookupTable {
+
+    /**
+     * The default number of entries of the table.
+     */
+    public static final int DEFAULT_SIZE = 1024;
+
+    private final int[] rgbs;
+    private final Color[] colors;
+    private final double min;
+    private final double scale;
+
+    /**
+     * Create the table of a ramp with breakpoints.
+     * 
+     * @param xList the values of the breakpoints, ascending.
+     * @param yList the colors of the breakpoints as rgb triplets.
+     * @param size the number of entries of the table.
+     */
+    public ColorLookupTable( double[] xList, int[][] yList, int size ) {
+        min = xList[0];
+        double max = xList[xList.length - 1];
+        double range = max - min;
+        scale = range > 0 ? size / range : 0;
+        rgbs = new int[size];
+        colors = new Color[size];
+
+        ColorArrayInterpolator interpolator = new ColorArrayInterpolator(xList, yList);
+        double step = range / size;
+        for( int i = 0; i < size; i++ ) {
+            rgbs[i] = interpolator.interpolateRGB(min + (i + 0.5) * step);
+        }
+    }
+
+    /**
+     * Create the table of evenly spaced colors over a range.
+     * 
+     * @param ramp the colors as rgb triplets, as {@link org.jgrasstools.gvsig.epanet.core.EpanetUtilities#rainbow}.
+     * @param min the value of the first color.
+     * @param max the value of the last color.
+     * @param size the number of entries of the table.
+     * @return the table.
+     */
+    public static ColorLookupTable fromRamp( int[][] ramp, double min, double max, int size ) {
+        double[] xList = new double[ramp.length];
+        double delta = ramp.length > 1 ? (max - min) / (ramp.length - 1) : 0;
+        for( int i = 0; i < xList.length; i++ ) {
+            xList[i] = min + i * delta;
+        }
+        return new ColorLookupTable(xList, ramp, size);
+    }
+
+    /**
+     * Create the table of one of the {@link DefaultGvsigTables}.
+     * 
+     * <p>Tables with only colors are spread evenly over the range, tables with
+     * values keep their own breakpoints.</p>
+     * 
+     * @param colorTableName the name of the color table.
+     * @param min the min of the range.
+     * @param max the max of the range.
+     * @param size the number of entries of the table.
+     * @return the table or <code>null</code> if the color table doesn't exist.
+     */
+    public static ColorLookupTable fromTable( String colorTableName, double min, double max, int size ) {
+        String tableString = new DefaultGvsigTables().getTableString(colorTableName);
+        if (tableString == null) {
+            return null;
+        }
+        List<double[]> rows = new ArrayList<double[]>();
+        for( String line : tableString.split("\n") ) {
+            line = line.trim();
+            if (line.length() == 0) {
+                continue;
+            }
+            String[] split = line.split("\\s+");
+            double[] row = new double[split.length];
+            for( int i = 0; i < split.length; i++ ) {
+                row[i] = Double.parseDouble(split[i]);
+            }
+            rows.add(row);
+        }
+        int[][] ramp = new int[rows.size()][];
+        boolean hasValues = rows.get(0).length == 4;
+        double[] xList = new double[ramp.length];
+        for( int i = 0; i < ramp.length; i++ ) {
+            double[] row = rows.get(i);
+            int offset = hasValues ? 1 : 0;
+            ramp[i] = new int[]{(int) row[offset], (int) row[offset + 1], (int) row[offset + 2]};
+            xList[i] = row[0];
+        }
+        if (!hasValues) {
+            return fromRamp(ramp, min, max, size);
+        }
+        return new ColorLookupTable(xList, ramp, size);
+    }
+
+    /**
+     * @param value the value.
+     * @return the index of the entry of the value, values out of range going to the first or last entry.
+     */
+    public int getIndex( double value ) {
+        int index = (int) ((value - min) * scale);
+        if (index < 0 || value != value) {
+            return 0;
+        }
+        return index < rgbs.length ? index : rgbs.length - 1;
+    }
+
+    /**
+     * @param value the value.
+     * @return the packed rgb of the color of the value.
+     */
+    public int getRGB( double value ) {
+        return rgbs[getIndex(value)];
+    }
+
+    /**
+     * @param value the value.
+     * @return the color of the value, shared by all the values of its entry.
+     */
+    public Color getColor( double value ) {
+        int index = getIndex(value);
+        Color color = colors[index];
+        if (color == null) {
+            // racing threads at worst create the same color twice
+            color = new Color(rgbs[index]);
+            colors[index] = color;
+        }
+        return color;
+    }
+
+    /**
+     * @return the number of entries of the table.
+     */
+    public int getSize() {
+        return rgbs.length;
+    }
+}
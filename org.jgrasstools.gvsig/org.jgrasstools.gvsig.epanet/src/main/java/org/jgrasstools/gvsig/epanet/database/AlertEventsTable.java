@@ -0,0 +1,156 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.database;
+
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import org.joda.time.DateTime;
+
+import com.j256.ormlite.field.DataType;
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * The persistent class representing a violation of an {@link AlertRulesTable alert rule} by an element.
+ *
+ * <p>An event starts at the first timestep the rule is violated and ends at the first timestep
+ * it isn't anymore, or at the last timestep of the run if the violation lasts until then.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@DatabaseTable(tableName = ALERTEVENTS)
+public class AlertEventsTable {
+
+    @DatabaseField(columnName = OID, canBeNull = false, generatedId = true)
+    private Long oid;
+
+    /**
+     * The {@link EpanetRun} this event belongs to.
+     */
+    @DatabaseField(foreign = true, columnName = RUN_ID, canBeNull = false, indexName = "ALERTEVENTS_RUN_IDX")
+    private EpanetRun run;
+
+    /**
+     * The violated rule.
+     */
+    @DatabaseField(foreign = true, columnName = RULE_ID, canBeNull = false, indexName = "ALERTEVENTS_RUN_IDX")
+    private AlertRulesTable rule;
+
+    /**
+     * The name of the results table of the element (ex. {@link IEpanetTableConstants#JUNCTIONSRESULT}).
+     */
+    @DatabaseField(columnName = RESULTTABLE, canBeNull = false)
+    private String resultTable;
+
+    /**
+     * The oid of the element in its work table.
+     */
+    @DatabaseField(columnName = WORK_ID, canBeNull = false)
+    private long workOid;
+
+    /**
+     * The id of the element.
+     */
+    @DatabaseField(columnName = ID, canBeNull = false)
+    private String id;
+
+    @DatabaseField(columnName = STARTTIME, canBeNull = false, dataType = DataType.DATE_TIME, indexName = "ALERTEVENTS_RUN_IDX")
+    private DateTime startTime;
+
+    @DatabaseField(columnName = ENDTIME, canBeNull = false, dataType = DataType.DATE_TIME)
+    private DateTime endTime;
+
+    /**
+     * The worst value reached during the event.
+     */
+    @DatabaseField(columnName = EXTREMEVALUE, canBeNull = false)
+    private float extremeValue;
+
+    public Long getOid() {
+        return oid;
+    }
+
+    public void setOid( Long oid ) {
+        this.oid = oid;
+    }
+
+    public EpanetRun getRun() {
+        return run;
+    }
+
+    public void setRun( EpanetRun run ) {
+        this.run = run;
+    }
+
+    public AlertRulesTable getRule() {
+        return rule;
+    }
+
+    public void setRule( AlertRulesTable rule ) {
+        this.rule = rule;
+    }
+
+    public String getResultTable() {
+        return resultTable;
+    }
+
+    public void setResultTable( String resultTable ) {
+        this.resultTable = resultTable;
+    }
+
+    public long getWorkOid() {
+        return workOid;
+    }
+
+    public void setWorkOid( long workOid ) {
+        this.workOid = workOid;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId( String id ) {
+        this.id = id;
+    }
+
+    public DateTime getStartTime() {
+        return startTime;
+    }
+
+    public void setStartTime( DateTime startTime ) {
+        this.startTime = startTime;
+    }
+
+    public DateTime getEndTime() {
+        return endTime;
+    }
+
+    public void setEndTime( DateTime endTime ) {
+        this.endTime = endTime;
+    }
+
+    public float getExtremeValue() {
+        return extremeValue;
+    }
+
+    public void setExtremeValue( float extremeValue ) {
+        this.extremeValue = extremeValue;
+    }
+
+}
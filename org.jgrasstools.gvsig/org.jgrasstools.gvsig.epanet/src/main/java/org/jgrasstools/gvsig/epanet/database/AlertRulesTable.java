@@ -0,0 +1,72 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.database;
+
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * The persistent class representing an alert rule evaluated during an {@link EpanetRun}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@DatabaseTable(tableName = ALERTRULES)
+public class AlertRulesTable {
+
+    @DatabaseField(columnName = OID, canBeNull = false, generatedId = true)
+    private Long oid;
+
+    /**
+     * The {@link EpanetRun} the rule is attached to.
+     */
+    @DatabaseField(foreign = true, columnName = RUN_ID, canBeNull = false, index = true)
+    private EpanetRun run;
+
+    /**
+     * The text of the rule (ex. "junctions pressure < 15 for 120").
+     */
+    @DatabaseField(columnName = RULE, canBeNull = false)
+    private String rule;
+
+    public Long getOid() {
+        return oid;
+    }
+
+    public void setOid( Long oid ) {
+        this.oid = oid;
+    }
+
+    public EpanetRun getRun() {
+        return run;
+    }
+
+    public void setRun( EpanetRun run ) {
+        this.run = run;
+    }
+
+    public String getRule() {
+        return rule;
+    }
+
+    public void setRule( String rule ) {
+        this.rule = rule;
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.database;
+
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import org.joda.time.DateTime;
+
+import com.j256.ormlite.field.DataType;
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * The persistent class representing the summary of a variable of an element over a whole run.
+ *
+ * <p>Indexed on the run, table, variable and the min and max values, so that questions like
+ * which junctions ever dropped below a pressure are answered without reading the results.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@DatabaseTable(tableName = ELEMENTSSUMMARY)
+public class ElementsSummaryTable {
+
+    @DatabaseField(columnName = OID, canBeNull = false, generatedId = true)
+    private Long oid;
+
+    /**
+     * The {@link EpanetRun} this summary belongs to.
+     */
+    @DatabaseField(foreign = true, columnName = RUN_ID, canBeNull = false)
+    private EpanetRun run;
+
+    /**
+     * The name of the results table of the element (ex. {@link IEpanetTableConstants#JUNCTIONSRESULT}).
+     */
+    @DatabaseField(columnName = RESULTTABLE, canBeNull = false)
+    private String resultTable;
+
+    /**
+     * The oid of the element in its work table.
+     */
+    @DatabaseField(columnName = WORK_ID, canBeNull = false)
+    private long workOid;
+
+    /**
+     * The variable, named as the column of the row based results table (ex. {@link IEpanetTableConstants#PRESSURE}).
+     */
+    @DatabaseField(columnName = VARIABLE, canBeNull = false)
+    private String variable;
+
+    @DatabaseField(columnName = MINVALUE, canBeNull = false)
+    private float min;
+
+    /**
+     * The first {@link DateTime time} the min was reached.
+     */
+    @DatabaseField(columnName = MINTIME, canBeNull = false, dataType = DataType.DATE_TIME)
+    private DateTime minTime;
+
+    @DatabaseField(columnName = MAXVALUE, canBeNull = false)
+    private float max;
+
+    /**
+     * The first {@link DateTime time} the max was reached.
+     */
+    @DatabaseField(columnName = MAXTIME, canBeNull = false, dataType = DataType.DATE_TIME)
+    private DateTime maxTime;
+
+    @DatabaseField(columnName = MEANVALUE, canBeNull = false)
+    private float mean;
+
+    public Long getOid() {
+        return oid;
+    }
+
+    public void setOid( Long oid ) {
+        this.oid = oid;
+    }
+
+    public EpanetRun getRun() {
+        return run;
+    }
+
+    public void setRun( EpanetRun run ) {
+        this.run = run;
+    }
+
+    public String getResultTable() {
+        return resultTable;
+    }
+
+    public void setResultTable( String resultTable ) {
+        this.resultTable = resultTable;
+    }
+
+    public long getWorkOid() {
+        return workOid;
+    }
+
+    public void setWorkOid( long workOid ) {
+        this.workOid = workOid;
+    }
+
+    public String getVariable() {
+        return variable;
+    }
+
+    public void setVariable( String variable ) {
+        this.variable = variable;
+    }
+
+    public float getMin() {
+        return min;
+    }
+
+    public void setMin( float min ) {
+        this.min = min;
+    }
+
+    public DateTime getMinTime() {
+        return minTime;
+    }
+
+    public void setMinTime( DateTime minTime ) {
+        this.minTime = minTime;
+    }
+
+    public float getMax() {
+        return max;
+    }
+
+    public void setMax( float max ) {
+        this.max = max;
+    }
+
+    public DateTime getMaxTime() {
+        return maxTime;
+    }
+
+    public void setMaxTime( DateTime maxTime ) {
+        this.maxTime = maxTime;
+    }
+
+    public float getMean() {
+        return mean;
+    }
+
+    public void setMean( float mean ) {
+        this.mean = mean;
+    }
+
+}
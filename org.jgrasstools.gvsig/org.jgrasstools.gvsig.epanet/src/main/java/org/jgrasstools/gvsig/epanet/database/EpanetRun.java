@@ -48,8 +48,18 @@ public class EpanetRun {
     @DatabaseField(columnName = UTCTIME, canBeNull = false, dataType = DataType.DATE_TIME)
     private DateTime utcTime;
 
+    /**
+     * The INP text of runs stored by older versions. New runs keep it empty and store the
+     * text compressed in the {@link RunInpTable}.
+     */
     @DatabaseField(columnName = INP, canBeNull = false)
-    private String inp;
+    private String inp = "";
+
+    /**
+     * The {@link NetworksTable network version} the run was done on.
+     */
+    @DatabaseField(foreign = true, columnName = NETWORK_ID, canBeNull = true, index = true)
+    private NetworksTable network;
 
     public Long getId() {
         return id;
@@ -98,6 +108,14 @@ public class EpanetRun {
     public void setInp( String inp ) {
         this.inp = inp;
     }
+
+    public NetworksTable getNetwork() {
+        return network;
+    }
+
+    public void setNetwork( NetworksTable network ) {
+        this.network = network;
+    }
     
     public String toString() {
         return getId() + " - " + getTitle();
@@ -42,15 +42,29 @@ public interface IEpanetTableConstants {
     public static final String TANKSRESULT = "TANKSRESULT";
     public static final String VALVES = "VALVES";
     public static final String VALVESRESULT = "VALVESRESULT";
+    public static final String RESULTSBLOCKS = "RESULTSBLOCKS";
+    public static final String RESULTSELEMENTS = "RESULTSELEMENTS";
+    public static final String TIMESTEPS = "TIMESTEPS";
+    public static final String RESULTSSUMMARY = "RESULTSSUMMARY";
+    public static final String NETWORKS = "NETWORKS";
+    public static final String RUNINPS = "RUNINPS";
+    public static final String MONTECARLOSTATS = "MONTECARLOSTATS";
+    public static final String ELEMENTSSUMMARY = "ELEMENTSSUMMARY";
+    public static final String ALERTRULES = "ALERTRULES";
+    public static final String ALERTEVENTS = "ALERTEVENTS";
 
     /*
      * COLUMNS
      */
     public static final String ID = "ID";
     public static final String RUN_ID = "RUN_ID";
+    public static final String NETWORK_ID = "NETWORK_ID";
+    public static final String HASH = "HASH";
     public static final String OID = "OID";
     public static final String WKT = "WKT";
     public static final String LINKWKT = "LINKWKT";
+    public static final String WKB = "WKB";
+    public static final String LINKWKB = "LINKWKB";
     public static final String CRSCODE = "CRSCODE";
     public static final String DEMAND = "DEMAND";
     public static final String HEAD = "HEAD";
@@ -68,5 +82,24 @@ public interface IEpanetTableConstants {
     public static final String DESCRIPTION = "DESCRIPTION";
     public static final String USER = "USER";
     public static final String INP = "INP";
+    public static final String INPGZ = "INPGZ";
+    public static final String RESULTTABLE = "RESULTTABLE";
+    public static final String VARIABLE = "VARIABLE";
+    public static final String BLOCK = "BLOCK";
+    public static final String ELEMENTINDEX = "ELEMENTINDEX";
+    public static final String MINVALUE = "MINVALUE";
+    public static final String MAXVALUE = "MAXVALUE";
+    public static final String MEANVALUE = "MEANVALUE";
+    public static final String STDDEVVALUE = "STDDEVVALUE";
+    public static final String P05VALUE = "P05VALUE";
+    public static final String P95VALUE = "P95VALUE";
+    public static final String SAMPLES = "SAMPLES";
+    public static final String MINTIME = "MINTIME";
+    public static final String MAXTIME = "MAXTIME";
+    public static final String RULE = "RULE";
+    public static final String RULE_ID = "RULE_ID";
+    public static final String STARTTIME = "STARTTIME";
+    public static final String ENDTIME = "ENDTIME";
+    public static final String EXTREMEVALUE = "EXTREMEVALUE";
 
 }
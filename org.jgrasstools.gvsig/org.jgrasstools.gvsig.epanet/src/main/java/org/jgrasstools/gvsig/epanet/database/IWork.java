@@ -3,4 +3,26 @@ package org.jgrasstools.gvsig.epanet.database;
 public interface IWork {
 
     public String getId();
+
+    public Long getOid();
+
+    public String getWkt();
+
+    public byte[] getWkb();
+
+    public String getCrsCode();
+
+    public NetworksTable getNetwork();
+
+    public void setId( String id );
+
+    public void setRun( EpanetRun run );
+
+    public void setNetwork( NetworksTable network );
+
+    public void setWkt( String wkt );
+
+    public void setWkb( byte[] wkb );
+
+    public void setCrsCode( String crsCode );
 }
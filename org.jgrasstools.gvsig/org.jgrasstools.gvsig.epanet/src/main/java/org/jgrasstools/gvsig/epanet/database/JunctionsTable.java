@@ -20,12 +20,15 @@ package org.jgrasstools.gvsig.epanet.database;
 import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.CRSCODE;
 import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.ID;
 import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.JUNCTIONS;
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.NETWORK_ID;
 import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.OID;
 import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.RUN_ID;
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.WKB;
 import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.WKT;
 
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import com.j256.ormlite.field.DataType;
 import com.j256.ormlite.field.DatabaseField;
 import com.j256.ormlite.table.DatabaseTable;
 import com.vividsolutions.jts.geom.Point;
@@ -56,6 +59,12 @@ public class JunctionsTable implements IWork {
     @DatabaseField(foreign = true, columnName = RUN_ID, canBeNull = false, uniqueCombo = true)
     private EpanetRun run;
 
+    /**
+     * The {@link NetworksTable network version} the junction belongs to, shared by all the runs on it.
+     */
+    @DatabaseField(foreign = true, columnName = NETWORK_ID, canBeNull = true, index = true)
+    private NetworksTable network;
+
     /**
      * The WKT of the geometry of the junction ( {@link Point} ).
      */
@@ -68,6 +77,12 @@ public class JunctionsTable implements IWork {
     @DatabaseField(columnName = CRSCODE, canBeNull = true)
     private String crsCode;
 
+    /**
+     * The WKB of the geometry of the junction, used instead of the WKT if the network is imported as binary.
+     */
+    @DatabaseField(columnName = WKB, dataType = DataType.BYTE_ARRAY, canBeNull = true)
+    private byte[] wkb;
+
     public Long getOid() {
         return oid;
     }
@@ -92,6 +107,14 @@ public class JunctionsTable implements IWork {
         this.run = run;
     }
 
+    public NetworksTable getNetwork() {
+        return network;
+    }
+
+    public void setNetwork( NetworksTable network ) {
+        this.network = network;
+    }
+
     public String getWkt() {
         return wkt;
     }
@@ -108,4 +131,12 @@ public class JunctionsTable implements IWork {
         this.crsCode = crsCode;
     }
 
+    public byte[] getWkb() {
+        return wkb;
+    }
+
+    public void setWkb( byte[] wkb ) {
+        this.wkb = wkb;
+    }
+
 }
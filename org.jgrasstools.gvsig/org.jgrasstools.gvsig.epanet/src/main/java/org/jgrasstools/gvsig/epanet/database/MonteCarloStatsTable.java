@@ -0,0 +1,207 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.database;
+
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import org.joda.time.DateTime;
+
+import com.j256.ormlite.field.DataType;
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * The persistent class representing the statistics of a variable of an element at one timestep,
+ * over all the runs of a Monte Carlo analysis.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@DatabaseTable(tableName = MONTECARLOSTATS)
+public class MonteCarloStatsTable {
+
+    @DatabaseField(columnName = OID, canBeNull = false, generatedId = true)
+    private Long oid;
+
+    /**
+     * The {@link EpanetRun} representing the analysis.
+     */
+    @DatabaseField(foreign = true, columnName = RUN_ID, canBeNull = false, uniqueCombo = true)
+    private EpanetRun run;
+
+    /**
+     * The name of the results table of the element (ex. {@link IEpanetTableConstants#JUNCTIONSRESULT}).
+     */
+    @DatabaseField(columnName = RESULTTABLE, canBeNull = false, uniqueCombo = true)
+    private String resultTable;
+
+    /**
+     * The oid of the element in its work table.
+     */
+    @DatabaseField(columnName = WORK_ID, canBeNull = false, uniqueCombo = true)
+    private long workOid;
+
+    /**
+     * The {@link DateTime time} of the simulation the statistics refer to.
+     */
+    @DatabaseField(columnName = UTCTIME, canBeNull = false, dataType = DataType.DATE_TIME, uniqueCombo = true)
+    private DateTime utcTime;
+
+    /**
+     * The variable, named as the column of the row based results table (ex. {@link IEpanetTableConstants#PRESSURE}).
+     */
+    @DatabaseField(columnName = VARIABLE, canBeNull = false, uniqueCombo = true)
+    private String variable;
+
+    /**
+     * The number of runs the statistics are computed on.
+     *
+     * <p>Only completed runs are counted. It can still differ between the timesteps of an
+     * analysis, if its runs report different timesteps.</p>
+     */
+    @DatabaseField(columnName = SAMPLES, canBeNull = false)
+    private int samples;
+
+    @DatabaseField(columnName = MEANVALUE, canBeNull = false)
+    private float mean;
+
+    @DatabaseField(columnName = STDDEVVALUE, canBeNull = false)
+    private float stdDev;
+
+    @DatabaseField(columnName = MINVALUE, canBeNull = false)
+    private float min;
+
+    @DatabaseField(columnName = MAXVALUE, canBeNull = false)
+    private float max;
+
+    /**
+     * The estimate of the 5th percentile.
+     */
+    @DatabaseField(columnName = P05VALUE, canBeNull = false)
+    private float p05;
+
+    /**
+     * The estimate of the 95th percentile.
+     */
+    @DatabaseField(columnName = P95VALUE, canBeNull = false)
+    private float p95;
+
+    public Long getOid() {
+        return oid;
+    }
+
+    public void setOid( Long oid ) {
+        this.oid = oid;
+    }
+
+    public EpanetRun getRun() {
+        return run;
+    }
+
+    public void setRun( EpanetRun run ) {
+        this.run = run;
+    }
+
+    public String getResultTable() {
+        return resultTable;
+    }
+
+    public void setResultTable( String resultTable ) {
+        this.resultTable = resultTable;
+    }
+
+    public long getWorkOid() {
+        return workOid;
+    }
+
+    public void setWorkOid( long workOid ) {
+        this.workOid = workOid;
+    }
+
+    public DateTime getUtcTime() {
+        return utcTime;
+    }
+
+    public void setUtcTime( DateTime utcTime ) {
+        this.utcTime = utcTime;
+    }
+
+    public String getVariable() {
+        return variable;
+    }
+
+    public void setVariable( String variable ) {
+        this.variable = variable;
+    }
+
+    public int getSamples() {
+        return samples;
+    }
+
+    public void setSamples( int samples ) {
+        this.samples = samples;
+    }
+
+    public float getMean() {
+        return mean;
+    }
+
+    public void setMean( float mean ) {
+        this.mean = mean;
+    }
+
+    public float getStdDev() {
+        return stdDev;
+    }
+
+    public void setStdDev( float stdDev ) {
+        this.stdDev = stdDev;
+    }
+
+    public float getMin() {
+        return min;
+    }
+
+    public void setMin( float min ) {
+        this.min = min;
+    }
+
+    public float getMax() {
+        return max;
+    }
+
+    public void setMax( float max ) {
+        this.max = max;
+    }
+
+    public float getP05() {
+        return p05;
+    }
+
+    public void setP05( float p05 ) {
+        this.p05 = p05;
+    }
+
+    public float getP95() {
+        return p95;
+    }
+
+    public void setP95( float p95 ) {
+        this.p95 = p95;
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.database;
+
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import org.joda.time.DateTime;
+
+import com.j256.ormlite.field.DataType;
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * The persistent class representing a version of the network geometries, shared by the runs on it.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@DatabaseTable(tableName = NETWORKS)
+public class NetworksTable {
+
+    @DatabaseField(columnName = OID, canBeNull = false, generatedId = true)
+    private Long oid;
+
+    /**
+     * The hash of the ids, geometries and crs of the network elements.
+     */
+    @DatabaseField(columnName = HASH, canBeNull = false, unique = true)
+    private String hash;
+
+    /**
+     * The {@link DateTime time} the version was first stored.
+     */
+    @DatabaseField(columnName = UTCTIME, canBeNull = false, dataType = DataType.DATE_TIME)
+    private DateTime utcTime;
+
+    public Long getOid() {
+        return oid;
+    }
+
+    public void setOid( Long oid ) {
+        this.oid = oid;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public void setHash( String hash ) {
+        this.hash = hash;
+    }
+
+    public DateTime getUtcTime() {
+        return utcTime;
+    }
+
+    public void setUtcTime( DateTime utcTime ) {
+        this.utcTime = utcTime;
+    }
+
+}
@@ -21,6 +21,7 @@ import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
 
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import com.j256.ormlite.field.DataType;
 import com.j256.ormlite.field.DatabaseField;
 import com.j256.ormlite.table.DatabaseTable;
 import com.vividsolutions.jts.geom.LineString;
@@ -51,6 +52,12 @@ public class PipesTable implements IWork {
     @DatabaseField(foreign = true, columnName = RUN_ID, canBeNull = false, uniqueCombo = true)
     private EpanetRun run;
 
+    /**
+     * The {@link NetworksTable network version} the pipe belongs to, shared by all the runs on it.
+     */
+    @DatabaseField(foreign = true, columnName = NETWORK_ID, canBeNull = true, index = true)
+    private NetworksTable network;
+
     /**
      * The WKT of the geometry of the pipe ( {@link LineString} ).
      */
@@ -63,6 +70,12 @@ public class PipesTable implements IWork {
     @DatabaseField(columnName = CRSCODE, canBeNull = true)
     private String crsCode;
 
+    /**
+     * The WKB of the geometry of the pipe, used instead of the WKT if the network is imported as binary.
+     */
+    @DatabaseField(columnName = WKB, dataType = DataType.BYTE_ARRAY, canBeNull = true)
+    private byte[] wkb;
+
     public Long getOid() {
         return oid;
     }
@@ -87,6 +100,14 @@ public class PipesTable implements IWork {
         this.run = run;
     }
 
+    public NetworksTable getNetwork() {
+        return network;
+    }
+
+    public void setNetwork( NetworksTable network ) {
+        this.network = network;
+    }
+
     public String getWkt() {
         return wkt;
     }
@@ -103,4 +124,12 @@ public class PipesTable implements IWork {
         this.crsCode = crsCode;
     }
 
+    public byte[] getWkb() {
+        return wkb;
+    }
+
+    public void setWkb( byte[] wkb ) {
+        this.wkb = wkb;
+    }
+
 }
@@ -21,6 +21,7 @@ import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
 
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import com.j256.ormlite.field.DataType;
 import com.j256.ormlite.field.DatabaseField;
 import com.j256.ormlite.table.DatabaseTable;
 import com.vividsolutions.jts.geom.Point;
@@ -50,6 +51,12 @@ public class PumpsTable implements IWork {
     @DatabaseField(foreign = true, columnName = RUN_ID, canBeNull = false, uniqueCombo = true)
     private EpanetRun run;
 
+    /**
+     * The {@link NetworksTable network version} the pump belongs to, shared by all the runs on it.
+     */
+    @DatabaseField(foreign = true, columnName = NETWORK_ID, canBeNull = true, index = true)
+    private NetworksTable network;
+
     /**
      * The WKT of the geometry of the pump ( {@link Point} ).
      */
@@ -68,6 +75,18 @@ public class PumpsTable implements IWork {
     @DatabaseField(columnName = CRSCODE, canBeNull = false)
     private String crsCode;
 
+    /**
+     * The WKB of the geometry of the pump, used instead of the WKT if the network is imported as binary.
+     */
+    @DatabaseField(columnName = WKB, dataType = DataType.BYTE_ARRAY, canBeNull = true)
+    private byte[] wkb;
+
+    /**
+     * The WKB of the geometry of the virtual link it represents, used instead of the WKT if the network is imported as binary.
+     */
+    @DatabaseField(columnName = LINKWKB, dataType = DataType.BYTE_ARRAY, canBeNull = true)
+    private byte[] linkWkb;
+
     public Long getOid() {
         return oid;
     }
@@ -92,6 +111,14 @@ public class PumpsTable implements IWork {
         this.run = run;
     }
 
+    public NetworksTable getNetwork() {
+        return network;
+    }
+
+    public void setNetwork( NetworksTable network ) {
+        this.network = network;
+    }
+
     public String getWkt() {
         return wkt;
     }
@@ -116,4 +143,20 @@ public class PumpsTable implements IWork {
         this.crsCode = crsCode;
     }
 
+    public byte[] getWkb() {
+        return wkb;
+    }
+
+    public void setWkb( byte[] wkb ) {
+        this.wkb = wkb;
+    }
+
+    public byte[] getLinkWkb() {
+        return linkWkb;
+    }
+
+    public void setLinkWkb( byte[] linkWkb ) {
+        this.linkWkb = linkWkb;
+    }
+
 }
@@ -21,6 +21,7 @@ import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
 
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import com.j256.ormlite.field.DataType;
 import com.j256.ormlite.field.DatabaseField;
 import com.j256.ormlite.table.DatabaseTable;
 import com.vividsolutions.jts.geom.Point;
@@ -50,6 +51,12 @@ public class ReservoirsTable implements IWork {
     @DatabaseField(foreign = true, columnName = RUN_ID, canBeNull = false, uniqueCombo = true)
     private EpanetRun run;
 
+    /**
+     * The {@link NetworksTable network version} the reservoir belongs to, shared by all the runs on it.
+     */
+    @DatabaseField(foreign = true, columnName = NETWORK_ID, canBeNull = true, index = true)
+    private NetworksTable network;
+
     /**
      * The WKT of the geometry of the reservoir ( {@link Point} ).
      */
@@ -62,6 +69,12 @@ public class ReservoirsTable implements IWork {
     @DatabaseField(columnName = CRSCODE, canBeNull = true)
     private String crsCode;
 
+    /**
+     * The WKB of the geometry of the reservoir, used instead of the WKT if the network is imported as binary.
+     */
+    @DatabaseField(columnName = WKB, dataType = DataType.BYTE_ARRAY, canBeNull = true)
+    private byte[] wkb;
+
     public Long getOid() {
         return oid;
     }
@@ -86,6 +99,14 @@ public class ReservoirsTable implements IWork {
         this.run = run;
     }
 
+    public NetworksTable getNetwork() {
+        return network;
+    }
+
+    public void setNetwork( NetworksTable network ) {
+        this.network = network;
+    }
+
     public String getWkt() {
         return wkt;
     }
@@ -102,4 +123,12 @@ public class ReservoirsTable implements IWork {
         this.crsCode = crsCode;
     }
 
+    public byte[] getWkb() {
+        return wkb;
+    }
+
+    public void setWkb( byte[] wkb ) {
+        this.wkb = wkb;
+    }
+
 }
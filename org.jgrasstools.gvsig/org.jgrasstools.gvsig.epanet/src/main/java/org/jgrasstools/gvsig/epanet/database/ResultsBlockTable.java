@@ -0,0 +1,143 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.database;
+
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import java.nio.ByteBuffer;
+
+import org.joda.time.DateTime;
+
+import com.j256.ormlite.field.DataType;
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * The persistent class representing a block of results in the columnar layout.
+ *
+ * <p>A block contains the values of one variable for all the elements of a results
+ * table at one timestep, packed as floats and ordered by the element index defined
+ * in {@link ResultsElementTable}.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@DatabaseTable(tableName = RESULTSBLOCKS)
+public class ResultsBlockTable {
+
+    @DatabaseField(columnName = OID, canBeNull = false, generatedId = true)
+    private Long oid;
+
+    /**
+     * The {@link EpanetRun} this block belongs to.
+     */
+    @DatabaseField(foreign = true, columnName = RUN_ID, canBeNull = false, uniqueCombo = true)
+    private EpanetRun run;
+
+    /**
+     * The name of the row based results table the block replaces (ex. {@link IEpanetTableConstants#JUNCTIONSRESULT}).
+     */
+    @DatabaseField(columnName = RESULTTABLE, canBeNull = false, uniqueCombo = true)
+    private String resultTable;
+
+    /**
+     * The variable, named as the column of the row based results table (ex. {@link IEpanetTableConstants#PRESSURE}).
+     */
+    @DatabaseField(columnName = VARIABLE, canBeNull = false, uniqueCombo = true)
+    private String variable;
+
+    /**
+     * The {@link DateTime time} of the simulation the block refers to.
+     */
+    @DatabaseField(columnName = UTCTIME, canBeNull = false, dataType = DataType.DATE_TIME, uniqueCombo = true)
+    private DateTime utcTime;
+
+    /**
+     * The packed float values.
+     */
+    @DatabaseField(columnName = BLOCK, canBeNull = false, dataType = DataType.BYTE_ARRAY)
+    private byte[] block;
+
+    public Long getOid() {
+        return oid;
+    }
+
+    public void setOid( Long oid ) {
+        this.oid = oid;
+    }
+
+    public EpanetRun getRun() {
+        return run;
+    }
+
+    public void setRun( EpanetRun run ) {
+        this.run = run;
+    }
+
+    public String getResultTable() {
+        return resultTable;
+    }
+
+    public void setResultTable( String resultTable ) {
+        this.resultTable = resultTable;
+    }
+
+    public String getVariable() {
+        return variable;
+    }
+
+    public void setVariable( String variable ) {
+        this.variable = variable;
+    }
+
+    public DateTime getUtcTime() {
+        return utcTime;
+    }
+
+    public void setUtcTime( DateTime utcTime ) {
+        this.utcTime = utcTime;
+    }
+
+    public byte[] getBlock() {
+        return block;
+    }
+
+    public void setBlock( byte[] block ) {
+        this.block = block;
+    }
+
+    /**
+     * @return the unpacked values of the block.
+     */
+    public float[] getValues() {
+        float[] values = new float[block.length / 4];
+        ByteBuffer.wrap(block).asFloatBuffer().get(values);
+        return values;
+    }
+
+    /**
+     * Pack the values into the block.
+     *
+     * @param values the values ordered by element index.
+     */
+    public void setValues( float[] values ) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+        buffer.asFloatBuffer().put(values);
+        block = buffer.array();
+    }
+
+}
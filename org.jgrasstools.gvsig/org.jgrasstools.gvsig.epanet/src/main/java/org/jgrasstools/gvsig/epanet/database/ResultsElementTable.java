@@ -0,0 +1,117 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.database;
+
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * The persistent class representing the element index dictionary of the columnar results layout.
+ *
+ * <p>For each run and results table, it maps the position of a value inside a
+ * {@link ResultsBlockTable block} to the element it belongs to.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@DatabaseTable(tableName = RESULTSELEMENTS)
+public class ResultsElementTable {
+
+    @DatabaseField(columnName = OID, canBeNull = false, generatedId = true)
+    private Long oid;
+
+    /**
+     * The {@link EpanetRun} this element belongs to.
+     */
+    @DatabaseField(foreign = true, columnName = RUN_ID, canBeNull = false, uniqueCombo = true)
+    private EpanetRun run;
+
+    /**
+     * The name of the row based results table the element is stored for.
+     */
+    @DatabaseField(columnName = RESULTTABLE, canBeNull = false, uniqueCombo = true)
+    private String resultTable;
+
+    /**
+     * The index of the element inside the blocks.
+     */
+    @DatabaseField(columnName = ELEMENTINDEX, canBeNull = false, uniqueCombo = true)
+    private int elementIndex;
+
+    /**
+     * The oid of the element in its work table (ex. {@link JunctionsTable}).
+     */
+    @DatabaseField(columnName = WORK_ID, canBeNull = false)
+    private long workOid;
+
+    /**
+     * The id of the element.
+     */
+    @DatabaseField(columnName = ID, canBeNull = false)
+    private String id;
+
+    public Long getOid() {
+        return oid;
+    }
+
+    public void setOid( Long oid ) {
+        this.oid = oid;
+    }
+
+    public EpanetRun getRun() {
+        return run;
+    }
+
+    public void setRun( EpanetRun run ) {
+        this.run = run;
+    }
+
+    public String getResultTable() {
+        return resultTable;
+    }
+
+    public void setResultTable( String resultTable ) {
+        this.resultTable = resultTable;
+    }
+
+    public int getElementIndex() {
+        return elementIndex;
+    }
+
+    public void setElementIndex( int elementIndex ) {
+        this.elementIndex = elementIndex;
+    }
+
+    public long getWorkOid() {
+        return workOid;
+    }
+
+    public void setWorkOid( long workOid ) {
+        this.workOid = workOid;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId( String id ) {
+        this.id = id;
+    }
+
+}
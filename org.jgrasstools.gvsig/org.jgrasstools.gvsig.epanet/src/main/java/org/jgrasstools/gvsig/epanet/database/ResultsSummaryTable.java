@@ -0,0 +1,139 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.database;
+
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import org.joda.time.DateTime;
+
+import com.j256.ormlite.field.DataType;
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * The persistent class representing the summary of a variable of a results table at one timestep.
+ *
+ * <p>The statistics are computed by the run while writing the results, so that the
+ * ranges needed by the legends don't have to be queried from the results.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@DatabaseTable(tableName = RESULTSSUMMARY)
+public class ResultsSummaryTable {
+
+    @DatabaseField(columnName = OID, canBeNull = false, generatedId = true)
+    private Long oid;
+
+    /**
+     * The {@link EpanetRun} this summary belongs to.
+     */
+    @DatabaseField(foreign = true, columnName = RUN_ID, canBeNull = false, uniqueCombo = true)
+    private EpanetRun run;
+
+    /**
+     * The {@link DateTime time} of the simulation the summary refers to.
+     */
+    @DatabaseField(columnName = UTCTIME, canBeNull = false, dataType = DataType.DATE_TIME, uniqueCombo = true)
+    private DateTime utcTime;
+
+    /**
+     * The name of the row based results table the summary is computed for (ex. {@link IEpanetTableConstants#PIPESRESULT}).
+     */
+    @DatabaseField(columnName = RESULTTABLE, canBeNull = false, uniqueCombo = true)
+    private String resultTable;
+
+    /**
+     * The variable, named as the column of the row based results table (ex. {@link IEpanetTableConstants#PRESSURE}).
+     */
+    @DatabaseField(columnName = VARIABLE, canBeNull = false, uniqueCombo = true)
+    private String variable;
+
+    @DatabaseField(columnName = MINVALUE, canBeNull = false)
+    private float min;
+
+    @DatabaseField(columnName = MAXVALUE, canBeNull = false)
+    private float max;
+
+    @DatabaseField(columnName = MEANVALUE, canBeNull = false)
+    private float mean;
+
+    public Long getOid() {
+        return oid;
+    }
+
+    public void setOid( Long oid ) {
+        this.oid = oid;
+    }
+
+    public EpanetRun getRun() {
+        return run;
+    }
+
+    public void setRun( EpanetRun run ) {
+        this.run = run;
+    }
+
+    public DateTime getUtcTime() {
+        return utcTime;
+    }
+
+    public void setUtcTime( DateTime utcTime ) {
+        this.utcTime = utcTime;
+    }
+
+    public String getResultTable() {
+        return resultTable;
+    }
+
+    public void setResultTable( String resultTable ) {
+        this.resultTable = resultTable;
+    }
+
+    public String getVariable() {
+        return variable;
+    }
+
+    public void setVariable( String variable ) {
+        this.variable = variable;
+    }
+
+    public float getMin() {
+        return min;
+    }
+
+    public void setMin( float min ) {
+        this.min = min;
+    }
+
+    public float getMax() {
+        return max;
+    }
+
+    public void setMax( float max ) {
+        this.max = max;
+    }
+
+    public float getMean() {
+        return mean;
+    }
+
+    public void setMean( float mean ) {
+        this.mean = mean;
+    }
+
+}
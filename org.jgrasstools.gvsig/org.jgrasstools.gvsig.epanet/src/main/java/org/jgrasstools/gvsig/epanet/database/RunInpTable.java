@@ -0,0 +1,75 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.database;
+
+import static org.jgrasstools.gvsig.epanet.database.IEpanetTableConstants.*;
+
+import com.j256.ormlite.field.DataType;
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * The persistent class holding the gzip compressed INP file of an {@link EpanetRun}.
+ *
+ * <p>Kept apart from the runs, so that listing them doesn't load the INP text.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@DatabaseTable(tableName = RUNINPS)
+public class RunInpTable {
+
+    @DatabaseField(columnName = OID, canBeNull = false, generatedId = true)
+    private Long oid;
+
+    /**
+     * The {@link EpanetRun} the INP file belongs to.
+     */
+    @DatabaseField(foreign = true, columnName = RUN_ID, canBeNull = false, unique = true)
+    private EpanetRun run;
+
+    /**
+     * The gzip compressed INP text.
+     */
+    @DatabaseField(columnName = INPGZ, canBeNull = false, dataType = DataType.BYTE_ARRAY)
+    private byte[] inpGz;
+
+    public Long getOid() {
+        return oid;
+    }
+
+    public void setOid( Long oid ) {
+        this.oid = oid;
+    }
+
+    public EpanetRun getRun() {
+        return run;
+    }
+
+    public void setRun( EpanetRun run ) {
+        this.run = run;
+    }
+
+    public byte[] getInpGz() {
+        return inpGz;
+    }
+
+    public void setInpGz( byte[] inpGz ) {
+        this.inpGz = inpGz;
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core.style;
+
+import java.awt.Color;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.jgrasstools.gvsig.epanet.core.EpanetUtilities;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmark of the coloring of the values of a results frame on the rainbow ramp.
+ * 
+ * <p>Compares the interpolation with a color per value, as done by the stylers
+ * before the {@link ColorLookupTable}, with the allocation free paths.</p>
+ * 
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ColorRampBenchmark {
+
+    /**
+     * The number of elements of the frame.
+     */
+    @Param({"10000", "100000"})
+    public int elementsCount;
+
+    private double[] values;
+    private ColorArrayInterpolator interpolator;
+    private ColorLookupTable lookupTable;
+
+    @Setup
+    public void setup() {
+        double min = 0;
+        double max = 150;
+        Random random = new Random(42);
+        values = new double[elementsCount];
+        for( int i = 0; i < values.length; i++ ) {
+            values[i] = min + random.nextDouble() * (max - min);
+        }
+
+        int[][] ramp = EpanetUtilities.rainbow;
+        double[] xList = new double[ramp.length];
+        double delta = (max - min) / (ramp.length - 1);
+        for( int i = 0; i < xList.length; i++ ) {
+            xList[i] = min + i * delta;
+        }
+        interpolator = new ColorArrayInterpolator(xList, ramp);
+        lookupTable = ColorLookupTable.fromRamp(ramp, min, max, ColorLookupTable.DEFAULT_SIZE);
+    }
+
+    @Benchmark
+    public void interpolateColor( Blackhole blackhole ) {
+        for( double value : values ) {
+            int[] rgb = interpolator.interpolate(value);
+            blackhole.consume(new Color(rgb[0], rgb[1], rgb[2]));
+        }
+    }
+
+    @Benchmark
+    public void interpolateRGB( Blackhole blackhole ) {
+        for( double value : values ) {
+            blackhole.consume(interpolator.interpolateRGB(value));
+        }
+    }
+
+    @Benchmark
+    public void lookupTableRGB( Blackhole blackhole ) {
+        for( double value : values ) {
+            blackhole.consume(lookupTable.getRGB(value));
+        }
+    }
+
+    @Benchmark
+    public void lookupTableColor( Blackhole blackhole ) {
+        for( double value : values ) {
+            blackhole.consume(lookupTable.getColor(value));
+        }
+    }
+
+    public static void main( String[] args ) throws Exception {
+        Options options = new OptionsBuilder().include(ColorRampBenchmark.class.getSimpleName()).build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gvsig.epanet.core.style;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jgrasstools.gears.utils.colors.ColorTables;
+import org.jgrasstools.gvsig.base.DefaultGvsigTables;
+import org.jgrasstools.gvsig.epanet.core.EpanetUtilities;
+import org.junit.Test;
+
+/**
+ * Checks that {@link ColorArrayInterpolator#interpolateRGB(double)} gives the colors of
+ * {@link ColorArrayInterpolator#interpolate(double)}.
+ * 
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TestColorArrayInterpolator {
+
+    @Test
+    public void testRainbow() {
+        int[][] ramp = EpanetUtilities.rainbow;
+        double[] xList = new double[ramp.length];
+        for( int i = 0; i < xList.length; i++ ) {
+            xList[i] = 12.5 + i * 37.5;
+        }
+        checkRamp(xList, ramp);
+    }
+
+    @Test
+    public void testTableWithValues() {
+        String tableString = new DefaultGvsigTables().getTableString(ColorTables.bathymetric.name());
+        List<double[]> rows = new ArrayList<double[]>();
+        for( String line : tableString.split("\n") ) {
+            line = line.trim();
+            if (line.length() > 0) {
+                String[] split = line.split("\\s+");
+                assertEquals(4, split.length);
+                rows.add(new double[]{Double.parseDouble(split[0]), Double.parseDouble(split[1]),
+                        Double.parseDouble(split[2]), Double.parseDouble(split[3])});
+            }
+        }
+        double[] xList = new double[rows.size()];
+        int[][] ramp = new int[rows.size()][];
+        for( int i = 0; i < xList.length; i++ ) {
+            double[] row = rows.get(i);
+            xList[i] = row[0];
+            ramp[i] = new int[]{(int) row[1], (int) row[2], (int) row[3]};
+        }
+        checkRamp(xList, ramp);
+    }
+
+    private void checkRamp( double[] xList, int[][] ramp ) {
+        ColorArrayInterpolator interpolator = new ColorArrayInterpolator(xList, ramp);
+        double first = xList[0];
+        double last = xList[xList.length - 1];
+        double margin = (last - first) / 10.0;
+
+        // the breakpoints and their neighbours
+        for( double x : xList ) {
+            checkValue(interpolator, x);
+            checkValue(interpolator, Math.nextUp(x));
+            checkValue(interpolator, Math.nextAfter(x, Double.NEGATIVE_INFINITY));
+        }
+        // a sweep over the range and out of it
+        int steps = 100000;
+        double step = (last - first + 2 * margin) / steps;
+        for( int i = 0; i <= steps; i++ ) {
+            checkValue(interpolator, first - margin + i * step);
+        }
+    }
+
+    private void checkValue( ColorArrayInterpolator interpolator, double x ) {
+        int[] rgb = interpolator.interpolate(x);
+        int expected = (rgb[0] << 16) | (rgb[1] << 8) | rgb[2];
+        assertEquals("value " + x, Integer.toHexString(expected), Integer.toHexString(interpolator.interpolateRGB(x)));
+    }
+}